@@ -23,7 +23,7 @@ import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
 import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
-import com.android.tradefed.util.SimpleStats;
+import com.android.tradefed.util.StreamingStats;
 
 import junit.framework.Assert;
 
@@ -39,7 +39,7 @@ import java.util.Map;
  */
 public class EncryptionStressTest implements IDeviceTest, IRemoteTest {
 
-    SimpleStats mEncryptionStats = new SimpleStats();
+    StreamingStats mEncryptionStats = new StreamingStats();
     ITestDevice mTestDevice = null;
 
     @Option(name="iterations", description="The number of iterations to run")
@@ -108,10 +108,13 @@ public class EncryptionStressTest implements IDeviceTest, IRemoteTest {
             encryptDevice();
         }
 
-        Map<String, String> metrics = new HashMap<String, String>(2);
+        Map<String, String> metrics = new HashMap<String, String>();
         metrics.put(mTestDevice.getSerialNumber() + "_iterations",
-                new Integer(mEncryptionStats.size()).toString());
+                Long.toString(mEncryptionStats.size()));
         metrics.put(mTestDevice.getSerialNumber() + "_mean", mEncryptionStats.mean().toString());
+        metrics.put(mTestDevice.getSerialNumber() + "_median",
+                mEncryptionStats.median().toString());
+        metrics.put(mTestDevice.getSerialNumber() + "_max", mEncryptionStats.max().toString());
 
         listener.testRunEnded(0, metrics);
     }
@@ -32,7 +32,7 @@ import com.android.tradefed.testtype.IDeviceTest;
 import com.android.tradefed.testtype.IRemoteTest;
 import com.android.tradefed.util.RegexTrie;
 import com.android.tradefed.util.RunUtil;
-import com.android.tradefed.util.SimpleStats;
+import com.android.tradefed.util.StreamingStats;
 
 import junit.framework.Assert;
 import junit.framework.TestCase;
@@ -45,7 +45,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -243,9 +242,17 @@ public class OpenGlPerformanceTest implements IDeviceTest, IRemoteTest {
                 if (mTestResults.get(key) == null) {
                     continue;
                 }
-                SimpleStats simpleStats = new SimpleStats();
-                simpleStats.addAll(Arrays.asList(mTestResults.get(key)));
-                double averageFps = simpleStats.mean();
+                StreamingStats fpsStats = new StreamingStats();
+                for (Double fps : mTestResults.get(key)) {
+                    // iterations whose output could not be parsed have no value
+                    if (fps != null) {
+                        fpsStats.add(fps);
+                    }
+                }
+                if (fpsStats.isEmpty()) {
+                    continue;
+                }
+                double averageFps = fpsStats.mean();
                 runMetrics.put(key, String.valueOf(averageFps));
             }
             reportMetrics(entry.getKey(), runMetrics, listener);
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.command.remote;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Remote operation for getting the device utilization over each window.
+ */
+class GetUtilizationOp extends RemoteOperation<List<UtilizationDescriptor>> {
+
+    private static final String WINDOWS = "windows";
+    private static final String WINDOW = "window";
+    private static final String TOTAL = "total";
+    private static final String DEVICES = "devices";
+    private static final String SERIAL = "serial";
+    private static final String UTIL = "util";
+
+    GetUtilizationOp() {
+    }
+
+    /**
+     * Factory method for creating a {@link GetUtilizationOp} from JSON data.
+     *
+     * @param json the data as a {@link JSONObject}
+     * @return a {@link GetUtilizationOp}
+     * @throws JSONException if failed to extract out data
+     */
+    static GetUtilizationOp createFromJson(JSONObject json) throws JSONException {
+        return new GetUtilizationOp();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected OperationType getType() {
+        return OperationType.GET_UTILIZATION;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void packIntoJson(JSONObject j) throws JSONException {
+        // ignore, nothing to do
+    }
+
+    /**
+     * Unpacks the response from remote TF manager into this object.
+     */
+    @Override
+    protected List<UtilizationDescriptor> unpackResponseFromJson(JSONObject j)
+            throws JSONException {
+        List<UtilizationDescriptor> utilList = new ArrayList<UtilizationDescriptor>();
+        JSONArray jsonWindowArray = j.getJSONArray(WINDOWS);
+        for (int i = 0; i < jsonWindowArray.length(); i++) {
+            JSONObject windowJson = jsonWindowArray.getJSONObject(i);
+            Map<String, Integer> deviceUtil = new HashMap<String, Integer>();
+            JSONArray jsonDeviceArray = windowJson.getJSONArray(DEVICES);
+            for (int k = 0; k < jsonDeviceArray.length(); k++) {
+                JSONObject deviceJson = jsonDeviceArray.getJSONObject(k);
+                deviceUtil.put(deviceJson.getString(SERIAL), deviceJson.getInt(UTIL));
+            }
+            utilList.add(new UtilizationDescriptor(windowJson.getString(WINDOW),
+                    windowJson.getInt(TOTAL), deviceUtil));
+        }
+        return utilList;
+    }
+
+    /**
+     * Packs the utilization into the json response to send to remote client.
+     */
+    protected void packResponseIntoJson(List<UtilizationDescriptor> utilList, JSONObject result)
+            throws JSONException {
+        JSONArray jsonWindowArray = new JSONArray();
+        for (UtilizationDescriptor util : utilList) {
+            JSONObject windowJson = new JSONObject();
+            windowJson.put(WINDOW, util.getWindow());
+            windowJson.put(TOTAL, util.getTotalUtil());
+            JSONArray jsonDeviceArray = new JSONArray();
+            for (Map.Entry<String, Integer> deviceUtil : util.getDeviceUtil().entrySet()) {
+                JSONObject deviceJson = new JSONObject();
+                deviceJson.put(SERIAL, deviceUtil.getKey());
+                deviceJson.put(UTIL, deviceUtil.getValue().intValue());
+                jsonDeviceArray.put(deviceJson);
+            }
+            windowJson.put(DEVICES, jsonDeviceArray);
+            jsonWindowArray.put(windowJson);
+        }
+        result.put(WINDOWS, jsonWindowArray);
+    }
+}
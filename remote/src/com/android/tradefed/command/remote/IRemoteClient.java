@@ -31,6 +31,14 @@ public interface IRemoteClient {
      */
     public List<DeviceDescriptor> sendListDevices() throws RemoteException;
 
+    /**
+     * Send a 'get utilization' request to remote TF
+     *
+     * @return the device utilization over each window reported by remote TF, shortest first
+     * @throws RemoteException if command failed, or remote TF does not track utilization
+     */
+    public List<UtilizationDescriptor> sendGetUtilization() throws RemoteException;
+
     /**
      * Send an 'allocate device' request to remote TF.
      *
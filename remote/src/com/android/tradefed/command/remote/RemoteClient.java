@@ -206,6 +206,14 @@ public class RemoteClient implements IRemoteClient {
         return sendOperation(new ListDevicesOp());
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<UtilizationDescriptor> sendGetUtilization() throws RemoteException {
+        return sendOperation(new GetUtilizationOp());
+    }
+
     /**
      * {@inheritDoc}
      */
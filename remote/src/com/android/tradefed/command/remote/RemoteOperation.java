@@ -36,7 +36,7 @@ abstract class RemoteOperation<T> {
     enum OperationType {
         ALLOCATE_DEVICE, FREE_DEVICE, CLOSE, ADD_COMMAND, START_HANDOVER, LIST_DEVICES,
         EXEC_COMMAND, GET_LAST_COMMAND_RESULT, HANDOVER_COMPLETE, ADD_COMMAND_FILE,
-        HANDOVER_INIT_COMPLETE,
+        HANDOVER_INIT_COMPLETE, GET_UTILIZATION,
     }
 
     /**
@@ -91,6 +91,9 @@ abstract class RemoteOperation<T> {
                 case ADD_COMMAND_FILE:
                     rc = AddCommandFileOp.createFromJson(jsonData);
                     break;
+                case GET_UTILIZATION:
+                    rc = GetUtilizationOp.createFromJson(jsonData);
+                    break;
                 default:
                     throw new RemoteException(String.format("unknown remote command '%s'", data));
 
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.command.remote;
+
+import java.util.Map;
+
+/**
+ * The device utilization of a remote TF over a window of time.
+ */
+public class UtilizationDescriptor {
+
+    private final String mWindow;
+    private final int mTotalUtil;
+    private final Map<String, Integer> mDeviceUtil;
+
+    public UtilizationDescriptor(String window, int totalUtil, Map<String, Integer> deviceUtil) {
+        mWindow = window;
+        mTotalUtil = totalUtil;
+        mDeviceUtil = deviceUtil;
+    }
+
+    /**
+     * Get the name of the window, eg "24h".
+     */
+    public String getWindow() {
+        return mWindow;
+    }
+
+    /**
+     * Get the total % utilization of all devices.
+     */
+    public int getTotalUtil() {
+        return mTotalUtil;
+    }
+
+    /**
+     * Get the % utilization of each device, keyed by serial.
+     */
+    public Map<String, Integer> getDeviceUtil() {
+        return mDeviceUtil;
+    }
+}
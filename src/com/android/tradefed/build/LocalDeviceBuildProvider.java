@@ -19,9 +19,11 @@ import com.android.tradefed.config.Option;
 import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.ZipExtractionCache;
 import com.google.common.io.PatternFilenameFilter;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * A {@link IBuildProvider} that constructs a {@link IDeviceBuildInfo} based on a provided
@@ -46,6 +48,12 @@ public class LocalDeviceBuildProvider extends StubBuildProvider {
             "the regex use to find optional test artifact directory within --build-dir.")
     private String mTestDirPattern = ".*-tests-.*";
 
+    @Option(name = "extract-tests-zip", description =
+            "if the test artifact found within --build-dir is a zip, extract it to a shared " +
+            "directory. Otherwise the zip itself is used, and only the parts needed are " +
+            "extracted when the tests are installed.")
+    private boolean mExtractTestsZip = false;
+
     @Option(name = "bootloader-pattern", description =
             "the regex use to find device bootloader image file within --build-dir.")
     private String mBootloaderPattern = "boot.*\\.img";
@@ -113,11 +121,28 @@ public class LocalDeviceBuildProvider extends StubBuildProvider {
 
     private void findTestsDir(DeviceBuildInfo buildInfo) throws BuildRetrievalError {
         File testsDir = findFileInDir(mTestDirPattern);
+        if (testsDir != null && testsDir.isFile() && mExtractTestsZip) {
+            try {
+                testsDir = getZipExtractionCache().acquire(testsDir);
+            } catch (IOException e) {
+                throw new BuildRetrievalError(String.format("Failed to extract %s",
+                        testsDir.getAbsolutePath()), e);
+            }
+        }
         if (testsDir != null) {
             buildInfo.setTestsDir(testsDir, buildInfo.getBuildId());
         }
     }
 
+    /**
+     * Get the {@link ZipExtractionCache} to use.
+     * <p/>
+     * Exposed so unit tests can mock.
+     */
+    ZipExtractionCache getZipExtractionCache() {
+        return ZipExtractionCache.getDefault();
+    }
+
     private File findFileInDir(String regex) throws BuildRetrievalError {
         File[] files = mBuildDir.listFiles(new PatternFilenameFilter(regex));
         if (files.length == 0) {
@@ -143,6 +168,12 @@ public class LocalDeviceBuildProvider extends StubBuildProvider {
      */
     @Override
     public void cleanUp(IBuildInfo info) {
-        // ignore
+        // files in the build dir are not ours to delete, but an extracted tests zip is shared
+        if (mExtractTestsZip && info instanceof IDeviceBuildInfo) {
+            File testsDir = ((IDeviceBuildInfo)info).getTestsDir();
+            if (testsDir != null && !testsDir.getParentFile().equals(mBuildDir)) {
+                getZipExtractionCache().release(testsDir);
+            }
+        }
     }
 }
@@ -20,6 +20,14 @@ import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -28,18 +36,29 @@ import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A simple class to watch a set of command files for changes, and to trigger a
  * reload of _all_ manually-loaded command files when such a change happens.
+ * <p/>
+ * The directories containing the watched files are registered with a {@link WatchService}, so
+ * changes are noticed as soon as they happen. If file system notifications are not available,
+ * the files are polled every {@link #POLL_TIME_MS} instead. Change detection itself is always
+ * done by comparing modification times, the notifications only decide when to check.
  */
 class CommandFileWatcher extends Thread {
     private static final long POLL_TIME_MS = 20 * 1000;  // 20 seconds
+    // time to wait after a notification for the writer to finish updating the file
+    private static final long SETTLE_TIME_MS = 1000;
     // thread-safe (for read-writes, not write during iteration) structure holding all commands
     // being watched. map of absolute file system path to command file
     private Map<String, CommandFile> mCmdFileMap = new Hashtable<>();
     boolean mCancelled = false;
     private final ICommandFileListener mListener;
+    private volatile WatchService mWatchService = null;
+    // directories already registered with mWatchService
+    private final Set<Path> mWatchedDirs = new HashSet<>();
 
     static interface ICommandFileListener {
         public void notifyFileChanged(File cmdFile, List<String> extraArgs);
@@ -115,9 +134,147 @@ class CommandFileWatcher extends Thread {
      */
     @Override
     public void run() {
+        mWatchService = createWatchService();
+        if (mWatchService != null) {
+            List<CommandFile> cmdCopy;
+            synchronized (mCmdFileMap) {
+                cmdCopy = new ArrayList<CommandFile>(mCmdFileMap.values());
+            }
+            for (CommandFile cmd : cmdCopy) {
+                registerWatchDirs(cmd);
+            }
+        } else {
+            CLog.i("File system notifications not available, polling command files instead");
+        }
         while (!isCancelled()) {
             checkForUpdates();
-            getRunUtil().sleep(POLL_TIME_MS);
+            WatchService watchService = mWatchService;
+            if ((watchService == null || !waitForChange(watchService)) && !isCancelled()) {
+                getRunUtil().sleep(POLL_TIME_MS);
+            }
+        }
+        closeWatchService();
+    }
+
+    /**
+     * Factory method for creating the {@link WatchService}.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @return the {@link WatchService} or <code>null</code> if notifications are not supported.
+     */
+    WatchService createWatchService() {
+        try {
+            return FileSystems.getDefault().newWatchService();
+        } catch (IOException e) {
+            CLog.w("Failed to create watch service: %s", e.getMessage());
+            return null;
+        } catch (UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Blocks until a watched file may have changed, or until {@link #POLL_TIME_MS} has elapsed.
+     *
+     * @return <code>false</code> if the {@link WatchService} can no longer be used, and caller
+     *         should fall back to polling.
+     */
+    private boolean waitForChange(WatchService watchService) {
+        try {
+            WatchKey key = watchService.poll(POLL_TIME_MS, TimeUnit.MILLISECONDS);
+            boolean changed = false;
+            while (key != null) {
+                changed |= hasWatchedFileEvent(key);
+                key.reset();
+                key = watchService.poll();
+            }
+            if (changed) {
+                getRunUtil().sleep(SETTLE_TIME_MS);
+            }
+            return true;
+        } catch (InterruptedException e) {
+            return !isCancelled();
+        } catch (ClosedWatchServiceException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Returns true if the given {@link WatchKey} has an event for a watched command file or
+     * dependency, rather than for an unrelated file in the same directory.
+     */
+    private boolean hasWatchedFileEvent(WatchKey key) {
+        Set<String> watchedPaths = new HashSet<String>();
+        synchronized (mCmdFileMap) {
+            for (CommandFile cmd : mCmdFileMap.values()) {
+                watchedPaths.add(cmd.file.getAbsolutePath());
+                for (CommandFile dep : cmd.dependencies) {
+                    watchedPaths.add(dep.file.getAbsolutePath());
+                }
+            }
+        }
+        Path dir = (Path)key.watchable();
+        boolean found = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                found = true;
+            } else if (watchedPaths.contains(
+                    dir.resolve((Path)event.context()).toFile().getAbsolutePath())) {
+                found = true;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Registers the directories of the given command file and its dependencies for
+     * notifications, if the {@link WatchService} is in use.
+     */
+    private void registerWatchDirs(CommandFile cmd) {
+        WatchService watchService = mWatchService;
+        if (watchService == null) {
+            return;
+        }
+        registerWatchDir(watchService, cmd.file);
+        for (CommandFile dep : cmd.dependencies) {
+            registerWatchDir(watchService, dep.file);
+        }
+    }
+
+    private void registerWatchDir(WatchService watchService, File file) {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (dir == null) {
+            return;
+        }
+        Path dirPath = dir.toPath();
+        synchronized (mWatchedDirs) {
+            if (mWatchedDirs.contains(dirPath)) {
+                return;
+            }
+            try {
+                // editors often replace the file rather than writing to it, so watch for creates
+                dirPath.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                        StandardWatchEventKinds.ENTRY_MODIFY);
+                mWatchedDirs.add(dirPath);
+            } catch (IOException e) {
+                // changes will still be found by the periodic check
+                CLog.w("Failed to watch %s for changes: %s", dir, e.getMessage());
+            } catch (ClosedWatchServiceException e) {
+                // watcher is shutting down
+            }
+        }
+    }
+
+    private void closeWatchService() {
+        WatchService watchService = mWatchService;
+        mWatchService = null;
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                CLog.w("Failed to close watch service: %s", e.getMessage());
+            }
         }
     }
 
@@ -130,6 +287,7 @@ class CommandFileWatcher extends Thread {
     void addCmdFile(File cmdFile, List<String> extraArgs, List<File> dependencies) {
         CommandFile f = new CommandFile(cmdFile, extraArgs, dependencies);
         mCmdFileMap.put(cmdFile.getAbsolutePath(), f);
+        registerWatchDirs(f);
     }
 
     /**
@@ -144,6 +302,8 @@ class CommandFileWatcher extends Thread {
      */
     public void cancel() {
         mCancelled = true;
+        // wake up the watcher thread
+        closeWatchService();
     }
 
     /**
@@ -27,6 +27,9 @@ import com.android.tradefed.log.LogUtil.CLog;
  */
 public class CommandOptions implements ICommandOptions {
 
+    /** the schedule queue of commands that do not specify one */
+    public static final String DEFAULT_SCHEDULE_QUEUE = "default";
+
     @Option(name = "help", description =
         "display the help text for the most important/critical options.",
         importance = Importance.ALWAYS)
@@ -72,6 +75,11 @@ public class CommandOptions implements ICommandOptions {
             "take a bugreport when the test invocation has ended")
     private boolean mTakeBugreportOnInvocationEnded = false;
 
+    @Option(name = "schedule-queue", description = "the name of the queue to schedule this " +
+            "command in. Queues share devices according to the queue weights and priorities " +
+            "of the command scheduler.")
+    private String mScheduleQueue = DEFAULT_SCHEDULE_QUEUE;
+
     /**
      * Set the help mode for the config.
      * <p/>
@@ -199,4 +207,21 @@ public class CommandOptions implements ICommandOptions {
     public boolean takeBugreportOnInvocationEnded() {
         return mTakeBugreportOnInvocationEnded;
     }
+
+    /**
+     * Set the schedule queue for the config.
+     * <p/>
+     * Exposed for testing.
+     */
+    void setScheduleQueue(String scheduleQueue) {
+        mScheduleQueue = scheduleQueue;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getScheduleQueue() {
+        return mScheduleQueue;
+    }
 }
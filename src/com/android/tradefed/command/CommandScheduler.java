@@ -36,9 +36,11 @@ import com.android.tradefed.device.DeviceAllocationState;
 import com.android.tradefed.device.DeviceManager;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.DeviceUnresponsiveException;
+import com.android.tradefed.device.ExcludingDeviceSelection;
 import com.android.tradefed.device.FreeDeviceState;
 import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.device.IDeviceMonitor;
+import com.android.tradefed.device.IDeviceSelection;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.invoker.IRescheduler;
 import com.android.tradefed.invoker.ITestInvocation;
@@ -46,6 +48,9 @@ import com.android.tradefed.invoker.TestInvocation;
 import com.android.tradefed.log.LogRegistry;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.StubTestInvocationListener;
+import com.android.tradefed.targetprep.ITargetPreparer;
+import com.android.tradefed.targetprep.companion.CompanionAllocator;
+import com.android.tradefed.targetprep.companion.CompanionDeviceTracker;
 import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.QuotationAwareTokenizer;
 import com.android.tradefed.util.TableFormatter;
@@ -55,6 +60,7 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
@@ -125,6 +131,27 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     // FIXME: enable this to be enabled or disabled on a per-cmdfile basis
     private boolean mReloadCmdfiles = false;
 
+    @Option(name = "device-group-reserve-time", description =
+            "Time in ms that a command needing a group of devices, such as a primary device and " +
+            "its companions, may wait for allocation before devices matching its companions are " +
+            "held back from other commands, so large groups are not starved.")
+    private long mDeviceGroupReserveTime = 5 * 60 * 1000;
+
+    @Option(name = "queue-weight", description =
+            "the relative share of device time for the commands of a schedule queue, when " +
+            "queues compete for devices. Queues without a weight have a weight of 1. " +
+            "Expected format --queue-weight <queue> <weight>.")
+    private Map<String, Integer> mQueueWeights = new HashMap<String, Integer>();
+
+    @Option(name = "queue-priority", description =
+            "the priority class of a schedule queue. Commands of queues in a higher class " +
+            "always get the first pick of devices. Queues without a class are in class 0. " +
+            "Expected format --queue-priority <queue> <priority>.")
+    private Map<String, Integer> mQueuePriorities = new HashMap<String, Integer>();
+
+    private final FairSharePolicy mFairSharePolicy = new FairSharePolicy(mQueueWeights,
+            mQueuePriorities);
+
     private enum CommandState {
         WAITING_FOR_DEVICE("Wait_for_device"),
         EXECUTING("Executing"),
@@ -193,12 +220,15 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     /**
      * Represents one instance of a command to be executed.
      */
-    private class ExecutableCommand {
+    private class ExecutableCommand implements FairSharePolicy.IQueuedCommand {
         private final CommandTracker mCmdTracker;
         private final IConfiguration mConfig;
         private final boolean mRescheduled;
         private final long mCreationTime;
         private Long mSleepTime;
+        private Long mGroupWaitStartTime = null;
+        private long mReadyTime;
+        private long mScheduledTime;
 
         private ExecutableCommand(CommandTracker tracker, IConfiguration config,
                 boolean rescheduled) {
@@ -222,6 +252,21 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             return mCmdTracker;
         }
 
+        /**
+         * Record that the command is ready to run, and waiting for a device.
+         */
+        void commandReady() {
+            mReadyTime = System.currentTimeMillis();
+        }
+
+        /**
+         * Record that the command has been allocated its devices.
+         */
+        void commandScheduled() {
+            mScheduledTime = System.currentTimeMillis();
+            mFairSharePolicy.invocationStarted(getScheduleQueue(), mReadyTime, mScheduledTime);
+        }
+
         /**
          * Callback to inform listener that command has started execution.
          */
@@ -230,6 +275,8 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         }
 
         public void commandFinished(long elapsedTime) {
+            mFairSharePolicy.invocationFinished(getScheduleQueue(), mScheduledTime,
+                    System.currentTimeMillis());
             getCommandTracker().incrementExecTime(elapsedTime);
             CLog.d("removing exec command for id %d", getCommandTracker().getId());
             synchronized (CommandScheduler.this) {
@@ -252,6 +299,23 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             return mConfig.getCommandOptions().isLoopMode();
         }
 
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String getScheduleQueue() {
+            String queue = mConfig.getCommandOptions().getScheduleQueue();
+            return queue == null ? CommandOptions.DEFAULT_SCHEDULE_QUEUE : queue;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long getReadyTime() {
+            return mReadyTime;
+        }
+
         public Long getSleepTime() {
             return mSleepTime;
         }
@@ -259,6 +323,30 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         public String getCommandFilePath() {
             return mCmdTracker.getCommandFilePath();
         }
+
+        /**
+         * Record that allocating the group of devices for this command failed.
+         *
+         * @return the time in ms this command has been waiting for its group of devices
+         */
+        long groupAllocationFailed() {
+            long now = System.currentTimeMillis();
+            if (mGroupWaitStartTime == null) {
+                mGroupWaitStartTime = now;
+            }
+            return now - mGroupWaitStartTime;
+        }
+
+        /**
+         * @return the time in ms this command has been waiting for its group of devices, or 0 if
+         *         allocating its group has not failed yet
+         */
+        long getGroupWaitTime() {
+            if (mGroupWaitStartTime == null) {
+                return 0;
+            }
+            return System.currentTimeMillis() - mGroupWaitStartTime;
+        }
     }
 
     /**
@@ -392,6 +480,11 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
 
         @Override
         public void invocationComplete(ITestDevice device, FreeDeviceState deviceState) {
+            // free companion devices allocated with the device as a group
+            for (ITestDevice companion : getCompanionDeviceTracker().releaseCompanionDevices(
+                    device)) {
+                mDeviceManager.freeDevice(companion, FreeDeviceState.AVAILABLE);
+            }
             mDeviceManager.freeDevice(device, deviceState);
             remoteFreeDevice(device);
         }
@@ -403,6 +496,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         private final ExecutableCommand mCmd;
         private final ITestInvocation mInvocation;
         private long mStartTime = -1;
+        private volatile boolean mFreeingDevice = false;
 
         public InvocationThread(String name, IScheduledInvocationListener listener,
                 ITestDevice device, ExecutableCommand command) {
@@ -446,14 +540,24 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 long elapsedTime = System.currentTimeMillis() - mStartTime;
                 CLog.i("Updating command %d with elapsed time %d ms",
                        mCmd.getCommandTracker().getId(), elapsedTime);
-                // remove invocation thread first so another invocation can be started on device
-                // when freed
-                removeInvocationThread(this);
                 mCmd.commandFinished(elapsedTime);
+                // free the devices before the thread stops being tracked, so that shutdown waits
+                // for them to be freed. Another invocation started on the device meanwhile waits
+                // for this thread to finish.
+                mFreeingDevice = true;
                 mListener.invocationComplete(mDevice, deviceState);
+                removeInvocationThread(this);
             }
         }
 
+        /**
+         * @return <code>true</code> if the invocation has completed, and its device may have been
+         *         freed
+         */
+        boolean isFreeingDevice() {
+            return mFreeingDevice;
+        }
+
         ITestInvocation getInvocation() {
             return mInvocation;
         }
@@ -496,9 +600,9 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
      */
     public CommandScheduler() {
         super("CommandScheduler");  // set the thread name
-        mReadyCommands = new LinkedList<>();
-        mSleepingCommands = new HashSet<>();
-        mExecutingCommands = new HashSet<>();
+        mReadyCommands = new LinkedList<ExecutableCommand>();
+        mSleepingCommands = new HashSet<ExecutableCommand>();
+        mExecutingCommands = new HashSet<ExecutableCommand>();
         mInvocationThreadMap = new HashMap<ITestDevice, InvocationThread>();
         // use a ScheduledThreadPoolExecutorTimer as a single-threaded timer. This class
         // is used instead of a java.util.Timer because it offers advanced shutdown options
@@ -618,24 +722,35 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     }
 
     private void processReadyCommands(IDeviceManager manager) {
-        Map<ExecutableCommand, ITestDevice> scheduledCommandMap = new HashMap<>();
+        Map<ExecutableCommand, ITestDevice> scheduledCommandMap =
+                new HashMap<ExecutableCommand, ITestDevice>();
         // minimize length of synchronized block by just matching commands with device first,
         // then scheduling invocations/adding looping commands back to queue
         synchronized (this) {
             // sort ready commands by priority, so high priority commands are matched first
             Collections.sort(mReadyCommands, new ExecutableCommandComparator());
-            Iterator<ExecutableCommand> cmdIter = mReadyCommands.iterator();
-            while (cmdIter.hasNext()) {
-                ExecutableCommand cmd = cmdIter.next();
-                ITestDevice device = manager.allocateDevice(cmd.getConfiguration()
-                        .getDeviceRequirements());
+            // then share devices out between the commands' schedule queues
+            List<ExecutableCommand> orderedCommands = mFairSharePolicy.order(mReadyCommands,
+                    System.currentTimeMillis());
+            // the companion devices of groups that have waited too long are held back from all
+            // other commands, whether they are ordered before or after the group
+            Map<ExecutableCommand, List<IDeviceSelection>> reservations =
+                    new HashMap<ExecutableCommand, List<IDeviceSelection>>();
+            for (ExecutableCommand cmd : orderedCommands) {
+                if (cmd.getGroupWaitTime() >= mDeviceGroupReserveTime) {
+                    reserveCompanionDevices(cmd, reservations);
+                }
+            }
+            for (ExecutableCommand cmd : orderedCommands) {
+                ITestDevice device = allocateDevices(manager, cmd, reservations);
                 if (device != null) {
-                    cmdIter.remove();
+                    cmd.commandScheduled();
                     mExecutingCommands.add(cmd);
                     // track command matched with device
                     scheduledCommandMap.put(cmd, device);
                 }
             }
+            mReadyCommands.removeAll(scheduledCommandMap.keySet());
         }
 
         // now actually execute the commands
@@ -650,6 +765,90 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         }
     }
 
+    /**
+     * Get the requirements of the devices needed by given command: the primary device first,
+     * followed by any companion devices.
+     */
+    private List<IDeviceSelection> getDeviceRequirements(ExecutableCommand cmd) {
+        List<IDeviceSelection> requirements = new ArrayList<IDeviceSelection>();
+        requirements.add(cmd.getConfiguration().getDeviceRequirements());
+        for (ITargetPreparer preparer : cmd.getConfiguration().getTargetPreparers()) {
+            if (preparer instanceof CompanionAllocator) {
+                requirements.add(((CompanionAllocator)preparer).getCompanionDeviceRequirements());
+            }
+        }
+        return requirements;
+    }
+
+    /**
+     * Hold back the devices matching the companion requirements of given command from other
+     * commands. The primary device requirement is not reserved, since it is usually generic
+     * enough to match almost any device.
+     */
+    private void reserveCompanionDevices(ExecutableCommand cmd,
+            Map<ExecutableCommand, List<IDeviceSelection>> reservations) {
+        List<IDeviceSelection> requirements = getDeviceRequirements(cmd);
+        if (requirements.size() > 1 && !reservations.containsKey(cmd)) {
+            CLog.d("Reserving companion devices for command id %d, which needs a group of %d",
+                    cmd.getCommandTracker().getId(), requirements.size());
+            reservations.put(cmd, requirements.subList(1, requirements.size()));
+        }
+    }
+
+    /**
+     * Allocate the device, and any companion devices, needed by given command.
+     * <p/>
+     * Companion devices are allocated atomically with the primary device. Devices reserved for
+     * the companions of other commands are not allocated. If the command has waited for its group
+     * for longer than the reserve time, its companion requirements are added to
+     * <var>reservations</var>.
+     *
+     * @return the primary device allocated, or <code>null</code> if the command could not be
+     *         allocated its devices
+     */
+    private ITestDevice allocateDevices(IDeviceManager manager, ExecutableCommand cmd,
+            Map<ExecutableCommand, List<IDeviceSelection>> reservations) {
+        List<IDeviceSelection> requirements = getDeviceRequirements(cmd);
+        List<IDeviceSelection> reservedRequirements = new ArrayList<IDeviceSelection>();
+        for (Map.Entry<ExecutableCommand, List<IDeviceSelection>> reservation :
+                reservations.entrySet()) {
+            if (reservation.getKey() != cmd) {
+                reservedRequirements.addAll(reservation.getValue());
+            }
+        }
+        List<IDeviceSelection> allowedRequirements = requirements;
+        if (!reservedRequirements.isEmpty()) {
+            // leave devices reserved for a command that has waited longer for its group
+            allowedRequirements = new ArrayList<IDeviceSelection>(requirements.size());
+            for (IDeviceSelection requirement : requirements) {
+                allowedRequirements.add(new ExcludingDeviceSelection(requirement,
+                        reservedRequirements));
+            }
+        }
+        if (requirements.size() == 1) {
+            return manager.allocateDevice(allowedRequirements.get(0));
+        }
+        List<ITestDevice> devices = manager.allocateDevices(allowedRequirements);
+        if (devices == null) {
+            if (cmd.groupAllocationFailed() >= mDeviceGroupReserveTime) {
+                reserveCompanionDevices(cmd, reservations);
+            }
+            return null;
+        }
+        // the group has its devices, so stop holding back devices for it
+        reservations.remove(cmd);
+        getCompanionDeviceTracker().reserveCompanionDevices(devices.get(0),
+                devices.subList(1, devices.size()));
+        return devices.get(0);
+    }
+
+    /**
+     * Get the {@link CompanionDeviceTracker} to use. Exposed for unit testing.
+     */
+    CompanionDeviceTracker getCompanionDeviceTracker() {
+        return CompanionDeviceTracker.getInstance();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -782,6 +981,118 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         }
     }
 
+    /**
+     * Reloads a command file that has changed.
+     * <p/>
+     * The new contents are diffed against the commands already queued or executing from this
+     * file. Only commands that were removed or added are touched, so unchanged commands keep their
+     * {@link CommandTracker} and its accumulated execution time. A removed command that is
+     * executing is allowed to finish, but is not run again. Commands run on all devices are
+     * always re-added, since the set of available devices may have changed.
+     */
+    private void reloadCommandFile(File cmdFile, List<String> extraArgs)
+            throws ConfigurationException {
+        CommandFileParser parser = createCommandFileParser();
+        List<CommandLine> commands;
+        try {
+            commands = parser.parseFile(cmdFile);
+        } catch (IOException e) {
+            removeCommandsFromFile(cmdFile);
+            throw new ConfigurationException("Failed to read file " + cmdFile.getAbsolutePath(), e);
+        }
+        if (mReloadCmdfiles) {
+            // the dependent file list might have changed
+            getCommandFileWatcher().addCmdFile(cmdFile, extraArgs, parser.getIncludedFiles());
+        }
+        List<String[]> addedCommands = new ArrayList<String[]>();
+        synchronized (this) {
+            Map<List<String>, List<CommandTracker>> queuedCommands =
+                    getQueuedCommandsFromFile(cmdFile);
+            for (CommandLine command : commands) {
+                command.addAll(extraArgs);
+                String[] arrayCommand = command.asArray();
+                List<CommandTracker> matching = queuedCommands.get(Arrays.asList(arrayCommand));
+                if (matching != null && !matching.isEmpty()) {
+                    // unchanged, leave it queued or executing
+                    matching.remove(0);
+                } else {
+                    addedCommands.add(arrayCommand);
+                }
+            }
+            Set<CommandTracker> removedTrackers = new HashSet<CommandTracker>();
+            for (List<CommandTracker> trackers : queuedCommands.values()) {
+                for (CommandTracker tracker : trackers) {
+                    CLog.d("Removing command id %d", tracker.getId());
+                    removedTrackers.add(tracker);
+                }
+            }
+            if (!removedTrackers.isEmpty()) {
+                removeCommands(mReadyCommands, removedTrackers);
+                removeCommands(mSleepingCommands, removedTrackers);
+            }
+            if (isShuttingDown()) {
+                mCommandProcessWait.signalEventReceived();
+            }
+        }
+        CLog.i("Reloaded cmdfile %s: %d commands unchanged, %d added",
+                cmdFile.getAbsolutePath(), commands.size() - addedCommands.size(),
+                addedCommands.size());
+        for (String[] arrayCommand : addedCommands) {
+            final String prettyCmdLine = QuotationAwareTokenizer.combineTokens(arrayCommand);
+            CLog.d("Adding command %s", prettyCmdLine);
+            try {
+                internalAddCommand(arrayCommand, 0, cmdFile.getAbsolutePath());
+            } catch (ConfigurationException e) {
+                throw new ConfigurationException(String.format(
+                        "Failed to add command '%s': %s", prettyCmdLine, e.getMessage()), e);
+            }
+        }
+    }
+
+    /**
+     * Gets the commands originally added via the given command file that are ready, sleeping or
+     * executing, indexed by their arguments.
+     * <p/>
+     * Each command is returned once, even if it is both executing and queued to run again in loop
+     * mode.
+     */
+    private synchronized Map<List<String>, List<CommandTracker>> getQueuedCommandsFromFile(
+            File cmdFile) {
+        Map<List<String>, List<CommandTracker>> queuedCommands =
+                new HashMap<List<String>, List<CommandTracker>>();
+        Set<CommandTracker> seenTrackers = new HashSet<CommandTracker>();
+        List<ExecutableCommand> allQueued = new ArrayList<ExecutableCommand>(mReadyCommands);
+        allQueued.addAll(mSleepingCommands);
+        allQueued.addAll(mExecutingCommands);
+        for (ExecutableCommand cmd : allQueued) {
+            CommandTracker tracker = cmd.getCommandTracker();
+            if (cmdFile.getAbsolutePath().equals(cmd.getCommandFilePath())
+                    && seenTrackers.add(tracker)) {
+                List<String> key = Arrays.asList(tracker.getArgs());
+                List<CommandTracker> trackers = queuedCommands.get(key);
+                if (trackers == null) {
+                    trackers = new LinkedList<CommandTracker>();
+                    queuedCommands.put(key, trackers);
+                }
+                trackers.add(tracker);
+            }
+        }
+        return queuedCommands;
+    }
+
+    /**
+     * Removes the commands belonging to any of the given {@link CommandTracker}s from a queue.
+     */
+    private void removeCommands(Collection<ExecutableCommand> queue,
+            Set<CommandTracker> trackers) {
+        Iterator<ExecutableCommand> iter = queue.iterator();
+        while (iter.hasNext()) {
+            if (trackers.contains(iter.next().getCommandTracker())) {
+                iter.remove();
+            }
+        }
+    }
+
     /**
      * Factory method for creating a {@link CommandFileParser}.
      * <p/>
@@ -877,6 +1188,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 public void run() {
                     synchronized (CommandScheduler.this) {
                         if (mSleepingCommands.remove(cmd)) {
+                            cmd.commandReady();
                             mReadyCommands.add(cmd);
                             mCommandProcessWait.signalEventReceived();
                         }
@@ -885,6 +1197,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             };
             mCommandTimer.schedule(delayCommand, delayTime, TimeUnit.MILLISECONDS);
         } else {
+            cmd.commandReady();
             mReadyCommands.add(cmd);
             mCommandProcessWait.signalEventReceived();
         }
@@ -927,10 +1240,15 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
      */
     private void startInvocation(IScheduledInvocationListener listener, ITestDevice device,
             ExecutableCommand cmd) {
-        if (hasInvocationThread(device)) {
-            throw new IllegalStateException(
-                    String.format("Attempting invocation on device %s when one is already running",
-                            device.getSerialNumber()));
+        InvocationThread previousThread = getInvocationThread(device);
+        if (previousThread != null) {
+            if (!previousThread.isFreeingDevice()) {
+                throw new IllegalStateException(String.format(
+                        "Attempting invocation on device %s when one is already running",
+                        device.getSerialNumber()));
+            }
+            // the previous invocation has freed the device, and is about to finish
+            waitForThread(previousThread);
         }
         CLog.d("starting invocation for command id %d", cmd.getCommandTracker().getId());
         final String invocationName = String.format("Invocation-%s", device.getSerialNumber());
@@ -947,8 +1265,8 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
         mInvocationThreadMap.remove(invThread.getDevice());
     }
 
-    private synchronized boolean hasInvocationThread(ITestDevice device) {
-        return mInvocationThreadMap.containsKey(device);
+    private synchronized InvocationThread getInvocationThread(ITestDevice device) {
+        return mInvocationThreadMap.get(device);
     }
 
     /**
@@ -1112,7 +1430,7 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
             throws RemoteException {
         if (mReloadCmdfiles) {
             // keep track of files we've sent
-            Set<String> cmdFilesSent = new HashSet<>();
+            Set<String> cmdFilesSent = new HashSet<String>();
             // only want to send commands in file form if reload is on, because otherwise
             // it is not guaranteed that commands currently running are same as in file
             Iterator<CommandTracker> cmdIter = cmdCopy.iterator();
@@ -1289,6 +1607,15 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
                 Boolean.toString(cmd.isLoopMode())));
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void displayQueuesInfo(PrintWriter printWriter) {
+        assertStarted();
+        mFairSharePolicy.displayQueuesInfo(printWriter, System.currentTimeMillis());
+    }
+
     /**
      * Starts remote manager to listen to remote commands.
      * <p/>
@@ -1482,11 +1809,10 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     public void notifyFileChanged(File cmdFile, List<String> extraArgs) {
         CLog.logAndDisplay(LogLevel.INFO, "Detected update for cmdfile '%s'. Reloading",
                 cmdFile.getAbsolutePath());
-        removeCommandsFromFile(cmdFile);
         try {
-            // just add the file again, including re-registering for command file watcher
+            // re-registers for command file watcher as well
             // don't want to remove the registration here in case file fails to load
-            internalAddCommandFile(cmdFile, extraArgs);
+            reloadCommandFile(cmdFile, extraArgs);
         } catch (ConfigurationException e) {
             CLog.wtf(String.format("Failed to automatically reload cmdfile %s",
                     cmdFile.getAbsolutePath()), e);
@@ -1507,7 +1833,8 @@ public class CommandScheduler extends Thread implements ICommandScheduler, IComm
     }
 
     synchronized List<ExecutableCommandState> getAllCommands() {
-        List<ExecutableCommandState> cmds = new ArrayList<>(getAllCommandsSize());
+        List<ExecutableCommandState> cmds =
+                new ArrayList<ExecutableCommandState>(getAllCommandsSize());
         for (ExecutableCommand cmd : mExecutingCommands) {
             cmds.add(new ExecutableCommandState(cmd, CommandState.EXECUTING));
         }
@@ -23,6 +23,7 @@ import com.android.tradefed.config.ConfigurationFactory;
 import com.android.tradefed.config.GlobalConfiguration;
 import com.android.tradefed.config.IConfigurationFactory;
 import com.android.tradefed.config.Option;
+import com.android.tradefed.device.DeviceUtilStatsMonitor;
 import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.log.ConsoleReaderOutputStream;
 import com.android.tradefed.log.LogRegistry;
@@ -403,8 +404,12 @@ public class Console extends Thread {
                 "%s help:" + LINE_SEPARATOR +
                 "\ti[nvocations]  List all invocation threads" + LINE_SEPARATOR +
                 "\td[evices]      List all detected or known devices" + LINE_SEPARATOR +
+                "\tu[tilization]  List the utilization of all devices over recent windows" +
+                LINE_SEPARATOR +
                 "\tc[ommands]     List all commands currently waiting to be executed" +
                 LINE_SEPARATOR +
+                "\tq[ueues]       List the device share and wait times of each schedule queue" +
+                LINE_SEPARATOR +
                 "\tconfigs        List all known configurations" +
                 LINE_SEPARATOR, LIST_PATTERN));
 
@@ -466,12 +471,30 @@ public class Console extends Thread {
                         manager.displayDevicesInfo(new PrintWriter(System.out, true));
                     }
                 }, LIST_PATTERN, "d(?:evices)?");
+        trie.put(new Runnable() {
+                    @Override
+                    public void run() {
+                        DeviceUtilStatsMonitor monitor = DeviceUtilStatsMonitor.getGlobalInstance();
+                        if (monitor == null) {
+                            printLine("Device utilization is not being tracked. Add a " +
+                                    "DeviceUtilStatsMonitor device_monitor to the global config.");
+                            return;
+                        }
+                        monitor.displayUtilizationInfo(new PrintWriter(System.out, true));
+                    }
+                }, LIST_PATTERN, "u(?:tilization)?");
         trie.put(new Runnable() {
                     @Override
                     public void run() {
                         mScheduler.displayCommandsInfo(new PrintWriter(System.out, true));
                     }
                 }, LIST_PATTERN, "c(?:ommands)?");
+        trie.put(new Runnable() {
+                    @Override
+                    public void run() {
+                        mScheduler.displayQueuesInfo(new PrintWriter(System.out, true));
+                    }
+                }, LIST_PATTERN, "q(?:ueues)?");
         trie.put(new Runnable() {
             @Override
             public void run() {
@@ -0,0 +1,295 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import com.android.tradefed.util.TableFormatter;
+import com.android.tradefed.util.TimeUtil;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Shares devices between the named queues that commands are scheduled in.
+ * <p/>
+ * Each queue is charged for the device time used by its invocations, including invocations that
+ * are still running, relative to its weight. Commands from the queue that has been charged the
+ * least get the first pick of devices, and each pick charges the queue the expected time of an
+ * invocation, so that devices freed at the same time are shared out round-robin. Queues in a
+ * higher priority class always get first pick over queues in a lower one. Invocations are never
+ * preempted, so queues reach their share as invocations finish.
+ * <p/>
+ * A queue that was idle is not credited for the time it did not use, so that it cannot starve the
+ * other queues once it becomes busy again.
+ */
+class FairSharePolicy {
+
+    /** the expected time of an invocation, for a queue with no finished invocations */
+    static final long DEFAULT_INVOCATION_TIME = 60 * 1000;
+
+    /**
+     * A command that can be scheduled by a {@link FairSharePolicy}.
+     */
+    interface IQueuedCommand {
+        /**
+         * @return the name of the queue the command is scheduled in
+         */
+        public String getScheduleQueue();
+
+        /**
+         * @return the time the command became ready to run
+         */
+        public long getReadyTime();
+    }
+
+    private static class QueueState {
+        /** the device time the queue is charged for, including any catch up when it was idle */
+        long mChargedTime = 0;
+        /** the device time used by finished invocations */
+        long mDeviceTime = 0;
+        int mNumRunning = 0;
+        long mRunningStartTimes = 0;
+        int mNumStarted = 0;
+        int mNumFinished = 0;
+        long mTotalWaitTime = 0;
+        long mMaxWaitTime = 0;
+        int mNumWaiting = 0;
+        long mOldestReadyTime = 0;
+    }
+
+    private final Map<String, Integer> mWeights;
+    private final Map<String, Integer> mPriorities;
+    private final Map<String, QueueState> mQueues = new TreeMap<String, QueueState>();
+    /** the queues that had commands waiting or running at the last scheduling pass */
+    private Set<String> mActiveQueues = new HashSet<String>();
+
+    /**
+     * @param weights the weight of each queue. Queues without a weight have a weight of 1.
+     * @param priorities the priority class of each queue. Queues without a priority class are
+     *            in class 0.
+     */
+    FairSharePolicy(Map<String, Integer> weights, Map<String, Integer> priorities) {
+        mWeights = weights;
+        mPriorities = priorities;
+    }
+
+    /**
+     * Order ready commands for allocation.
+     *
+     * @param readyCommands the commands ready to run, in the order to allocate commands from the
+     *            same queue
+     * @param currentTime the current time
+     * @return the commands in the order to offer them devices
+     */
+    synchronized <T extends IQueuedCommand> List<T> order(List<T> readyCommands,
+            long currentTime) {
+        Map<String, LinkedList<T>> queuedCommands = new LinkedHashMap<String, LinkedList<T>>();
+        for (QueueState state : mQueues.values()) {
+            state.mNumWaiting = 0;
+        }
+        for (T cmd : readyCommands) {
+            String queue = cmd.getScheduleQueue();
+            LinkedList<T> commands = queuedCommands.get(queue);
+            if (commands == null) {
+                commands = new LinkedList<T>();
+                queuedCommands.put(queue, commands);
+            }
+            commands.add(cmd);
+            QueueState state = getState(queue);
+            if (state.mNumWaiting == 0 || cmd.getReadyTime() < state.mOldestReadyTime) {
+                state.mOldestReadyTime = cmd.getReadyTime();
+            }
+            state.mNumWaiting++;
+        }
+        updateActiveQueues(currentTime);
+        if (queuedCommands.size() <= 1) {
+            return new ArrayList<T>(readyCommands);
+        }
+
+        Map<String, Double> charges = new LinkedHashMap<String, Double>();
+        for (String queue : queuedCommands.keySet()) {
+            charges.put(queue, getNormalizedCharge(queue, currentTime));
+        }
+        List<T> ordered = new ArrayList<T>(readyCommands.size());
+        while (!queuedCommands.isEmpty()) {
+            String next = null;
+            for (String queue : queuedCommands.keySet()) {
+                if (next == null || getPriority(queue) > getPriority(next) ||
+                        (getPriority(queue) == getPriority(next) &&
+                        charges.get(queue) < charges.get(next))) {
+                    next = queue;
+                }
+            }
+            LinkedList<T> commands = queuedCommands.get(next);
+            ordered.add(commands.removeFirst());
+            if (commands.isEmpty()) {
+                queuedCommands.remove(next);
+            }
+            charges.put(next, charges.get(next) +
+                    (double)getExpectedInvocationTime(next) / getWeight(next));
+        }
+        return ordered;
+    }
+
+    /**
+     * Record that an invocation of a command has started.
+     *
+     * @param queue the queue of the command
+     * @param readyTime the time the command became ready to run
+     * @param startTime the time the invocation started
+     */
+    synchronized void invocationStarted(String queue, long readyTime, long startTime) {
+        QueueState state = getState(queue);
+        state.mNumRunning++;
+        state.mRunningStartTimes += startTime;
+        state.mNumStarted++;
+        long waitTime = Math.max(0, startTime - readyTime);
+        state.mTotalWaitTime += waitTime;
+        state.mMaxWaitTime = Math.max(state.mMaxWaitTime, waitTime);
+    }
+
+    /**
+     * Record that an invocation of a command has finished.
+     *
+     * @param queue the queue of the command
+     * @param startTime the time the invocation started, as given to
+     *            {@link #invocationStarted(String, long, long)}
+     * @param endTime the time the invocation finished
+     */
+    synchronized void invocationFinished(String queue, long startTime, long endTime) {
+        QueueState state = getState(queue);
+        long elapsedTime = Math.max(0, endTime - startTime);
+        state.mNumRunning--;
+        state.mRunningStartTimes -= startTime;
+        state.mNumFinished++;
+        state.mDeviceTime += elapsedTime;
+        state.mChargedTime += elapsedTime;
+    }
+
+    /**
+     * Output the state of each queue.
+     */
+    synchronized void displayQueuesInfo(PrintWriter printWriter, long currentTime) {
+        if (mQueues.isEmpty()) {
+            return;
+        }
+        long totalDeviceTime = 0;
+        for (QueueState state : mQueues.values()) {
+            totalDeviceTime += getDeviceTime(state, currentTime);
+        }
+        List<List<String>> displayRows = new ArrayList<List<String>>();
+        displayRows.add(Arrays.asList("Queue", "Priority", "Weight", "Waiting", "Oldest wait",
+                "Running", "Started", "Avg wait", "Max wait", "Device time", "Share"));
+        for (Map.Entry<String, QueueState> entry : mQueues.entrySet()) {
+            String queue = entry.getKey();
+            QueueState state = entry.getValue();
+            long deviceTime = getDeviceTime(state, currentTime);
+            displayRows.add(Arrays.asList(
+                    queue,
+                    Integer.toString(getPriority(queue)),
+                    Integer.toString(getWeight(queue)),
+                    Integer.toString(state.mNumWaiting),
+                    state.mNumWaiting == 0 ? "N/A" :
+                            TimeUtil.formatElapsedTime(currentTime - state.mOldestReadyTime),
+                    Integer.toString(state.mNumRunning),
+                    Integer.toString(state.mNumStarted),
+                    state.mNumStarted == 0 ? "N/A" :
+                            TimeUtil.formatElapsedTime(state.mTotalWaitTime / state.mNumStarted),
+                    TimeUtil.formatElapsedTime(state.mMaxWaitTime),
+                    TimeUtil.formatElapsedTime(deviceTime),
+                    totalDeviceTime == 0 ? "N/A" :
+                            String.format("%d%%", Math.round(100.0 * deviceTime / totalDeviceTime))));
+        }
+        new TableFormatter().displayTable(displayRows, printWriter);
+    }
+
+    /**
+     * Track which queues are active, and stop queues that become active from catching up on the
+     * time they were idle, by charging them as much as the least charged of the other active
+     * queues.
+     */
+    private void updateActiveQueues(long currentTime) {
+        Set<String> activeQueues = new HashSet<String>();
+        for (Map.Entry<String, QueueState> entry : mQueues.entrySet()) {
+            if (entry.getValue().mNumWaiting > 0 || entry.getValue().mNumRunning > 0) {
+                activeQueues.add(entry.getKey());
+            }
+        }
+        Double minCharge = null;
+        for (String queue : activeQueues) {
+            if (mActiveQueues.contains(queue)) {
+                double charge = getNormalizedCharge(queue, currentTime);
+                if (minCharge == null || charge < minCharge) {
+                    minCharge = charge;
+                }
+            }
+        }
+        if (minCharge != null) {
+            for (String queue : activeQueues) {
+                double charge = getNormalizedCharge(queue, currentTime);
+                if (!mActiveQueues.contains(queue) && charge < minCharge) {
+                    getState(queue).mChargedTime += Math.round(
+                            (minCharge - charge) * getWeight(queue));
+                }
+            }
+        }
+        mActiveQueues = activeQueues;
+    }
+
+    private QueueState getState(String queue) {
+        QueueState state = mQueues.get(queue);
+        if (state == null) {
+            state = new QueueState();
+            mQueues.put(queue, state);
+        }
+        return state;
+    }
+
+    private long getDeviceTime(QueueState state, long currentTime) {
+        return state.mDeviceTime + state.mNumRunning * currentTime - state.mRunningStartTimes;
+    }
+
+    private double getNormalizedCharge(String queue, long currentTime) {
+        QueueState state = getState(queue);
+        long runningTime = state.mNumRunning * currentTime - state.mRunningStartTimes;
+        return (double)(state.mChargedTime + runningTime) / getWeight(queue);
+    }
+
+    private long getExpectedInvocationTime(String queue) {
+        QueueState state = getState(queue);
+        if (state.mNumFinished == 0) {
+            return DEFAULT_INVOCATION_TIME;
+        }
+        return state.mDeviceTime / state.mNumFinished;
+    }
+
+    private int getWeight(String queue) {
+        Integer weight = mWeights.get(queue);
+        return weight == null ? 1 : Math.max(1, weight);
+    }
+
+    private int getPriority(String queue) {
+        Integer priority = mPriorities.get(queue);
+        return priority == null ? 0 : priority;
+    }
+}
@@ -84,4 +84,9 @@ public interface ICommandOptions {
      */
     public boolean takeBugreportOnInvocationEnded();
 
+    /**
+     * Return the name of the queue the command should be scheduled in.
+     */
+    public String getScheduleQueue();
+
 }
@@ -208,6 +208,13 @@ public interface ICommandScheduler {
      */
     public void displayCommandQueue(PrintWriter printWriter);
 
+    /**
+     * Output the device share and wait times of each schedule queue.
+     *
+     * @param printWriter the {@link PrintWriter} to output to.
+     */
+    public void displayQueuesInfo(PrintWriter printWriter);
+
     /**
      * Get the appropriate {@link CommandFileWatcher} for this scheduler
      */
@@ -21,6 +21,8 @@ import com.android.tradefed.command.remote.CommandResult.Status;
 import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.device.DeviceUtilStatsMonitor;
+import com.android.tradefed.device.DeviceUtilStatsMonitor.UtilizationDesc;
 import com.android.tradefed.device.FreeDeviceState;
 import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.device.ITestDevice;
@@ -38,6 +40,9 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Class that receives {@link RemoteOperation}s via a socket.
@@ -265,6 +270,9 @@ public class RemoteManager extends Thread {
                     case GET_LAST_COMMAND_RESULT:
                         processGetLastCommandResult((GetLastCommandResultOp)rc, result);
                         break;
+                    case GET_UTILIZATION:
+                        processGetUtilization((GetUtilizationOp)rc, result);
+                        break;
                     default:
                         result.put(RemoteOperation.ERROR, "Unrecognized operation");
                         break;
@@ -303,6 +311,21 @@ public class RemoteManager extends Thread {
         }
     }
 
+    private void processGetUtilization(GetUtilizationOp rc, JSONObject result)
+            throws JSONException {
+        DeviceUtilStatsMonitor monitor = getDeviceUtilStatsMonitor();
+        if (monitor == null) {
+            result.put(RemoteOperation.ERROR, "Device utilization is not being tracked");
+            return;
+        }
+        List<UtilizationDescriptor> utilList = new ArrayList<UtilizationDescriptor>();
+        for (Map.Entry<String, UtilizationDesc> view : monitor.getUtilizationViews().entrySet()) {
+            utilList.add(new UtilizationDescriptor(view.getKey(), view.getValue().getTotalUtil(),
+                    view.getValue().getDeviceUtil()));
+        }
+        rc.packResponseIntoJson(utilList, result);
+    }
+
     private Thread processStartHandover(StartHandoverOp c, JSONObject result) throws JSONException {
         final int port = c.getPort();
         CLog.logAndDisplay(LogLevel.INFO, "Performing handover to remote TF at port %d", port);
@@ -519,4 +542,13 @@ public class RemoteManager extends Thread {
     public boolean isCanceled() {
         return mCancel;
     }
+
+    /**
+     * Get the {@link DeviceUtilStatsMonitor} to report utilization from. Exposed for unit testing.
+     *
+     * @return the {@link DeviceUtilStatsMonitor}, or <code>null</code> if there is none
+     */
+    DeviceUtilStatsMonitor getDeviceUtilStatsMonitor() {
+        return DeviceUtilStatsMonitor.getGlobalInstance();
+    }
 }
@@ -0,0 +1,364 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.config;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.ClassPathScanner;
+import com.android.tradefed.util.ClassPathScanner.IClassPathFilter;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.jar.JarFile;
+import java.util.zip.ZipEntry;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+
+/**
+ * An index of the configuration xml files on the class path, and their descriptions.
+ * <p/>
+ * The configs in each jar are indexed by the jar's path, size and modification time, and the
+ * config prefix and suffix they were found with, and the index is saved to a file. When the index
+ * is read, only jars that are new or have changed since they were indexed are scanned, in
+ * parallel. Class path directories are always scanned, since their modification time does not
+ * reflect changes to the files they contain. Records of jars that are not on the class path are
+ * kept in the file, so processes with different class paths can share it.
+ */
+class ConfigIndex {
+
+    private static final String JAR_RECORD = "jar";
+    private static final String CONFIG_RECORD = "config";
+    private static final String CONFIG_ELEMENT = "configuration";
+    private static final String DESCRIPTION_ATTR = "description";
+
+    /** the configs found in a class path element */
+    private static class ElementRecord {
+        final String mKey;
+        /** config names to descriptions, in the order they were found */
+        final Map<String, String> mConfigs = new LinkedHashMap<String, String>();
+
+        ElementRecord(String key) {
+            mKey = key;
+        }
+    }
+
+    /** a {@link SAXException} used to stop parsing once the description has been found */
+    @SuppressWarnings("serial")
+    private static class DescriptionFoundException extends SAXException {
+        final String mDescription;
+
+        DescriptionFoundException(String description) {
+            mDescription = description;
+        }
+    }
+
+    private final File mIndexFile;
+    private final String mConfigPrefix;
+    private final String mConfigSuffix;
+
+    /** jar records keyed by jar path, or <code>null</code> if the index file has not been read */
+    private Map<String, ElementRecord> mJarRecords = null;
+
+    /**
+     * Creates a {@link ConfigIndex}.
+     *
+     * @param indexFile the file to save the index to, or <code>null</code> to not save it
+     * @param configPrefix the path prefix of config xml files on the class path
+     * @param configSuffix the file suffix of config xml files
+     */
+    ConfigIndex(File indexFile, String configPrefix, String configSuffix) {
+        mIndexFile = indexFile;
+        mConfigPrefix = configPrefix;
+        mConfigSuffix = configSuffix;
+    }
+
+    /**
+     * Get the configs on the given class path, refreshing the index if necessary.
+     *
+     * @param classPath the class path elements
+     * @return a {@link SortedMap} of config names to descriptions. If a config is found in more
+     *         than one class path element, the first one is used.
+     */
+    synchronized SortedMap<String, String> getConfigs(String[] classPath) {
+        if (mJarRecords == null) {
+            mJarRecords = loadIndex();
+        }
+        Map<String, ElementRecord> elementRecords = new HashMap<String, ElementRecord>();
+        List<String> staleElements = new ArrayList<String>();
+        for (String classPathElement : classPath) {
+            File classPathFile = new File(classPathElement);
+            ElementRecord record = mJarRecords.get(classPathElement);
+            if (isJar(classPathFile) && record != null &&
+                    record.mKey.equals(getJarKey(classPathFile))) {
+                elementRecords.put(classPathElement, record);
+            } else if (isJar(classPathFile) || classPathFile.isDirectory()) {
+                staleElements.add(classPathElement);
+            }
+        }
+
+        boolean jarsChanged = false;
+        for (Map.Entry<String, ElementRecord> e : scanElements(staleElements).entrySet()) {
+            elementRecords.put(e.getKey(), e.getValue());
+            // directories are used, but not saved in the index
+            jarsChanged |= isJar(new File(e.getKey()));
+        }
+
+        SortedMap<String, String> configs = new TreeMap<String, String>();
+        Map<String, ElementRecord> newJarRecords = new HashMap<String, ElementRecord>();
+        for (String classPathElement : classPath) {
+            ElementRecord record = elementRecords.get(classPathElement);
+            if (record == null) {
+                continue;
+            }
+            for (Map.Entry<String, String> config : record.mConfigs.entrySet()) {
+                if (!configs.containsKey(config.getKey())) {
+                    configs.put(config.getKey(), config.getValue());
+                }
+            }
+            if (isJar(new File(classPathElement))) {
+                newJarRecords.put(classPathElement, record);
+            }
+        }
+        mJarRecords = newJarRecords;
+        if (jarsChanged) {
+            saveIndex();
+        }
+        return configs;
+    }
+
+    /**
+     * Scans the given class path elements for configs in parallel.
+     */
+    private Map<String, ElementRecord> scanElements(List<String> elements) {
+        Map<String, ElementRecord> records = new LinkedHashMap<String, ElementRecord>();
+        if (elements.isEmpty()) {
+            return records;
+        }
+        int numThreads = Math.min(elements.size(), Runtime.getRuntime().availableProcessors());
+        ExecutorService executor = Executors.newFixedThreadPool(numThreads);
+        try {
+            Map<String, Future<ElementRecord>> futures =
+                    new LinkedHashMap<String, Future<ElementRecord>>();
+            for (String element : elements) {
+                final File elementFile = new File(element);
+                futures.put(element, executor.submit(new Callable<ElementRecord>() {
+                    @Override
+                    public ElementRecord call() throws IOException {
+                        return isJar(elementFile) ? scanJar(elementFile) : scanDir(elementFile);
+                    }
+                }));
+            }
+            for (Map.Entry<String, Future<ElementRecord>> e : futures.entrySet()) {
+                try {
+                    records.put(e.getKey(), e.getValue().get());
+                } catch (ExecutionException ex) {
+                    CLog.w("Failed to read class path entry %s. Reason: %s", e.getKey(),
+                            ex.getCause().toString());
+                } catch (InterruptedException ex) {
+                    CLog.w("Interrupted while reading class path entry %s", e.getKey());
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return records;
+    }
+
+    private ElementRecord scanJar(File jar) throws IOException {
+        ElementRecord record = new ElementRecord(getJarKey(jar));
+        JarFile jarFile = new JarFile(jar);
+        try {
+            for (Enumeration<? extends ZipEntry> e = jarFile.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                if (isConfigEntry(entry.getName())) {
+                    record.mConfigs.put(getConfigName(entry.getName()),
+                            readDescription(jarFile.getInputStream(entry), entry.getName()));
+                }
+            }
+        } finally {
+            jarFile.close();
+        }
+        return record;
+    }
+
+    private ElementRecord scanDir(File dir) throws IOException {
+        ElementRecord record = new ElementRecord(dir.getPath());
+        IClassPathFilter filter = new IClassPathFilter() {
+            @Override
+            public boolean accept(String pathName) {
+                return isConfigEntry(pathName);
+            }
+
+            @Override
+            public String transform(String pathName) {
+                return pathName;
+            }
+        };
+        for (String pathName : new ClassPathScanner().getEntriesFromDir(dir, filter)) {
+            File configFile = new File(dir, pathName);
+            record.mConfigs.put(getConfigName(pathName),
+                    readDescription(new FileInputStream(configFile), pathName));
+        }
+        return record;
+    }
+
+    private boolean isConfigEntry(String pathName) {
+        return pathName.startsWith(mConfigPrefix) && pathName.endsWith(mConfigSuffix);
+    }
+
+    private String getConfigName(String pathName) {
+        return pathName.substring(mConfigPrefix.length(),
+                pathName.length() - mConfigSuffix.length());
+    }
+
+    /**
+     * Reads the description of a config, without parsing the rest of it. Closes the stream.
+     */
+    static String readDescription(InputStream configStream, String pathName) {
+        try {
+            SAXParserFactory.newInstance().newSAXParser().parse(
+                    new BufferedInputStream(configStream), new DefaultHandler() {
+                        @Override
+                        public void startElement(String uri, String localName, String name,
+                                Attributes attributes) throws SAXException {
+                            if (CONFIG_ELEMENT.equals(name)) {
+                                String description = attributes.getValue(DESCRIPTION_ATTR);
+                                throw new DescriptionFoundException(
+                                        description == null ? "" : description);
+                            }
+                        }
+                    });
+        } catch (DescriptionFoundException e) {
+            return e.mDescription;
+        } catch (SAXException | ParserConfigurationException | IOException e) {
+            CLog.w("Failed to read description of config %s: %s", pathName, e.getMessage());
+        } finally {
+            StreamUtil.close(configStream);
+        }
+        return "";
+    }
+
+    private static boolean isJar(File classPathFile) {
+        return classPathFile.isFile() && classPathFile.getName().endsWith(".jar");
+    }
+
+    private String getJarKey(File jar) {
+        return String.format("%d:%d:%s:%s", jar.length(), jar.lastModified(), mConfigPrefix,
+                mConfigSuffix);
+    }
+
+    private Map<String, ElementRecord> loadIndex() {
+        Map<String, ElementRecord> records = new HashMap<String, ElementRecord>();
+        if (mIndexFile == null || !mIndexFile.isFile()) {
+            return records;
+        }
+        try {
+            ElementRecord record = null;
+            for (String line : FileUtil.readStringFromFile(mIndexFile).split("\n")) {
+                String[] fields = line.split("\t", -1);
+                if (JAR_RECORD.equals(fields[0]) && fields.length == 3) {
+                    record = new ElementRecord(unescape(fields[2]));
+                    records.put(unescape(fields[1]), record);
+                } else if (CONFIG_RECORD.equals(fields[0]) && fields.length == 3 &&
+                        record != null) {
+                    record.mConfigs.put(unescape(fields[1]), unescape(fields[2]));
+                }
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to read config index %s: %s", mIndexFile, e.getMessage());
+        }
+        return records;
+    }
+
+    private void saveIndex() {
+        if (mIndexFile == null) {
+            return;
+        }
+        // keep the records saved by processes with a different class path, unless the jar is gone
+        Map<String, ElementRecord> jarRecords = loadIndex();
+        for (Iterator<String> it = jarRecords.keySet().iterator(); it.hasNext(); ) {
+            if (!isJar(new File(it.next()))) {
+                it.remove();
+            }
+        }
+        jarRecords.putAll(mJarRecords);
+        StringBuilder index = new StringBuilder();
+        for (Map.Entry<String, ElementRecord> jar : jarRecords.entrySet()) {
+            index.append(JAR_RECORD).append('\t').append(escape(jar.getKey()));
+            index.append('\t').append(escape(jar.getValue().mKey)).append('\n');
+            for (Map.Entry<String, String> config : jar.getValue().mConfigs.entrySet()) {
+                index.append(CONFIG_RECORD).append('\t').append(escape(config.getKey()));
+                index.append('\t').append(escape(config.getValue())).append('\n');
+            }
+        }
+        File tmpFile = null;
+        try {
+            File parentDir = mIndexFile.getAbsoluteFile().getParentFile();
+            tmpFile = FileUtil.createTempFile(mIndexFile.getName(), ".tmp", parentDir);
+            FileUtil.writeToFile(index.toString(), tmpFile);
+            if (tmpFile.renameTo(mIndexFile)) {
+                tmpFile = null;
+            } else {
+                CLog.w("Failed to save config index to %s", mIndexFile);
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to save config index: %s", e.getMessage());
+        } finally {
+            FileUtil.deleteFile(tmpFile);
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+    }
+
+    private static String unescape(String value) {
+        StringBuilder result = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\\' && i + 1 < value.length()) {
+                char next = value.charAt(++i);
+                result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next);
+            } else {
+                result.append(c);
+            }
+        }
+        return result.toString();
+    }
+}
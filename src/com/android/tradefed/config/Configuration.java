@@ -270,6 +270,29 @@ public class Configuration implements IConfiguration {
         return objectsCopy;
     }
 
+    /**
+     * Inject a list of option values into the set of configuration objects, using a single
+     * {@link OptionSetter} so the option fields of each object are only resolved once.
+     *
+     * @param optionList the {@link ConfigurationDef.OptionDef}s to inject
+     * @throws ConfigurationException if failed to set any of the option values
+     */
+    void injectOptionValues(List<ConfigurationDef.OptionDef> optionList)
+            throws ConfigurationException {
+        if (optionList.isEmpty()) {
+            return;
+        }
+        OptionSetter optionSetter = new OptionSetter(getAllConfigurationObjects());
+        for (ConfigurationDef.OptionDef optionEntry : optionList) {
+            if (optionEntry.key == null) {
+                optionSetter.setOptionValue(optionEntry.name, optionEntry.value);
+            } else {
+                optionSetter.setOptionMapValue(optionEntry.name, optionEntry.key,
+                        optionEntry.value);
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -566,5 +589,8 @@ public class Configuration implements IConfiguration {
     @Override
     public void validateOptions() throws ConfigurationException {
         new ArgsOptionParser(getAllConfigurationObjects()).validateMandatoryOptions();
+        if (getDeviceOptions() != null) {
+            getDeviceOptions().validateOptions();
+        }
     }
 }
@@ -16,6 +16,9 @@
 
 package com.android.tradefed.config;
 
+import java.io.File;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -33,6 +36,10 @@ public class ConfigurationDef {
     private final List<OptionDef> mOptionList;
     /** a cache of the frequency of every classname */
     private final Map<String, Integer> mClassFrequency;
+    /** a cache of the resolved constructor of every classname */
+    private final Map<String, Constructor<?>> mConstructorCache;
+    /** config files this definition was loaded from, mapped to their last modified time */
+    private final Map<File, Long> mSourceFiles;
 
     static class OptionDef {
         final String name;
@@ -62,6 +69,8 @@ public class ConfigurationDef {
         mObjectClassMap = new LinkedHashMap<String, List<String>>();
         mOptionList = new ArrayList<OptionDef>();
         mClassFrequency = new HashMap<String, Integer>();
+        mConstructorCache = new HashMap<String, Constructor<?>>();
+        mSourceFiles = new HashMap<File, Long>();
     }
 
     /**
@@ -118,6 +127,34 @@ public class ConfigurationDef {
         }
     }
 
+    /**
+     * Record a config file that this definition was loaded from.
+     *
+     * @param sourceFile the config xml {@link File}
+     */
+    void addSourceFile(File sourceFile) {
+        synchronized (mSourceFiles) {
+            mSourceFiles.put(sourceFile, sourceFile.lastModified());
+        }
+    }
+
+    /**
+     * Determine if any config file this definition was loaded from has changed since it was
+     * loaded. Definitions loaded only from the classpath are never stale.
+     *
+     * @return <code>true</code> if the definition should be reloaded
+     */
+    boolean isStale() {
+        synchronized (mSourceFiles) {
+            for (Map.Entry<File, Long> sourceEntry : mSourceFiles.entrySet()) {
+                if (sourceEntry.getKey().lastModified() != sourceEntry.getValue()) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     /**
      * Get the object type name-class map.
      * <p/>
@@ -144,7 +181,7 @@ public class ConfigurationDef {
      * @throws ConfigurationException if configuration could not be created
      */
     IConfiguration createConfiguration() throws ConfigurationException {
-        IConfiguration config = new Configuration(getName(), getDescription());
+        Configuration config = new Configuration(getName(), getDescription());
 
         for (Map.Entry<String, List<String>> objClassEntry : mObjectClassMap.entrySet()) {
             List<Object> objectList = new ArrayList<Object>(objClassEntry.getValue().size());
@@ -154,13 +191,7 @@ public class ConfigurationDef {
             }
             config.setConfigurationObjectList(objClassEntry.getKey(), objectList);
         }
-        for (OptionDef optionEntry : mOptionList) {
-            if (optionEntry.key == null) {
-                config.injectOptionValue(optionEntry.name, optionEntry.value);
-            } else {
-                config.injectOptionValue(optionEntry.name, optionEntry.key, optionEntry.value);
-            }
-        }
+        config.injectOptionValues(mOptionList);
 
         return config;
     }
@@ -173,7 +204,7 @@ public class ConfigurationDef {
      * @throws ConfigurationException if configuration could not be created
      */
     IGlobalConfiguration createGlobalConfiguration() throws ConfigurationException {
-        IGlobalConfiguration config = new GlobalConfiguration(getName(), getDescription());
+        GlobalConfiguration config = new GlobalConfiguration(getName(), getDescription());
 
         for (Map.Entry<String, List<String>> objClassEntry : mObjectClassMap.entrySet()) {
             List<Object> objectList = new ArrayList<Object>(objClassEntry.getValue().size());
@@ -183,13 +214,7 @@ public class ConfigurationDef {
             }
             config.setConfigurationObjectList(objClassEntry.getKey(), objectList);
         }
-        for (OptionDef optionEntry : mOptionList) {
-            if (optionEntry.key == null) {
-                config.injectOptionValue(optionEntry.name, optionEntry.value);
-            } else {
-                config.injectOptionValue(optionEntry.name, optionEntry.key, optionEntry.value);
-            }
-        }
+        config.injectOptionValues(mOptionList);
 
         return config;
     }
@@ -215,9 +240,12 @@ public class ConfigurationDef {
     private Object createObject(String objectTypeName, String className)
             throws ConfigurationException {
         try {
-            Class<?> objectClass = getClassForObject(objectTypeName, className);
-            Object configObject = objectClass.newInstance();
+            Object configObject = getConstructorForObject(objectTypeName, className).newInstance();
             return configObject;
+        } catch (InvocationTargetException e) {
+            throw new ConfigurationException(String.format(
+                    "Could not instantiate class %s for config object type %s", className,
+                    objectTypeName), e.getCause());
         } catch (InstantiationException e) {
             throw new ConfigurationException(String.format(
                     "Could not instantiate class %s for config object type %s", className,
@@ -229,6 +257,36 @@ public class ConfigurationDef {
         }
     }
 
+    /**
+     * Gets the no-argument constructor for the given config object class. The constructor is
+     * resolved once and cached, so repeated configuration creation does not need to look up the
+     * class again.
+     *
+     * @param objectTypeName the name of the config object type. Used to generate more descriptive
+     *            error messages
+     * @param className the class name of the object to load
+     * @return the {@link Constructor}
+     * @throws ConfigurationException if the class or constructor could not be found
+     */
+    private Constructor<?> getConstructorForObject(String objectTypeName, String className)
+            throws ConfigurationException {
+        synchronized (mConstructorCache) {
+            Constructor<?> constructor = mConstructorCache.get(className);
+            if (constructor == null) {
+                Class<?> objectClass = getClassForObject(objectTypeName, className);
+                try {
+                    constructor = objectClass.getDeclaredConstructor();
+                } catch (NoSuchMethodException e) {
+                    throw new ConfigurationException(String.format(
+                            "Could not instantiate class %s for config object type %s", className,
+                            objectTypeName), e);
+                }
+                mConstructorCache.put(className, constructor);
+            }
+            return constructor;
+        }
+    }
+
     /**
      * Loads the class for the given the config object associated with this definition.
      *
@@ -262,5 +320,10 @@ public class ConfigurationDef {
             }
         }
         mOptionList.addAll(includedDef.getOptionList());
+        synchronized (includedDef.mSourceFiles) {
+            for (File sourceFile : includedDef.mSourceFiles.keySet()) {
+                addSourceFile(sourceFile);
+            }
+        }
     }
 }
@@ -18,11 +18,11 @@ package com.android.tradefed.config;
 import com.android.ddmlib.Log;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.util.ClassPathScanner;
-import com.android.tradefed.util.ClassPathScanner.IClassPathFilter;
 import com.android.tradefed.util.StreamUtil;
 
 import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
@@ -30,14 +30,12 @@ import java.io.InputStream;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Comparator;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.SortedMap;
 
 /**
  * Factory for creating {@link IConfiguration}.
@@ -48,51 +46,11 @@ public class ConfigurationFactory implements IConfigurationFactory {
     private static IConfigurationFactory sInstance = null;
     private static final String CONFIG_SUFFIX = ".xml";
     private static final String CONFIG_PREFIX = "config/";
+    /** environment variable that overrides the location of the config index file */
+    private static final String CONFIG_INDEX_ENV = "TF_CONFIG_INDEX";
 
     private Map<String, ConfigurationDef> mConfigDefMap;
-
-    /**
-     * A {@link IClassPathFilter} for configuration XML files.
-     */
-    private class ConfigClasspathFilter implements IClassPathFilter {
-
-        /**
-         * {@inheritDoc}
-         */
-        @Override
-        public boolean accept(String pathName) {
-            // only accept entries that match the pattern, and that we don't already know about
-            return pathName.startsWith(CONFIG_PREFIX) && pathName.endsWith(CONFIG_SUFFIX) &&
-                    !mConfigDefMap.containsKey(pathName);
-        }
-
-        /**
-         * {@inheritDoc}
-         */
-        @Override
-        public String transform(String pathName) {
-            // strip off CONFIG_PREFIX and CONFIG_SUFFIX
-            int pathStartIndex = CONFIG_PREFIX.length();
-            int pathEndIndex = pathName.length() - CONFIG_SUFFIX.length();
-            return pathName.substring(pathStartIndex, pathEndIndex);
-        }
-    }
-
-    /**
-     * A {@link Comparator} for {@link ConfigurationDef} that sorts by
-     * {@link ConfigurationDef#getName()}.
-     */
-    private static class ConfigDefComparator implements Comparator<ConfigurationDef> {
-
-        /**
-         * {@inheritDoc}
-         */
-        @Override
-        public int compare(ConfigurationDef d1, ConfigurationDef d2) {
-            return d1.getName().compareTo(d2.getName());
-        }
-
-    }
+    private ConfigIndex mConfigIndex = null;
 
     /**
      * Implementation of {@link IConfigDefLoader} that tracks the included configurations from one
@@ -114,8 +72,8 @@ public class ConfigurationFactory implements IConfigurationFactory {
         public ConfigurationDef getConfigurationDef(String name) throws ConfigurationException {
             // first attempt to load cached config def
             ConfigurationDef def = mConfigDefMap.get(name);
-            if (def == null) {
-                // not found - load from file
+            if (def == null || def.isStale()) {
+                // not found, or its config file has changed since it was cached - load from file
                 def = new ConfigurationDef(name);
                 loadConfiguration(name, def);
                 mConfigDefMap.put(name, def);
@@ -145,6 +103,11 @@ public class ConfigurationFactory implements IConfigurationFactory {
          */
         void loadConfiguration(String name, ConfigurationDef def) throws ConfigurationException {
             Log.i(LOG_TAG, String.format("Loading configuration '%s'", name));
+            File configFile = getConfigFile(name);
+            if (configFile != null) {
+                // record before parsing, so a concurrent edit is seen as a change
+                def.addSourceFile(configFile);
+            }
             BufferedInputStream bufStream = getConfigStream(name);
             ConfigurationXmlParser parser = new ConfigurationXmlParser(this);
             parser.parse(def, name, bufStream);
@@ -273,21 +236,44 @@ public class ConfigurationFactory implements IConfigurationFactory {
                 "content.");
         out.println();
         out.println("Available configurations include:");
-        try {
-            loadAllConfigs(true);
-        } catch (ConfigurationException e) {
-            // ignore, should never happen
-        }
-        // sort the configs by name before displaying
-        SortedSet<ConfigurationDef> configDefs = new TreeSet<ConfigurationDef>(
-                new ConfigDefComparator());
-        configDefs.addAll(mConfigDefMap.values());
-        for (ConfigurationDef def: configDefs) {
-            out.printf("  %s: %s", def.getName(), def.getDescription());
+        // the index is sorted by name, and holds the descriptions, so configs need not be loaded
+        for (Map.Entry<String, String> config : getBuiltInConfigs().entrySet()) {
+            out.printf("  %s: %s", config.getKey(), config.getValue());
             out.println();
         }
     }
 
+    /**
+     * Get the built-in configs on the class path, from the config index.
+     *
+     * @return a {@link SortedMap} of config names to descriptions
+     */
+    SortedMap<String, String> getBuiltInConfigs() {
+        synchronized (this) {
+            if (mConfigIndex == null) {
+                mConfigIndex = new ConfigIndex(getConfigIndexFile(), getConfigPrefix(),
+                        CONFIG_SUFFIX);
+            }
+        }
+        return mConfigIndex.getConfigs(ClassPathScanner.getClassPath());
+    }
+
+    /**
+     * Return the file to save the config index to, or <code>null</code> to not save it.
+     * <p/>
+     * Exposed so unit tests can mock.
+     */
+    File getConfigIndexFile() {
+        String indexPath = System.getenv(CONFIG_INDEX_ENV);
+        if (indexPath != null) {
+            return new File(indexPath);
+        }
+        // factories looking for different configs keep separate indexes
+        return new File(System.getProperty("java.io.tmpdir"),
+                String.format("tradefed-config-index-%s-%08x.txt", System.getProperty("user.name"),
+                (getConfigPrefix() + CONFIG_SUFFIX).hashCode()));
+    }
+
     /**
      * Loads all configurations found in classpath.
      *
@@ -299,9 +285,7 @@ public class ConfigurationFactory implements IConfigurationFactory {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         PrintStream ps = new PrintStream(baos);
         boolean failed = false;
-        ClassPathScanner cpScanner = new ClassPathScanner();
-        Set<String> configNames = cpScanner.getClassPathEntries(new ConfigClasspathFilter());
-        for (String configName : configNames) {
+        for (String configName : getBuiltInConfigs().keySet()) {
             try {
                 ConfigurationDef configDef = getConfigurationDef(configName, false);
                 mConfigDefMap.put(configName, configDef);
@@ -362,6 +346,22 @@ public class ConfigurationFactory implements IConfigurationFactory {
         return CONFIG_PREFIX;
     }
 
+    /**
+     * Gets the config xml file for given config name, if it is not a built-in configuration.
+     *
+     * @param name the configuration name
+     * @return the config {@link File}, or <code>null</code> if the config is built-in or the file
+     *         does not exist
+     */
+    private File getConfigFile(String name) {
+        if (getClass().getResource(String.format("/%s%s%s", getConfigPrefix(), name,
+                CONFIG_SUFFIX)) != null) {
+            return null;
+        }
+        File configFile = new File(name);
+        return configFile.isFile() ? configFile : null;
+    }
+
     /**
      * Loads an InputStream for given config name
      *
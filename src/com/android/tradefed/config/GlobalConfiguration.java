@@ -312,6 +312,31 @@ public class GlobalConfiguration implements IGlobalConfiguration {
         return objectsCopy;
     }
 
+    /**
+     * Inject a list of option values into the set of configuration objects, using a single
+     * {@link OptionSetter} so the option fields of each object are only resolved once.
+     *
+     * @param optionList the {@link ConfigurationDef.OptionDef}s to inject
+     * @throws ConfigurationException if failed to set any of the option values
+     */
+    void injectOptionValues(List<ConfigurationDef.OptionDef> optionList)
+            throws ConfigurationException {
+        if (optionList.isEmpty()) {
+            return;
+        }
+        OptionSetter optionSetter = new OptionSetter(getAllConfigurationObjects());
+        for (ConfigurationDef.OptionDef optionEntry : optionList) {
+            if (optionEntry.key == null) {
+                optionSetter.setOptionValue(optionEntry.name, optionEntry.value);
+                mOptionMap.put(optionEntry.name, optionEntry.value);
+            } else {
+                optionSetter.setOptionMapValue(optionEntry.name, optionEntry.key,
+                        optionEntry.value);
+                mOptionMap.put(optionEntry.name, optionEntry.key + "=" + optionEntry.value);
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -28,6 +28,7 @@ import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -61,6 +62,22 @@ public class OptionSetter {
     static final String BOOL_FALSE_PREFIX = "no-";
     private static final HashMap<Class<?>, Handler> handlers = new HashMap<Class<?>, Handler>();
     static final char NAMESPACE_SEPARATOR = ':';
+    /**
+     * cache of the {@link Option} fields of each option class. Unlike a map keyed by class, a
+     * {@link ClassValue} does not keep classes from being unloaded.
+     */
+    private static final ClassValue<Collection<Field>> sOptionFieldsCache =
+            new ClassValue<Collection<Field>>() {
+                @Override
+                protected Collection<Field> computeValue(Class<?> optionClass) {
+                    Collection<Field> fieldList = new ArrayList<Field>();
+                    buildOptionFieldsForClass(optionClass, fieldList);
+                    for (Field field : fieldList) {
+                        field.setAccessible(true);
+                    }
+                    return Collections.unmodifiableCollection(fieldList);
+                }
+            };
 
     static {
         handlers.put(boolean.class, new BooleanHandler());
@@ -561,14 +578,15 @@ public class OptionSetter {
 
     /**
      * Gets a list of all {@link Option} fields (both declared and inherited) for given class.
+     * <p/>
+     * The result is cached per class, since the same option classes are reflected on every time
+     * a configuration is created. The returned fields are already accessible.
      *
      * @param optionClass the {@link Class} to search
-     * @return a {@link Collection} of fields annotated with {@link Option}
+     * @return an unmodifiable {@link Collection} of fields annotated with {@link Option}
      */
     static Collection<Field> getOptionFieldsForClass(final Class<?> optionClass) {
-        Collection<Field> fieldList = new ArrayList<Field>();
-        buildOptionFieldsForClass(optionClass, fieldList);
-        return fieldList;
+        return sOptionFieldsCache.get(optionClass);
     }
 
     /**
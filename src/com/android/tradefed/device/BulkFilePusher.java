@@ -0,0 +1,289 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.SyncException;
+import com.android.ddmlib.SyncService;
+import com.android.ddmlib.TimeoutException;
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Pushes a local directory tree to a device.
+ * <p/>
+ * The remote directories are created up front with as few shell commands as possible. Files are
+ * then pushed over sync connections that are reused from file to file, optionally by several
+ * threads at once. Files that fail are retried one at a time with
+ * {@link ITestDevice#pushFile(File, String)}, which also handles device recovery.
+ */
+class BulkFilePusher {
+
+    /** the maximum length of a single mkdir command */
+    static final int MAX_MKDIR_COMMAND_LENGTH = 1000;
+
+    /**
+     * A connection to push files over.
+     */
+    interface IPushConnection {
+        void pushFile(File localFile, String remotePath) throws TimeoutException, IOException,
+                AdbCommandRejectedException, SyncException;
+
+        void close();
+    }
+
+    /**
+     * A file to push.
+     */
+    static class FilePush {
+        final File mLocalFile;
+        final String mRemotePath;
+
+        FilePush(File localFile, String remotePath) {
+            mLocalFile = localFile;
+            mRemotePath = remotePath;
+        }
+    }
+
+    private final ITestDevice mDevice;
+    private final int mNumThreads;
+
+    /**
+     * @param device the {@link ITestDevice} to push to
+     * @param numThreads the number of files to push at once
+     */
+    BulkFilePusher(ITestDevice device, int numThreads) {
+        mDevice = device;
+        mNumThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Push the contents of a local directory to a device, recursively.
+     *
+     * @param localDir the local directory whose contents to push
+     * @param remoteDir the absolute path of the directory on the device to push to. Must exist.
+     * @return <code>true</code> if all files were pushed
+     * @throws DeviceNotAvailableException
+     */
+    boolean pushDir(File localDir, String remoteDir) throws DeviceNotAvailableException {
+        long startTime = System.currentTimeMillis();
+        List<String> remoteDirs = new ArrayList<String>();
+        List<FilePush> files = new ArrayList<FilePush>();
+        if (!listTree(localDir, remoteDir, remoteDirs, files)) {
+            return false;
+        }
+        if (!createRemoteDirs(remoteDirs)) {
+            return false;
+        }
+
+        List<FilePush> failedFiles = pushFiles(files);
+        if (!failedFiles.isEmpty()) {
+            CLog.w("Retrying %d of %d files that failed to push to %s on %s", failedFiles.size(),
+                    files.size(), remoteDir, mDevice.getSerialNumber());
+        }
+        for (FilePush file : failedFiles) {
+            if (!mDevice.pushFile(file.mLocalFile, file.mRemotePath)) {
+                return false;
+            }
+        }
+
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        long totalBytes = 0;
+        for (FilePush file : files) {
+            totalBytes += file.mLocalFile.length();
+        }
+        CLog.i("Pushed %d files, %d bytes to %s on %s in %d ms (%d KB/s)", files.size(),
+                totalBytes, remoteDir, mDevice.getSerialNumber(), elapsed,
+                totalBytes * 1000 / 1024 / elapsed);
+        return true;
+    }
+
+    /**
+     * List the directories and files of a local tree, parents first.
+     */
+    private boolean listTree(File localDir, String remoteDir, List<String> remoteDirs,
+            List<FilePush> files) {
+        if (!localDir.isDirectory()) {
+            CLog.e("file %s is not a directory", localDir.getAbsolutePath());
+            return false;
+        }
+        File[] childFiles = localDir.listFiles();
+        if (childFiles == null) {
+            CLog.e("Could not read files in %s", localDir.getAbsolutePath());
+            return false;
+        }
+        for (File childFile : childFiles) {
+            String remotePath = String.format("%s/%s", remoteDir, childFile.getName());
+            if (childFile.isDirectory()) {
+                remoteDirs.add(remotePath);
+                if (!listTree(childFile, remotePath, remoteDirs, files)) {
+                    return false;
+                }
+            } else if (childFile.isFile()) {
+                files.add(new FilePush(childFile, remotePath));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create remote directories, batching as many as fit into each mkdir command.
+     *
+     * @return <code>true</code> if all directories were created
+     */
+    private boolean createRemoteDirs(List<String> remoteDirs) throws DeviceNotAvailableException {
+        StringBuilder cmd = new StringBuilder();
+        for (String remoteDir : remoteDirs) {
+            String arg = String.format(" \"%s\"", remoteDir);
+            if (cmd.length() > 0 && cmd.length() + arg.length() > MAX_MKDIR_COMMAND_LENGTH) {
+                if (!runMkdir(cmd.toString())) {
+                    return false;
+                }
+                cmd.setLength(0);
+            }
+            if (cmd.length() == 0) {
+                // with -p, mkdir does not stop at directories that already exist
+                cmd.append("mkdir -p");
+            }
+            cmd.append(arg);
+        }
+        return cmd.length() == 0 || runMkdir(cmd.toString());
+    }
+
+    /**
+     * Run a mkdir command, which prints nothing on success.
+     */
+    private boolean runMkdir(String cmd) throws DeviceNotAvailableException {
+        String output = mDevice.executeShellCommand(cmd);
+        if (output != null && !output.trim().isEmpty()) {
+            CLog.e("Failed to create directories on %s: %s", mDevice.getSerialNumber(),
+                    output.trim());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Push files over reused connections.
+     *
+     * @return the files that could not be pushed
+     */
+    private List<FilePush> pushFiles(List<FilePush> files) {
+        final Queue<FilePush> pending = new ConcurrentLinkedQueue<FilePush>(files);
+        final List<FilePush> failed = Collections.synchronizedList(new ArrayList<FilePush>());
+        int numThreads = Math.min(mNumThreads, files.size());
+        if (numThreads <= 1) {
+            // no need for a separate thread
+            pushPendingFiles(pending, failed);
+        } else {
+            List<Thread> threads = new ArrayList<Thread>(numThreads);
+            for (int i = 0; i < numThreads; i++) {
+                Thread thread = new Thread(String.format("BulkFilePusher-%s-%d",
+                        mDevice.getSerialNumber(), i)) {
+                    @Override
+                    public void run() {
+                        pushPendingFiles(pending, failed);
+                    }
+                };
+                thread.setDaemon(true);
+                thread.start();
+                threads.add(thread);
+            }
+            for (Thread thread : threads) {
+                try {
+                    thread.join();
+                } catch (InterruptedException e) {
+                    CLog.w("Interrupted while pushing files to %s", mDevice.getSerialNumber());
+                }
+            }
+        }
+        // anything left over was not attempted, because every connection failed
+        failed.addAll(pending);
+        return failed;
+    }
+
+    private void pushPendingFiles(Queue<FilePush> pending, List<FilePush> failed) {
+        IPushConnection connection = null;
+        try {
+            FilePush file;
+            while ((file = pending.poll()) != null) {
+                if (connection == null) {
+                    connection = openConnection();
+                    if (connection == null) {
+                        failed.add(file);
+                        return;
+                    }
+                }
+                try {
+                    connection.pushFile(file.mLocalFile, file.mRemotePath);
+                } catch (IOException | TimeoutException | AdbCommandRejectedException
+                        | SyncException e) {
+                    CLog.w("Failed to push %s to %s on %s: %s", file.mLocalFile.getAbsolutePath(),
+                            file.mRemotePath, mDevice.getSerialNumber(), e.toString());
+                    failed.add(file);
+                    // the state of the connection is unknown after a failure, so start afresh
+                    connection.close();
+                    connection = null;
+                }
+            }
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Open a connection to push files over.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @return the {@link IPushConnection}, or <code>null</code> if it could not be opened
+     */
+    IPushConnection openConnection() {
+        final SyncService syncService;
+        try {
+            syncService = mDevice.getIDevice().getSyncService();
+        } catch (TimeoutException | AdbCommandRejectedException | IOException e) {
+            CLog.w("Failed to open sync connection to %s: %s", mDevice.getSerialNumber(),
+                    e.toString());
+            return null;
+        }
+        if (syncService == null) {
+            return null;
+        }
+        return new IPushConnection() {
+            @Override
+            public void pushFile(File localFile, String remotePath) throws TimeoutException,
+                    IOException, SyncException {
+                syncService.pushFile(localFile.getAbsolutePath(), remotePath,
+                        SyncService.getNullProgressMonitor());
+            }
+
+            @Override
+            public void close() {
+                syncService.close();
+            }
+        };
+    }
+}
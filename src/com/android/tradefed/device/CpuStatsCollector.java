@@ -18,13 +18,14 @@ package com.android.tradefed.device;
 
 import com.android.ddmlib.MultiLineReceiver;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.BackgroundFileWriter;
 import com.android.tradefed.util.SimpleStats;
+import com.android.tradefed.util.StreamingStats;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
@@ -191,20 +192,159 @@ public class CpuStatsCollector extends Thread {
         }
     }
 
+    /**
+     * Class for holding statistics aggregated over every {@code cpustats} output for a label.
+     * <p>
+     * Unlike a list of {@link CpuStats}, the memory used does not grow with the number of outputs,
+     * so this can be used for arbitrarily long runs. All percentages are from 0 to 100.
+     * </p>
+     */
+    public static class CpuStatsSummary {
+        private final StreamingStats mTotalPercentage = new StreamingStats();
+        private final StreamingStats mUserPercentage = new StreamingStats();
+        private final StreamingStats mSystemPercentage = new StreamingStats();
+        private final StreamingStats mIowPercentage = new StreamingStats();
+        private final StreamingStats mIrqPercentage = new StreamingStats();
+        private final StreamingStats mEstimatedMhz = new StreamingStats();
+        private final StreamingStats mUsedMhzPercentage = new StreamingStats();
+
+        /**
+         * Add a single {@code cpustats} output.
+         *
+         * @param times the time spent in each {@link TimeCategory}, indexed by ordinal
+         * @param freqs the frequencies, alternating with the time spent in each
+         * @param freqCount the number of frequencies in {@code freqs}
+         */
+        void add(int[] times, int[] freqs, int freqCount) {
+            long totalTime = 0;
+            for (int time : times) {
+                totalTime += time;
+            }
+            if (totalTime == 0) {
+                return;
+            }
+            double totalUsage = (double) (totalTime - times[TimeCategory.IDLE.ordinal()]) /
+                    totalTime;
+            mTotalPercentage.add(100 * totalUsage);
+            mUserPercentage.add(100.0 * (times[TimeCategory.USER.ordinal()] +
+                    times[TimeCategory.NICE.ordinal()]) / totalTime);
+            mSystemPercentage.add(100.0 * times[TimeCategory.SYS.ordinal()] / totalTime);
+            mIowPercentage.add(100.0 * times[TimeCategory.IOW.ordinal()] / totalTime);
+            mIrqPercentage.add(100.0 * (times[TimeCategory.IRQ.ordinal()] +
+                    times[TimeCategory.SIRQ.ordinal()]) / totalTime);
+            double sumFreqTime = 0.0;
+            long sumTime = 0;
+            int maxFreq = 0;
+            for (int i = 0; i < freqCount; i++) {
+                sumFreqTime += freqs[2 * i] * freqs[2 * i + 1] / 1000.0;
+                sumTime += freqs[2 * i + 1];
+                maxFreq = Math.max(maxFreq, freqs[2 * i]);
+            }
+            if (sumTime > 0 && maxFreq > 0) {
+                double averageMhz = sumFreqTime / sumTime;
+                mEstimatedMhz.add(totalUsage * averageMhz);
+                mUsedMhzPercentage.add(100.0 * averageMhz / (maxFreq / 1000.0));
+            }
+        }
+
+        /**
+         * Get the total CPU usage percentage.
+         */
+        public StreamingStats getTotalPercentage() {
+            return mTotalPercentage;
+        }
+
+        /**
+         * Get the user and nice CPU usage percentage.
+         */
+        public StreamingStats getUserPercentage() {
+            return mUserPercentage;
+        }
+
+        /**
+         * Get the system CPU usage percentage.
+         */
+        public StreamingStats getSystemPercentage() {
+            return mSystemPercentage;
+        }
+
+        /**
+         * Get the iow CPU usage percentage.
+         */
+        public StreamingStats getIowPercentage() {
+            return mIowPercentage;
+        }
+
+        /**
+         * Get the IRQ and SIRQ CPU usage percentage.
+         */
+        public StreamingStats getIrqPercentage() {
+            return mIrqPercentage;
+        }
+
+        /**
+         * Get the estimated MHz.
+         *
+         * @see CpuStats#getEstimatedMhz()
+         */
+        public StreamingStats getEstimatedMhz() {
+            return mEstimatedMhz;
+        }
+
+        /**
+         * Get the used MHz percentage.
+         *
+         * @see CpuStats#getUsedMhzPercentage()
+         */
+        public StreamingStats getUsedMhzPercentage() {
+            return mUsedMhzPercentage;
+        }
+
+        private CpuStatsSummary copy() {
+            CpuStatsSummary copy = new CpuStatsSummary();
+            copy.mTotalPercentage.addAll(mTotalPercentage);
+            copy.mUserPercentage.addAll(mUserPercentage);
+            copy.mSystemPercentage.addAll(mSystemPercentage);
+            copy.mIowPercentage.addAll(mIowPercentage);
+            copy.mIrqPercentage.addAll(mIrqPercentage);
+            copy.mEstimatedMhz.addAll(mEstimatedMhz);
+            copy.mUsedMhzPercentage.addAll(mUsedMhzPercentage);
+            return copy;
+        }
+    }
+
     /**
      * Receiver which parses the output from {@code cpustats} and optionally logs to a file.
+     * <p>
+     * Every output is aggregated into a {@link CpuStatsSummary}. The raw outputs are also kept as
+     * {@link CpuStats}, either all of them or only the most recent ones, see
+     * {@link #setMaxSamples(int)}.
+     * </p>
      */
     public static class CpuStatsReceiver extends MultiLineReceiver {
         private Map<String, List<CpuStats>> mCpuStats = new HashMap<String, List<CpuStats>>(4);
+        private Map<String, CpuStatsSummary> mSummaries = new HashMap<String, CpuStatsSummary>(4);
+        private int mMaxSamples = 0;
 
         private boolean mIsCancelled = false;
-        private File mLogFile = null;
-        private BufferedWriter mLogWriter = null;
+        private BackgroundFileWriter mLogWriter = null;
+
+        // scratch space for parsing, reused for every line
+        private final int[] mTimes = new int[TimeCategory.values().length];
+        private int[] mFreqs = new int[16];
 
         public CpuStatsReceiver() {
             setTrimLine(false);
         }
 
+        /**
+         * Limit the number of raw {@link CpuStats} kept for each label to the most recent
+         * {@code maxSamples}, or 0 to keep every output. Summaries always include every output.
+         */
+        public synchronized void setMaxSamples(int maxSamples) {
+            mMaxSamples = maxSamples;
+        }
+
         /**
          * Specify a file to log the output to.
          * <p>
@@ -214,8 +354,7 @@ public class CpuStatsCollector extends Thread {
          */
         public synchronized void logToFile(File logFile) {
             try {
-                mLogFile = logFile;
-                mLogWriter = new BufferedWriter(new FileWriter(mLogFile));
+                mLogWriter = new BackgroundFileWriter(logFile);
             } catch (IOException e) {
                 CLog.e("Error creating file: %s", e.getMessage());
                 mLogWriter = null;
@@ -232,48 +371,121 @@ public class CpuStatsCollector extends Thread {
             }
             synchronized (this) {
                 if (mLogWriter != null) {
-                    try {
-                        for (String line : lines) {
-                            mLogWriter.write(line + "\n");
-                        }
-                    } catch (IOException e) {
-                        CLog.e("Error writing to file: %s", e.getMessage());
-                    }
+                    mLogWriter.write(lines);
                 }
             }
             for (String line : lines) {
-                String[] args = line.trim().split(",");
-                if (args.length >= 8) {
-                    try {
-                        CpuStats s = new CpuStats();
-                        s.mTimeStats.put(TimeCategory.USER, Integer.parseInt(args[1]));
-                        s.mTimeStats.put(TimeCategory.NICE, Integer.parseInt(args[2]));
-                        s.mTimeStats.put(TimeCategory.SYS, Integer.parseInt(args[3]));
-                        s.mTimeStats.put(TimeCategory.IDLE, Integer.parseInt(args[4]));
-                        s.mTimeStats.put(TimeCategory.IOW, Integer.parseInt(args[5]));
-                        s.mTimeStats.put(TimeCategory.IRQ, Integer.parseInt(args[6]));
-                        s.mTimeStats.put(TimeCategory.SIRQ, Integer.parseInt(args[7]));
-                        for (int i = 0; i + 8 < args.length; i += 2) {
-                            s.mFreqStats.put(Integer.parseInt(args[8 + i]),
-                                    Integer.parseInt(args[9 + i]));
-                        }
-                        synchronized(this) {
-                            if (!mCpuStats.containsKey(args[0])) {
-                                mCpuStats.put(args[0], new LinkedList<CpuStats>());
-                            }
-                            mCpuStats.get(args[0]).add(s);
-                        }
-                    } catch (NumberFormatException e) {
-                        CLog.w("Unexpected input: %s", line.trim());
-                    } catch (IndexOutOfBoundsException e) {
-                        CLog.w("Unexpected input: %s", line.trim());
-                    }
-                } else if (args.length > 1 || !"".equals(args[0])) {
+                try {
+                    parseLine(line);
+                } catch (NumberFormatException e) {
                     CLog.w("Unexpected input: %s", line.trim());
                 }
             }
         }
 
+        /**
+         * Parse a single line of output, of the form
+         * {@code label,user,nice,sys,idle,iow,irq,sirq[,freq,time]*}.
+         * <p>
+         * Fields are parsed in place, rather than by splitting the line, since the output is
+         * parsed continuously for the whole run.
+         * </p>
+         */
+        private void parseLine(String line) {
+            int start = 0;
+            int end = line.length();
+            while (start < end && Character.isWhitespace(line.charAt(start))) {
+                start++;
+            }
+            while (end > start && Character.isWhitespace(line.charAt(end - 1))) {
+                end--;
+            }
+            if (start == end) {
+                return;
+            }
+            int labelEnd = line.indexOf(',', start);
+            if (labelEnd < 0 || labelEnd >= end) {
+                CLog.w("Unexpected input: %s", line.trim());
+                return;
+            }
+            int pos = labelEnd + 1;
+            for (int i = 0; i < mTimes.length; i++) {
+                if (pos > end) {
+                    CLog.w("Unexpected input: %s", line.trim());
+                    return;
+                }
+                int fieldEnd = getFieldEnd(line, pos, end);
+                mTimes[i] = parseInt(line, pos, fieldEnd);
+                pos = fieldEnd + 1;
+            }
+            int freqCount = 0;
+            while (pos < end) {
+                int freqEnd = getFieldEnd(line, pos, end);
+                if (freqEnd >= end) {
+                    // frequency without a time
+                    CLog.w("Unexpected input: %s", line.trim());
+                    return;
+                }
+                int timeEnd = getFieldEnd(line, freqEnd + 1, end);
+                if (2 * freqCount + 1 >= mFreqs.length) {
+                    mFreqs = Arrays.copyOf(mFreqs, mFreqs.length * 2);
+                }
+                mFreqs[2 * freqCount] = parseInt(line, pos, freqEnd);
+                mFreqs[2 * freqCount + 1] = parseInt(line, freqEnd + 1, timeEnd);
+                freqCount++;
+                pos = timeEnd + 1;
+            }
+            String label = line.substring(start, labelEnd);
+            synchronized (this) {
+                CpuStatsSummary summary = mSummaries.get(label);
+                if (summary == null) {
+                    summary = new CpuStatsSummary();
+                    mSummaries.put(label, summary);
+                    mCpuStats.put(label, new LinkedList<CpuStats>());
+                }
+                summary.add(mTimes, mFreqs, freqCount);
+                List<CpuStats> samples = mCpuStats.get(label);
+                samples.add(createCpuStats(freqCount));
+                if (mMaxSamples > 0 && samples.size() > mMaxSamples) {
+                    samples.remove(0);
+                }
+            }
+        }
+
+        private CpuStats createCpuStats(int freqCount) {
+            CpuStats s = new CpuStats();
+            for (TimeCategory category : TimeCategory.values()) {
+                s.mTimeStats.put(category, mTimes[category.ordinal()]);
+            }
+            for (int i = 0; i < freqCount; i++) {
+                s.mFreqStats.put(mFreqs[2 * i], mFreqs[2 * i + 1]);
+            }
+            return s;
+        }
+
+        private static int getFieldEnd(String line, int start, int end) {
+            int fieldEnd = line.indexOf(',', start);
+            return fieldEnd < 0 || fieldEnd > end ? end : fieldEnd;
+        }
+
+        /**
+         * Parse a non-negative decimal integer from a region of a string.
+         */
+        private static int parseInt(String line, int start, int end) {
+            if (start >= end) {
+                throw new NumberFormatException("empty field");
+            }
+            int value = 0;
+            for (int i = start; i < end; i++) {
+                int digit = line.charAt(i) - '0';
+                if (digit < 0 || digit > 9 || value > (Integer.MAX_VALUE - digit) / 10) {
+                    throw new NumberFormatException(line.substring(start, end));
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
+
         /**
          * Cancels the {@code cpustats} command.
          */
@@ -283,14 +495,8 @@ public class CpuStatsCollector extends Thread {
             }
             mIsCancelled = true;
             if (mLogWriter != null) {
-                try {
-                    mLogWriter.flush();
-                    mLogWriter.close();
-                } catch (IOException e) {
-                    CLog.e("Error closing writer %s", e.getMessage());
-                } finally {
-                    mLogWriter = null;
-                }
+                mLogWriter.close();
+                mLogWriter = null;
             }
         }
 
@@ -313,6 +519,19 @@ public class CpuStatsCollector extends Thread {
             }
             return copy;
         }
+
+        /**
+         * Get the statistics aggregated over every output, as a map from label to
+         * {@link CpuStatsSummary}.
+         */
+        public synchronized Map<String, CpuStatsSummary> getCpuStatsSummaries() {
+            Map<String, CpuStatsSummary> copy = new HashMap<String, CpuStatsSummary>(
+                    mSummaries.size());
+            for (Map.Entry<String, CpuStatsSummary> e : mSummaries.entrySet()) {
+                copy.put(e.getKey(), e.getValue().copy());
+            }
+            return copy;
+        }
     }
 
     private CpuStatsReceiver mReceiver = new CpuStatsReceiver();
@@ -346,6 +565,15 @@ public class CpuStatsCollector extends Thread {
         mReceiver.logToFile(logFile);
     }
 
+    /**
+     * Limit the number of raw {@link CpuStats} kept for each label to the most recent
+     * {@code maxSamples}, or 0 to keep every output (the default). Use this for long runs, together
+     * with {@link #getCpuStatsSummaries()}.
+     */
+    public void setMaxSamples(int maxSamples) {
+        mReceiver.setMaxSamples(maxSamples);
+    }
+
     /**
      * Cancels the {@code cpustats} command.
      */
@@ -385,6 +613,14 @@ public class CpuStatsCollector extends Thread {
         return mReceiver.getCpuStats();
     }
 
+    /**
+     * Get the mapping of labels to {@link CpuStatsSummary} instances, aggregated over every
+     * output. The labels are the same as for {@link #getCpuStats()}.
+     */
+    public Map<String, CpuStatsSummary> getCpuStatsSummaries() {
+        return mReceiver.getCpuStatsSummaries();
+    }
+
     /**
      * Get the mean of the total CPU usage for a list of {@link CpuStats}.
      *
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+/**
+ * Tracks the recent health of a device, from the outcome of the operations performed on it and
+ * the latency of those that succeeded.
+ * <p/>
+ * The failure rate and latency are moving averages that favor recent operations, so a device that
+ * recovers from a bad patch is soon considered healthy again. Until enough operations have been
+ * seen, the device is given the benefit of the doubt. Failed operations do not count towards the
+ * latency, since an operation that timed out took as long as it was allowed to, not as long as
+ * the device needed. Neither do long running operations such as installs or test runs, whose
+ * duration says more about the operation than about the device.
+ */
+public class DeviceHealth {
+
+    /** the weight of the newest operation in the moving averages */
+    static final double SAMPLE_WEIGHT = 0.1;
+    /** the number of operations to see before adapting to the device's health */
+    static final int MIN_SAMPLES = 10;
+    /** the failure rate from which failed operations are retried with a backoff */
+    static final double BACKOFF_FAILURE_RATE = 0.1;
+    static final long BASE_BACKOFF_MS = 500;
+    static final long MAX_BACKOFF_MS = 10 * 1000;
+    /** command timeouts are extended to this multiple of the average successful latency */
+    static final int TIMEOUT_LATENCY_FACTOR = 10;
+    /** the maximum multiple of the configured timeout to extend command timeouts to */
+    static final int MAX_TIMEOUT_FACTOR = 4;
+
+    private long mNumSamples = 0;
+    private long mNumFailures = 0;
+    private double mFailureRate = 0;
+    private long mNumLatencySamples = 0;
+    private double mAverageLatency = 0;
+
+    /**
+     * Record a short operation that succeeded, such as a shell command, whose latency reflects
+     * how responsive the device is.
+     *
+     * @param latencyMs the time taken by the operation, in ms
+     */
+    public synchronized void recordSuccess(long latencyMs) {
+        if (mNumLatencySamples == 0) {
+            mAverageLatency = latencyMs;
+        } else {
+            mAverageLatency += SAMPLE_WEIGHT * (latencyMs - mAverageLatency);
+        }
+        mNumLatencySamples++;
+        record(false);
+    }
+
+    /**
+     * Record an operation that succeeded, without counting its duration towards the latency.
+     */
+    public synchronized void recordSuccess() {
+        record(false);
+    }
+
+    /**
+     * Record an operation that failed.
+     */
+    public synchronized void recordFailure() {
+        mNumFailures++;
+        record(true);
+    }
+
+    private void record(boolean failed) {
+        if (mNumSamples == 0) {
+            mFailureRate = failed ? 1 : 0;
+        } else {
+            mFailureRate += SAMPLE_WEIGHT * ((failed ? 1 : 0) - mFailureRate);
+        }
+        mNumSamples++;
+    }
+
+    /**
+     * Forget all recorded operations.
+     */
+    public synchronized void reset() {
+        mNumSamples = 0;
+        mNumFailures = 0;
+        mFailureRate = 0;
+        mNumLatencySamples = 0;
+        mAverageLatency = 0;
+    }
+
+    /**
+     * @return the total number of operations recorded
+     */
+    public synchronized long getNumSamples() {
+        return mNumSamples;
+    }
+
+    /**
+     * @return the total number of failed operations recorded
+     */
+    public synchronized long getNumFailures() {
+        return mNumFailures;
+    }
+
+    /**
+     * @return the recent rate of failed operations, from 0 to 1
+     */
+    public synchronized double getFailureRate() {
+        return mFailureRate;
+    }
+
+    /**
+     * @return the recent average latency of operations that succeeded, in ms
+     */
+    public synchronized long getAverageLatency() {
+        return Math.round(mAverageLatency);
+    }
+
+    /**
+     * @return a score from 0 for a device whose operations all fail, to 100 for a device whose
+     *         operations all succeed
+     */
+    public synchronized int getScore() {
+        return (int)Math.round(100 * (1 - mFailureRate));
+    }
+
+    /**
+     * @return <code>true</code> if enough operations have been recorded to judge the device
+     */
+    public synchronized boolean isKnown() {
+        return mNumSamples >= MIN_SAMPLES;
+    }
+
+    /**
+     * Check whether the device is failing too often to be trusted with tests.
+     *
+     * @param maxFailureRate the highest acceptable failure rate
+     */
+    public synchronized boolean isUnhealthy(double maxFailureRate) {
+        return isKnown() && mFailureRate >= maxFailureRate;
+    }
+
+    /**
+     * Get the number of times to retry a failed operation. Each retry on a device that keeps
+     * failing costs a device recovery, so fewer retries are made the more the device fails, but
+     * an operation that allows retries always gets at least one.
+     *
+     * @param maxRetryAttempts the number of retries to make on a healthy device
+     */
+    public synchronized int getRetryAttempts(int maxRetryAttempts) {
+        if (maxRetryAttempts <= 1 || !isKnown()) {
+            return maxRetryAttempts;
+        }
+        return Math.max(1, (int)Math.ceil(maxRetryAttempts * (1 - mFailureRate)));
+    }
+
+    /**
+     * Get the time to wait before retrying a failed operation. There is no wait on a healthy
+     * device, and an exponentially increasing one on a device that fails often.
+     *
+     * @param attempt the number of the attempt that failed, starting at 0
+     * @return the time to wait, in ms
+     */
+    public synchronized long getRetryBackoff(int attempt) {
+        if (!isKnown() || mFailureRate < BACKOFF_FAILURE_RATE) {
+            return 0;
+        }
+        return Math.min(MAX_BACKOFF_MS, BASE_BACKOFF_MS << Math.min(attempt, 16));
+    }
+
+    /**
+     * Get the timeout to use for a command. Commands on a device whose successful operations have
+     * been slow are given longer, up to a limit, so they are not failed and retried needlessly.
+     * A device that keeps timing out does not extend its own timeout.
+     *
+     * @param timeoutMs the configured timeout, in ms
+     * @return the timeout to use, in ms. Never less than the configured timeout.
+     */
+    public synchronized long getCommandTimeout(long timeoutMs) {
+        if (mNumLatencySamples < MIN_SAMPLES) {
+            return timeoutMs;
+        }
+        long latencyTimeout = Math.round(mAverageLatency * TIMEOUT_LATENCY_FACTOR);
+        return Math.max(timeoutMs, Math.min(timeoutMs * MAX_TIMEOUT_FACTOR, latencyTimeout));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        if (mNumSamples == 0) {
+            return "unknown";
+        }
+        return String.format("%d%% %dms", getScore(), getAverageLatency());
+    }
+}
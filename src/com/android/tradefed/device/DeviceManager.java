@@ -26,6 +26,7 @@ import com.android.tradefed.config.GlobalConfiguration;
 import com.android.tradefed.config.IGlobalConfiguration;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.device.FastbootUsbWatcher.IUsbChangeListener;
 import com.android.tradefed.device.IDeviceMonitor.DeviceLister;
 import com.android.tradefed.device.IManagedTestDevice.DeviceEventResponse;
 import com.android.tradefed.log.LogUtil.CLog;
@@ -46,8 +47,10 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -63,6 +66,8 @@ public class DeviceManager implements IDeviceManager {
     private static final long FASTBOOT_CMD_TIMEOUT = 1 * 60 * 1000;
     /**  time to wait in ms between fastboot devices requests */
     private static final long FASTBOOT_POLL_WAIT_TIME = 5 * 1000;
+    private static final Pattern FASTBOOT_DEVICES_PATTERN =
+            Pattern.compile("([\\w\\d]+)\\s+fastboot\\s*");
     /** time to wait for device adb shell responsive connection before declaring it unavailable
      * for testing */
     private static final int CHECK_WAIT_DEVICE_AVAIL_MS = 30 * 1000;
@@ -71,6 +76,8 @@ public class DeviceManager implements IDeviceManager {
     static final IDeviceSelection ANY_DEVICE_OPTIONS = new DeviceSelectionOptions();
     private static final String NULL_DEVICE_SERIAL_PREFIX = "null-device";
     private static final String EMULATOR_SERIAL_PREFIX = "emulator";
+    /** the name of the snapshot pooled emulators are reset from */
+    static final String EMULATOR_POOL_SNAPSHOT = "tradefed-clean";
 
     private DeviceMonitorMultiplexer mDvcMon = new DeviceMonitorMultiplexer();
 
@@ -91,6 +98,22 @@ public class DeviceManager implements IDeviceManager {
     @Option(name="max-null-devices",
             description = "the maximum number of no device runs that can be allocated at one time.")
     private int mNumNullDevicesSupported = 1;
+    @Option(name="fastboot-usb-watch",
+            description = "detect fastboot devices from host usb enumeration changes instead of " +
+            "only polling 'fastboot devices'. Polling is still used on hosts without usb " +
+            "hotplug support.")
+    private boolean mFastbootUsbWatch = true;
+    @Option(name="emulator-pool-size",
+            description = "the maximum number of freed emulators launched with the same " +
+            "arguments to keep running, so that launching them again restores a snapshot " +
+            "instead of cold booting. 0 to kill emulators when they are freed.")
+    private int mEmulatorPoolSize = 0;
+    @Option(name="quarantine-failure-rate",
+            description = "the recent rate of failed operations, from 0 to 1, at which a freed " +
+            "device is marked unavailable instead of being allocated again. 0 to disable.")
+    private double mQuarantineFailureRate = 0;
+
+    private final EmulatorPool mEmulatorPool = new EmulatorPool();
 
     private boolean mSynchronousMode = false;
 
@@ -159,6 +182,7 @@ public class DeviceManager implements IDeviceManager {
             mDvcMon.addMonitors(globalDeviceMonitors);
         }
         mManagedDeviceList = new ManagedDeviceList(deviceFactory);
+        mManagedDeviceList.setEmulatorPool(mEmulatorPool);
 
         if (isFastbootAvailable()) {
             mFastbootListeners = Collections.synchronizedSet(new HashSet<IFastbootListener>());
@@ -384,6 +408,19 @@ public class DeviceManager implements IDeviceManager {
         return mManagedDeviceList.allocate(options);
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<ITestDevice> allocateDevices(List<IDeviceSelection> options) {
+        checkInit();
+        List<IManagedTestDevice> devices = mManagedDeviceList.allocateGroup(options);
+        if (devices == null) {
+            return null;
+        }
+        return new ArrayList<ITestDevice>(devices);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -394,6 +431,8 @@ public class DeviceManager implements IDeviceManager {
         if (d != null) {
             DeviceEventResponse r = d.handleAllocationEvent(DeviceEvent.FORCE_ALLOCATE_REQUEST);
             if (r.stateChanged && r.allocationState == DeviceAllocationState.Allocated) {
+                // a warm emulator must still be reset before use
+                mEmulatorPool.claim(serial);
                 return d;
             }
         }
@@ -419,19 +458,25 @@ public class DeviceManager implements IDeviceManager {
         IManagedTestDevice managedDevice = (IManagedTestDevice)device;
         // force stop capturing logcat just to be sure
         managedDevice.stopLogcat();
+        deviceState = checkDeviceHealth(managedDevice, deviceState);
         IDevice ideviceToReturn = device.getIDevice();
         // don't kill emulator if it wasn't launched by launchEmulator (ie emulatorProcess is null).
         if (ideviceToReturn.isEmulator() && managedDevice.getEmulatorProcess() != null) {
-            try {
-                killEmulator(device);
-                // emulator killed - return a stub device
-                // TODO: this is a bit of a hack. Consider having DeviceManager inject a StubDevice
-                // when deviceDisconnected event is received
-                ideviceToReturn = new StubDevice(ideviceToReturn.getSerialNumber(), true);
-                deviceState = FreeDeviceState.AVAILABLE;
-            } catch (DeviceNotAvailableException e) {
-                CLog.e(e);
-                deviceState = FreeDeviceState.UNAVAILABLE;
+            if (FreeDeviceState.AVAILABLE.equals(deviceState)
+                    && mEmulatorPool.offer(device.getSerialNumber(), mEmulatorPoolSize)) {
+                CLog.i("Keeping emulator %s running for reuse", device.getSerialNumber());
+            } else {
+                try {
+                    killEmulator(device);
+                    // emulator killed - return a stub device
+                    // TODO: this is a bit of a hack. Consider having DeviceManager inject a
+                    // StubDevice when deviceDisconnected event is received
+                    ideviceToReturn = new StubDevice(ideviceToReturn.getSerialNumber(), true);
+                    deviceState = FreeDeviceState.AVAILABLE;
+                } catch (DeviceNotAvailableException e) {
+                    CLog.e(e);
+                    deviceState = FreeDeviceState.UNAVAILABLE;
+                }
             }
         }
 
@@ -443,6 +488,29 @@ public class DeviceManager implements IDeviceManager {
         }
     }
 
+    /**
+     * Quarantine a device being freed if too many of its recent operations have failed, so it is
+     * not allocated again until it is reconnected.
+     *
+     * @return the {@link FreeDeviceState} to free the device with
+     */
+    private FreeDeviceState checkDeviceHealth(IManagedTestDevice managedDevice,
+            FreeDeviceState deviceState) {
+        DeviceHealth health = managedDevice.getHealth();
+        if (mQuarantineFailureRate <= 0 || health == null
+                || FreeDeviceState.UNAVAILABLE.equals(deviceState)
+                || FreeDeviceState.IGNORE.equals(deviceState)
+                || !health.isUnhealthy(mQuarantineFailureRate)) {
+            return deviceState;
+        }
+        CLog.logAndDisplay(LogLevel.WARN, "Quarantining device %s: %d%% of recent operations "
+                + "failed", managedDevice.getSerialNumber(),
+                Math.round(100 * health.getFailureRate()));
+        // give the device a fresh start if it is reconnected
+        health.reset();
+        return FreeDeviceState.UNAVAILABLE;
+    }
+
     /**
      * Helper method to convert from a {@link FreeDeviceState} to a {@link DeviceEvent}
      * @param managedDevice
@@ -475,6 +543,15 @@ public class DeviceManager implements IDeviceManager {
             throw new IllegalStateException(String.format("Device %s is not an emulator",
                     device.getSerialNumber()));
         }
+        if (mEmulatorPool.isClaimed(device.getSerialNumber())) {
+            if (mEmulatorPool.take(device.getSerialNumber(), emulatorArgs)
+                    && restoreEmulatorSnapshot(device, bootTimeout)) {
+                mEmulatorPool.add(device.getSerialNumber(), emulatorArgs);
+                return;
+            }
+            CLog.i("Killing emulator %s to launch it again", device.getSerialNumber());
+            killEmulator(device);
+        }
         if (!device.getDeviceState().equals(TestDeviceState.NOT_AVAILABLE)) {
             throw new IllegalStateException(String.format(
                     "Emulator device %s is in state %s. Expected: %s", device.getSerialNumber(),
@@ -496,6 +573,56 @@ public class DeviceManager implements IDeviceManager {
         }
 
         device.waitForDeviceAvailable(bootTimeout);
+        if (mEmulatorPoolSize > 0 && saveEmulatorSnapshot(device)) {
+            mEmulatorPool.add(device.getSerialNumber(), emulatorArgs);
+        }
+    }
+
+    /**
+     * Save a snapshot of a freshly booted emulator, to reset it from later.
+     *
+     * @return <code>true</code> if the snapshot was saved
+     */
+    private boolean saveEmulatorSnapshot(ITestDevice device) {
+        return runEmulatorSnapshotCommand(device, "save");
+    }
+
+    /**
+     * Reset a running emulator to the snapshot saved when it first booted, and wait for it to
+     * become available.
+     *
+     * @return <code>true</code> if the emulator was reset
+     */
+    private boolean restoreEmulatorSnapshot(ITestDevice device, long bootTimeout) {
+        if (!runEmulatorSnapshotCommand(device, "load")) {
+            return false;
+        }
+        try {
+            device.waitForDeviceAvailable(bootTimeout);
+            CLog.i("Reset emulator %s from snapshot", device.getSerialNumber());
+            return true;
+        } catch (DeviceNotAvailableException e) {
+            CLog.w("Emulator %s did not become available after loading snapshot",
+                    device.getSerialNumber());
+            return false;
+        }
+    }
+
+    private boolean runEmulatorSnapshotCommand(ITestDevice device, String command) {
+        try {
+            String output = device.executeAdbCommand("emu", "avd", "snapshot", command,
+                    EMULATOR_POOL_SNAPSHOT);
+            // the emulator console replies with OK, or KO followed by the reason
+            if (output != null && !output.contains("KO")) {
+                return true;
+            }
+            CLog.w("Failed to %s snapshot of emulator %s: %s", command, device.getSerialNumber(),
+                    output);
+        } catch (DeviceNotAvailableException e) {
+            CLog.w("Failed to %s snapshot of emulator %s: %s", command, device.getSerialNumber(),
+                    e.getMessage());
+        }
+        return false;
     }
 
     private void assertEmulatorProcessAlive(Process p) throws DeviceNotAvailableException {
@@ -532,6 +659,7 @@ public class DeviceManager implements IDeviceManager {
      */
     @Override
     public void killEmulator(ITestDevice device) throws DeviceNotAvailableException {
+        mEmulatorPool.remove(device.getSerialNumber());
         EmulatorConsole console = EmulatorConsole.getConsole(device.getIDevice());
         if (console != null) {
             console.kill();
@@ -684,6 +812,7 @@ public class DeviceManager implements IDeviceManager {
         checkInit();
         if (!mIsTerminated ) {
             mIsTerminated = true;
+            killWarmEmulators();
             mAdbBridge.removeDeviceChangeListener(mManagedDeviceListener);
             mAdbBridge.terminate();
             if (mFastbootMonitor != null) {
@@ -707,6 +836,25 @@ public class DeviceManager implements IDeviceManager {
         }
     }
 
+    /**
+     * Kill the emulators kept running by the emulator pool, so they do not outlive this process.
+     */
+    private void killWarmEmulators() {
+        if (mEmulatorPool.getWarmCount() == 0) {
+            return;
+        }
+        for (IManagedTestDevice device : mManagedDeviceList) {
+            if (mEmulatorPool.isWarm(device.getSerialNumber())) {
+                try {
+                    killEmulator(device);
+                } catch (DeviceNotAvailableException e) {
+                    CLog.w("Failed to kill emulator %s: %s", device.getSerialNumber(),
+                            e.getMessage());
+                }
+            }
+        }
+    }
+
     private static class AbortRecovery implements IDeviceRecovery {
 
         /**
@@ -763,10 +911,17 @@ public class DeviceManager implements IDeviceManager {
     public void displayDevicesInfo(PrintWriter stream) {
         ArrayList<List<String>> displayRows = new ArrayList<List<String>>();
         displayRows.add(Arrays.asList("Serial", "State", "Product", "Variant", "Build",
-                "Battery"));
+                "Battery", "Health"));
         List<DeviceDescriptor> deviceList = listAllDevices();
         sortDeviceList(deviceList);
-        addDevicesInfo(displayRows, deviceList);
+        Map<String, String> healthMap = new HashMap<String, String>();
+        for (IManagedTestDevice d : mManagedDeviceList) {
+            DeviceHealth health = d.getHealth();
+            if (health != null) {
+                healthMap.put(d.getSerialNumber(), health.toString());
+            }
+        }
+        addDevicesInfo(displayRows, deviceList, healthMap);
         new TableFormatter().displayTable(displayRows, stream);
     }
 
@@ -805,7 +960,7 @@ public class DeviceManager implements IDeviceManager {
     }
 
     private void addDevicesInfo(List<List<String>> displayRows,
-            List<DeviceDescriptor> sortedDeviceList) {
+            List<DeviceDescriptor> sortedDeviceList, Map<String, String> healthMap) {
         for (DeviceDescriptor desc : sortedDeviceList) {
             if (desc.isStubDevice() &&
                     desc.getState() != DeviceAllocationState.Allocated) {
@@ -818,7 +973,8 @@ public class DeviceManager implements IDeviceManager {
                     desc.getProduct(),
                     desc.getProductVariant(),
                     desc.getBuildId(),
-                    desc.getBatteryLevel())
+                    desc.getBatteryLevel(),
+                    getDisplay(healthMap.get(desc.getSerial())))
             );
         }
     }
@@ -909,6 +1065,8 @@ public class DeviceManager implements IDeviceManager {
         checkInit();
         if (mFastbootEnabled) {
             mFastbootListeners.add(listener);
+            // new listeners expect a state update promptly
+            mFastbootMonitor.requestUpdate();
         } else {
             throw new UnsupportedOperationException("fastboot is not enabled");
         }
@@ -925,9 +1083,15 @@ public class DeviceManager implements IDeviceManager {
         }
     }
 
-    private class FastbootMonitor extends Thread {
+    private class FastbootMonitor extends Thread implements IUsbChangeListener {
 
         private boolean mQuit = false;
+        /** set when a usb change or new listener requires an immediate state update */
+        private boolean mUpdateRequested = false;
+        private final Object mUpdateLock = new Object();
+        private FastbootUsbWatcher mUsbWatcher = null;
+        /** listeners that have received at least one state update. Only used by this thread */
+        private Set<IFastbootListener> mUpdatedListeners = new HashSet<IFastbootListener>();
 
         FastbootMonitor() {
             super("FastbootMonitor");
@@ -935,33 +1099,99 @@ public class DeviceManager implements IDeviceManager {
 
         public void terminate() {
             mQuit = true;
+            if (mUsbWatcher != null) {
+                mUsbWatcher.close();
+            }
             interrupt();
         }
 
+        /**
+         * Wake up the monitor to update fastboot state without waiting for the next poll.
+         */
+        public void requestUpdate() {
+            synchronized (mUpdateLock) {
+                mUpdateRequested = true;
+                mUpdateLock.notify();
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void usbDevicesChanged() {
+            requestUpdate();
+        }
+
         @Override
         public void run() {
+            if (mFastbootUsbWatch) {
+                FastbootUsbWatcher watcher = createFastbootUsbWatcher();
+                if (watcher.isScanSupported() && watcher.start(this)) {
+                    CLog.d("Watching usb devices for fastboot state changes");
+                    mUsbWatcher = watcher;
+                } else {
+                    CLog.d("USB watch not supported, polling 'fastboot devices'");
+                }
+            }
             while (!mQuit) {
                 // only poll fastboot devices if there are listeners, as polling it
                 // indiscriminately can cause fastboot commands to hang
                 if (!mFastbootListeners.isEmpty()) {
-                    Set<String> serials = getDevicesOnFastboot();
+                    Set<String> serials = mUsbWatcher != null ?
+                            mUsbWatcher.getDevicesOnFastboot() : getDevicesOnFastboot();
                     if (serials != null) {
-                        mManagedDeviceList.updateFastbootStates(serials);
-
-                        // create a copy of listeners for notification to prevent deadlocks
-                        Collection<IFastbootListener> listenersCopy =
-                                new ArrayList<IFastbootListener>(mFastbootListeners.size());
-                        listenersCopy.addAll(mFastbootListeners);
-                        for (IFastbootListener listener : listenersCopy) {
-                            listener.stateUpdated();
-                        }
+                        boolean changed = mManagedDeviceList.updateFastbootStates(serials);
+                        notifyFastbootListeners(changed);
+                    }
+                }
+                waitForUpdateRequest();
+            }
+        }
+
+        /**
+         * Notify listeners of a state update. Listeners that have already received an update are
+         * only notified if a device's fastboot state actually changed.
+         */
+        private void notifyFastbootListeners(boolean stateChanged) {
+            // create a copy of listeners for notification to prevent deadlocks
+            Collection<IFastbootListener> listenersCopy =
+                    new ArrayList<IFastbootListener>(mFastbootListeners.size());
+            listenersCopy.addAll(mFastbootListeners);
+            for (IFastbootListener listener : listenersCopy) {
+                if (stateChanged || !mUpdatedListeners.contains(listener)) {
+                    listener.stateUpdated();
+                }
+            }
+            mUpdatedListeners.retainAll(listenersCopy);
+            mUpdatedListeners.addAll(listenersCopy);
+        }
+
+        private void waitForUpdateRequest() {
+            // usb changes will wake the monitor early. The poll period still applies as a
+            // fallback, for hosts without usb hotplug support or missed events
+            synchronized (mUpdateLock) {
+                if (!mUpdateRequested) {
+                    try {
+                        mUpdateLock.wait(FASTBOOT_POLL_WAIT_TIME);
+                    } catch (InterruptedException e) {
+                        // ignore, mQuit will be checked
                     }
                 }
-                getRunUtil().sleep(FASTBOOT_POLL_WAIT_TIME);
+                mUpdateRequested = false;
             }
         }
     }
 
+    /**
+     * Create the {@link FastbootUsbWatcher} to use.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    FastbootUsbWatcher createFastbootUsbWatcher() {
+        return new FastbootUsbWatcher();
+    }
+
     private Set<String> getDevicesOnFastboot() {
         CommandResult fastbootResult = getRunUtil().runTimedCmd(FASTBOOT_CMD_TIMEOUT,
                 "fastboot", "devices");
@@ -978,8 +1208,7 @@ public class DeviceManager implements IDeviceManager {
 
     static Set<String> parseDevicesOnFastboot(String fastbootOutput) {
         Set<String> serials = new HashSet<String>();
-        Pattern fastbootPattern = Pattern.compile("([\\w\\d]+)\\s+fastboot\\s*");
-        Matcher fastbootMatcher = fastbootPattern.matcher(fastbootOutput);
+        Matcher fastbootMatcher = FASTBOOT_DEVICES_PATTERN.matcher(fastbootOutput);
         while (fastbootMatcher.find()) {
             serials.add(fastbootMatcher.group(1));
         }
@@ -996,6 +1225,16 @@ public class DeviceManager implements IDeviceManager {
         mNumEmulatorSupported = numEmulators;
     }
 
+    @VisibleForTesting
+    void setEmulatorPoolSize(int poolSize) {
+        mEmulatorPoolSize = poolSize;
+    }
+
+    @VisibleForTesting
+    void setQuarantineFailureRate(double failureRate) {
+        mQuarantineFailureRate = failureRate;
+    }
+
     @VisibleForTesting
     void setMaxNullDevices(int nullDevices) {
         mNumNullDevicesSupported = nullDevices;
@@ -20,23 +20,52 @@ import com.android.tradefed.command.remote.DeviceDescriptor;
 import com.android.tradefed.config.GlobalConfiguration;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.log.LogUtil.CLog;
-import com.android.tradefed.util.CircularByteArray;
-
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.TableFormatter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.TimeUnit;
 
 /**
  * A {@link IDeviceMonitor} that calculates device utilization stats.
  * <p/>
- * Currently measures simple moving average of allocation time % over a 24 hour window.
+ * Records the time of every transition to and from the allocated state, as reported by
+ * {@link #notifyDeviceStateChange}, and measures the exact % of time each device was allocated
+ * over any window of the retained history. The history of each device is an interval log of its
+ * allocations, so its size only depends on the number of allocations in the retained history.
+ * The history can be saved to a file, so it survives restarts.
  */
 public class DeviceUtilStatsMonitor implements IDeviceMonitor {
 
     private static final int mInitialDelayMs = 5000;
 
+    /** the windows reported by {@link #getUtilizationViews()}, keyed by name */
+    private static final Map<String, Long> VIEW_WINDOWS = new LinkedHashMap<>();
+    static {
+        VIEW_WINDOWS.put("1h", TimeUnit.HOURS.toMillis(1));
+        VIEW_WINDOWS.put("8h", TimeUnit.HOURS.toMillis(8));
+        VIEW_WINDOWS.put("24h", TimeUnit.HOURS.toMillis(24));
+        VIEW_WINDOWS.put("7d", TimeUnit.DAYS.toMillis(7));
+    }
+
+    /** the number of slots in the allocation summary displayed for each device */
+    private static final int SUMMARY_SLOTS = 24;
+    /** the window covered by the displayed allocation summary */
+    private static final long SUMMARY_WINDOW_MS = TimeUnit.HOURS.toMillis(24);
+
     /**
      * Enum for configuring treatment of stub devices when calculating average host utilization
      */
@@ -61,13 +90,17 @@ public class DeviceUtilStatsMonitor implements IDeviceMonitor {
     private StubDeviceUtil mCollectEmulator = StubDeviceUtil.INCLUDE_IF_USED;
 
     @Option(name = "sample-window-hours", description =
-            "the moving average window size to use, in hours")
+            "the window to calculate the default utilization stats over, in hours")
     private int mSampleWindowHours = 8;
 
     @Option(name = "sample-interval-secs", description =
-            "the time period between samples, in seconds")
+            "the time period between pruning and saving the utilization history, in seconds")
     private int mSamplingIntervalSec = 60;
 
+    @Option(name = "history-file", description =
+            "the file to save the utilization history to, and restore it from on startup")
+    private File mHistoryFile = null;
+
     private boolean mNullDeviceAllocated = false;
     private boolean mEmulatorAllocated = false;
 
@@ -104,122 +137,304 @@ public class DeviceUtilStatsMonitor implements IDeviceMonitor {
             }
             return util;
         }
+
+        /**
+         * Return the percent utilization of each device, keyed by serial.
+         */
+        public Map<String, Integer> getDeviceUtil() {
+            return Collections.unmodifiableMap(mDeviceUtil);
+        }
     }
 
-    private class DeviceUtilRecord {
-        // store samples of device util, where 0 = avail, 1 = allocated
-        // TODO: save memory by using CircularBitArray
-        private CircularByteArray mData;
-        private int mConsecutiveMissedSamples = 0;
+    /**
+     * The allocation history of a device.
+     * <p/>
+     * Time the device was not allocated, including time it was not connected, counts as
+     * unutilized.
+     */
+    static class DeviceUtilRecord {
+        // the start of the retained history
+        private long mStartTime;
+        // the alternating start and end times of allocations, oldest first. An odd count means
+        // the device is currently allocated
+        private long[] mAllocTimes = new long[4];
+        private int mAllocCount = 0;
+        // the time the device was disconnected, or -1 if connected
+        private long mGoneTime = -1;
+
+        DeviceUtilRecord(long startTime) {
+            mStartTime = startTime;
+        }
 
-        DeviceUtilRecord() {
-            mData = new CircularByteArray(mMaxSamples);
+        boolean isAllocated() {
+            return mAllocCount % 2 == 1;
         }
 
-        public void addSample(DeviceAllocationState state) {
-            if (DeviceAllocationState.Allocated.equals(state)) {
-                mData.add((byte)1);
-            } else {
-                mData.add((byte)0);
+        void setAllocated(boolean allocated, long time) {
+            if (allocated == isAllocated()) {
+                return;
+            }
+            if (mAllocCount == mAllocTimes.length) {
+                mAllocTimes = Arrays.copyOf(mAllocTimes, mAllocTimes.length * 2);
             }
-            mConsecutiveMissedSamples = 0;
+            mAllocTimes[mAllocCount++] = time;
         }
 
-        public long getNumAllocations() {
-            return mData.getSum();
+        boolean isGone() {
+            return mGoneTime >= 0;
         }
 
-        public long getTotalSamples() {
-            return mData.size();
+        void setGone(boolean gone, long time) {
+            if (gone == isGone()) {
+                return;
+            }
+            mGoneTime = gone ? time : -1;
         }
 
         /**
-         * Record sample for missing device.
-         *
-         * @param serial device serial number
-         * @return true if sample was added, false if device has been missing for more than max
-         * samples
+         * Get the time the device was observed within the given window.
+         */
+        long getObservedTime(long start, long end) {
+            return Math.max(0, end - Math.max(start, mStartTime));
+        }
+
+        /**
+         * Get the time the device was allocated within the given window.
+         */
+        long getAllocatedTime(long start, long end) {
+            long allocatedTime = 0;
+            for (int i = 0; i < mAllocCount; i += 2) {
+                long allocStart = mAllocTimes[i];
+                // an allocation that has not ended counts up to the end of the window
+                long allocEnd = i + 1 < mAllocCount ? mAllocTimes[i + 1] : end;
+                allocatedTime += Math.max(0, Math.min(allocEnd, end) - Math.max(allocStart, start));
+            }
+            return allocatedTime;
+        }
+
+        /**
+         * Get a summary of the allocations in the given window, divided into equal slots. A bit
+         * is set if the device was allocated for at least half of the slot.
          */
-        public boolean addMissingSample(String serial) {
-            mConsecutiveMissedSamples++;
-            if (mConsecutiveMissedSamples > mMaxSamples) {
-                return false;
+        BitSet getAllocationSummary(long start, long end, int slots) {
+            BitSet summary = new BitSet(slots);
+            long slotTime = (end - start) / slots;
+            if (slotTime <= 0) {
+                return summary;
             }
-            mData.add((byte)0);
-            return true;
+            for (int i = 0; i < slots; i++) {
+                long slotStart = start + i * slotTime;
+                if (getAllocatedTime(slotStart, slotStart + slotTime) * 2 >= slotTime) {
+                    summary.set(i);
+                }
+            }
+            return summary;
+        }
+
+        /**
+         * Discard the history before given time.
+         */
+        void prune(long cutoff) {
+            if (cutoff <= mStartTime) {
+                return;
+            }
+            mStartTime = cutoff;
+            int firstKept = 0;
+            while (firstKept + 1 < mAllocCount && mAllocTimes[firstKept + 1] <= cutoff) {
+                firstKept += 2;
+            }
+            if (firstKept > 0) {
+                System.arraycopy(mAllocTimes, firstKept, mAllocTimes, 0, mAllocCount - firstKept);
+                mAllocCount -= firstKept;
+            }
+            if (mAllocCount > 0 && mAllocTimes[0] < cutoff) {
+                mAllocTimes[0] = cutoff;
+            }
+        }
+
+        /**
+         * Check if the device has been disconnected, and not allocated, since before given time.
+         */
+        boolean isExpired(long cutoff) {
+            return isGone() && mGoneTime <= cutoff && !isAllocated();
+        }
+
+        /**
+         * Serializes this record as a tab separated line.
+         */
+        String toLine(String serial) {
+            StringBuilder line = new StringBuilder(serial);
+            line.append('\t').append(mStartTime);
+            line.append('\t').append(mGoneTime);
+            for (int i = 0; i < mAllocCount; i++) {
+                line.append('\t').append(mAllocTimes[i]);
+            }
+            return line.toString();
+        }
+
+        /**
+         * Creates a record from a line created by {@link #toLine(String)}. The device is assumed
+         * to have been released and disconnected at the time the history was saved.
+         */
+        static DeviceUtilRecord fromLine(String[] fields, long savedTime) {
+            DeviceUtilRecord record = new DeviceUtilRecord(Long.parseLong(fields[1]));
+            record.mGoneTime = Long.parseLong(fields[2]);
+            for (int i = 3; i < fields.length; i++) {
+                record.setAllocated(!record.isAllocated(), Long.parseLong(fields[i]));
+            }
+            record.setAllocated(false, savedTime);
+            record.setGone(true, savedTime);
+            return record;
         }
     }
 
-    private class SamplingTask extends TimerTask {
+    private class MaintenanceTask extends TimerTask {
         @Override
         public void run() {
-            CLog.d("Collecting utilization");
-            // track devices that we have records for, but are not reported by device lister
-            Map<String, DeviceUtilRecord> goneDevices = new HashMap<>(mDeviceUtilMap);
-
+            CLog.d("Maintaining utilization history");
+            long now = getCurrentTime();
+            // track devices that were connected before this monitor started
             for (DeviceDescriptor deviceDesc : mDeviceLister.listDevices()) {
-                DeviceUtilRecord record = getDeviceRecord(deviceDesc.getSerial());
-                record.addSample(deviceDesc.getState());
-                goneDevices.remove(deviceDesc.getSerial());
+                addDeviceIfMissing(deviceDesc.getSerial(), deviceDesc.getState());
             }
-
-            // now record samples for gone devices
-            for (Map.Entry<String, DeviceUtilRecord> goneSerialEntry : goneDevices.entrySet()) {
-                String serial = goneSerialEntry.getKey();
-                if (!goneSerialEntry.getValue().addMissingSample(serial)) {
-                    CLog.d("Forgetting device %s", serial);
-                    mDeviceUtilMap.remove(serial);
-                }
+            pruneHistory(now);
+            if (mHistoryFile != null) {
+                saveHistory(mHistoryFile);
             }
         }
     }
 
-    private int mMaxSamples;
-
     /** a map of device serial to device records */
-    private Map<String, DeviceUtilRecord> mDeviceUtilMap = new Hashtable<>();
+    private Map<String, DeviceUtilRecord> mDeviceUtilMap = new HashMap<>();
 
     private DeviceLister mDeviceLister;
 
     private Timer mTimer;
-    private SamplingTask mSamplingTask = new SamplingTask();
+    private MaintenanceTask mMaintenanceTask = new MaintenanceTask();
+
+    /**
+     * Get the device utilization over the last sample-window-hours
+     */
+    public UtilizationDesc getUtilizationStats() {
+        return getUtilizationStats(TimeUnit.HOURS.toMillis(mSampleWindowHours));
+    }
 
     /**
-     * Get the device utilization up to the last 24 hours
+     * Get the device utilization over given window.
+     *
+     * @param windowMs the window, up to the current time, in ms
      */
-    public synchronized UtilizationDesc getUtilizationStats() {
+    public synchronized UtilizationDesc getUtilizationStats(long windowMs) {
         CLog.d("Calculating device util");
+        long end = getCurrentTime();
+        long start = end - windowMs;
 
-        long totalAllocSamples = 0;
-        long totalSamples = 0;
+        long totalAllocTime = 0;
+        long totalTime = 0;
         Map<String, Integer> deviceUtilMap = new HashMap<>();
         for (Map.Entry<String, DeviceUtilRecord> deviceRecordEntry : mDeviceUtilMap.entrySet()) {
             if (shouldTrackDevice(deviceRecordEntry.getKey())) {
-                long allocSamples = deviceRecordEntry.getValue().getNumAllocations();
-                long numSamples = deviceRecordEntry.getValue().getTotalSamples();
-                totalAllocSamples += allocSamples;
-                totalSamples += numSamples;
-                deviceUtilMap.put(deviceRecordEntry.getKey(), getUtil(allocSamples, numSamples));
+                long allocTime = deviceRecordEntry.getValue().getAllocatedTime(start, end);
+                long observedTime = deviceRecordEntry.getValue().getObservedTime(start, end);
+                totalAllocTime += allocTime;
+                totalTime += observedTime;
+                deviceUtilMap.put(deviceRecordEntry.getKey(), getUtil(allocTime, observedTime));
             }
         }
-        return new UtilizationDesc(getUtil(totalAllocSamples, totalSamples), deviceUtilMap);
+        return new UtilizationDesc(getUtil(totalAllocTime, totalTime), deviceUtilMap);
+    }
+
+    /**
+     * Get the device utilization over the last 1 hour, 8 hours, 24 hours and 7 days.
+     *
+     * @return the {@link UtilizationDesc}s, keyed by window name in increasing window order
+     */
+    public Map<String, UtilizationDesc> getUtilizationViews() {
+        Map<String, UtilizationDesc> views = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> window : VIEW_WINDOWS.entrySet()) {
+            views.put(window.getKey(), getUtilizationStats(window.getValue()));
+        }
+        return views;
+    }
+
+    /**
+     * Get a summary of the allocations of a device over given window, suitable for display.
+     *
+     * @param serial the device serial
+     * @param windowMs the window, up to the current time, in ms
+     * @param slots the number of equal slots to divide the window into
+     * @return a {@link BitSet} with a bit for each slot, oldest first, that is set if the device
+     *         was allocated for at least half of the slot. <code>null</code> if the device has no
+     *         history.
+     */
+    public synchronized BitSet getAllocationSummary(String serial, long windowMs, int slots) {
+        DeviceUtilRecord record = mDeviceUtilMap.get(serial);
+        if (record == null) {
+            return null;
+        }
+        long end = getCurrentTime();
+        return record.getAllocationSummary(end - windowMs, end, slots);
+    }
+
+    /**
+     * Output a table of device utilization over each window, with a summary of each device's
+     * allocations over the last 24 hours.
+     *
+     * @param stream the {@link PrintWriter} to output to
+     */
+    public void displayUtilizationInfo(PrintWriter stream) {
+        Map<String, UtilizationDesc> views = getUtilizationViews();
+        List<String> header = new ArrayList<>();
+        header.add("Serial");
+        header.addAll(views.keySet());
+        header.add("Last 24h");
+        List<String> serials = new ArrayList<>(views.get("7d").mDeviceUtil.keySet());
+        Collections.sort(serials);
+
+        List<List<String>> displayRows = new ArrayList<>();
+        displayRows.add(header);
+        for (String serial : serials) {
+            List<String> row = new ArrayList<>();
+            row.add(serial);
+            for (UtilizationDesc view : views.values()) {
+                row.add(String.format("%d%%", view.getUtilForDevice(serial)));
+            }
+            BitSet summary = getAllocationSummary(serial, SUMMARY_WINDOW_MS, SUMMARY_SLOTS);
+            StringBuilder bar = new StringBuilder(SUMMARY_SLOTS);
+            for (int i = 0; i < SUMMARY_SLOTS; i++) {
+                bar.append(summary != null && summary.get(i) ? '#' : '.');
+            }
+            row.add(bar.toString());
+            displayRows.add(row);
+        }
+        List<String> totalRow = new ArrayList<>();
+        totalRow.add("Total");
+        for (UtilizationDesc view : views.values()) {
+            totalRow.add(String.format("%d%%", view.getTotalUtil()));
+        }
+        totalRow.add("");
+        displayRows.add(totalRow);
+        new TableFormatter().displayTable(displayRows, stream);
     }
 
     /**
      * Get device utilization as a percent
      */
-    private static int getUtil(long allocSamples, long numSamples) {
-        if (numSamples <= 0) {
+    private static int getUtil(long allocTime, long totalTime) {
+        if (totalTime <= 0) {
             return 0;
         }
-        return (int)((allocSamples * 100) / numSamples);
+        return (int)((allocTime * 100) / totalTime);
     }
 
     @Override
     public void run() {
-        calculateMaxSamples();
+        if (mHistoryFile != null && mHistoryFile.exists()) {
+            loadHistory(mHistoryFile);
+        }
         mTimer  = new Timer();
-        mTimer.scheduleAtFixedRate(mSamplingTask, mInitialDelayMs, mSamplingIntervalSec * 1000);
+        mTimer.scheduleAtFixedRate(mMaintenanceTask, mInitialDelayMs,
+                mSamplingIntervalSec * 1000);
     }
 
     @Override
@@ -229,16 +444,26 @@ public class DeviceUtilStatsMonitor implements IDeviceMonitor {
 
     /**
      * Listens to device state changes and records time that device transitions from or to
-     * available or allocated state.
+     * allocated state.
      */
     @Override
     public synchronized void notifyDeviceStateChange(String serial, DeviceAllocationState oldState,
             DeviceAllocationState newState) {
-        if (mNullDeviceAllocated && mEmulatorAllocated) {
-            // optimization, don't enter calculation below unless needed
-            return;
+        long now = getCurrentTime();
+        boolean gone = DeviceAllocationState.Unknown.equals(newState);
+        DeviceUtilRecord record = mDeviceUtilMap.get(serial);
+        if (record == null) {
+            if (gone) {
+                // never seen, nothing to record
+                return;
+            }
+            record = new DeviceUtilRecord(now);
+            mDeviceUtilMap.put(serial, record);
         }
-        if (DeviceAllocationState.Allocated.equals(newState)) {
+        boolean allocated = DeviceAllocationState.Allocated.equals(newState);
+        record.setAllocated(allocated, now);
+        record.setGone(gone, now);
+        if (allocated && !(mNullDeviceAllocated && mEmulatorAllocated)) {
             IDeviceManager dvcMgr = getDeviceManager();
             if (dvcMgr.isNullDevice(serial)) {
                 mNullDeviceAllocated = true;
@@ -249,15 +474,85 @@ public class DeviceUtilStatsMonitor implements IDeviceMonitor {
     }
 
     /**
-     * Get the device util records for given serial, creating if necessary.
+     * Start recording the history of a device reported by the {@link DeviceLister}, if it is not
+     * already known.
+     */
+    private synchronized void addDeviceIfMissing(String serial, DeviceAllocationState state) {
+        if (!mDeviceUtilMap.containsKey(serial)) {
+            notifyDeviceStateChange(serial, DeviceAllocationState.Unknown, state);
+        }
+    }
+
+    /**
+     * Discard history older than the longest window, and forget devices that have been gone for
+     * longer than that.
      */
-    private DeviceUtilRecord getDeviceRecord(String serial) {
-        DeviceUtilRecord r = mDeviceUtilMap.get(serial);
-        if (r == null) {
-            r = new DeviceUtilRecord();
-            mDeviceUtilMap.put(serial, r);
+    synchronized void pruneHistory(long now) {
+        long cutoff = now - getRetentionMs();
+        Iterator<Map.Entry<String, DeviceUtilRecord>> iter =
+                mDeviceUtilMap.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<String, DeviceUtilRecord> entry = iter.next();
+            if (entry.getValue().isExpired(cutoff)) {
+                CLog.d("Forgetting device %s", entry.getKey());
+                iter.remove();
+            } else {
+                entry.getValue().prune(cutoff);
+            }
+        }
+    }
+
+    private long getRetentionMs() {
+        return Math.max(Collections.max(VIEW_WINDOWS.values()),
+                TimeUnit.HOURS.toMillis(mSampleWindowHours));
+    }
+
+    /**
+     * Save the utilization history to given file. The file is replaced atomically.
+     */
+    synchronized void saveHistory(File historyFile) {
+        StringBuilder history = new StringBuilder();
+        history.append(getCurrentTime()).append('\n');
+        for (Map.Entry<String, DeviceUtilRecord> entry : mDeviceUtilMap.entrySet()) {
+            history.append(entry.getValue().toLine(entry.getKey())).append('\n');
+        }
+        File tmpFile = null;
+        try {
+            File parentDir = historyFile.getAbsoluteFile().getParentFile();
+            tmpFile = FileUtil.createTempFile(historyFile.getName(), ".tmp", parentDir);
+            FileUtil.writeToFile(history.toString(), tmpFile);
+            if (tmpFile.renameTo(historyFile)) {
+                tmpFile = null;
+            } else {
+                CLog.w("Failed to save utilization history to %s", historyFile);
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to save utilization history: %s", e.getMessage());
+        } finally {
+            FileUtil.deleteFile(tmpFile);
+        }
+    }
+
+    /**
+     * Restore the utilization history from given file. The time between the history being saved
+     * and restored counts as unutilized.
+     */
+    synchronized void loadHistory(File historyFile) {
+        try {
+            String[] lines = FileUtil.readStringFromFile(historyFile).split("\n");
+            long savedTime = Long.parseLong(lines[0].trim());
+            for (int i = 1; i < lines.length; i++) {
+                String[] fields = lines[i].split("\t");
+                if (fields.length < 3 || mDeviceUtilMap.containsKey(fields[0])) {
+                    continue;
+                }
+                mDeviceUtilMap.put(fields[0], DeviceUtilRecord.fromLine(fields, savedTime));
+            }
+            CLog.d("Restored utilization history of %d devices", mDeviceUtilMap.size());
+        } catch (IOException | NumberFormatException e) {
+            CLog.w("Failed to restore utilization history from %s: %s", historyFile,
+                    e.getMessage());
         }
-        return r;
     }
 
     private boolean shouldTrackDevice(String serial) {
@@ -284,29 +579,33 @@ public class DeviceUtilStatsMonitor implements IDeviceMonitor {
         return true;
     }
 
-    IDeviceManager getDeviceManager() {
-        return GlobalConfiguration.getDeviceManagerInstance();
-    }
-
-    TimerTask getSamplingTask() {
-        return mSamplingTask;
+    /**
+     * Get the {@link DeviceUtilStatsMonitor} configured in the global configuration.
+     *
+     * @return the {@link DeviceUtilStatsMonitor}, or <code>null</code> if none is configured
+     */
+    public static DeviceUtilStatsMonitor getGlobalInstance() {
+        List<IDeviceMonitor> monitors = GlobalConfiguration.getInstance().getDeviceMonitors();
+        if (monitors != null) {
+            for (IDeviceMonitor monitor : monitors) {
+                if (monitor instanceof DeviceUtilStatsMonitor) {
+                    return (DeviceUtilStatsMonitor)monitor;
+                }
+            }
+        }
+        return null;
     }
 
-    // @VisibleForTesting
-    void calculateMaxSamples() {
-        // find max samples to collect by converting sample window to seconds then divide by
-        // sampling interval
-        mMaxSamples = mSampleWindowHours * 60 * 60 / mSamplingIntervalSec;
-        assert(mMaxSamples > 0);
+    IDeviceManager getDeviceManager() {
+        return GlobalConfiguration.getDeviceManagerInstance();
     }
 
-    // @VisibleForTesting
-    void setMaxSamples(int maxSamples) {
-        mMaxSamples = maxSamples;
+    TimerTask getMaintenanceTask() {
+        return mMaintenanceTask;
     }
 
     // @VisibleForTesting
-    int getMaxSamples() {
-        return mMaxSamples;
+    long getCurrentTime() {
+        return System.currentTimeMillis();
     }
 }
@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.util.ArrayUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of emulators that can be kept running after they are freed, so the next launch of
+ * the same avd can restore a snapshot instead of cold booting.
+ * <p/>
+ * An emulator joins the pool once it has booted and a snapshot of its clean state has been saved.
+ * When it is freed it is kept running, or "warm", as long as fewer than the maximum number of warm
+ * emulators share its signature. The signature is the emulator's launch arguments, except for the
+ * console port.
+ * <p/>
+ * A warm emulator still holds whatever the last test left on it, so it is only allocated to
+ * requests for a new emulator, which launch it again. Allocating it claims it, and launching a
+ * claimed emulator resets it from its snapshot. A claimed emulator that is freed without having
+ * been reset is killed.
+ */
+class EmulatorPool {
+
+    /** the signatures of pooled emulators, by serial */
+    private final Map<String, String> mSignatures = new HashMap<String, String>();
+    /** the serials of pooled emulators that are running while free */
+    private final Set<String> mWarmSerials = new HashSet<String>();
+    /** the serials of warm emulators that have been allocated, but not reset yet */
+    private final Set<String> mClaimedSerials = new HashSet<String>();
+
+    /**
+     * Get the signature of an emulator launch.
+     *
+     * @param emulatorArgs the command line used to launch the emulator
+     */
+    static String getSignature(List<String> emulatorArgs) {
+        List<String> args = new ArrayList<String>(emulatorArgs.size());
+        for (int i = 0; i < emulatorArgs.size(); i++) {
+            if ("-port".equals(emulatorArgs.get(i))) {
+                i++;
+            } else {
+                args.add(emulatorArgs.get(i));
+            }
+        }
+        return ArrayUtil.join(" ", args);
+    }
+
+    /**
+     * Add an emulator that has booted and saved a snapshot of its clean state.
+     */
+    synchronized void add(String serial, List<String> emulatorArgs) {
+        mSignatures.put(serial, getSignature(emulatorArgs));
+        mWarmSerials.remove(serial);
+        mClaimedSerials.remove(serial);
+    }
+
+    /**
+     * Offer an emulator that is being freed to the pool.
+     *
+     * @param serial the serial of the emulator
+     * @param maxWarmPerSignature the maximum number of warm emulators with the same signature
+     * @return <code>true</code> if the emulator should be kept running. <code>false</code> if it
+     *         should be killed, in which case it is no longer in the pool.
+     */
+    synchronized boolean offer(String serial, int maxWarmPerSignature) {
+        String signature = mSignatures.get(serial);
+        if (signature == null) {
+            return false;
+        }
+        if (mClaimedSerials.remove(serial)) {
+            // it was allocated while warm, and used without being reset
+            mSignatures.remove(serial);
+            return false;
+        }
+        int warmCount = 0;
+        for (String warmSerial : mWarmSerials) {
+            if (signature.equals(mSignatures.get(warmSerial))) {
+                warmCount++;
+            }
+        }
+        if (warmCount >= maxWarmPerSignature) {
+            mSignatures.remove(serial);
+            return false;
+        }
+        mWarmSerials.add(serial);
+        return true;
+    }
+
+    /**
+     * Check whether an emulator was left running by the pool.
+     */
+    synchronized boolean isWarm(String serial) {
+        return mWarmSerials.contains(serial);
+    }
+
+    /**
+     * Claim a warm emulator that has been allocated, so it is reset when launched again.
+     *
+     * @return <code>true</code> if the emulator was warm
+     */
+    synchronized boolean claim(String serial) {
+        if (mWarmSerials.remove(serial)) {
+            mClaimedSerials.add(serial);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Check whether an emulator was allocated while warm, and has not been reset yet.
+     */
+    synchronized boolean isClaimed(String serial) {
+        return mClaimedSerials.contains(serial);
+    }
+
+    /**
+     * Take a claimed emulator out of the pool, to be launched again.
+     *
+     * @param serial the serial of the emulator
+     * @param emulatorArgs the command line the emulator is to be launched with
+     * @return <code>true</code> if the emulator is claimed and was launched with an equivalent
+     *         command line, so it can be reset from its snapshot. If <code>false</code>, the
+     *         emulator is no longer in the pool.
+     */
+    synchronized boolean take(String serial, List<String> emulatorArgs) {
+        if (mClaimedSerials.remove(serial)
+                && getSignature(emulatorArgs).equals(mSignatures.get(serial))) {
+            return true;
+        }
+        mSignatures.remove(serial);
+        return false;
+    }
+
+    /**
+     * Remove an emulator from the pool, because it has been killed.
+     */
+    synchronized void remove(String serial) {
+        mSignatures.remove(serial);
+        mWarmSerials.remove(serial);
+        mClaimedSerials.remove(serial);
+    }
+
+    /**
+     * @return the number of warm emulators
+     */
+    synchronized int getWarmCount() {
+        return mWarmSerials.size();
+    }
+}
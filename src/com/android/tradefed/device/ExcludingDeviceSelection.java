@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * A {@link IDeviceSelection} that delegates to another selection, but never matches a device
+ * that is matched by any of a set of excluded selections.
+ * <p/>
+ * Used to hold back devices that are reserved for another request.
+ */
+public class ExcludingDeviceSelection implements IDeviceSelection {
+
+    private final IDeviceSelection mSelection;
+    private final Collection<IDeviceSelection> mExcludedSelections;
+
+    /**
+     * Creates a {@link ExcludingDeviceSelection}.
+     *
+     * @param selection the {@link IDeviceSelection} to delegate to
+     * @param excludedSelections the {@link IDeviceSelection}s whose devices should not be matched
+     */
+    public ExcludingDeviceSelection(IDeviceSelection selection,
+            Collection<IDeviceSelection> excludedSelections) {
+        mSelection = selection;
+        mExcludedSelections = excludedSelections;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean matches(IDevice device) {
+        if (!mSelection.matches(device)) {
+            return false;
+        }
+        for (IDeviceSelection excluded : mExcludedSelections) {
+            if (excluded.matches(device)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<String> getSerials() {
+        return mSelection.getSerials();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<String> getExcludeSerials() {
+        return mSelection.getExcludeSerials();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Collection<String> getProductTypes() {
+        return mSelection.getProductTypes();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Map<String, String> getProperties() {
+        return mSelection.getProperties();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean emulatorRequested() {
+        return mSelection.emulatorRequested();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean deviceRequested() {
+        return mSelection.deviceRequested();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean stubEmulatorRequested() {
+        return mSelection.stubEmulatorRequested();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean nullDeviceRequested() {
+        return mSelection.nullDeviceRequested();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getDeviceProductType(IDevice device) {
+        return mSelection.getDeviceProductType(device);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getDeviceProductVariant(IDevice device) {
+        return mSelection.getDeviceProductVariant(device);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Integer getBatteryLevel(IDevice device) {
+        return mSelection.getBatteryLevel(device);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setSerial(String... serialNumber) {
+        mSelection.setSerial(serialNumber);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.google.common.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Detects devices in fastboot mode from the host's USB enumeration, without forking a
+ * 'fastboot devices' process.
+ * <p/>
+ * Fastboot devices are found by scanning sysfs for USB interfaces that advertise the fastboot
+ * class/subclass/protocol triple. USB hotplug events are detected by watching the usbfs device
+ * nodes under /dev/bus/usb, which is inotify-backed on Linux. On hosts where either is not
+ * available, {@link #isScanSupported()} or {@link #isWatchSupported()} will return
+ * <code>false</code> and callers should fall back to polling 'fastboot devices'.
+ */
+public class FastbootUsbWatcher {
+
+    /** interface class, subclass and protocol reported by fastboot-mode devices */
+    private static final String FASTBOOT_INTERFACE_CLASS = "ff";
+    private static final String FASTBOOT_INTERFACE_SUBCLASS = "42";
+    private static final String FASTBOOT_INTERFACE_PROTOCOL = "03";
+
+    private static final String SYSFS_USB_DEVICES = "/sys/bus/usb/devices";
+    private static final String USBFS_ROOT = "/dev/bus/usb";
+
+    /**
+     * Callback for USB enumeration changes.
+     */
+    public static interface IUsbChangeListener {
+        /**
+         * Called from the watcher thread when a USB device has been added or removed.
+         */
+        public void usbDevicesChanged();
+    }
+
+    private final File mSysfsDevicesDir;
+    private final File mUsbfsRoot;
+    private WatchService mWatchService = null;
+    private Thread mWatchThread = null;
+
+    /**
+     * Creates a {@link FastbootUsbWatcher} that uses the standard Linux sysfs and usbfs paths.
+     */
+    public FastbootUsbWatcher() {
+        this(new File(SYSFS_USB_DEVICES), new File(USBFS_ROOT));
+    }
+
+    /**
+     * Creates a {@link FastbootUsbWatcher} with custom sysfs and usbfs roots.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    @VisibleForTesting
+    FastbootUsbWatcher(File sysfsDevicesDir, File usbfsRoot) {
+        mSysfsDevicesDir = sysfsDevicesDir;
+        mUsbfsRoot = usbfsRoot;
+    }
+
+    /**
+     * @return <code>true</code> if {@link #getDevicesOnFastboot()} can be used on this host.
+     */
+    public boolean isScanSupported() {
+        return mSysfsDevicesDir.isDirectory();
+    }
+
+    /**
+     * @return <code>true</code> if USB hotplug events can be watched on this host.
+     */
+    public boolean isWatchSupported() {
+        return mUsbfsRoot.isDirectory();
+    }
+
+    /**
+     * Get the serials of all devices currently in fastboot mode.
+     *
+     * @return the {@link Set} of serials, or <code>null</code> if USB enumeration could not be
+     *         read.
+     */
+    public Set<String> getDevicesOnFastboot() {
+        File[] entries = mSysfsDevicesDir.listFiles();
+        if (entries == null) {
+            return null;
+        }
+        Set<String> serials = new HashSet<String>();
+        for (File entry : entries) {
+            // interface entries are named <device>:<config>.<interface>, eg 1-1.2:1.0
+            String name = entry.getName();
+            int colonIndex = name.indexOf(':');
+            if (colonIndex <= 0 || !isFastbootInterface(entry)) {
+                continue;
+            }
+            String serial = readAttribute(new File(mSysfsDevicesDir,
+                    name.substring(0, colonIndex)), "serial");
+            if (serial != null && !serial.isEmpty()) {
+                serials.add(serial);
+            }
+        }
+        return serials;
+    }
+
+    private boolean isFastbootInterface(File interfaceDir) {
+        return FASTBOOT_INTERFACE_CLASS.equals(readAttribute(interfaceDir, "bInterfaceClass")) &&
+                FASTBOOT_INTERFACE_SUBCLASS.equals(
+                        readAttribute(interfaceDir, "bInterfaceSubClass")) &&
+                FASTBOOT_INTERFACE_PROTOCOL.equals(
+                        readAttribute(interfaceDir, "bInterfaceProtocol"));
+    }
+
+    private String readAttribute(File dir, String attribute) {
+        File attrFile = new File(dir, attribute);
+        if (!attrFile.isFile()) {
+            return null;
+        }
+        try {
+            return FileUtil.readStringFromFile(attrFile).trim();
+        } catch (IOException e) {
+            // device was most likely removed mid-scan
+            return null;
+        }
+    }
+
+    /**
+     * Start watching for USB device changes on a background thread.
+     *
+     * @param listener the {@link IUsbChangeListener} to notify of changes
+     * @return <code>true</code> if the watch was started, <code>false</code> if hotplug events
+     *         are not available on this host.
+     */
+    public synchronized boolean start(final IUsbChangeListener listener) {
+        if (mWatchThread != null) {
+            throw new IllegalStateException("already started");
+        }
+        if (!isWatchSupported()) {
+            return false;
+        }
+        try {
+            mWatchService = FileSystems.getDefault().newWatchService();
+            registerTree(mUsbfsRoot.toPath());
+        } catch (IOException e) {
+            CLog.w("Failed to watch %s for usb changes: %s", mUsbfsRoot, e.getMessage());
+            close();
+            return false;
+        }
+        final WatchService watchService = mWatchService;
+        mWatchThread = new Thread("FastbootUsbWatcher") {
+            @Override
+            public void run() {
+                watchLoop(watchService, listener);
+            }
+        };
+        mWatchThread.setDaemon(true);
+        mWatchThread.start();
+        return true;
+    }
+
+    /**
+     * Registers the usbfs root and each bus directory under it. Device nodes are created and
+     * removed inside the bus directories, and new bus directories inside the root.
+     */
+    private void registerTree(Path root) throws IOException {
+        register(root);
+        File[] busDirs = root.toFile().listFiles();
+        if (busDirs != null) {
+            for (File busDir : busDirs) {
+                if (busDir.isDirectory()) {
+                    register(busDir.toPath());
+                }
+            }
+        }
+    }
+
+    private void register(Path dir) throws IOException {
+        register(mWatchService, dir);
+    }
+
+    private void register(WatchService watchService, Path dir) throws IOException {
+        dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE);
+    }
+
+    private void watchLoop(WatchService watchService, IUsbChangeListener listener) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                Path dir = (Path)key.watchable();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE &&
+                            dir.equals(mUsbfsRoot.toPath())) {
+                        Path busDir = dir.resolve((Path)event.context());
+                        if (busDir.toFile().isDirectory()) {
+                            try {
+                                register(watchService, busDir);
+                            } catch (IOException e) {
+                                CLog.w("Failed to watch %s: %s", busDir, e.getMessage());
+                            }
+                        }
+                    }
+                }
+                key.reset();
+                listener.usbDevicesChanged();
+            }
+        } catch (InterruptedException e) {
+            // fall through to exit
+        } catch (ClosedWatchServiceException e) {
+            // fall through to exit
+        }
+    }
+
+    /**
+     * Stop watching for USB changes.
+     */
+    public synchronized void close() {
+        if (mWatchService != null) {
+            try {
+                mWatchService.close();
+            } catch (IOException e) {
+                CLog.w("Failed to close usb watch service: %s", e.getMessage());
+            }
+            mWatchService = null;
+        }
+        if (mWatchThread != null) {
+            mWatchThread.interrupt();
+            mWatchThread = null;
+        }
+    }
+}
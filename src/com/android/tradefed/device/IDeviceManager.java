@@ -67,6 +67,18 @@ public interface IDeviceManager {
      */
     public ITestDevice allocateDevice(IDeviceSelection options);
 
+    /**
+     * Request a group of devices for testing, one for each of the given criteria.
+     * <p/>
+     * Allocation is atomic: either a distinct device is allocated for every criteria, or no device
+     * is allocated at all.
+     *
+     * @param options the list of {@link IDeviceSelection} the devices should meet.
+     * @return the list of allocated {@link ITestDevice}s, in the same order as <var>options</var>,
+     *         or <code>null</code> if the group is not available
+     */
+    public List<ITestDevice> allocateDevices(List<IDeviceSelection> options);
+
     /**
      * Rudely allocate a device, even if its not currently available.
      * <p/>
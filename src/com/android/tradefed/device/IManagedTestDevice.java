@@ -97,4 +97,9 @@ interface IManagedTestDevice extends ITestDevice {
      * Return the {@link IDeviceStateMonitor} associated with device.
      */
     public IDeviceStateMonitor getMonitor();
+
+    /**
+     * Return the {@link DeviceHealth} tracking the recent operations performed on the device.
+     */
+    public DeviceHealth getHealth();
 }
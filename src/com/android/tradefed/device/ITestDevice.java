@@ -32,6 +32,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -331,6 +332,25 @@ public interface ITestDevice {
      */
     public String executeShellCommand(String command) throws DeviceNotAvailableException;
 
+    /**
+     * Executes a series of adb shell commands in as few shell sessions as possible.
+     * <p/>
+     * This is much faster than calling {@link #executeShellCommand(String)} for each command when
+     * there are many short commands to run. The commands run in order in the same shell session,
+     * so changes to the working directory or environment carry over from one command to the
+     * next. Very long lists of commands are split between several sessions.
+     * <p/>
+     * If communication with the device fails part way through, only the commands that did not
+     * complete are run again.
+     *
+     * @param commands the adb shell commands to run
+     * @return a {@link ShellCommandResult} for each command, in order
+     * @throws DeviceNotAvailableException if connection with device is lost and cannot be
+     * recovered.
+     */
+    public List<ShellCommandResult> executeShellCommands(List<String> commands)
+            throws DeviceNotAvailableException;
+
     /**
      * Helper method which executes a adb command as a system command.
      * <p/>
@@ -683,6 +703,20 @@ public interface ITestDevice {
      */
     public InputStreamSource getLogcat(int maxBytes);
 
+    /**
+     * Grabs the last <code>maxBytes</code> of logcat data captured up to now, copying it in the
+     * background.
+     * <p/>
+     * Only the current position in the captured logcat is recorded before this method returns,
+     * so the snapshot reflects the logcat at the time of the call, but the caller does not wait
+     * for the data to be copied.
+     *
+     * @param maxBytes the maximum amount of data to return. Should be an amount that can
+     *            comfortably fit in memory
+     * @return a {@link Future} for a {@link InputStreamSource} of the logcat data
+     */
+    public Future<InputStreamSource> getLogcatAsync(int maxBytes);
+
     /**
     * Get a dump of the current logcat for device. Unlike {@link #getLogcat()}, this method will
     * always return a static dump of the logcat.
@@ -703,6 +737,18 @@ public interface ITestDevice {
      */
     public InputStreamSource getScreenshot() throws DeviceNotAvailableException;
 
+    /**
+     * Grabs a screenshot from the device, and encodes it in the background.
+     * <p/>
+     * The raw frame is pulled from the device before this method returns, so the screenshot
+     * reflects the screen at the time of the call. Only the png encoding is deferred.
+     *
+     * @return a {@link Future} for a {@link InputStreamSource} of the screenshot in png format,
+     *         or <code>null</code> if the screenshot was not successful.
+     * @throws DeviceNotAvailableException
+     */
+    public Future<InputStreamSource> getScreenshotAsync() throws DeviceNotAvailableException;
+
     /**
      * Connects to a wifi network.
      * <p/>
@@ -101,10 +101,30 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
      * @return The collected output from the command, stored in memory
      */
     public synchronized InputStreamSource getData(final int maxBytes) {
+        if (mOutStream != null) {
+            return getData(maxBytes, mOutStream.getTotalBytesWritten());
+        }
+        // return an empty InputStreamSource
+        return new ByteArrayInputStreamSource(new byte[0]);
+    }
+
+    /**
+     * Gets the last <var>maxBytes</var> of output collected before a given offset, as a
+     * {@link InputStreamSource}.
+     * <p/>
+     * Used with {@link #getDataOffset()} to capture the output up to a point in time, after more
+     * output has been collected.
+     *
+     * @param maxBytes the maximum amount of data to return. Should be an amount that can
+     *            comfortably fit in memory
+     * @param endOffset the offset returned by {@link #getDataOffset()} to stop at
+     * @return The collected output from the command, stored in memory
+     */
+    public synchronized InputStreamSource getData(final int maxBytes, long endOffset) {
         if (mOutStream != null) {
             InputStream fullStream = null;
             try {
-                fullStream = mOutStream.getData();
+                fullStream = mOutStream.getData(endOffset, maxBytes);
                 final FixedByteArrayOutputStream os = new FixedByteArrayOutputStream(maxBytes);
                 StreamUtil.copyStreams(fullStream, os);
                 return new InputStreamSource() {
@@ -136,6 +156,19 @@ public class LargeOutputReceiver implements IShellOutputReceiver {
         return new ByteArrayInputStreamSource(new byte[0]);
     }
 
+    /**
+     * Gets the current offset of the collected output, to pass to
+     * {@link #getData(int, long)} later. This is cheap, and does not copy any data.
+     * <p/>
+     * Offsets are reset by {@link #clear()}.
+     */
+    public synchronized long getDataOffset() {
+        if (mOutStream != null) {
+            return mOutStream.getTotalBytesWritten();
+        }
+        return 0;
+    }
+
     /**
      * {@inheritDoc}
      */
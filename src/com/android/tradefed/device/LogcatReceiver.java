@@ -17,6 +17,12 @@ package com.android.tradefed.device;
 
 import com.android.tradefed.result.InputStreamSource;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
 /**
  * Class that collects logcat in background. Continues to capture logcat even if device goes
  * offline then online.
@@ -28,6 +34,9 @@ public class LogcatReceiver {
     static final String LOGCAT_CMD = "logcat -v threadtime";
     private static final String LOGCAT_DESC = "logcat";
 
+    /** copies logcat snapshots in the background */
+    private static ExecutorService sSnapshotExecutor = null;
+
     /**
      * Creates an instance with any specified logcat command
      * @param device the device to start logcat on
@@ -75,6 +84,34 @@ public class LogcatReceiver {
         return mReceiver.getData(maxBytes);
     }
 
+    /**
+     * Record the current position in the captured logcat, and copy the last <var>maxBytes</var>
+     * of data up to that position in the background.
+     */
+    public Future<InputStreamSource> getLogcatDataAsync(final int maxBytes) {
+        final long offset = mReceiver.getDataOffset();
+        return getSnapshotExecutor().submit(new Callable<InputStreamSource>() {
+            @Override
+            public InputStreamSource call() {
+                return mReceiver.getData(maxBytes, offset);
+            }
+        });
+    }
+
+    private static synchronized ExecutorService getSnapshotExecutor() {
+        if (sSnapshotExecutor == null) {
+            sSnapshotExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "LogcatSnapshot");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sSnapshotExecutor;
+    }
+
     public void clear() {
         mReceiver.clear();
     }
@@ -22,21 +22,27 @@ import com.android.tradefed.device.IManagedTestDevice.DeviceEventResponse;
 import com.android.tradefed.util.ConditionPriorityBlockingQueue.IMatcher;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.ConcurrentModificationException;
 import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import javax.annotation.concurrent.GuardedBy;
 
 /**
  * A thread-safe data structure that holds all devices known to {@link DeviceManager}.
  * <p/>
- * Iteration is also thread-safe, but not consistent. A copy of the list is made at iterator
- * creation time, and that copy is used as the iteration target. If queue is modified during
- * iteration, a {@link ConcurrentModificationException} will not be thrown, but the iterator
+ * Devices are indexed by serial, and lookups, allocation and iteration do not take a lock, so the
+ * many threads that query and allocate devices do not contend with each other. Only adding and
+ * removing devices is serialized.
+ * <p/>
+ * Iteration is also thread-safe, but not consistent. The iteration target is an immutable
+ * snapshot of the list, replaced whenever a device is added or removed. If the list is modified
+ * during iteration, a {@link ConcurrentModificationException} will not be thrown, but the iterator
  * will also not reflect the modified contents.
  */
 class ManagedDeviceList implements Iterable<IManagedTestDevice> {
@@ -45,7 +51,7 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
      * A {@link IMatcher} for finding a {@link IManagedTestDevice} that can be allocated.
      * Will change the device state to ALLOCATED upon finding a successful match.
      */
-    private static class AllocationMatcher implements IMatcher<IManagedTestDevice> {
+    private class AllocationMatcher implements IMatcher<IManagedTestDevice> {
         private IDeviceSelection mDeviceSelectionMatcher;
 
         AllocationMatcher(IDeviceSelection options) {
@@ -54,29 +60,55 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
 
         @Override
         public boolean matches(IManagedTestDevice element) {
-            if (mDeviceSelectionMatcher.matches(element.getIDevice())) {
-                DeviceEventResponse r = element.handleAllocationEvent(DeviceEvent.ALLOCATE_REQUEST);
-                return r.stateChanged && r.allocationState == DeviceAllocationState.Allocated;
+            if (isAllowed(element, mDeviceSelectionMatcher)
+                    && mDeviceSelectionMatcher.matches(element.getIDevice())) {
+                if (allocateDevice(element)) {
+                    claimIfWarm(element);
+                    return true;
+                }
             }
             return false;
         }
     }
 
-    private final ReentrantLock mListLock = new ReentrantLock(true);
-    @GuardedBy("mListLock")
-    private List<IManagedTestDevice> mList = new LinkedList<IManagedTestDevice>();
+    /** serializes changes to the set of devices */
+    private final Object mWriteLock = new Object();
+    private final Map<String, IManagedTestDevice> mDeviceMap =
+            new ConcurrentHashMap<String, IManagedTestDevice>();
+    private final Set<IManagedTestDevice> mDeviceSet =
+            Collections.newSetFromMap(new ConcurrentHashMap<IManagedTestDevice, Boolean>());
+    /**
+     * the devices in the order they were added. Never modified, but replaced as a whole while
+     * holding mWriteLock on each change.
+     */
+    private volatile List<IManagedTestDevice> mSnapshot = Collections.emptyList();
+    /**
+     * the devices in the order to try to allocate them. Allocated devices are moved to the back,
+     * to even out allocations among devices.
+     */
+    private final ConcurrentLinkedQueue<IManagedTestDevice> mAllocationOrder =
+            new ConcurrentLinkedQueue<IManagedTestDevice>();
     private final IManagedTestDeviceFactory mDeviceFactory;
+    private EmulatorPool mEmulatorPool = null;
 
     public ManagedDeviceList(IManagedTestDeviceFactory d) {
         mDeviceFactory = d;
     }
 
+    /**
+     * Set the {@link EmulatorPool} whose warm emulators may only be allocated to requests for a
+     * new emulator.
+     */
+    void setEmulatorPool(EmulatorPool pool) {
+        mEmulatorPool = pool;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public Iterator<IManagedTestDevice> iterator() {
-        return getCopy().iterator();
+        return mSnapshot.iterator();
     }
 
     /**
@@ -84,26 +116,14 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
      * @return
      */
     List<IManagedTestDevice> getCopy() {
-        mListLock.lock();
-        try {
-            List<IManagedTestDevice> l = new ArrayList<IManagedTestDevice>(size());
-            l.addAll(mList);
-            return l;
-        } finally {
-            mListLock.unlock();
-        }
+        return new ArrayList<IManagedTestDevice>(mSnapshot);
     }
 
     /**
      * Return the number of elements in the list
      */
     public int size() {
-        mListLock.lock();
-        try {
-            return mList.size();
-        } finally {
-            mListLock.unlock();
-        }
+        return mSnapshot.size();
     }
 
     /**
@@ -112,12 +132,7 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
      * @return the {@link IManagedTestDevice} or <code>null</code> if not found
      */
     public IManagedTestDevice find(final String serialNumber) {
-        return find(new IMatcher<IManagedTestDevice>() {
-            @Override
-            public boolean matches(IManagedTestDevice element) {
-                return serialNumber.equals(element.getSerialNumber());
-            }
-        });
+        return mDeviceMap.get(serialNumber);
     }
 
     private boolean isValidDeviceSerial(String serial) {
@@ -128,22 +143,24 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
      * Update the {@link TestDevice#getDeviceState()} of devices as appropriate.
      *
      * @param serials the devices currently on fastboot
+     * @return <code>true</code> if any device's fastboot state changed
      */
-    public void updateFastbootStates(Set<String> serials) {
-        mListLock.lock();
-        try {
-            for (IManagedTestDevice d : mList) {
-                if (serials.contains(d.getSerialNumber())) {
+    public boolean updateFastbootStates(Set<String> serials) {
+        boolean changed = false;
+        for (IManagedTestDevice d : mSnapshot) {
+            if (serials.contains(d.getSerialNumber())) {
+                if (d.getDeviceState() != TestDeviceState.FASTBOOT) {
                     d.setDeviceState(TestDeviceState.FASTBOOT);
-                } else if (d.getDeviceState() == TestDeviceState.FASTBOOT) {
-                    // device was previously on fastboot, assume its gone now
-                    d.setDeviceState(TestDeviceState.NOT_AVAILABLE);
-                    // TODO: change allocation state?
+                    changed = true;
                 }
+            } else if (d.getDeviceState() == TestDeviceState.FASTBOOT) {
+                // device was previously on fastboot, assume its gone now
+                d.setDeviceState(TestDeviceState.NOT_AVAILABLE);
+                changed = true;
+                // TODO: change allocation state?
             }
-        } finally {
-            mListLock.unlock();
         }
+        return changed;
     }
 
     /**
@@ -154,38 +171,128 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
     public IManagedTestDevice allocate(IDeviceSelection options) {
         AllocationMatcher m = new AllocationMatcher(options);
         // this method is a variant of find, that attempts to find a device matching options
-        // and that can be transitioned to allocated state.
-        // if found, the device will be moved to the back of the list to try to even out
-        // allocations among devices
-        mListLock.lock();
-        try {
-            Iterator<IManagedTestDevice> iterator = mList.iterator();
-            while (iterator.hasNext()) {
-                IManagedTestDevice d = iterator.next();
-                if (m.matches(d)) {
-                    iterator.remove();
-                    mList.add(d);
-                    return d;
-                }
+        // and that can be transitioned to allocated state. The allocation event is atomic per
+        // device, so concurrent callers can never allocate the same device.
+        for (IManagedTestDevice d : mAllocationOrder) {
+            if (m.matches(d)) {
+                moveToBack(d);
+                return d;
             }
-        } finally {
-            mListLock.unlock();
         }
         return null;
     }
 
-    private IManagedTestDevice find(IMatcher<IManagedTestDevice> m) {
-        mListLock.lock();
-        try {
-            for (IManagedTestDevice d : mList) {
-                if (m.matches(d)) {
-                    return d;
+    /**
+     * Check whether a device may be allocated for the given options, regardless of whether it
+     * matches them. Warm emulators are only given to requests that launch a new emulator, since
+     * they still hold the state of their last test until they are launched again.
+     */
+    private boolean isAllowed(IManagedTestDevice d, IDeviceSelection options) {
+        return mEmulatorPool == null || options.stubEmulatorRequested()
+                || !mEmulatorPool.isWarm(d.getSerialNumber());
+    }
+
+    /**
+     * Transition a device to allocated.
+     *
+     * @return <code>true</code> if the device was allocated
+     */
+    private static boolean allocateDevice(IManagedTestDevice d) {
+        DeviceEventResponse r = d.handleAllocationEvent(DeviceEvent.ALLOCATE_REQUEST);
+        return r.stateChanged && r.allocationState == DeviceAllocationState.Allocated;
+    }
+
+    /**
+     * Claim an allocated device if it is a warm emulator, so it is reset before it is used.
+     */
+    private void claimIfWarm(IManagedTestDevice d) {
+        if (mEmulatorPool != null) {
+            mEmulatorPool.claim(d.getSerialNumber());
+        }
+    }
+
+    /**
+     * Move an allocated device to the back of the allocation order, unless it has been removed
+     * meanwhile.
+     */
+    private void moveToBack(IManagedTestDevice d) {
+        if (mAllocationOrder.remove(d)) {
+            mAllocationOrder.offer(d);
+            // removal takes the device out of the set before the queue, so if it is still in the
+            // set here, a concurrent removal will find it back in the queue
+            if (!mDeviceSet.contains(d)) {
+                mAllocationOrder.remove(d);
+            }
+        }
+    }
+
+    /**
+     * Attempt to atomically allocate a group of distinct devices from the list, one for each of
+     * the given options.
+     *
+     * @param optionsList the {@link IDeviceSelection} for each device in the group
+     * @return the allocated devices, in the same order as <var>optionsList</var>, or
+     *         <code>null</code> if the whole group could not be allocated
+     */
+    public List<IManagedTestDevice> allocateGroup(List<IDeviceSelection> optionsList) {
+        List<IManagedTestDevice> candidates = new ArrayList<IManagedTestDevice>();
+        for (IManagedTestDevice d : mAllocationOrder) {
+            if (DeviceAllocationState.Available.equals(d.getAllocationState())) {
+                candidates.add(d);
+            }
+        }
+        // evaluate each selection once, since matching may query the device
+        boolean[][] matches = new boolean[optionsList.size()][candidates.size()];
+        for (int i = 0; i < optionsList.size(); i++) {
+            for (int j = 0; j < candidates.size(); j++) {
+                matches[i][j] = isAllowed(candidates.get(j), optionsList.get(i))
+                        && optionsList.get(i).matches(candidates.get(j).getIDevice());
+            }
+        }
+        int[] assignment = new int[optionsList.size()];
+        if (!assignGroup(matches, 0, assignment, new boolean[candidates.size()])) {
+            return null;
+        }
+        List<IManagedTestDevice> group = new ArrayList<IManagedTestDevice>(assignment.length);
+        for (int index : assignment) {
+            IManagedTestDevice d = candidates.get(index);
+            if (!allocateDevice(d)) {
+                // device changed state since the candidates were found, give up on the group
+                for (IManagedTestDevice allocated : group) {
+                    allocated.handleAllocationEvent(DeviceEvent.FREE_AVAILABLE);
                 }
+                return null;
             }
-        } finally {
-            mListLock.unlock();
+            group.add(d);
         }
-        return null;
+        // move allocated devices to the back of the list, as allocate does
+        for (IManagedTestDevice d : group) {
+            claimIfWarm(d);
+            moveToBack(d);
+        }
+        return group;
+    }
+
+    /**
+     * Find a distinct candidate for each selection, starting from <var>selection</var>, by
+     * backtracking. Groups are small, so this is cheap in practice.
+     */
+    private static boolean assignGroup(boolean[][] matches, int selection, int[] assignment,
+            boolean[] used) {
+        if (selection == matches.length) {
+            return true;
+        }
+        for (int candidate = 0; candidate < used.length; candidate++) {
+            if (!used[candidate] && matches[selection][candidate]) {
+                used[candidate] = true;
+                assignment[selection] = candidate;
+                if (assignGroup(matches, selection + 1, assignment, used)) {
+                    return true;
+                }
+                used[candidate] = false;
+            }
+        }
+        return false;
     }
 
     /**
@@ -193,13 +300,13 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
      * <p/>
      * Exposed for unit testing
      */
-     void clear() {
-         mListLock.lock();
-         try {
-             mList.clear();
-         } finally {
-             mListLock.unlock();
-         }
+    void clear() {
+        synchronized (mWriteLock) {
+            mDeviceMap.clear();
+            mDeviceSet.clear();
+            mAllocationOrder.clear();
+            mSnapshot = Collections.emptyList();
+        }
     }
 
     /**
@@ -210,19 +317,21 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
      * @return the {@link IManagedTestDevice}.
      */
     public IManagedTestDevice findOrCreate(IDevice idevice) {
-        if (!isValidDeviceSerial(idevice.getSerialNumber())) {
+        String serial = idevice.getSerialNumber();
+        if (!isValidDeviceSerial(serial)) {
             return null;
         }
-        mListLock.lock();
-        try {
-            IManagedTestDevice d = find(idevice.getSerialNumber());
+        IManagedTestDevice d = find(serial);
+        if (d != null) {
+            return d;
+        }
+        synchronized (mWriteLock) {
+            d = find(serial);
             if (d == null) {
                 d = mDeviceFactory.createDevice(idevice);
-                mList.add(d);
+                addLocked(serial, d);
             }
             return d;
-        } finally {
-            mListLock.unlock();
         }
     }
 
@@ -231,14 +340,22 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
      * @param device
      */
     void add(IManagedTestDevice device) {
-        mListLock.lock();
-        try {
-            mList.add(device);
-        } finally {
-            mListLock.unlock();
+        synchronized (mWriteLock) {
+            addLocked(device.getSerialNumber(), device);
         }
     }
 
+    @GuardedBy("mWriteLock")
+    private void addLocked(String serial, IManagedTestDevice device) {
+        List<IManagedTestDevice> snapshot = new ArrayList<IManagedTestDevice>(mSnapshot.size() + 1);
+        snapshot.addAll(mSnapshot);
+        snapshot.add(device);
+        mSnapshot = Collections.unmodifiableList(snapshot);
+        mDeviceMap.put(serial, device);
+        mDeviceSet.add(device);
+        mAllocationOrder.offer(device);
+    }
+
     /**
      * Handle a device event for given device. Will remove device from list if state transitions
      * to unknown.
@@ -256,11 +373,15 @@ class ManagedDeviceList implements Iterable<IManagedTestDevice> {
     }
 
     private void remove(IManagedTestDevice d) {
-        mListLock.lock();
-        try {
-            mList.remove(d);
-        } finally {
-            mListLock.unlock();
+        synchronized (mWriteLock) {
+            if (!mDeviceSet.remove(d)) {
+                return;
+            }
+            List<IManagedTestDevice> snapshot = new ArrayList<IManagedTestDevice>(mSnapshot);
+            snapshot.remove(d);
+            mSnapshot = Collections.unmodifiableList(snapshot);
+            mDeviceMap.values().remove(d);
+            mAllocationOrder.remove(d);
         }
     }
 }
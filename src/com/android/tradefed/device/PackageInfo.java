@@ -71,6 +71,23 @@ public class PackageInfo {
         return mAttributes.get("versionName");
     }
 
+    /**
+     * Returns the version code of the application.
+     * Note: this will return <code>null</code> if 'versionCode' attribute was not found.
+     */
+    public String getVersionCode() {
+        return mAttributes.get("versionCode");
+    }
+
+    /**
+     * Returns the time the application was last installed or updated, as reported by the device.
+     * Note: this will return <code>null</code> if 'lastUpdateTime' attribute was not found, such
+     * as on older devices.
+     */
+    public String getLastUpdateTime() {
+        return mAttributes.get("lastUpdateTime");
+    }
+
     void setIsUpdatedSystemApp(boolean isUpdatedSystemApp) {
         mIsUpdatedSystemApp = isUpdatedSystemApp;
     }
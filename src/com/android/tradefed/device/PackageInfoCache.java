@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A cache of the {@link PackageInfo}s of the packages installed on a device.
+ * <p/>
+ * The cache is either complete, meaning it was populated from a full 'dumpsys package p' and holds
+ * every installed package, or partial, meaning it only holds packages that were looked up one at
+ * a time. Only a complete cache can answer that a package is not installed.
+ */
+class PackageInfoCache {
+
+    private final Map<String, PackageInfo> mPackages = new HashMap<String, PackageInfo>();
+    private boolean mIsComplete = false;
+    private long mHitCount = 0;
+    private long mMissCount = 0;
+
+    /**
+     * Replace the contents of the cache with all the packages installed on the device.
+     */
+    synchronized void setAll(Map<String, PackageInfo> packages) {
+        mPackages.clear();
+        mPackages.putAll(packages);
+        mIsComplete = true;
+    }
+
+    /**
+     * Get all the packages installed on the device.
+     *
+     * @return the cached {@link PackageInfo}s, or <code>null</code> if the cache is not complete
+     */
+    synchronized Collection<PackageInfo> getAll() {
+        if (!mIsComplete) {
+            mMissCount++;
+            return null;
+        }
+        mHitCount++;
+        return new ArrayList<PackageInfo>(mPackages.values());
+    }
+
+    /**
+     * Check whether the cache knows the state of a package.
+     *
+     * @return <code>true</code> if {@link #get(String)} can answer for the package
+     */
+    synchronized boolean contains(String packageName) {
+        boolean contains = mIsComplete || mPackages.containsKey(packageName);
+        if (contains) {
+            mHitCount++;
+        } else {
+            mMissCount++;
+        }
+        return contains;
+    }
+
+    /**
+     * Get a cached package.
+     *
+     * @return the {@link PackageInfo}, or <code>null</code> if the package is not cached
+     */
+    synchronized PackageInfo get(String packageName) {
+        return mPackages.get(packageName);
+    }
+
+    /**
+     * Add the result of looking up a single package.
+     */
+    synchronized void put(PackageInfo pkgInfo) {
+        mPackages.put(pkgInfo.getPackageName(), pkgInfo);
+    }
+
+    /**
+     * Record that a package was successfully uninstalled.
+     * <p/>
+     * Uninstalling an updated system app reverts it to its system version rather than removing
+     * it, so in that case the package is only invalidated.
+     */
+    synchronized void remove(String packageName) {
+        PackageInfo pkgInfo = mPackages.remove(packageName);
+        if (pkgInfo != null && pkgInfo.isUpdatedSystemApp()) {
+            mIsComplete = false;
+        }
+    }
+
+    /**
+     * Forget what is known about a single package.
+     */
+    synchronized void invalidate(String packageName) {
+        mPackages.remove(packageName);
+        mIsComplete = false;
+    }
+
+    /**
+     * Forget all cached packages.
+     */
+    synchronized void invalidateAll() {
+        if (mIsComplete || !mPackages.isEmpty()) {
+            CLog.d("Invalidating package info cache, %d hits and %d misses so far", mHitCount,
+                    mMissCount);
+        }
+        mPackages.clear();
+        mIsComplete = false;
+    }
+
+    /**
+     * @return the number of lookups the cache could answer
+     */
+    synchronized long getHitCount() {
+        return mHitCount;
+    }
+
+    /**
+     * @return the number of lookups that had to query the device
+     */
+    synchronized long getMissCount() {
+        return mMissCount;
+    }
+}
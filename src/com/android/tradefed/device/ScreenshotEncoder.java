@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.device;
+
+import com.android.ddmlib.RawImage;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Encodes raw device screenshots as PNG images.
+ * <p/>
+ * Frames are written directly as 8-bit RGB scanlines, rather than going through a
+ * {@link java.awt.image.BufferedImage}, and compressed with a configurable deflate level. The
+ * default favors encoding speed over image size. Encoding can also be done on a shared, bounded
+ * background pool so the capturing thread can move on as soon as the raw frame is pulled.
+ */
+public class ScreenshotEncoder {
+
+    /** default deflate level used for screenshots */
+    public static final int DEFAULT_COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+    private static final byte[] PNG_SIGNATURE = new byte[] {
+            (byte)0x89, 'P', 'N', 'G', '\r', '\n', 0x1a, '\n'};
+    private static final int PNG_BIT_DEPTH = 8;
+    private static final int PNG_COLOR_TYPE_RGB = 2;
+    private static final int PNG_FILTER_SUB = 1;
+
+    /** max number of frames waiting to be encoded before callers encode inline */
+    private static final int MAX_PENDING_FRAMES = 16;
+
+    private static ThreadPoolExecutor sEncoderPool = null;
+
+    /**
+     * Encode a raw screenshot as a PNG.
+     *
+     * @param rawImage the {@link RawImage} pulled from the device
+     * @param compressionLevel the deflate level, from {@link Deflater#NO_COMPRESSION} to
+     *            {@link Deflater#BEST_COMPRESSION}
+     * @return the PNG data
+     */
+    public static byte[] encodeAsPng(RawImage rawImage, int compressionLevel) {
+        int width = rawImage.width;
+        int height = rawImage.height;
+        // use initial buffer size of 128K
+        ByteArrayOutputStream pngOut = new ByteArrayOutputStream(128 * 1024);
+        try {
+            DataOutputStream pngData = new DataOutputStream(pngOut);
+            pngData.write(PNG_SIGNATURE);
+
+            ByteArrayOutputStream headerOut = new ByteArrayOutputStream(13);
+            DataOutputStream header = new DataOutputStream(headerOut);
+            header.writeInt(width);
+            header.writeInt(height);
+            header.writeByte(PNG_BIT_DEPTH);
+            header.writeByte(PNG_COLOR_TYPE_RGB);
+            // compression method, filter method, interlace method
+            header.writeByte(0);
+            header.writeByte(0);
+            header.writeByte(0);
+            writeChunk(pngData, "IHDR", headerOut.toByteArray());
+
+            ByteArrayOutputStream imageOut = new ByteArrayOutputStream(128 * 1024);
+            Deflater deflater = new Deflater(compressionLevel);
+            try {
+                DeflaterOutputStream deflaterOut = new DeflaterOutputStream(imageOut, deflater,
+                        64 * 1024);
+                // each scanline is prefixed with its filter type. The 'sub' filter stores each
+                // byte as the difference from the pixel to its left, which makes the flat
+                // regions common in UI screenshots very cheap to compress
+                byte[] scanline = new byte[1 + width * 3];
+                scanline[0] = PNG_FILTER_SUB;
+                int index = 0;
+                int indexInc = rawImage.bpp >> 3;
+                for (int y = 0; y < height; y++) {
+                    int prevRed = 0;
+                    int prevGreen = 0;
+                    int prevBlue = 0;
+                    int pos = 1;
+                    for (int x = 0; x < width; x++) {
+                        int value = rawImage.getARGB(index);
+                        index += indexInc;
+                        int red = (value >> 16) & 0xff;
+                        int green = (value >> 8) & 0xff;
+                        int blue = value & 0xff;
+                        scanline[pos++] = (byte)(red - prevRed);
+                        scanline[pos++] = (byte)(green - prevGreen);
+                        scanline[pos++] = (byte)(blue - prevBlue);
+                        prevRed = red;
+                        prevGreen = green;
+                        prevBlue = blue;
+                    }
+                    deflaterOut.write(scanline);
+                }
+                deflaterOut.finish();
+            } finally {
+                deflater.end();
+            }
+            writeChunk(pngData, "IDAT", imageOut.toByteArray());
+            writeChunk(pngData, "IEND", new byte[0]);
+            pngData.flush();
+        } catch (IOException e) {
+            // should never happen when writing to memory
+            throw new IllegalStateException(e);
+        }
+        return pngOut.toByteArray();
+    }
+
+    /**
+     * Encode a raw screenshot as a PNG on the shared background pool.
+     * <p/>
+     * If too many frames are already waiting to be encoded, the frame is encoded on the calling
+     * thread instead, so memory held by pending raw frames stays bounded.
+     *
+     * @param rawImage the {@link RawImage} pulled from the device
+     * @param compressionLevel the deflate level
+     * @return a {@link Future} for the PNG data
+     */
+    public static Future<byte[]> encodeAsPngAsync(final RawImage rawImage,
+            final int compressionLevel) {
+        return getEncoderPool().submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() {
+                return encodeAsPng(rawImage, compressionLevel);
+            }
+        });
+    }
+
+    private static synchronized ThreadPoolExecutor getEncoderPool() {
+        if (sEncoderPool == null) {
+            int threads = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            sEncoderPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<Runnable>(MAX_PENDING_FRAMES),
+                    new ThreadFactory() {
+                        private final AtomicInteger mCount = new AtomicInteger(0);
+
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread thread = new Thread(r,
+                                    "ScreenshotEncoder-" + mCount.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    },
+                    new ThreadPoolExecutor.CallerRunsPolicy());
+            sEncoderPool.allowCoreThreadTimeOut(true);
+        }
+        return sEncoderPool;
+    }
+
+    private static void writeChunk(DataOutputStream out, String type, byte[] data)
+            throws IOException {
+        byte[] typeBytes = type.getBytes("US-ASCII");
+        CRC32 crc = new CRC32();
+        crc.update(typeBytes);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(typeBytes);
+        out.write(data);
+        out.writeInt((int)crc.getValue());
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Runs a list of shell commands in as few shell sessions as possible.
+ * <p/>
+ * Commands are joined into scripts, each command followed by an echo of a marker line holding the
+ * command's index and exit code, so the output of the script can be split back into the output
+ * of each command. If a session is lost part way through a script, the commands whose marker was
+ * seen are complete, and the next script starts from the first command that is not.
+ */
+class ShellCommandBatch {
+
+    /** the maximum length of a single script, so it fits in one adb shell request */
+    static final int MAX_SCRIPT_LENGTH = 3000;
+
+    private static final Random sRandom = new Random();
+
+    private final List<String> mCommands;
+    private final String mMarker;
+    private final List<ShellCommandResult> mResults = new ArrayList<ShellCommandResult>();
+    /** the index after the last command in the current script */
+    private int mScriptEnd = 0;
+
+    /**
+     * @param commands the shell commands to run, in order
+     */
+    ShellCommandBatch(List<String> commands) {
+        this(commands, String.format("TF_BATCH_%08x", sRandom.nextInt()));
+    }
+
+    /**
+     * Exposed for unit testing.
+     */
+    ShellCommandBatch(List<String> commands, String marker) {
+        mCommands = new ArrayList<String>(commands);
+        mMarker = marker;
+    }
+
+    /**
+     * @return <code>true</code> if there is a result for every command
+     */
+    boolean isComplete() {
+        return mResults.size() >= mCommands.size();
+    }
+
+    /**
+     * @return the number of commands in the batch
+     */
+    int size() {
+        return mCommands.size();
+    }
+
+    /**
+     * @return the results of the commands run so far, in order
+     */
+    List<ShellCommandResult> getResults() {
+        return mResults;
+    }
+
+    /**
+     * Build the script for the next commands that do not have a result yet. At least one command
+     * is included, however long it is.
+     */
+    String getNextScript() {
+        StringBuilder script = new StringBuilder();
+        int i = mResults.size();
+        while (i < mCommands.size()) {
+            String commandScript = getCommandScript(i);
+            if (script.length() > 0
+                    && script.length() + commandScript.length() > MAX_SCRIPT_LENGTH) {
+                break;
+            }
+            script.append(commandScript);
+            i++;
+        }
+        mScriptEnd = i;
+        return script.toString();
+    }
+
+    /**
+     * Command and marker are separated by new lines rather than ';', so a command that ends with
+     * '&' or a comment still works. The marker is echoed on a line of its own, even if the
+     * command's output does not end with a new line.
+     */
+    private String getCommandScript(int index) {
+        return String.format("%s\necho \"\n%s %d $?\"\n", mCommands.get(index), mMarker, index);
+    }
+
+    /**
+     * Record the results of the commands in the current script from its output.
+     *
+     * @param output the output of the script, which may be partial
+     * @param sessionEnded <code>true</code> if the shell session ended normally. If so, a command
+     *            that did not echo its marker ended the session, and its result is recorded with
+     *            no exit code. Otherwise the session was lost, and such a command is left to be
+     *            run again.
+     */
+    void parseOutput(String output, boolean sessionEnded) {
+        int pos = 0;
+        while (mResults.size() < mScriptEnd) {
+            int index = mResults.size();
+            String markerPrefix = String.format("%s %d ", mMarker, index);
+            int markerPos = findMarker(output, markerPrefix, pos);
+            if (markerPos < 0) {
+                if (sessionEnded) {
+                    mResults.add(new ShellCommandResult(mCommands.get(index),
+                            output.substring(pos), null));
+                }
+                return;
+            }
+            int lineEnd = output.indexOf('\n', markerPos);
+            if (lineEnd < 0) {
+                // the marker line is incomplete
+                if (sessionEnded) {
+                    mResults.add(new ShellCommandResult(mCommands.get(index),
+                            output.substring(pos), null));
+                }
+                return;
+            }
+            Integer exitCode = parseExitCode(output.substring(markerPos + markerPrefix.length(),
+                    lineEnd).trim());
+            mResults.add(new ShellCommandResult(mCommands.get(index),
+                    stripTrailingNewLine(output.substring(pos, markerPos)), exitCode));
+            pos = lineEnd + 1;
+        }
+    }
+
+    /**
+     * Find a marker at the start of a line.
+     */
+    private int findMarker(String output, String markerPrefix, int fromPos) {
+        int markerPos = output.indexOf(markerPrefix, fromPos);
+        while (markerPos > 0 && output.charAt(markerPos - 1) != '\n') {
+            markerPos = output.indexOf(markerPrefix, markerPos + 1);
+        }
+        return markerPos;
+    }
+
+    /**
+     * Strip the new line echoed before the marker.
+     */
+    private String stripTrailingNewLine(String output) {
+        if (output.endsWith("\r\n")) {
+            return output.substring(0, output.length() - 2);
+        } else if (output.endsWith("\n")) {
+            return output.substring(0, output.length() - 1);
+        }
+        return output;
+    }
+
+    private Integer parseExitCode(String exitCode) {
+        try {
+            return Integer.valueOf(exitCode);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+/**
+ * The result of one command run by {@link ITestDevice#executeShellCommands(java.util.List)}.
+ */
+public class ShellCommandResult {
+
+    private final String mCommand;
+    private final String mOutput;
+    private final Integer mExitCode;
+
+    /**
+     * @param command the shell command
+     * @param output the output of the command
+     * @param exitCode the exit code of the command, or <code>null</code> if the command did not
+     *            run to completion
+     */
+    public ShellCommandResult(String command, String output, Integer exitCode) {
+        mCommand = command;
+        mOutput = output;
+        mExitCode = exitCode;
+    }
+
+    /**
+     * @return the shell command
+     */
+    public String getCommand() {
+        return mCommand;
+    }
+
+    /**
+     * @return the output of the command, combining stdout and stderr
+     */
+    public String getOutput() {
+        return mOutput;
+    }
+
+    /**
+     * @return the exit code of the command, or <code>null</code> if the command did not run to
+     *         completion, for example because it ended the shell session
+     */
+    public Integer getExitCode() {
+        return mExitCode;
+    }
+
+    /**
+     * @return <code>true</code> if the command ran to completion with an exit code of 0
+     */
+    public boolean isSuccess() {
+        return mExitCode != null && mExitCode.intValue() == 0;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return String.format("%s: exit code %s", mCommand, mExitCode);
+    }
+}
@@ -42,10 +42,8 @@ import com.android.tradefed.util.CommandStatus;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
-import com.android.tradefed.util.StreamUtil;
+import com.google.common.util.concurrent.Futures;
 
-import java.awt.image.BufferedImage;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.io.IOException;
@@ -60,13 +58,13 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import javax.annotation.concurrent.GuardedBy;
-import javax.imageio.ImageIO;
 
 /**
  * Default implementation of a {@link ITestDevice}
@@ -80,6 +78,9 @@ class TestDevice implements IManagedTestDevice {
     private static final String TEST_INPUT_CMD = "dumpsys input";
     static final String LIST_PACKAGES_CMD = "pm list packages -f";
     private static final Pattern PACKAGE_REGEX = Pattern.compile("package:(.*)=(.*)");
+    /** regex for shell commands that change the packages installed on the device */
+    private static final Pattern PM_CHANGE_PACKAGES_REGEX = Pattern.compile(
+            "\\bpm\\s+(install|uninstall|enable|disable|hide|unhide|block|unblock)\\b");
     /** regex to match input dispatch readiness line **/
     static final Pattern INPUT_DISPATCH_STATE_REGEX =
             Pattern.compile("DispatchEnabled:\\s?([01])");
@@ -135,6 +136,8 @@ class TestDevice implements IManagedTestDevice {
     private final ReentrantLock mFastbootLock = new ReentrantLock();
     private LogcatReceiver mLogcatReceiver;
     private IFileEntry mRootFile = null;
+    private final PackageInfoCache mPackageInfoCache = new PackageInfoCache();
+    private final DeviceHealth mHealth = new DeviceHealth();
     private boolean mFastbootEnabled = true;
 
     private TestDeviceOptions mOptions = new TestDeviceOptions();
@@ -351,7 +354,7 @@ class TestDevice implements IManagedTestDevice {
             }
 
         };
-        performDeviceAction("getprop", propAction, MAX_RETRY_ATTEMPTS);
+        performDeviceAction("getprop", propAction, MAX_RETRY_ATTEMPTS, true);
         return result[0];
     }
 
@@ -500,16 +503,18 @@ class TestDevice implements IManagedTestDevice {
     @Override
     public void executeShellCommand(final String command, final IShellOutputReceiver receiver)
             throws DeviceNotAvailableException {
+        invalidatePackageInfoIfChanged(command);
         DeviceAction action = new DeviceAction() {
             @Override
             public boolean run() throws TimeoutException, IOException,
                     AdbCommandRejectedException, ShellCommandUnresponsiveException {
                 getIDevice().executeShellCommand(command, receiver,
-                        mCmdTimeout, TimeUnit.MILLISECONDS);
+                        getShellTimeout(), TimeUnit.MILLISECONDS);
                 return true;
             }
         };
-        performDeviceAction(String.format("shell %s", command), action, MAX_RETRY_ATTEMPTS);
+        performDeviceAction(String.format("shell %s", command), action, MAX_RETRY_ATTEMPTS,
+                true);
     }
 
     /**
@@ -531,6 +536,7 @@ class TestDevice implements IManagedTestDevice {
     public void executeShellCommand(final String command, final IShellOutputReceiver receiver,
             final long maxTimeToOutputShellResponse, final TimeUnit timeUnit,
             final int retryAttempts) throws DeviceNotAvailableException {
+        invalidatePackageInfoIfChanged(command);
         DeviceAction action = new DeviceAction() {
             @Override
             public boolean run() throws TimeoutException, IOException, AdbCommandRejectedException,
@@ -555,6 +561,44 @@ class TestDevice implements IManagedTestDevice {
         return output;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<ShellCommandResult> executeShellCommands(List<String> commands)
+            throws DeviceNotAvailableException {
+        for (String command : commands) {
+            invalidatePackageInfoIfChanged(command);
+        }
+        final ShellCommandBatch batch = new ShellCommandBatch(commands);
+        DeviceAction action = new DeviceAction() {
+            @Override
+            public boolean run() throws TimeoutException, IOException,
+                    AdbCommandRejectedException, ShellCommandUnresponsiveException {
+                String script = batch.getNextScript();
+                CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+                boolean sessionEnded = false;
+                try {
+                    getIDevice().executeShellCommand(script, receiver, getShellTimeout(),
+                            TimeUnit.MILLISECONDS);
+                    sessionEnded = true;
+                } finally {
+                    // keep the results of the commands that completed, even if the session
+                    // was lost, so they are not run again
+                    batch.parseOutput(receiver.getOutput(), sessionEnded);
+                }
+                return true;
+            }
+        };
+        while (!batch.isComplete()) {
+            performDeviceAction(String.format("shell batch of %d commands", batch.size()),
+                    action, MAX_RETRY_ATTEMPTS, true);
+        }
+        CLog.v("batch of %d commands on %s returned %s", batch.size(), getSerialNumber(),
+                batch.getResults());
+        return batch.getResults();
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -563,6 +607,8 @@ class TestDevice implements IManagedTestDevice {
             final Collection<ITestRunListener> listeners) throws DeviceNotAvailableException {
         RunFailureListener failureListener = new RunFailureListener();
         listeners.add(failureListener);
+        // tests may install or remove packages themselves
+        mPackageInfoCache.invalidateAll();
         DeviceAction runTestsAction = new DeviceAction() {
             @Override
             public boolean run() throws IOException, TimeoutException, AdbCommandRejectedException,
@@ -614,6 +660,8 @@ class TestDevice implements IManagedTestDevice {
     @Override
     public String installPackage(final File packageFile, final boolean reinstall,
             final String... extraArgs) throws DeviceNotAvailableException {
+        // the package name is not known without parsing the apk, so forget all packages
+        mPackageInfoCache.invalidateAll();
         // use array to store response, so it can be returned to caller
         final String[] response = new String[1];
         DeviceAction installAction = new DeviceAction() {
@@ -635,6 +683,7 @@ class TestDevice implements IManagedTestDevice {
      */
     public String installPackage(final File packageFile, final File certFile,
             final boolean reinstall, final String... extraArgs) throws DeviceNotAvailableException {
+        mPackageInfoCache.invalidateAll();
         // use array to store response, so it can be returned to caller
         final String[] response = new String[1];
         DeviceAction installAction = new DeviceAction() {
@@ -683,8 +732,18 @@ class TestDevice implements IManagedTestDevice {
                 return result == null;
             }
         };
-        performDeviceAction(String.format("uninstall %s", packageName), uninstallAction,
-                MAX_RETRY_ATTEMPTS);
+        boolean uninstalled = false;
+        try {
+            performDeviceAction(String.format("uninstall %s", packageName), uninstallAction,
+                    MAX_RETRY_ATTEMPTS);
+            uninstalled = response[0] == null;
+        } finally {
+            if (uninstalled) {
+                mPackageInfoCache.remove(packageName);
+            } else {
+                mPackageInfoCache.invalidate(packageName);
+            }
+        }
         return response[0];
     }
 
@@ -1025,29 +1084,8 @@ class TestDevice implements IManagedTestDevice {
     @Override
     public boolean pushDir(File localFileDir, String deviceFilePath)
             throws DeviceNotAvailableException {
-        if (!localFileDir.isDirectory()) {
-            CLog.e("file %s is not a directory", localFileDir.getAbsolutePath());
-            return false;
-        }
-        File[] childFiles = localFileDir.listFiles();
-        if (childFiles == null) {
-            CLog.e("Could not read files in %s", localFileDir.getAbsolutePath());
-            return false;
-        }
-        for (File childFile : childFiles) {
-            String remotePath = String.format("%s/%s", deviceFilePath, childFile.getName());
-            if (childFile.isDirectory()) {
-                executeShellCommand(String.format("mkdir %s", remotePath));
-                if (!pushDir(childFile, remotePath)) {
-                    return false;
-                }
-            } else if (childFile.isFile()) {
-                if (!pushFile(childFile, remotePath)) {
-                    return false;
-                }
-            }
-        }
-        return true;
+        return new BulkFilePusher(this, mOptions.getPushDirThreads()).pushDir(localFileDir,
+                interpolatePathVariables(deviceFilePath));
     }
 
     /**
@@ -1221,6 +1259,12 @@ class TestDevice implements IManagedTestDevice {
      */
     @Override
     public String executeAdbCommand(String... cmdArgs) throws DeviceNotAvailableException {
+        if (cmdArgs[0].startsWith("install") || cmdArgs[0].equals("uninstall")
+                || cmdArgs[0].equals("emu")) {
+            mPackageInfoCache.invalidateAll();
+        } else if (cmdArgs[0].equals("shell")) {
+            invalidatePackageInfoIfChanged(ArrayUtil.join(" ", (Object[])cmdArgs));
+        }
         final String[] fullCmd = buildAdbCommand(cmdArgs);
         AdbAction adbAction = new AdbAction(fullCmd);
         performDeviceAction(String.format("adb %s", cmdArgs[0]), adbAction, MAX_RETRY_ATTEMPTS);
@@ -1256,6 +1300,8 @@ class TestDevice implements IManagedTestDevice {
                     "Attempted to fastboot on device %s , but fastboot is not available. Aborting.",
                     getSerialNumber()));
         }
+        // fastboot commands may flash or wipe the device
+        mPackageInfoCache.invalidateAll();
         final String[] fullCmd = buildFastbootCommand(cmdArgs);
         for (int i = 0; i < MAX_RETRY_ATTEMPTS; i++) {
             CommandResult result = new CommandResult(CommandStatus.EXCEPTION);
@@ -1337,6 +1383,17 @@ class TestDevice implements IManagedTestDevice {
         return mCmdTimeout;
     }
 
+    /**
+     * Get the time in ms a shell command may go without output, extended for a device that has
+     * been slow to respond if adaptive retry is on.
+     */
+    long getShellTimeout() {
+        if (mOptions.isAdaptiveRetry()) {
+            return mHealth.getCommandTimeout(mCmdTimeout);
+        }
+        return mCmdTimeout;
+    }
+
     /**
      * Set the max time allowed in ms for commands.
      */
@@ -1391,10 +1448,46 @@ class TestDevice implements IManagedTestDevice {
      */
     private boolean performDeviceAction(String actionDescription, final DeviceAction action,
             int retryAttempts) throws DeviceNotAvailableException {
+        return performDeviceAction(actionDescription, action, retryAttempts, false);
+    }
+
+    /**
+     * Performs an action on this device. Attempts to recover device and optionally retry command
+     * if action fails.
+     *
+     * @param actionDescription a short description of action to be performed. Used for logging
+     *            purposes only.
+     * @param action the action to be performed
+     * @param retryAttempts the retry attempts to make for action if it fails but
+     *            recovery succeeds
+     * @param recordLatency <code>true</code> if the action is a short one whose duration should
+     *            count towards the device's latency, which shell command timeouts are based on.
+     *            Long running actions such as installs or test runs must pass <code>false</code>.
+     * @returns <code>true</code> if action was performed successfully
+     * @throws DeviceNotAvailableException if recovery attempt fails or max attempts done without
+     *             success
+     */
+    private boolean performDeviceAction(String actionDescription, final DeviceAction action,
+            int retryAttempts, boolean recordLatency) throws DeviceNotAvailableException {
+        int attempts = retryAttempts;
+        if (mOptions.isAdaptiveRetry()) {
+            attempts = mHealth.getRetryAttempts(retryAttempts);
+            if (attempts < retryAttempts) {
+                CLog.d("Making %d retries instead of %d for %s on %s, health is %s", attempts,
+                        retryAttempts, actionDescription, getSerialNumber(), mHealth);
+            }
+        }
 
-        for (int i = 0; i < retryAttempts + 1; i++) {
+        for (int i = 0; i < attempts + 1; i++) {
+            long startTime = System.currentTimeMillis();
             try {
-                return action.run();
+                boolean result = action.run();
+                if (recordLatency) {
+                    mHealth.recordSuccess(System.currentTimeMillis() - startTime);
+                } else {
+                    mHealth.recordSuccess();
+                }
+                return result;
             } catch (TimeoutException e) {
                 logDeviceActionException(actionDescription, e);
             } catch (IOException e) {
@@ -1416,6 +1509,15 @@ class TestDevice implements IManagedTestDevice {
                 CLog.w("Device %s stopped responding when attempting %s", getSerialNumber(),
                         actionDescription);
             }
+            mHealth.recordFailure();
+            if (mOptions.isAdaptiveRetry()) {
+                long backoff = mHealth.getRetryBackoff(i);
+                if (backoff > 0) {
+                    CLog.d("Waiting %d ms before recovering %s, health is %s", backoff,
+                            getSerialNumber(), mHealth);
+                    getRunUtil().sleep(backoff);
+                }
+            }
             // TODO: currently treat all exceptions the same. In future consider different recovery
             // mechanisms for time out's vs IOExceptions
             recoverDevice();
@@ -1476,6 +1578,7 @@ class TestDevice implements IManagedTestDevice {
             return;
         }
         CLog.i("Attempting recovery on %s", getSerialNumber());
+        mPackageInfoCache.invalidateAll();
         mRecovery.recoverDevice(mStateMonitor, mRecoveryMode.equals(RecoveryMode.ONLINE));
         if (mRecoveryMode.equals(RecoveryMode.AVAILABLE)) {
             // turn off recovery mode to prevent reentrant recovery
@@ -1567,6 +1670,20 @@ class TestDevice implements IManagedTestDevice {
         }
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Future<InputStreamSource> getLogcatAsync(int maxBytes) {
+        if (mLogcatReceiver == null) {
+            CLog.w("Not capturing logcat for %s in background, returning a logcat dump "
+                    + "ignoring size", getSerialNumber());
+            return Futures.immediateFuture(getLogcatDump());
+        } else {
+            return mLogcatReceiver.getLogcatDataAsync(maxBytes);
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -1636,12 +1753,63 @@ class TestDevice implements IManagedTestDevice {
      */
     @Override
     public InputStreamSource getScreenshot() throws DeviceNotAvailableException {
+        RawImage rawScreenshot = getRawScreenshot();
+        if (rawScreenshot != null) {
+            return new ByteArrayInputStreamSource(ScreenshotEncoder.encodeAsPng(rawScreenshot,
+                    mOptions.getScreenshotCompressionLevel()));
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Future<InputStreamSource> getScreenshotAsync() throws DeviceNotAvailableException {
+        RawImage rawScreenshot = getRawScreenshot();
+        if (rawScreenshot == null) {
+            return null;
+        }
+        final Future<byte[]> pngData = ScreenshotEncoder.encodeAsPngAsync(rawScreenshot,
+                mOptions.getScreenshotCompressionLevel());
+        return new Future<InputStreamSource>() {
+            @Override
+            public boolean cancel(boolean mayInterruptIfRunning) {
+                return pngData.cancel(mayInterruptIfRunning);
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return pngData.isCancelled();
+            }
+
+            @Override
+            public boolean isDone() {
+                return pngData.isDone();
+            }
+
+            @Override
+            public InputStreamSource get() throws InterruptedException, ExecutionException {
+                return new ByteArrayInputStreamSource(pngData.get());
+            }
+
+            @Override
+            public InputStreamSource get(long timeout, TimeUnit unit) throws InterruptedException,
+                    ExecutionException, java.util.concurrent.TimeoutException {
+                return new ByteArrayInputStreamSource(pngData.get(timeout, unit));
+            }
+        };
+    }
+
+    /**
+     * Pulls a raw screenshot frame from the device.
+     *
+     * @return the {@link RawImage} or <code>null</code> if the screenshot was not successful
+     */
+    private RawImage getRawScreenshot() throws DeviceNotAvailableException {
         ScreenshotAction action = new ScreenshotAction();
         if (performDeviceAction("screenshot", action, MAX_RETRY_ATTEMPTS)) {
-            byte[] pngData = compressRawImageAsPng(action.mRawScreenshot);
-            if (pngData != null) {
-                return new ByteArrayInputStreamSource(pngData);
-            }
+            return action.mRawScreenshot;
         }
         return null;
     }
@@ -1661,38 +1829,6 @@ class TestDevice implements IManagedTestDevice {
         }
     }
 
-    private byte[] compressRawImageAsPng(RawImage rawImage) {
-        BufferedImage image = new BufferedImage(rawImage.width, rawImage.height,
-                BufferedImage.TYPE_INT_ARGB);
-
-        // borrowed conversion logic from platform/sdk/screenshot/.../Screenshot.java
-        int index = 0;
-        int IndexInc = rawImage.bpp >> 3;
-        for (int y = 0 ; y < rawImage.height ; y++) {
-            for (int x = 0 ; x < rawImage.width ; x++) {
-                int value = rawImage.getARGB(index);
-                index += IndexInc;
-                image.setRGB(x, y, value);
-            }
-        }
-        // store compressed image in memory, and let callers write to persistent storage
-        // use initial buffer size of 128K
-        byte[] pngData = null;
-        ByteArrayOutputStream imageOut = new ByteArrayOutputStream(128*1024);
-        try {
-            if (ImageIO.write(image, "png", imageOut)) {
-                pngData = imageOut.toByteArray();
-            } else {
-                CLog.e("Failed to compress screenshot to png");
-            }
-        } catch (IOException e) {
-            CLog.e("Failed to compress screenshot to png");
-            CLog.e(e);
-        }
-        StreamUtil.close(imageOut);
-        return pngData;
-    }
-
     /**
      * {@inheritDoc}
      */
@@ -2186,6 +2322,7 @@ class TestDevice implements IManagedTestDevice {
      * @throws DeviceNotAvailableException
      */
     private void doAdbReboot(final String into) throws DeviceNotAvailableException {
+        mPackageInfoCache.invalidateAll();
         // emulator doesn't support reboot, try just resetting framework and hoping for the best
         if (getIDevice().isEmulator()) {
             CLog.i("since emulator, performing shell stop & start instead of reboot");
@@ -2683,6 +2820,14 @@ class TestDevice implements IManagedTestDevice {
      */
     @Override
     public Set<String> getInstalledPackageNames() throws DeviceNotAvailableException {
+        Collection<PackageInfo> cachedPkgs = getCachedPackages();
+        if (cachedPkgs != null) {
+            Set<String> pkgs = new HashSet<String>();
+            for (PackageInfo pkgInfo : cachedPkgs) {
+                pkgs.add(pkgInfo.getPackageName());
+            }
+            return pkgs;
+        }
         return getInstalledPackageNames(new PkgFilter() {
             @Override
             public boolean accept(String pkgName, String apkPath) {
@@ -2723,11 +2868,8 @@ class TestDevice implements IManagedTestDevice {
      */
     @Override
     public Set<String> getUninstallablePackageNames() throws DeviceNotAvailableException {
-        DumpPkgAction action = new DumpPkgAction();
-        performDeviceAction("dumpsys package p", action, MAX_RETRY_ATTEMPTS);
-
         Set<String> pkgs = new HashSet<String>();
-        for (PackageInfo pkgInfo : action.mPkgInfoMap.values()) {
+        for (PackageInfo pkgInfo : getAllPackages()) {
             if (!pkgInfo.isSystemApp() || pkgInfo.isUpdatedSystemApp()) {
                 CLog.d("Found uninstallable package %s", pkgInfo.getPackageName());
                 pkgs.add(pkgInfo.getPackageName());
@@ -2740,10 +2882,73 @@ class TestDevice implements IManagedTestDevice {
      * {@inheritDoc}
      */
     @Override
-    public PackageInfo getAppPackageInfo(String packageName) throws DeviceNotAvailableException {
+    public PackageInfo getAppPackageInfo(final String packageName)
+            throws DeviceNotAvailableException {
+        if (mOptions.isCachePackageInfo() && mPackageInfoCache.contains(packageName)) {
+            return mPackageInfoCache.get(packageName);
+        }
+        // dump only the requested package. An empty result means the package is not installed,
+        // so unlike DumpPkgAction this does not retry
+        final DumpsysPackageReceiver receiver = new DumpsysPackageReceiver();
+        DeviceAction dumpAction = new DeviceAction() {
+            @Override
+            public boolean run() throws TimeoutException, IOException,
+                    AdbCommandRejectedException, ShellCommandUnresponsiveException {
+                getIDevice().executeShellCommand(String.format("dumpsys package %s", packageName),
+                        receiver);
+                return true;
+            }
+        };
+        performDeviceAction(String.format("dumpsys package %s", packageName), dumpAction,
+                MAX_RETRY_ATTEMPTS);
+        PackageInfo pkgInfo = receiver.getPackages().get(packageName);
+        if (pkgInfo != null && mOptions.isCachePackageInfo()) {
+            mPackageInfoCache.put(pkgInfo);
+        }
+        return pkgInfo;
+    }
+
+    /**
+     * Get all the packages installed on the device, from the cache if possible.
+     */
+    private Collection<PackageInfo> getAllPackages() throws DeviceNotAvailableException {
+        Collection<PackageInfo> pkgs = getCachedPackages();
+        if (pkgs != null) {
+            return pkgs;
+        }
         DumpPkgAction action = new DumpPkgAction();
-        performDeviceAction("dumpsys package", action, MAX_RETRY_ATTEMPTS);
-        return action.mPkgInfoMap.get(packageName);
+        performDeviceAction("dumpsys package p", action, MAX_RETRY_ATTEMPTS);
+        if (mOptions.isCachePackageInfo()) {
+            mPackageInfoCache.setAll(action.mPkgInfoMap);
+        }
+        return action.mPkgInfoMap.values();
+    }
+
+    /**
+     * @return all the cached packages, or <code>null</code> if the cache is disabled or not
+     *         complete
+     */
+    private Collection<PackageInfo> getCachedPackages() {
+        if (!mOptions.isCachePackageInfo()) {
+            return null;
+        }
+        return mPackageInfoCache.getAll();
+    }
+
+    /**
+     * Forget the cached packages if a shell command may have changed them.
+     */
+    private void invalidatePackageInfoIfChanged(String command) {
+        if (PM_CHANGE_PACKAGES_REGEX.matcher(command).find()) {
+            mPackageInfoCache.invalidateAll();
+        }
+    }
+
+    /**
+     * Exposed for unit testing.
+     */
+    PackageInfoCache getPackageInfoCache() {
+        return mPackageInfoCache;
     }
 
     private static interface PkgFilter {
@@ -2796,6 +3001,14 @@ class TestDevice implements IManagedTestDevice {
         return mStateMonitor;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public DeviceHealth getHealth() {
+        return mHealth;
+    }
+
     /**
      * {@inheritDoc}
      */
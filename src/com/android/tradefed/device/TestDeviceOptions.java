@@ -15,8 +15,11 @@
  */
 package com.android.tradefed.device;
 
+import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.Option;
 
+import java.util.zip.Deflater;
+
 /**
  * Container for {@link ITestDevice} {@link Option}s
  */
@@ -82,6 +85,25 @@ public class TestDeviceOptions {
             description = "default number of attempts to connect to wifi network.")
     private int mWifiAttempts = 5;
 
+    @Option(name = "screenshot-compression-level", description =
+            "deflate level from 0 to 9 used to compress screenshots, or -1 for the default "
+            + "level. Lower is faster.")
+    private int mScreenshotCompressionLevel = ScreenshotEncoder.DEFAULT_COMPRESSION_LEVEL;
+
+    @Option(name = "cache-package-info", description = "cache the packages installed on the "
+            + "device between queries, until packages are installed or removed or the device "
+            + "reboots.")
+    private boolean mCachePackageInfo = true;
+
+    @Option(name = "push-dir-threads", description = "the number of files to push at once "
+            + "when pushing a directory to the device.")
+    private int mPushDirThreads = 1;
+
+    @Option(name = "adaptive-retry", description = "adapt the retries, backoff and timeouts of "
+            + "device operations to how often recent operations on the device have failed, and "
+            + "how long they have taken.")
+    private boolean mAdaptiveRetry = true;
+
     /**
      * Check whether adb root should be enabled on boot for this device
      */
@@ -269,4 +291,73 @@ public class TestDeviceOptions {
         mWifiAttempts = wifiAttempts;
     }
 
+    /**
+     * @return the deflate level used to compress screenshots.
+     */
+    public int getScreenshotCompressionLevel() {
+        return mScreenshotCompressionLevel;
+    }
+
+    public void setScreenshotCompressionLevel(int compressionLevel) {
+        if (!isValidCompressionLevel(compressionLevel)) {
+            throw new IllegalArgumentException(String.format(
+                    "Invalid screenshot compression level %d", compressionLevel));
+        }
+        mScreenshotCompressionLevel = compressionLevel;
+    }
+
+    private static boolean isValidCompressionLevel(int compressionLevel) {
+        return compressionLevel >= Deflater.DEFAULT_COMPRESSION &&
+                compressionLevel <= Deflater.BEST_COMPRESSION;
+    }
+
+    /**
+     * Check that option values set from the command line or config are in range, so that an
+     * invalid value is rejected when the command is added rather than in the middle of a run.
+     *
+     * @throws ConfigurationException if an option value is out of range
+     */
+    public void validateOptions() throws ConfigurationException {
+        if (!isValidCompressionLevel(mScreenshotCompressionLevel)) {
+            throw new ConfigurationException(String.format(
+                    "screenshot-compression-level must be from %d to %d, got %d",
+                    Deflater.DEFAULT_COMPRESSION, Deflater.BEST_COMPRESSION,
+                    mScreenshotCompressionLevel));
+        }
+    }
+
+    /**
+     * @return <code>true</code> if the packages installed on the device should be cached.
+     */
+    public boolean isCachePackageInfo() {
+        return mCachePackageInfo;
+    }
+
+    public void setCachePackageInfo(boolean cachePackageInfo) {
+        mCachePackageInfo = cachePackageInfo;
+    }
+
+    /**
+     * @return the number of files to push at once when pushing a directory.
+     */
+    public int getPushDirThreads() {
+        return mPushDirThreads;
+    }
+
+    public void setPushDirThreads(int pushDirThreads) {
+        mPushDirThreads = pushDirThreads;
+    }
+
+    /**
+     * @return <code>true</code> if retries of device operations should adapt to the device's
+     *         health.
+     */
+    public boolean isAdaptiveRetry() {
+        return mAdaptiveRetry;
+    }
+
+    public void setAdaptiveRetry(boolean adaptiveRetry) {
+        mAdaptiveRetry = adaptiveRetry;
+    }
+
 }
@@ -18,11 +18,11 @@ package com.android.tradefed.device;
 
 import com.android.ddmlib.MultiLineReceiver;
 import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.BackgroundFileWriter;
 import com.android.tradefed.util.SimpleStats;
+import com.android.tradefed.util.StreamingStats;
 
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.LinkedList;
@@ -44,6 +44,8 @@ public class TopHelper extends Thread {
     /** The pattern to match for the top output. */
     private static final Pattern TOP_PERCENT_PATTERN =
             Pattern.compile("User (\\d+)%, System (\\d+)%, IOW (\\d+)%, IRQ (\\d+)%");
+    /** The prefix of lines which may match {@link #TOP_PERCENT_PATTERN}. */
+    private static final String TOP_PERCENT_PREFIX = "User ";
 
     private ITestDevice mTestDevice;
     private int mDelay;
@@ -74,19 +76,101 @@ public class TopHelper extends Thread {
         public Double mIrqPercent = null;
     }
 
+    /**
+     * Class for holding statistics aggregated over every top output.
+     * <p>
+     * Unlike a list of {@link TopStats}, the memory used does not grow with the number of outputs,
+     * so this can be used for arbitrarily long runs. All percentages are from 0 to 100.
+     * </p>
+     */
+    public static class TopStatsSummary {
+        private final StreamingStats mTotalPercent = new StreamingStats();
+        private final StreamingStats mUserPercent = new StreamingStats();
+        private final StreamingStats mSystemPercent = new StreamingStats();
+        private final StreamingStats mIowPercent = new StreamingStats();
+        private final StreamingStats mIrqPercent = new StreamingStats();
+
+        void add(TopStats s) {
+            mTotalPercent.add(s.mTotalPercent);
+            mUserPercent.add(s.mUserPercent);
+            mSystemPercent.add(s.mSystemPercent);
+            mIowPercent.add(s.mIowPercent);
+            mIrqPercent.add(s.mIrqPercent);
+        }
+
+        /**
+         * Get the total CPU usage percentage.
+         */
+        public StreamingStats getTotalPercent() {
+            return mTotalPercent;
+        }
+
+        /**
+         * Get the user CPU usage percentage.
+         */
+        public StreamingStats getUserPercent() {
+            return mUserPercent;
+        }
+
+        /**
+         * Get the system CPU usage percentage.
+         */
+        public StreamingStats getSystemPercent() {
+            return mSystemPercent;
+        }
+
+        /**
+         * Get the IOW CPU usage percentage.
+         */
+        public StreamingStats getIowPercent() {
+            return mIowPercent;
+        }
+
+        /**
+         * Get the IRQ CPU usage percentage.
+         */
+        public StreamingStats getIrqPercent() {
+            return mIrqPercent;
+        }
+
+        private TopStatsSummary copy() {
+            TopStatsSummary copy = new TopStatsSummary();
+            copy.mTotalPercent.addAll(mTotalPercent);
+            copy.mUserPercent.addAll(mUserPercent);
+            copy.mSystemPercent.addAll(mSystemPercent);
+            copy.mIowPercent.addAll(mIowPercent);
+            copy.mIrqPercent.addAll(mIrqPercent);
+            return copy;
+        }
+    }
+
     /**
      * Receiver which parses the output from top.
+     * <p>
+     * Every output is aggregated into a {@link TopStatsSummary}. The raw outputs are also kept as
+     * {@link TopStats}, either all of them or only the most recent ones, see
+     * {@link #setMaxSamples(int)}.
+     * </p>
      */
     static class TopReceiver extends MultiLineReceiver {
         private List<TopStats> mTopStats = new LinkedList<TopStats>();
+        private TopStatsSummary mSummary = new TopStatsSummary();
+        private int mMaxSamples = 0;
         private boolean mIsCancelled = false;
-        private File mLogFile = null;
-        private BufferedWriter mLogWriter = null;
+        private BackgroundFileWriter mLogWriter = null;
 
         public TopReceiver() {
             setTrimLine(false);
         }
 
+        /**
+         * Limit the number of raw {@link TopStats} kept to the most recent {@code maxSamples}, or
+         * 0 to keep every output. The summary always includes every output.
+         */
+        public synchronized void setMaxSamples(int maxSamples) {
+            mMaxSamples = maxSamples;
+        }
+
         /**
          * Specify a file to log the top output to.
          *
@@ -94,8 +178,7 @@ public class TopHelper extends Thread {
          */
         public synchronized void logToFile(File logFile) {
             try {
-                mLogFile = logFile;
-                mLogWriter = new BufferedWriter(new FileWriter(mLogFile));
+                mLogWriter = new BackgroundFileWriter(logFile);
             } catch (IOException e) {
                 CLog.e("Error creating file: %s", e.getMessage());
                 mLogWriter = null;
@@ -112,17 +195,15 @@ public class TopHelper extends Thread {
             }
             synchronized (this) {
                 if (mLogWriter != null) {
-                    try {
-                        for (String line : lines) {
-                            mLogWriter.write(line + "\n");
-                        }
-                    } catch (IOException e) {
-                        CLog.e("Error writing to file: %s", e.getMessage());
-                    }
+                    mLogWriter.write(lines);
                 }
             }
             for (String line : lines) {
                 line = line.trim();
+                if (!line.startsWith(TOP_PERCENT_PREFIX)) {
+                    // skip the process lines, which are most of the output, without matching
+                    continue;
+                }
                 Matcher m = TOP_PERCENT_PATTERN.matcher(line);
                 if (m.matches()) {
                     TopStats s = new TopStats();
@@ -135,7 +216,11 @@ public class TopHelper extends Thread {
                     s.mTotalPercent = (s.mUserPercent + s.mSystemPercent + s.mIowPercent +
                             s.mIrqPercent);
                     synchronized(this) {
+                        mSummary.add(s);
                         mTopStats.add(s);
+                        if (mMaxSamples > 0 && mTopStats.size() > mMaxSamples) {
+                            mTopStats.remove(0);
+                        }
                     }
                 }
             }
@@ -150,14 +235,8 @@ public class TopHelper extends Thread {
             }
             mIsCancelled = true;
             if (mLogWriter != null) {
-                try {
-                    mLogWriter.flush();
-                    mLogWriter.close();
-                } catch (IOException e) {
-                    CLog.e("Error closing writer %s", e.getMessage());
-                } finally {
-                    mLogWriter = null;
-                }
+                mLogWriter.close();
+                mLogWriter = null;
             }
         }
 
@@ -177,6 +256,13 @@ public class TopHelper extends Thread {
         public synchronized List<TopStats> getTopStats() {
             return new ArrayList<TopStats>(mTopStats);
         }
+
+        /**
+         * Gets the statistics aggregated over every output.
+         */
+        public synchronized TopStatsSummary getTopStatsSummary() {
+            return mSummary.copy();
+        }
     }
 
     private TopReceiver mReceiver = new TopReceiver();
@@ -210,6 +296,15 @@ public class TopHelper extends Thread {
         mReceiver.logToFile(logFile);
     }
 
+    /**
+     * Limit the number of raw {@link TopStats} kept to the most recent {@code maxSamples}, or 0 to
+     * keep every output (the default). Use this for long runs, together with
+     * {@link #getTopStatsSummary()}.
+     */
+    public void setMaxSamples(int maxSamples) {
+        mReceiver.setMaxSamples(maxSamples);
+    }
+
     /**
      * Cancels the top command.
      */
@@ -248,6 +343,13 @@ public class TopHelper extends Thread {
         return mReceiver.getTopStats();
     }
 
+    /**
+     * Gets the {@link TopStatsSummary}, aggregated over every output.
+     */
+    public TopStatsSummary getTopStatsSummary() {
+        return mReceiver.getTopStatsSummary();
+    }
+
     /**
      * Get the average total CPU usage for a list of {@link TopStats}.
      *
@@ -27,6 +27,7 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.concurrent.Callable;
 
 /**
  * A pass-through {@link ITestInvocationListener} that collects bugreports when configurable events
@@ -193,8 +194,9 @@ public class BugreportCollector implements ITestInvocationListener {
     private ITestInvocationListener mListener;
     private ITestDevice mTestDevice;
     private List<Predicate> mPredicates = new LinkedList<Predicate>();
-    @SuppressWarnings("unused")
     private boolean mAsynchronous = false;
+    /** bugreports being captured in the background, when asynchronous */
+    private FailureArtifactCollector mPendingBugreports;
     @SuppressWarnings("unused")
     private boolean mCapturedBugreport = false;
 
@@ -217,7 +219,9 @@ public class BugreportCollector implements ITestInvocationListener {
         if (testDevice == null) {
             throw new NullPointerException("device must be non-null.");
         }
-        mListener = listener;
+        mPendingBugreports = new FailureArtifactCollector(listener);
+        // results go through the collector, so bugreports are attached to the right test
+        mListener = mPendingBugreports;
         mTestDevice = testDevice;
     }
 
@@ -239,17 +243,20 @@ public class BugreportCollector implements ITestInvocationListener {
      * collecting a bugreport, return immediately
      */
     public void blockUntilIdle() {
-        // FIXME
-        return;
+        mPendingBugreports.forwardAll();
     }
 
     /**
      * Set whether bugreport collection should collect the bugreport in a different thread
      * ({@code asynchronous = true}), or block the caller until the bugreport is captured
      * ({@code asynchronous = false}).
+     * <p/>
+     * Asynchronous bugreports are forwarded to the child listener in the order they were
+     * requested. A bugreport requested during a test is forwarded before that test ends, by
+     * holding back later results until it is captured. All pending bugreports are forwarded
+     * before the end of the test run is forwarded.
      */
     public void setAsynchronous(boolean asynchronous) {
-        // FIXME do something
         mAsynchronous = asynchronous;
     }
 
@@ -272,6 +279,30 @@ public class BugreportCollector implements ITestInvocationListener {
         }
         String logName = String.format("bug-%s.%d", logDesc, System.currentTimeMillis());
         CLog.v("Log name is %s", logName);
+        if (mAsynchronous) {
+            mPendingBugreports.submit(logName, LogDataType.BUGREPORT,
+                    new Callable<InputStreamSource>() {
+                        @Override
+                        public InputStreamSource call() {
+                            waitForDeviceOnline();
+                            return mTestDevice.getBugreport();
+                        }
+                    });
+            return;
+        }
+        waitForDeviceOnline();
+        InputStreamSource bugreport = mTestDevice.getBugreport();
+        try {
+            mListener.testLog(logName, LogDataType.BUGREPORT, bugreport);
+        } finally {
+            bugreport.cancel();
+        }
+    }
+
+    /**
+     * Wait for the device to be online before capturing a bugreport, if configured to.
+     */
+    private void waitForDeviceOnline() {
         if (mDeviceWaitTimeSecs >= 0) {
             try {
                 mTestDevice.waitForDeviceOnline((long)mDeviceWaitTimeSecs * 1000);
@@ -284,12 +315,6 @@ public class BugreportCollector implements ITestInvocationListener {
                 CLog.e(e);
             }
         }
-        InputStreamSource bugreport = mTestDevice.getBugreport();
-        try {
-            mListener.testLog(logName, LogDataType.BUGREPORT, bugreport);
-        } finally {
-            bugreport.cancel();
-        }
     }
 
     Predicate getPredicate(Predicate predicate) {
@@ -458,6 +483,8 @@ public class BugreportCollector implements ITestInvocationListener {
         mListener.testRunEnded(elapsedTime, runMetrics);
         mCollector.testRunEnded(elapsedTime, runMetrics);
         check(Relation.AFTER, Noun.TESTRUN);
+        // nothing left in the run to overlap with
+        mPendingBugreports.forwardAll();
     }
 
     /**
@@ -529,6 +556,7 @@ public class BugreportCollector implements ITestInvocationListener {
         mListener.invocationEnded(elapsedTime);
         mCollector.invocationEnded(elapsedTime);
         check(Relation.AFTER, Noun.INVOCATION);
+        mPendingBugreports.forwardAll();
     }
 
     /**
@@ -539,6 +567,7 @@ public class BugreportCollector implements ITestInvocationListener {
         mListener.invocationFailed(cause);
         mCollector.invocationFailed(cause);
         check(Relation.AFTER, Noun.FAILED_INVOCATION);
+        mPendingBugreports.forwardAll();
     }
 
     /**
@@ -0,0 +1,382 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.build.IBuildInfo;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link ResultForwarder} that collects log artifacts, such as screenshots, logcat or
+ * bugreports, that are captured in the background when a test fails, and forwards them attached
+ * to the test they were captured for.
+ * <p/>
+ * This allows a listener to snapshot what it needs cheaply in a result callback, and return
+ * without waiting for the capture to finish, so the next test is not held up. Artifacts added
+ * while a test is running are forwarded with {@link ITestInvocationListener#testLog} before that
+ * test's {@link #testEnded}. If they are not ready when the test ends, its {@link #testEnded} and
+ * every later result are held back, and forwarded in order once the artifacts are ready. Artifacts
+ * added between tests are forwarded before the next result. Everything held is forwarded before
+ * the end of the test run or invocation.
+ * <p/>
+ * Results and artifacts are always forwarded from the thread delivering results, never from a
+ * background thread. Not thread safe.
+ */
+public class FailureArtifactCollector extends ResultForwarder {
+
+    private static ExecutorService sCaptureExecutor = null;
+
+    /** artifacts added since the current test started, or since the last test ended */
+    private LinkedList<PendingArtifact> mCurrentArtifacts = new LinkedList<PendingArtifact>();
+    /** artifacts and results not yet forwarded, in order */
+    private final LinkedList<HeldEvent> mHeldEvents = new LinkedList<HeldEvent>();
+
+    private static class PendingArtifact {
+        final String mName;
+        final LogDataType mType;
+        final Future<InputStreamSource> mData;
+
+        PendingArtifact(String name, LogDataType type, Future<InputStreamSource> data) {
+            mName = name;
+            mType = type;
+            mData = data;
+        }
+    }
+
+    /**
+     * A result, or a group of artifacts, that is held back until everything before it has been
+     * forwarded.
+     */
+    private interface HeldEvent {
+        /**
+         * Forward the event.
+         *
+         * @param wait whether to wait for artifacts that are still being captured
+         * @return <code>true</code> if the event was forwarded, <code>false</code> if it has to
+         *         stay held
+         */
+        public boolean forward(boolean wait);
+    }
+
+    /**
+     * The artifacts captured for one test.
+     */
+    private class ArtifactGroup implements HeldEvent {
+        private final LinkedList<PendingArtifact> mArtifacts;
+
+        ArtifactGroup(LinkedList<PendingArtifact> artifacts) {
+            mArtifacts = artifacts;
+        }
+
+        @Override
+        public boolean forward(boolean wait) {
+            while (!mArtifacts.isEmpty() && (wait || mArtifacts.getFirst().mData.isDone())) {
+                forwardArtifact(mArtifacts.removeFirst());
+            }
+            return mArtifacts.isEmpty();
+        }
+    }
+
+    /**
+     * A result that is forwarded as soon as everything before it has been.
+     */
+    private static abstract class HeldResult implements HeldEvent {
+        @Override
+        public boolean forward(boolean wait) {
+            forwardResult();
+            return true;
+        }
+
+        abstract void forwardResult();
+    }
+
+    /**
+     * @param listeners the {@link ITestInvocationListener}s to forward results and artifacts to
+     */
+    public FailureArtifactCollector(ITestInvocationListener... listeners) {
+        super(listeners);
+    }
+
+    /**
+     * Add an artifact that is being captured in the background.
+     *
+     * @param dataName the name to log the artifact with
+     * @param dataType the {@link LogDataType} of the artifact
+     * @param data the {@link Future} for the artifact. Ignored if <code>null</code>
+     */
+    public void add(String dataName, LogDataType dataType, Future<InputStreamSource> data) {
+        if (data != null) {
+            mCurrentArtifacts.add(new PendingArtifact(dataName, dataType, data));
+        }
+    }
+
+    /**
+     * Capture an artifact in the background.
+     *
+     * @param dataName the name to log the artifact with
+     * @param dataType the {@link LogDataType} of the artifact
+     * @param capture the {@link Callable} that captures the artifact. May return
+     *            <code>null</code> if there is nothing to log.
+     */
+    public void submit(String dataName, LogDataType dataType,
+            Callable<InputStreamSource> capture) {
+        add(dataName, dataType, getCaptureExecutor().submit(capture));
+    }
+
+    /**
+     * @return <code>true</code> if all artifacts and results have been forwarded
+     */
+    public boolean isIdle() {
+        return mCurrentArtifacts.isEmpty() && mHeldEvents.isEmpty();
+    }
+
+    /**
+     * Forward the held artifacts and results that are ready, without waiting. Artifacts of the
+     * current test are not forwarded until it ends.
+     */
+    public void forwardCompleted() {
+        forwardHeld(false);
+    }
+
+    /**
+     * Wait for all artifacts to be captured, and forward them along with any held results.
+     */
+    public void forwardAll() {
+        releaseCurrentArtifacts();
+        forwardHeld(true);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationStarted(IBuildInfo buildInfo) {
+        forwardAll();
+        super.invocationStarted(buildInfo);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationFailed(Throwable cause) {
+        forwardAll();
+        super.invocationFailed(cause);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void invocationEnded(long elapsedTime) {
+        forwardAll();
+        super.invocationEnded(elapsedTime);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * The log data is copied if it has to be held, since callers may cancel it on return.
+     */
+    @Override
+    public void testLog(final String dataName, final LogDataType dataType,
+            InputStreamSource dataStream) {
+        forwardHeld(false);
+        if (mHeldEvents.isEmpty()) {
+            super.testLog(dataName, dataType, dataStream);
+            return;
+        }
+        InputStream stream = dataStream == null ? null : dataStream.createInputStream();
+        if (stream == null) {
+            CLog.w("No data to log for %s", dataName);
+            return;
+        }
+        final InputStreamSource snapshot;
+        try {
+            snapshot = new SnapshotInputStreamSource(stream);
+        } finally {
+            StreamUtil.close(stream);
+        }
+        mHeldEvents.add(new HeldResult() {
+            @Override
+            void forwardResult() {
+                try {
+                    FailureArtifactCollector.super.testLog(dataName, dataType, snapshot);
+                } finally {
+                    snapshot.cancel();
+                }
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStarted(final String runName, final int testCount) {
+        releaseCurrentArtifacts();
+        hold(new HeldResult() {
+            @Override
+            void forwardResult() {
+                FailureArtifactCollector.super.testRunStarted(runName, testCount);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunFailed(String errorMessage) {
+        forwardAll();
+        super.testRunFailed(errorMessage);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunStopped(long elapsedTime) {
+        forwardAll();
+        super.testRunStopped(elapsedTime);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testRunEnded(long elapsedTime, Map<String, String> runMetrics) {
+        forwardAll();
+        super.testRunEnded(elapsedTime, runMetrics);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testStarted(final TestIdentifier test) {
+        releaseCurrentArtifacts();
+        hold(new HeldResult() {
+            @Override
+            void forwardResult() {
+                FailureArtifactCollector.super.testStarted(test);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testFailed(final TestFailure status, final TestIdentifier test,
+            final String trace) {
+        hold(new HeldResult() {
+            @Override
+            void forwardResult() {
+                FailureArtifactCollector.super.testFailed(status, test, trace);
+            }
+        });
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void testEnded(final TestIdentifier test, final Map<String, String> testMetrics) {
+        releaseCurrentArtifacts();
+        hold(new HeldResult() {
+            @Override
+            void forwardResult() {
+                FailureArtifactCollector.super.testEnded(test, testMetrics);
+            }
+        });
+    }
+
+    /**
+     * Queue the artifacts added so far to be forwarded before any later result.
+     */
+    private void releaseCurrentArtifacts() {
+        if (!mCurrentArtifacts.isEmpty()) {
+            mHeldEvents.add(new ArtifactGroup(mCurrentArtifacts));
+            mCurrentArtifacts = new LinkedList<PendingArtifact>();
+        }
+    }
+
+    /**
+     * Forward a result, or hold it if anything before it is still held.
+     */
+    private void hold(HeldEvent event) {
+        mHeldEvents.add(event);
+        forwardHeld(false);
+    }
+
+    private void forwardHeld(boolean wait) {
+        while (!mHeldEvents.isEmpty() && mHeldEvents.getFirst().forward(wait)) {
+            mHeldEvents.removeFirst();
+        }
+    }
+
+    private void forwardArtifact(PendingArtifact pending) {
+        try {
+            InputStreamSource source = pending.mData.get();
+            if (source != null) {
+                try {
+                    super.testLog(pending.mName, pending.mType, source);
+                } finally {
+                    source.cancel();
+                }
+            }
+        } catch (InterruptedException e) {
+            CLog.e("Interrupted while capturing %s", pending.mName);
+            pending.mData.cancel(true);
+            // keep forwarding the held results, but do not wait for any more artifacts
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            CLog.e("Failed to capture %s", pending.mName);
+            CLog.e(e);
+        }
+    }
+
+    private static synchronized ExecutorService getCaptureExecutor() {
+        if (sCaptureExecutor == null) {
+            sCaptureExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger(0);
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, String.format("FailureArtifactCapture-%d",
+                            mCount.incrementAndGet()));
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sCaptureExecutor;
+    }
+}
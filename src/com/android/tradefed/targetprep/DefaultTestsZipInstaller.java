@@ -16,6 +16,7 @@
 
 package com.android.tradefed.targetprep;
 
+import com.android.ddmlib.CollectingOutputReceiver;
 import com.android.ddmlib.FileListingService;
 import com.android.tradefed.build.IDeviceBuildInfo;
 import com.android.tradefed.device.DeviceNotAvailableException;
@@ -27,12 +28,26 @@ import com.android.tradefed.util.ArrayUtil;
 import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.TimeUtil;
+import com.android.tradefed.util.ZipUtil;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipFile;
 
 
 /**
@@ -40,9 +55,33 @@ import java.util.Set;
  */
 public class DefaultTestsZipInstaller implements ITestsZipInstaller {
     private static final int RM_ATTEMPTS = 3;
+    private static final long WIPE_TIMEOUT_MIN = 10;
     private static final String DEVICE_DATA_PATH = buildAbsPath(FileListingService.DIRECTORY_DATA);
     private static final File DEVICE_DATA_FILE = new File(DEVICE_DATA_PATH);
 
+    // markers separating the sections of the output of the bulk wipe command
+    private static final String WIPE_START_MARKER = "==WIPE START==";
+    private static final String WIPE_END_MARKER = "==WIPE END==";
+    private static final String REMAINING_MARKER = "==REMAINING==";
+    private static final Pattern DF_AVAILABLE_PATTERN = Pattern.compile("(\\d+)K available");
+    private static final Pattern DF_TABLE_PATTERN = Pattern.compile(String.format(
+            //fs   Size     Used     Free
+            "%s\\s+\\S+\\s+\\S+\\s+([\\d\\.]+)([KMG]?)", DEVICE_DATA_PATH));
+
+    /** the host files to sync onto /data, and the directories among them */
+    private static class SyncManifest {
+        /** the temp dir the tests zip DATA entries were extracted to, if any */
+        final File mStagingDir;
+        final File[] mDataFiles;
+        final Set<File> mDirs;
+
+        SyncManifest(File stagingDir, File[] dataFiles, Set<File> dirs) {
+            mStagingDir = stagingDir;
+            mDataFiles = dataFiles;
+            mDirs = dirs;
+        }
+    }
+
     /**
      * A list of /data subdirectories to NOT wipe when doing UserDataFlashOption.TESTS_ZIP
      */
@@ -107,6 +146,10 @@ public class DefaultTestsZipInstaller implements ITestsZipInstaller {
      * <p>
      * This implementation will reboot the device into userland before
      * proceeding. It will also stop the Android runtime and leave it down upon return
+     * <p/>
+     * The tests dir of the build may be either an extracted tests zip, or the tests zip itself.
+     * For a zip, only its DATA entries are extracted, to a temporary directory that is deleted
+     * once they have been pushed.
      */
     @Override
     public void pushTestsZipOntoData(ITestDevice device, IDeviceBuildInfo deviceBuild)
@@ -117,22 +160,105 @@ public class DefaultTestsZipInstaller implements ITestsZipInstaller {
         RecoveryMode cachedRecoveryMode = device.getRecoveryMode();
         device.setRecoveryMode(RecoveryMode.ONLINE);
 
-        doDeleteData(device);
+        final File testsDir = deviceBuild.getTestsDir();
+        // prepare the host files while the device is being wiped
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<SyncManifest> manifestFuture = executor.submit(new Callable<SyncManifest>() {
+            @Override
+            public SyncManifest call() throws TargetSetupError {
+                return createSyncManifest(testsDir);
+            }
+        });
+        executor.shutdown();
+        SyncManifest manifest = null;
+        try {
+            doDeleteData(device);
+            manifest = getSyncManifest(manifestFuture);
+
+            CLog.d("Syncing test files/apks");
+            for (File hostSubDir : manifest.mDataFiles) {
+                device.syncFiles(hostSubDir, DEVICE_DATA_PATH);
+            }
+
+            // FIXME: this may end up mixing host slashes and device slashes
+            for (File dir : manifest.mDirs) {
+                device.executeShellCommand("chown system.system " + dir.getPath());
+            }
+        } finally {
+            if (manifest == null) {
+                // wait for the manifest, so its staging dir can be cleaned up
+                manifest = getSyncManifestQuietly(manifestFuture);
+            }
+            if (manifest != null && manifest.mStagingDir != null) {
+                FileUtil.recursiveDelete(manifest.mStagingDir);
+            }
+        }
 
-        CLog.d("Syncing test files/apks");
-        File hostDir = new File(deviceBuild.getTestsDir(), "DATA");
+        device.setRecoveryMode(cachedRecoveryMode);
+    }
 
-        File[] hostDataFiles = getTestsZipDataFiles(hostDir);
-        for (File hostSubDir : hostDataFiles) {
-            device.syncFiles(hostSubDir, DEVICE_DATA_PATH);
+    private SyncManifest createSyncManifest(File testsDir) throws TargetSetupError {
+        File stagingDir = null;
+        File hostDir = new File(testsDir, "DATA");
+        if (testsDir != null && testsDir.isFile()) {
+            stagingDir = extractTestsZipData(testsDir);
+            hostDir = new File(stagingDir, "DATA");
+        }
+        try {
+            return new SyncManifest(stagingDir, getTestsZipDataFiles(hostDir),
+                    findDirs(hostDir, DEVICE_DATA_FILE));
+        } catch (TargetSetupError | RuntimeException e) {
+            if (stagingDir != null) {
+                FileUtil.recursiveDelete(stagingDir);
+            }
+            throw e;
         }
+    }
 
-        // FIXME: this may end up mixing host slashes and device slashes
-        for (File dir : findDirs(hostDir, DEVICE_DATA_FILE)) {
-            device.executeShellCommand("chown system.system " + dir.getPath());
+    /**
+     * Extracts the DATA entries of a tests zip to a new temp directory, without decompressing the
+     * rest of the zip.
+     */
+    File extractTestsZipData(File testsZip) throws TargetSetupError {
+        File stagingDir = null;
+        ZipFile zipFile = null;
+        try {
+            stagingDir = FileUtil.createTempDir("tests-zip-data");
+            zipFile = new ZipFile(testsZip);
+            ZipUtil.extractZip(zipFile, stagingDir, "DATA/");
+            return stagingDir;
+        } catch (IOException e) {
+            if (stagingDir != null) {
+                FileUtil.recursiveDelete(stagingDir);
+            }
+            throw new TargetSetupError(String.format("Failed to extract %s", testsZip), e);
+        } finally {
+            ZipUtil.closeZip(zipFile);
         }
+    }
 
-        device.setRecoveryMode(cachedRecoveryMode);
+    private SyncManifest getSyncManifestQuietly(Future<SyncManifest> manifestFuture) {
+        try {
+            return getSyncManifest(manifestFuture);
+        } catch (TargetSetupError | RuntimeException e) {
+            return null;
+        }
+    }
+
+    private SyncManifest getSyncManifest(Future<SyncManifest> manifestFuture)
+            throws TargetSetupError {
+        try {
+            return manifestFuture.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TargetSetupError) {
+                throw (TargetSetupError)e.getCause();
+            } else if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            }
+            throw new TargetSetupError("Failed to read tests.zip content", e.getCause());
+        } catch (InterruptedException e) {
+            throw new TargetSetupError("Interrupted while reading tests.zip content", e);
+        }
     }
 
     /**
@@ -175,6 +301,11 @@ public class DefaultTestsZipInstaller implements ITestsZipInstaller {
                     device.getSerialNumber()));
         }
 
+        if (bulkDeleteData(device)) {
+            return;
+        }
+
+        // fall back to deleting the remaining entries one at a time, with retries
         IFileEntry dataEntry = device.getFileEntry(FileListingService.DIRECTORY_DATA);
         if (dataEntry == null) {
             throw new TargetSetupError(String.format("Could not find %s folder on %s",
@@ -187,6 +318,87 @@ public class DefaultTestsZipInstaller implements ITestsZipInstaller {
         }
     }
 
+    /**
+     * Deletes everything in /data that is not in the skip list with a single shell command.
+     *
+     * @return <code>true</code> if nothing but the skip list was left in /data
+     */
+    boolean bulkDeleteData(ITestDevice device) throws DeviceNotAvailableException {
+        StringBuilder skipPattern = new StringBuilder(".|..");
+        for (String skipName : mDataWipeSkipList) {
+            skipPattern.append("|'").append(skipName.replace("'", "'\\''")).append("'");
+        }
+        // df before and after the wipe, to measure the space freed, then list what is left
+        String cmd = String.format("df %1$s; echo %2$s; cd %1$s && for f in * .*; do " +
+                "case \"$f\" in %3$s) ;; *) rm -r \"$f\" ;; esac; done; " +
+                "echo %4$s; df %1$s; echo %5$s; ls -a %1$s",
+                DEVICE_DATA_PATH, WIPE_START_MARKER, skipPattern, WIPE_END_MARKER,
+                REMAINING_MARKER);
+        long startTime = System.currentTimeMillis();
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        // rm gives no output while it works, so allow for a long silence
+        device.executeShellCommand(cmd, receiver, WIPE_TIMEOUT_MIN, TimeUnit.MINUTES, 1);
+        String output = receiver.getOutput();
+        long elapsedTime = System.currentTimeMillis() - startTime;
+
+        int wipeStart = output.indexOf(WIPE_START_MARKER);
+        int wipeEnd = output.indexOf(WIPE_END_MARKER);
+        int remainingStart = output.indexOf(REMAINING_MARKER);
+        if (wipeStart < 0 || wipeEnd < wipeStart || remainingStart < wipeEnd) {
+            CLog.w("Unexpected output from wiping %s on %s: %s", DEVICE_DATA_PATH,
+                    device.getSerialNumber(), output);
+            return false;
+        }
+        List<String> remaining = new ArrayList<String>();
+        for (String name : output.substring(remainingStart + REMAINING_MARKER.length())
+                .split("\\s+")) {
+            if (!name.isEmpty() && !name.equals(".") && !name.equals("..") &&
+                    !mDataWipeSkipList.contains(name)) {
+                remaining.add(name);
+            }
+        }
+        Long freeBefore = parseFreeSpace(output.substring(0, wipeStart));
+        Long freeAfter = parseFreeSpace(output.substring(wipeEnd, remainingStart));
+        String freed = freeBefore != null && freeAfter != null ?
+                String.format("%dK", freeAfter - freeBefore) : "unknown";
+        CLog.i("Wiped %s on %s in %s, freed %s", DEVICE_DATA_PATH, device.getSerialNumber(),
+                TimeUtil.formatElapsedTime(elapsedTime), freed);
+        if (!remaining.isEmpty()) {
+            CLog.w("Failed to wipe %s from %s on %s", remaining, DEVICE_DATA_PATH,
+                    device.getSerialNumber());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Parses the available space of /data from the output of a 'df' command, in either the legacy
+     * or the table format.
+     *
+     * @return the available space in kilobytes or <code>null</code> if output could not be parsed
+     */
+    static Long parseFreeSpace(String dfOutput) {
+        Matcher matcher = DF_AVAILABLE_PATTERN.matcher(dfOutput);
+        if (matcher.find()) {
+            return Long.parseLong(matcher.group(1));
+        }
+        matcher = DF_TABLE_PATTERN.matcher(dfOutput);
+        if (matcher.find()) {
+            try {
+                double freeSpace = Double.parseDouble(matcher.group(1));
+                if (matcher.group(2).equals("M")) {
+                    freeSpace *= 1024;
+                } else if (matcher.group(2).equals("G")) {
+                    freeSpace *= 1024 * 1024;
+                }
+                return (long)freeSpace;
+            } catch (NumberFormatException e) {
+                // fall through
+            }
+        }
+        return null;
+    }
+
     /**
      * @param fullEscapedPath
      * @throws DeviceNotAvailableException
@@ -23,11 +23,13 @@ import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.ShellCommandResult;
 import com.android.tradefed.log.LogUtil.CLog;
 
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
@@ -196,10 +198,12 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
         if (mDisableDalvikVerifier) {
             propertyBuilder.append("dalvik.vm.dexopt-flags = v=n\n");
         }
+        // shell commands to run in a single batch
+        List<String> commands = new ArrayList<String>();
         for (String prop : mSetProps) {
             if (prop.startsWith(PERSIST_PREFIX)) {
                 prop = prop.replace('=', ' ');
-                device.executeShellCommand("setprop " + prop);
+                commands.add("setprop " + prop);
             } else {
                 propertyBuilder.append(prop);
                 propertyBuilder.append("\n");
@@ -213,7 +217,10 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
                         device.getSerialNumber()));
             }
             // Set reasonable permissions for /data/local.prop
-            device.executeShellCommand("chmod 644 /data/local.prop");
+            commands.add("chmod 644 /data/local.prop");
+        }
+        executeShellCommands(device, commands);
+        if (propertyBuilder.length() > 0) {
             Log.i(LOG_TAG, String.format(
                     "Setup requires system property change. Reboot of %s required",
                     device.getSerialNumber()));
@@ -221,6 +228,26 @@ public class DeviceSetup implements ITargetPreparer, ITargetCleaner {
         }
     }
 
+    /**
+     * Run shell commands in a single batch, logging any that fail.
+     *
+     * @param device
+     * @param commands the shell commands to run
+     * @throws DeviceNotAvailableException
+     */
+    private void executeShellCommands(ITestDevice device, List<String> commands)
+            throws DeviceNotAvailableException {
+        if (commands.isEmpty()) {
+            return;
+        }
+        for (ShellCommandResult result : device.executeShellCommands(commands)) {
+            if (!result.isSuccess()) {
+                CLog.w("'%s' failed on %s with exit code %s: %s", result.getCommand(),
+                        device.getSerialNumber(), result.getExitCode(), result.getOutput());
+            }
+        }
+    }
+
     /**
      * Change additional settings for the device. This is intended to be overridden by subclass for
      * additional change of settings.
@@ -68,6 +68,7 @@ public class LocalSdkAvdPreparer extends SdkAvdPreparer {
             throw new TargetSetupError(
                     "Please set the path of the sdk using --local-sdk-path.");
         }
-        launchEmulatorForAvd(mSdkBuildInfo, device, createAvd(mSdkBuildInfo));
+        launchEmulatorForAvd(mSdkBuildInfo, device,
+                createAvd(mSdkBuildInfo, device.getSerialNumber()));
     }
 }
@@ -42,6 +42,7 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * A {@link ITargetPreparer} that will create an avd and launch an emulator
@@ -110,10 +111,24 @@ public class SdkAvdPreparer implements ITargetPreparer, ITargetCleaner {
             description = "Additional argument to launch the emulator with. Can be repeated.")
     private Collection<String> mEmulatorArgs = new ArrayList<String>();
 
+    @Option(name = "reuse-avd", description = "keep the avd created for a device, and reuse it " +
+            "in later invocations with the same sdk, system image and avd options.")
+    private boolean mReuseAvd = false;
+
+    @Option(name = "reuse-emulator", description = "if the device manager kept an emulator for " +
+            "the same avd running from an earlier invocation, reset it from a snapshot instead " +
+            "of killing it and cold booting. Implies --reuse-avd. Only has an effect if the " +
+            "device manager's emulator-pool-size is set.")
+    private boolean mReuseEmulator = false;
+
+    /** the file in a reused sdk home that records what its avd was created from */
+    private static final String AVD_KEY_FILE = "tradefed-avd-key.txt";
+
     private final IRunUtil mRunUtil;
     private IDeviceManager mDeviceManager;
 
     private File mSdkHome = null;
+    private boolean mKeepSdkHome = false;
 
     /**
      * Creates a {@link SdkAvdPreparer}.
@@ -142,7 +157,8 @@ public class SdkAvdPreparer implements ITargetPreparer, ITargetCleaner {
         Assert.assertTrue("Provided build is not a ISdkBuildInfo",
                 buildInfo instanceof ISdkBuildInfo);
         ISdkBuildInfo sdkBuildInfo = (ISdkBuildInfo)buildInfo;
-        launchEmulatorForAvd(sdkBuildInfo, device, createAvd(sdkBuildInfo));
+        launchEmulatorForAvd(sdkBuildInfo, device,
+                createAvd(sdkBuildInfo, device.getSerialNumber()));
     }
 
     /**
@@ -156,10 +172,48 @@ public class SdkAvdPreparer implements ITargetPreparer, ITargetCleaner {
      */
     public String createAvd(ISdkBuildInfo sdkBuildInfo)
           throws TargetSetupError, BuildError {
+        return createAvd(sdkBuildInfo, null);
+    }
+
+    /**
+     * Finds SDK target based on the {@link ISdkBuildInfo}, and creates AVD for this target, or
+     * reuses the AVD created for the same device by an earlier invocation.
+     *
+     * @param sdkBuildInfo the {@link ISdkBuildInfo}
+     * @param deviceSerial the serial of the device the AVD is for, or <code>null</code> if the
+     *            AVD should not be reused
+     * @return the AVD name
+     * @throws TargetSetupError if could not get targets
+     * @throws BuildError if failed to create the AVD
+     */
+    String createAvd(ISdkBuildInfo sdkBuildInfo, String deviceSerial)
+            throws TargetSetupError, BuildError {
         String[] targets = getSdkTargets(sdkBuildInfo);
-        setAndroidSdkHome();
         String target = findTargetToLaunch(targets);
-        return createAvdForTarget(sdkBuildInfo, target);
+        if (deviceSerial == null || !(mReuseAvd || mReuseEmulator)) {
+            setAndroidSdkHome();
+            return createAvdForTarget(sdkBuildInfo, target, createAvdName(target));
+        }
+        // name the avd after what it was created from, so that emulators launched from
+        // different avds never look alike
+        String avdKey = getAvdKey(sdkBuildInfo, target);
+        String avdName = String.format("%s-%08x", createAvdName(target), avdKey.hashCode());
+        File keyFile = setReusableSdkHome(avdName, deviceSerial);
+        File avdIni = FileUtil.getFileForPath(mSdkHome, ".android", "avd", avdName + ".ini");
+        try {
+            if (keyFile.exists() && avdIni.exists()
+                    && avdKey.equals(FileUtil.readStringFromFile(keyFile))) {
+                CLog.i("Reusing avd %s in %s", avdName, mSdkHome.getAbsolutePath());
+                return avdName;
+            }
+            keyFile.delete();
+            createAvdForTarget(sdkBuildInfo, target, avdName);
+            FileUtil.writeToFile(avdKey, keyFile);
+        } catch (IOException e) {
+            throw new TargetSetupError(String.format("Failed to access avd key file %s",
+                    keyFile.getAbsolutePath()));
+        }
+        return avdName;
     }
 
     /**
@@ -176,8 +230,14 @@ public class SdkAvdPreparer implements ITargetPreparer, ITargetCleaner {
     public void launchEmulatorForAvd(ISdkBuildInfo sdkBuild, ITestDevice device, String avd)
             throws DeviceNotAvailableException, TargetSetupError, BuildError {
         if (!device.getDeviceState().equals(TestDeviceState.NOT_AVAILABLE)) {
-            CLog.w("Emulator %s is already running, killing", device.getSerialNumber());
-            getDeviceManager().killEmulator(device);
+            if (mReuseEmulator) {
+                // the device manager resets the emulator if it is running the same avd
+                CLog.i("Emulator %s is already running, trying to reuse it",
+                        device.getSerialNumber());
+            } else {
+                CLog.w("Emulator %s is already running, killing", device.getSerialNumber());
+                getDeviceManager().killEmulator(device);
+            }
         } else if (!device.getIDevice().isEmulator()) {
             throw new TargetSetupError("Invalid stub device, it is not of type emulator");
         }
@@ -230,6 +290,10 @@ public class SdkAvdPreparer implements ITargetPreparer, ITargetCleaner {
 
         setCommandList(emulatorArgs, "-system", mEmulatorSystemImage);
         setCommandList(emulatorArgs, "-ramdisk", mEmulatorRamdiskImage);
+        if (mKeepSdkHome) {
+            // a reused avd still holds the user data of the last emulator that ran it
+            emulatorArgs.add("-wipe-data");
+        }
 
         // qemu must be the last parameter, it assumes params that follow it are it's own
         if(mForceKvm) {
@@ -321,6 +385,80 @@ public class SdkAvdPreparer implements ITargetPreparer, ITargetCleaner {
         }
     }
 
+    /**
+     * Sets the ANDROID_SDK_HOME environment variable to a directory that is kept between
+     * invocations, for the given AVD and device.
+     *
+     * @return the {@link File} recording what the AVD in the directory was created from
+     */
+    private File setReusableSdkHome(String avdName, String deviceSerial)
+            throws TargetSetupError {
+        try {
+            File tmpParent = FileUtil.createNamedTempDir("SDK_homes");
+            mSdkHome = new File(tmpParent, String.format("%s-%s", avdName, deviceSerial));
+            deleteStaleSdkHomes(tmpParent, mSdkHome, deviceSerial);
+            if (!mSdkHome.isDirectory() && !mSdkHome.mkdirs()) {
+                throw new IOException();
+            }
+            mKeepSdkHome = true;
+            mRunUtil.setEnvVariable("ANDROID_SDK_HOME", mSdkHome.getAbsolutePath());
+            return new File(mSdkHome, AVD_KEY_FILE);
+        } catch (IOException e) {
+            throw new TargetSetupError("Failed to create sdk home");
+        }
+    }
+
+    /**
+     * Deletes the sdk homes kept for other AVDs of the same device, so that only the AVD last
+     * used by each device is kept. An emulator running an older AVD is killed before it is
+     * launched again, so its sdk home is no longer needed.
+     *
+     * @param parent the directory holding the kept sdk homes
+     * @param current the sdk home to keep
+     * @param deviceSerial the serial of the device
+     */
+    static void deleteStaleSdkHomes(File parent, File current, String deviceSerial) {
+        File[] sdkHomes = parent.listFiles();
+        if (sdkHomes == null) {
+            return;
+        }
+        String suffix = "-" + deviceSerial;
+        for (File sdkHome : sdkHomes) {
+            if (sdkHome.isDirectory() && sdkHome.getName().endsWith(suffix)
+                    && !sdkHome.equals(current)) {
+                CLog.i("Removing stale sdk home dir %s", sdkHome.getAbsolutePath());
+                FileUtil.recursiveDelete(sdkHome);
+            }
+        }
+    }
+
+    /**
+     * Describes everything an AVD is created from, so a reused AVD can be checked against the
+     * current sdk and options.
+     */
+    private String getAvdKey(ISdkBuildInfo sdkBuild, String target) {
+        StringBuilder key = new StringBuilder();
+        key.append("sdk=").append(describeFile(sdkBuild.getSdkDir())).append('\n');
+        key.append("system-image=").append(describeFile(mEmulatorSystemImage == null ? null :
+                new File(mEmulatorSystemImage))).append('\n');
+        key.append("target=").append(target).append('\n');
+        key.append("abi=").append(mAbi).append('\n');
+        key.append("device=").append(mDevice).append('\n');
+        key.append("sdcard=").append(mSdcardSize).append('\n');
+        key.append("tag=").append(mAvdTag).append('\n');
+        key.append("skin=").append(mAvdSkin).append('\n');
+        key.append("hw-options=").append(new TreeMap<String, String>(mHwOptions)).append('\n');
+        return key.toString();
+    }
+
+    private static String describeFile(File file) {
+        if (file == null) {
+            return "none";
+        }
+        return String.format("%s:%d:%d", file.getAbsolutePath(), file.length(),
+                file.lastModified());
+    }
+
     /**
      * Find the SDK target to use.
      * <p/>IOException
@@ -350,15 +488,15 @@ public class SdkAvdPreparer implements ITargetPreparer, ITargetCleaner {
      *
      * @param sdkBuild the {@link ISdkBuildInfo}
      * @param target the SDK target name
+     * @param targetName the name of the AVD to create
      * @return the created AVD name
      * @throws BuildError if failed to create the AVD
      *
      */
-    private String createAvdForTarget(ISdkBuildInfo sdkBuild, String target)
-            throws BuildError, TargetSetupError {
+    private String createAvdForTarget(ISdkBuildInfo sdkBuild, String target,
+            String targetName) throws BuildError, TargetSetupError {
         // answer 'no' when prompted for creating a custom hardware profile
         final String cmdInput = "no\r\n";
-        final String targetName = createAvdName(target);
         final String successPattern = String.format("Created AVD '%s'", targetName);
         CLog.d("Creating avd for target %s with name %s", target, targetName);
 
@@ -489,9 +627,12 @@ public class SdkAvdPreparer implements ITargetPreparer, ITargetCleaner {
     public void tearDown(ITestDevice device, IBuildInfo buildInfo, Throwable e)
             throws DeviceNotAvailableException {
         if (mSdkHome != null) {
-            CLog.i("Removing tmp sdk home dir %s", mSdkHome.getAbsolutePath());
-            FileUtil.recursiveDelete(mSdkHome);
+            if (!mKeepSdkHome) {
+                CLog.i("Removing tmp sdk home dir %s", mSdkHome.getAbsolutePath());
+                FileUtil.recursiveDelete(mSdkHome);
+            }
             mSdkHome = null;
+            mKeepSdkHome = false;
         }
     }
 
@@ -57,6 +57,14 @@ public abstract class CompanionAllocator implements ITargetCleaner {
      */
     protected abstract DeviceSelectionOptions getCompanionDeviceSelectionOptions();
 
+    /**
+     * Describe the selection options for the companion device, so the scheduler can allocate it
+     * together with the primary device.
+     */
+    public DeviceSelectionOptions getCompanionDeviceRequirements() {
+        return getCompanionDeviceSelectionOptions();
+    }
+
     @Override
     public void tearDown(ITestDevice device, IBuildInfo buildInfo, Throwable e)
             throws DeviceNotAvailableException {
@@ -24,11 +24,18 @@ import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.log.LogUtil.CLog;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
  * A class for allocating and freeing companion devices
+ * <p/>
+ * Companion devices are normally allocated by the scheduler together with the primary device, and
+ * handed over via {@link #reserveCompanionDevices(ITestDevice, List)}. In that case they are
+ * freed together with the primary device, rather than by {@link #freeCompanionDevice(ITestDevice)}.
  */
 public class CompanionDeviceTracker {
 
@@ -36,35 +43,73 @@ public class CompanionDeviceTracker {
 
     private Map<ITestDevice, ITestDevice> mDeviceMapping = null;
 
+    /** companion devices allocated with each primary device by the scheduler */
+    private Map<ITestDevice, List<ITestDevice>> mReservedDevices = null;
+
     private CompanionDeviceTracker() {
         mDeviceMapping = new HashMap<ITestDevice, ITestDevice>();
+        mReservedDevices = new HashMap<ITestDevice, List<ITestDevice>>();
     }
 
     /**
      * Retrieves singleton instance of the tracker
      * @return
      */
-    public static CompanionDeviceTracker getInstance() {
+    public static synchronized CompanionDeviceTracker getInstance() {
         if (sInst == null) {
             sInst = new CompanionDeviceTracker();
         }
         return sInst;
     }
 
+    /**
+     * Record the companion devices that were allocated together with a primary device.
+     *
+     * @param device the primary device
+     * @param companions the companion devices allocated with it
+     */
+    public synchronized void reserveCompanionDevices(ITestDevice device,
+            List<ITestDevice> companions) {
+        mReservedDevices.put(device, new ArrayList<ITestDevice>(companions));
+    }
+
+    /**
+     * Stop tracking the companion devices allocated together with a primary device.
+     *
+     * @param device the primary device
+     * @return the companion devices that were allocated with it, which the caller should free
+     */
+    public synchronized List<ITestDevice> releaseCompanionDevices(ITestDevice device) {
+        List<ITestDevice> companions = mReservedDevices.remove(device);
+        if (companions == null) {
+            return Collections.emptyList();
+        }
+        if (companions.contains(mDeviceMapping.get(device))) {
+            mDeviceMapping.remove(device);
+        }
+        return companions;
+    }
+
     /**
      * Allocate a companion device based on selection criteria.
+     * <p/>
+     * If companion devices were already allocated with the primary device, one matching the
+     * criteria is used instead of allocating a new one.
      *
      * @param device the primary device. used to identify the companion device
      * @param opt selection criteria
-     * @param timeout time to wait before giving up on allocation
      * @return the device allocated or <code>null</code> if none available
      */
-    public ITestDevice allocateCompanionDevice(ITestDevice device, DeviceSelectionOptions opt) {
-        ITestDevice companion = getDeviceManager().allocateDevice(opt);
+    public synchronized ITestDevice allocateCompanionDevice(ITestDevice device,
+            DeviceSelectionOptions opt) {
+        ITestDevice companion = findReservedDevice(device, opt);
+        if (companion == null) {
+            companion = getDeviceManager().allocateDevice(opt);
+        }
         if (companion != null) {
             if (mDeviceMapping.containsKey(device)) {
                 CLog.w("device %s already has an allocated companion %s",
-                        device.getSerialNumber(), mDeviceMapping.get(companion).getSerialNumber());
+                        device.getSerialNumber(), mDeviceMapping.get(device).getSerialNumber());
             }
             CLog.i("allocated companion device %s for primary device %s",
                     companion.getSerialNumber(), device.getSerialNumber());
@@ -73,17 +118,38 @@ public class CompanionDeviceTracker {
         return companion;
     }
 
+    private ITestDevice findReservedDevice(ITestDevice device, DeviceSelectionOptions opt) {
+        List<ITestDevice> companions = mReservedDevices.get(device);
+        if (companions != null) {
+            for (ITestDevice companion : companions) {
+                if (companion != mDeviceMapping.get(device)
+                        && opt.matches(companion.getIDevice())) {
+                    return companion;
+                }
+            }
+        }
+        return null;
+    }
+
     /**
      * Free the companion device as identified by the primary device
+     * <p/>
+     * Companion devices allocated together with the primary device are not freed here.
+     *
      * @param device the primary device whose corresponding companion device should be freed
-     * @throws IllegalStateException if no companion devices
      */
-    public void freeCompanionDevice(ITestDevice device) {
+    public synchronized void freeCompanionDevice(ITestDevice device) {
         if (!mDeviceMapping.containsKey(device)) {
             CLog.w("primary device %s has no tracked companion device", device.getSerialNumber());
             return;
         }
         ITestDevice companion = mDeviceMapping.remove(device);
+        List<ITestDevice> reserved = mReservedDevices.get(device);
+        if (reserved != null && reserved.contains(companion)) {
+            CLog.d("companion device %s will be freed with primary device %s",
+                    companion.getSerialNumber(), device.getSerialNumber());
+            return;
+        }
         getDeviceManager().freeDevice(companion, FreeDeviceState.AVAILABLE);
         CLog.i("freed companion device %s for primary device %s",
                 companion.getSerialNumber(), device.getSerialNumber());
@@ -94,12 +160,11 @@ public class CompanionDeviceTracker {
      * @param device the primary device that the companion device is allocated with
      * @return the companion device or <code>null</code> if not found
      */
-    public ITestDevice getCompanionDevice(ITestDevice device) {
+    public synchronized ITestDevice getCompanionDevice(ITestDevice device) {
         return mDeviceMapping.get(device);
     }
 
     private IDeviceManager getDeviceManager() {
         return GlobalConfiguration.getDeviceManagerInstance();
     }
-
 }
@@ -20,13 +20,22 @@ import com.android.ddmlib.FileListingService;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.OptionClass;
+import com.android.tradefed.device.CollectingOutputReceiver;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.IFileEntry;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -61,6 +70,24 @@ public class GTest implements IDeviceTest, IRemoteTest {
         "Test run will be aborted if any test takes longer.")
     private int mMaxTestTimeMs = 1 * 60 * 1000;
 
+    @Option(name = "native-test-case-timeout", description =
+        "The max time in ms for a single test case to run. If exceeded, the test is reported " +
+        "as failed and the remaining tests are rerun. 0 means no limit.")
+    private long mMaxTestCaseTimeMs = 0;
+
+    @Option(name = "rerun-after-crash", description =
+        "Rerun the remaining tests of a gtest binary if it crashes or a test case times out.")
+    private boolean mRerunAfterCrash = true;
+
+    @Option(name = "max-crash-reruns", description =
+        "The max number of times the remaining tests of a single gtest binary will be rerun.")
+    private int mMaxCrashReruns = 3;
+
+    @Option(name = "max-test-output-size", description =
+        "The max number of bytes of output to capture for each test case. Once exceeded, only " +
+        "the beginning and end of the test output is kept.")
+    private int mMaxTestOutputBytes = GTestResultParser.DEFAULT_MAX_TEST_OUTPUT_BYTES;
+
     @Option(name = "send-coverage",
             description = "Send coverage target info to test listeners.")
     private boolean mSendCoverage = true;
@@ -72,6 +99,8 @@ public class GTest implements IDeviceTest, IRemoteTest {
     private static final String GTEST_FLAG_PRINT_TIME = "--gtest_print_time";
     private static final String GTEST_FLAG_FILTER = "--gtest_filter";
     private static final String GTEST_FLAG_RUN_DISABLED_TESTS = "--gtest_also_run_disabled_tests";
+    private static final String GTEST_FLAG_LIST_TESTS = "--gtest_list_tests";
+    private static final String GTEST_DISABLED_PREFIX = "DISABLED_";
 
     /**
      * {@inheritDoc}
@@ -132,6 +161,24 @@ public class GTest implements IDeviceTest, IRemoteTest {
         mMaxTestTimeMs = timeout;
     }
 
+    /**
+     * Set the max time in ms for a single gtest test case to run.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setMaxTestCaseTimeMs(long timeout) {
+        mMaxTestCaseTimeMs = timeout;
+    }
+
+    /**
+     * Set whether the remaining tests should be rerun after a crash.
+     * <p/>
+     * Exposed for unit testing
+     */
+    void setRerunAfterCrash(boolean rerun) {
+        mRerunAfterCrash = rerun;
+    }
+
     /**
      * Set the Android native test name to run (positive filter).
      *
@@ -247,7 +294,173 @@ public class GTest implements IDeviceTest, IRemoteTest {
             // force file to be executable
             testDevice.executeShellCommand(String.format("chmod 755 %s", fullPath));
             runTest(testDevice, resultParser, fullPath, flags);
+            if (mRerunAfterCrash && resultParser instanceof GTestResultParser) {
+                rerunRemainingTests(testDevice, (GTestResultParser)resultParser,
+                        rootEntry.getName(), listener, fullPath);
+            }
+        }
+    }
+
+    /**
+     * Rerun the tests that did not complete, until the run completes or no progress is made.
+     *
+     * @param testDevice the {@link ITestDevice}
+     * @param firstParser the result parser of the initial run
+     * @param runName the test run name
+     * @param listener the {@link ITestRunListener}
+     * @param fullPath absolute file system path to gtest binary on device
+     * @throws DeviceNotAvailableException
+     */
+    private void rerunRemainingTests(ITestDevice testDevice, GTestResultParser firstParser,
+            String runName, ITestRunListener listener, String fullPath)
+            throws DeviceNotAvailableException {
+        GTestResultParser parser = firstParser;
+        Set<TestIdentifier> doneTests = new HashSet<TestIdentifier>();
+        List<TestIdentifier> allTests = null;
+        int reruns = 0;
+        while (parser.isRunIncomplete() && reruns < mMaxCrashReruns) {
+            if (parser.getCompletedTests().isEmpty() && parser.getIncompleteTest() == null) {
+                Log.w(LOG_TAG, String.format("No tests of %s ran, not rerunning", fullPath));
+                return;
+            }
+            doneTests.addAll(parser.getCompletedTests());
+            if (parser.getIncompleteTest() != null) {
+                // skip the test that crashed or timed out, it has already been reported
+                doneTests.add(parser.getIncompleteTest());
+            }
+            if (allTests == null) {
+                allTests = listTests(testDevice, fullPath);
+            }
+            List<TestIdentifier> remainingTests = new ArrayList<TestIdentifier>();
+            for (TestIdentifier test : allTests) {
+                if (!doneTests.contains(test)) {
+                    remainingTests.add(test);
+                }
+            }
+            if (remainingTests.isEmpty()) {
+                return;
+            }
+            reruns++;
+            String flags = getRerunGTestFlags(allTests, remainingTests, mRunDisabledTests);
+            Log.i(LOG_TAG, String.format("Rerunning %d remaining tests of %s on %s, attempt %d",
+                    remainingTests.size(), fullPath, mDevice.getSerialNumber(), reruns));
+            IShellOutputReceiver receiver = createResultParser(runName, listener);
+            runTest(testDevice, receiver, fullPath, flags);
+            if (!(receiver instanceof GTestResultParser)) {
+                return;
+            }
+            parser = (GTestResultParser)receiver;
+        }
+    }
+
+    /**
+     * Get the tests in the given gtest binary that match the configured filters.
+     *
+     * @param testDevice the {@link ITestDevice}
+     * @param fullPath absolute file system path to gtest binary on device
+     * @return the {@link List} of tests, in execution order
+     * @throws DeviceNotAvailableException
+     */
+    private List<TestIdentifier> listTests(ITestDevice testDevice, String fullPath)
+            throws DeviceNotAvailableException {
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        String cmd = getGTestCmdLine(fullPath, String.format("%s %s", GTEST_FLAG_LIST_TESTS,
+                getGTestFilters()));
+        testDevice.executeShellCommand(cmd, receiver, mMaxTestTimeMs, TimeUnit.MILLISECONDS,
+                0 /* retryAttempts */);
+        return parseTestList(receiver.getOutput(), mRunDisabledTests);
+    }
+
+    /**
+     * Parse the output of --gtest_list_tests.
+     * <p/>
+     * Exposed for unit testing.
+     *
+     * @param output the list output, which is of the form
+     *
+     * <pre>
+     * TestCase1.
+     *   Test1
+     *   Test2  # GetParam() = 2
+     * </pre>
+     * @param includeDisabled whether to include disabled tests
+     * @return the {@link List} of tests
+     */
+    static List<TestIdentifier> parseTestList(String output, boolean includeDisabled) {
+        List<TestIdentifier> tests = new ArrayList<TestIdentifier>();
+        String testCase = null;
+        for (String line : output.split("\r?\n")) {
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            int commentIndex = line.indexOf('#');
+            if (commentIndex >= 0) {
+                line = line.substring(0, commentIndex);
+            }
+            if (!Character.isWhitespace(line.charAt(0))) {
+                line = line.trim();
+                testCase = line.endsWith(".") ? line.substring(0, line.length() - 1) : line;
+            } else if (testCase != null) {
+                String testName = line.trim();
+                if (includeDisabled || (!testCase.startsWith(GTEST_DISABLED_PREFIX) &&
+                        !testName.startsWith(GTEST_DISABLED_PREFIX))) {
+                    tests.add(new TestIdentifier(testCase, testName));
+                }
+            }
         }
+        return tests;
+    }
+
+    /**
+     * Helper to get the GTest flags to rerun the given tests.
+     * <p/>
+     * Test cases that are entirely remaining are selected with a wildcard to keep the command
+     * line short.
+     *
+     * @param allTests all tests in the binary
+     * @param remainingTests the tests to run
+     * @param runDisabled whether disabled tests should be run
+     * @return the {@link String} of GTest flags
+     */
+    static String getRerunGTestFlags(List<TestIdentifier> allTests,
+            List<TestIdentifier> remainingTests, boolean runDisabled) {
+        Map<String, Integer> testCaseSizes = new LinkedHashMap<String, Integer>();
+        for (TestIdentifier test : allTests) {
+            Integer size = testCaseSizes.get(test.getClassName());
+            testCaseSizes.put(test.getClassName(), size == null ? 1 : size + 1);
+        }
+        Map<String, List<String>> remainingByCase = new LinkedHashMap<String, List<String>>();
+        for (TestIdentifier test : remainingTests) {
+            List<String> names = remainingByCase.get(test.getClassName());
+            if (names == null) {
+                names = new ArrayList<String>();
+                remainingByCase.put(test.getClassName(), names);
+            }
+            names.add(test.getTestName());
+        }
+        StringBuilder filter = new StringBuilder();
+        for (Map.Entry<String, List<String>> testCase : remainingByCase.entrySet()) {
+            if (testCase.getValue().size() == testCaseSizes.get(testCase.getKey())) {
+                appendFilterPattern(filter, testCase.getKey() + ".*");
+            } else {
+                for (String testName : testCase.getValue()) {
+                    appendFilterPattern(filter, testCase.getKey() + "." + testName);
+                }
+            }
+        }
+        String flags = String.format("%s %s=%s", GTEST_FLAG_PRINT_TIME, GTEST_FLAG_FILTER,
+                filter);
+        if (runDisabled) {
+            flags = String.format("%s %s", flags, GTEST_FLAG_RUN_DISABLED_TESTS);
+        }
+        return flags;
+    }
+
+    private static void appendFilterPattern(StringBuilder filter, String pattern) {
+        if (filter.length() > 0) {
+            filter.append(':');
+        }
+        filter.append(pattern);
     }
 
     /**
@@ -261,13 +474,19 @@ public class GTest implements IDeviceTest, IRemoteTest {
      */
     private void runTest(final ITestDevice testDevice, final IShellOutputReceiver resultParser,
             final String fullPath, final String flags) throws DeviceNotAvailableException {
-        // TODO: add individual test timeout support, and rerun support
         try {
             String cmd = getGTestCmdLine(fullPath, flags);
             testDevice.executeShellCommand(cmd, resultParser,
                     mMaxTestTimeMs /* maxTimeToShellOutputResponse */,
                     TimeUnit.MILLISECONDS,
                     0 /* retryAttempts */);
+            if (resultParser instanceof GTestResultParser &&
+                    ((GTestResultParser)resultParser).isTestTimedOut()) {
+                // a cancelled shell command is not flushed by adb, so report the incomplete
+                // results here
+                resultParser.flush();
+                killTest(testDevice, fullPath);
+            }
         } catch (DeviceNotAvailableException e) {
             // TODO: consider moving the flush of parser data on exceptions to TestDevice or
             // AdbHelper
@@ -279,6 +498,23 @@ public class GTest implements IDeviceTest, IRemoteTest {
         }
     }
 
+    /**
+     * Kill a gtest binary that is still running on the device, so that it does not run alongside
+     * a rerun or the next binary.
+     *
+     * @param testDevice the {@link ITestDevice}
+     * @param fullPath absolute file system path to gtest binary on device
+     * @throws DeviceNotAvailableException
+     */
+    private void killTest(ITestDevice testDevice, String fullPath)
+            throws DeviceNotAvailableException {
+        String binaryName = fullPath.substring(fullPath.lastIndexOf(
+                FileListingService.FILE_SEPARATOR) + 1);
+        Log.w(LOG_TAG, String.format("Killing timed out gtest %s on %s", fullPath,
+                mDevice.getSerialNumber()));
+        testDevice.executeShellCommand(String.format("kill -9 $(pidof %s)", binaryName));
+    }
+
     /**
      * Helper method to build the gtest command to run.
      *
@@ -301,7 +537,9 @@ public class GTest implements IDeviceTest, IRemoteTest {
      * @return a {@link IShellOutputReceiver}
      */
     IShellOutputReceiver createResultParser(String runName, ITestRunListener listener) {
-        GTestResultParser resultParser = new GTestResultParser(runName, listener);
+        GTestResultParser resultParser = new GTestResultParser(runName,
+                Collections.singletonList(listener), mMaxTestOutputBytes);
+        resultParser.setTestTimeout(mMaxTestCaseTimeMs);
         // TODO: find a better solution for sending coverage info
         if (mSendCoverage) {
             resultParser.setCoverageTarget(COVERAGE_TARGET);
@@ -314,7 +552,6 @@ public class GTest implements IDeviceTest, IRemoteTest {
      */
     @Override
     public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
-        // @TODO: add support for rerunning tests
         if (mDevice == null) {
             throw new IllegalArgumentException("Device has not been set");
         }
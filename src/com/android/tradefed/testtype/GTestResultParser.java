@@ -17,16 +17,18 @@ package com.android.tradefed.testtype;
 
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
-import com.android.ddmlib.MultiLineReceiver;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.testtype.testdefs.XmlDefsTest;
 
+import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -85,10 +87,28 @@ import java.util.regex.Pattern;
  * </pre>
  *
  * All other lines are ignored.
+ * <p/>
+ * Output is parsed directly from the shell output byte stream. Only tag lines are decoded into
+ * strings, and the output captured for each test is bounded: once the limit is reached only the
+ * beginning and the end of the test's output are kept.
  */
-public class GTestResultParser extends MultiLineReceiver {
+public class GTestResultParser implements IShellOutputReceiver {
     private static final String LOG_TAG = "GTestResultParser";
 
+    /** default max number of bytes of output to capture per test */
+    static final int DEFAULT_MAX_TEST_OUTPUT_BYTES = 64 * 1024;
+    /** max number of bytes of a single line that will be buffered for parsing */
+    private static final int MAX_LINE_BYTES = 4 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String TEST_OUTPUT_LINE_SEPARATOR = "\r\n";
+    private static final byte[] TEST_OUTPUT_LINE_SEPARATOR_BYTES =
+            TEST_OUTPUT_LINE_SEPARATOR.getBytes(UTF_8);
+
+    private static final Pattern TEST_TIME_PATTERN = Pattern.compile(".*(\\((\\d+) ms\\))");
+    private static final Pattern NUM_TESTS_PATTERN =
+            Pattern.compile("Running (\\d+) test[s]? from .*");
+    private static final Pattern RUN_TIME_PATTERN = Pattern.compile(".*\\((\\d+) ms total\\)");
+
     // Variables to keep track of state
     private TestResult mCurrentTestResult = null;
     private int mNumTestsRun = 0;
@@ -106,15 +126,119 @@ public class GTestResultParser extends MultiLineReceiver {
     /** True if current test run has been canceled by user. */
     private boolean mIsCancelled = false;
 
+    /** True if the end of the shell session has already been processed. */
+    private boolean mIsDone = false;
+
     private String mCoverageTarget = null;
 
+    /** buffer for the line currently being received */
+    private final byte[] mLineBuffer = new byte[MAX_LINE_BYTES];
+    private int mLineLength = 0;
+
+    /** output of the test in progress. Reused across tests */
+    private final BoundedOutput mTestOutput;
+
+    /** max time in ms a single test may run before the run is cancelled. 0 means no limit */
+    private long mTestTimeoutMs = 0;
+    private long mTestStartTime = 0;
+    private boolean mTestTimedOut = false;
+
+    /** tests that ran to completion, whether they passed or failed */
+    private final Set<TestIdentifier> mCompletedTests = new LinkedHashSet<TestIdentifier>();
+    /** the test that was in progress when the run failed, if any */
+    private TestIdentifier mIncompleteTest = null;
+    private boolean mRunIncomplete = false;
+
+    /**
+     * Captures test output up to a fixed number of bytes. Once full, the first half of the
+     * capacity holds the beginning of the output and the second half is a ring buffer of the
+     * most recent output.
+     */
+    private static class BoundedOutput {
+        private final int mHeadCapacity;
+        private final int mTailCapacity;
+        private byte[] mHead = null;
+        private byte[] mTail = null;
+        private int mHeadLength = 0;
+        private int mTailPos = 0;
+        private long mTotalBytes = 0;
+        private boolean mHasLines = false;
+
+        BoundedOutput(int maxBytes) {
+            mHeadCapacity = maxBytes / 2;
+            mTailCapacity = maxBytes - mHeadCapacity;
+        }
+
+        void clear() {
+            mHeadLength = 0;
+            mTailPos = 0;
+            mTotalBytes = 0;
+            mHasLines = false;
+        }
+
+        boolean isEmpty() {
+            return !mHasLines;
+        }
+
+        void appendLine(byte[] data, int offset, int length) {
+            if (mHead == null) {
+                mHead = new byte[mHeadCapacity];
+                mTail = new byte[mTailCapacity];
+            }
+            if (mHasLines) {
+                write(TEST_OUTPUT_LINE_SEPARATOR_BYTES, 0, TEST_OUTPUT_LINE_SEPARATOR_BYTES.length);
+            }
+            write(data, offset, length);
+            mHasLines = true;
+        }
+
+        private void write(byte[] data, int offset, int length) {
+            int headBytes = Math.min(length, mHeadCapacity - mHeadLength);
+            System.arraycopy(data, offset, mHead, mHeadLength, headBytes);
+            mHeadLength += headBytes;
+            mTotalBytes += length;
+            if (mTailCapacity == 0) {
+                return;
+            }
+            for (int i = offset + headBytes; i < offset + length; i++) {
+                mTail[mTailPos % mTailCapacity] = data[i];
+                mTailPos++;
+                if (mTailPos == 2 * mTailCapacity) {
+                    // keep position bounded while remembering that the ring has wrapped
+                    mTailPos = mTailCapacity;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder output = new StringBuilder(new String(mHead, 0, mHeadLength, UTF_8));
+            int tailLength = Math.min(mTailPos, mTailCapacity);
+            if (tailLength == 0) {
+                return output.toString();
+            }
+            long truncated = mTotalBytes - mHeadLength - tailLength;
+            byte[] tail = new byte[tailLength];
+            int start = mTailPos > mTailCapacity ? mTailPos % mTailCapacity : 0;
+            for (int i = 0; i < tailLength; i++) {
+                tail[i] = mTail[(start + i) % mTailCapacity];
+            }
+            if (truncated > 0) {
+                output.append(TEST_OUTPUT_LINE_SEPARATOR);
+                output.append(String.format("... [%d bytes of output truncated] ...", truncated));
+                output.append(TEST_OUTPUT_LINE_SEPARATOR);
+            }
+            output.append(new String(tail, 0, tailLength, UTF_8));
+            return output.toString();
+        }
+    }
+
     /**
      * Test result data
      */
-    private static class TestResult {
+    private class TestResult {
         private String mTestName = null;
         private String mTestClass = null;
-        private StringBuilder mStackTrace = null;
         @SuppressWarnings("unused")
         private Long mRunTime = null;
 
@@ -131,7 +255,7 @@ public class GTestResultParser extends MultiLineReceiver {
          * @return true if there is currently a stack trace, false otherwise
          */
         boolean hasStackTrace() {
-            return mStackTrace != null;
+            return !mTestOutput.isEmpty();
         }
 
         /**
@@ -143,7 +267,7 @@ public class GTestResultParser extends MultiLineReceiver {
          */
         String getTrace() {
             if (hasStackTrace()) {
-                return mStackTrace.toString();
+                return mTestOutput.toString();
             } else {
                 Log.e(LOG_TAG, "Could not find stack trace for failed test");
                 return new Throwable("Unknown failure").toString();
@@ -200,8 +324,22 @@ public class GTestResultParser extends MultiLineReceiver {
      * @param listeners informed of test results as the tests are executing
      */
     public GTestResultParser(String testRunName, Collection<ITestRunListener> listeners) {
+        this(testRunName, listeners, DEFAULT_MAX_TEST_OUTPUT_BYTES);
+    }
+
+    /**
+     * Creates the GTestResultParser with a custom per-test output limit.
+     *
+     * @param testRunName the test run name to provide to
+     *            {@link ITestRunListener#testRunStarted(String, int)}
+     * @param listeners informed of test results as the tests are executing
+     * @param maxTestOutputBytes the max number of bytes of output to capture for each test
+     */
+    public GTestResultParser(String testRunName, Collection<ITestRunListener> listeners,
+            int maxTestOutputBytes) {
         mTestRunName = testRunName;
         mTestListeners = new ArrayList<ITestRunListener>(listeners);
+        mTestOutput = new BoundedOutput(maxTestOutputBytes);
     }
 
     /**
@@ -212,9 +350,7 @@ public class GTestResultParser extends MultiLineReceiver {
      * @param listener informed of test results as the tests are executing
      */
     public GTestResultParser(String testRunName, ITestRunListener listener) {
-        mTestRunName = testRunName;
-        mTestListeners = new ArrayList<ITestRunListener>(1);
-        mTestListeners.add(listener);
+        this(testRunName, Collections.singletonList(listener));
     }
 
     /**
@@ -235,17 +371,70 @@ public class GTestResultParser extends MultiLineReceiver {
      */
     private void clearCurrentTestResult() {
         mCurrentTestResult = null;
+        mTestOutput.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p/>
+     * Splits the raw output into lines without decoding it. Lines are trimmed of surrounding
+     * whitespace, and only the first {@link #MAX_LINE_BYTES} bytes of a line are kept.
+     */
+    @Override
+    public void addOutput(byte[] data, int offset, int length) {
+        if (isCancelled()) {
+            return;
+        }
+        for (int i = offset; i < offset + length; i++) {
+            byte b = data[i];
+            if (b == '\n') {
+                parseLineBuffer();
+            } else if (mLineLength < MAX_LINE_BYTES) {
+                mLineBuffer[mLineLength++] = b;
+            }
+        }
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
+    public void flush() {
+        if (mLineLength > 0) {
+            parseLineBuffer();
+        }
+        done();
+    }
+
+    /**
+     * Parses the buffered line, and resets the buffer.
+     */
+    private void parseLineBuffer() {
+        int start = 0;
+        int end = mLineLength;
+        while (start < end && mLineBuffer[start] <= ' ') {
+            start++;
+        }
+        while (end > start && mLineBuffer[end - 1] <= ' ') {
+            end--;
+        }
+        mLineLength = 0;
+        if (end > start && mLineBuffer[start] == '[') {
+            parse(new String(mLineBuffer, start, end - start, UTF_8));
+        } else if (mTestRunInProgress && testInProgress()) {
+            // Note this does not handle the case of an error outside an actual test run
+            mTestOutput.appendLine(mLineBuffer, start, end - start);
+        }
+    }
+
+    /**
+     * Process output that has already been split into lines.
+     *
+     * @param lines the output lines
+     */
     public void processNewLines(String[] lines) {
         for (String line : lines) {
             parse(line);
-            // in verbose mode, dump all adb output to log
-            Log.v(LOG_TAG, line);
         }
     }
 
@@ -302,9 +491,55 @@ public class GTestResultParser extends MultiLineReceiver {
      */
     @Override
     public boolean isCancelled() {
+        if (!mIsCancelled && mTestTimeoutMs > 0 && testInProgress() &&
+                System.currentTimeMillis() - mTestStartTime > mTestTimeoutMs) {
+            Log.w(LOG_TAG, String.format("Test %s timed out after %d ms, cancelling run",
+                    getCurrentTestResult(), mTestTimeoutMs));
+            mTestTimedOut = true;
+            mIsCancelled = true;
+        }
         return mIsCancelled;
     }
 
+    /**
+     * Sets the max time a single test may run. If exceeded, the run will be cancelled and the
+     * test reported as failed.
+     *
+     * @param timeoutMs the timeout in ms. 0 means no limit
+     */
+    public void setTestTimeout(long timeoutMs) {
+        mTestTimeoutMs = timeoutMs;
+    }
+
+    /**
+     * @return <code>true</code> if the run was cancelled because a test timed out
+     */
+    public boolean isTestTimedOut() {
+        return mTestTimedOut;
+    }
+
+    /**
+     * @return <code>true</code> if the run ended before all expected tests completed, eg because
+     *         the test binary crashed or a test timed out
+     */
+    public boolean isRunIncomplete() {
+        return mRunIncomplete;
+    }
+
+    /**
+     * @return the tests that ran to completion, whether they passed or failed
+     */
+    public Set<TestIdentifier> getCompletedTests() {
+        return mCompletedTests;
+    }
+
+    /**
+     * @return the test that was in progress when the run failed, or <code>null</code>
+     */
+    public TestIdentifier getIncompleteTest() {
+        return mIncompleteTest;
+    }
+
     /**
      * Requests cancellation of test run.
      */
@@ -393,8 +628,7 @@ public class GTestResultParser extends MultiLineReceiver {
     private ParsedTestInfo parseTestIdentifier(String identifier) {
         ParsedTestInfo returnInfo = new ParsedTestInfo("UNKNOWN_CLASS", "UNKNOWN_TEST", null);
 
-        Pattern timePattern = Pattern.compile(".*(\\((\\d+) ms\\))");  // eg: (XX ms)
-        Matcher time = timePattern.matcher(identifier);
+        Matcher time = TEST_TIME_PATTERN.matcher(identifier);  // eg: (XX ms)
 
         // Try to find a time
         if (time.find()) {
@@ -423,8 +657,7 @@ public class GTestResultParser extends MultiLineReceiver {
      */
     private void processRunStartedTag(String identifier) {
         // eg: (Running XX tests from 1 test case.)
-        Pattern numTestsPattern = Pattern.compile("Running (\\d+) test[s]? from .*");
-        Matcher numTests = numTestsPattern.matcher(identifier);
+        Matcher numTests = NUM_TESTS_PATTERN.matcher(identifier);
 
         // Try to find number of tests
         if (numTests.find()) {
@@ -449,8 +682,7 @@ public class GTestResultParser extends MultiLineReceiver {
      * @param identifier Raw log output from the suite ended tag
      */
     private void processRunCompletedTag(String identifier) {
-        Pattern timePattern = Pattern.compile(".*\\((\\d+) ms total\\)");  // eg: (XX ms total)
-        Matcher time = timePattern.matcher(identifier);
+        Matcher time = RUN_TIME_PATTERN.matcher(identifier);  // eg: (XX ms total)
 
         // Try to find the total run time
         if (time.find()) {
@@ -482,6 +714,7 @@ public class GTestResultParser extends MultiLineReceiver {
         for (ITestRunListener listener : mTestListeners) {
             listener.testStarted(testId);
         }
+        mTestStartTime = System.currentTimeMillis();
         setTestStarted();
     }
 
@@ -561,6 +794,7 @@ public class GTestResultParser extends MultiLineReceiver {
         }
 
         setTestEnded();
+        mCompletedTests.add(testId);
         ++mNumTestsRun;
     }
 
@@ -590,14 +824,8 @@ public class GTestResultParser extends MultiLineReceiver {
      * @param line Raw test result line of output.
      */
     private void appendTestOutputLine(String line) {
-        TestResult testResult = getCurrentTestResult();
-        if (testResult.mStackTrace == null) {
-            testResult.mStackTrace = new StringBuilder();
-        }
-        else {
-            testResult.mStackTrace.append("\r\n");
-        }
-        testResult.mStackTrace.append(line);
+        byte[] lineBytes = line.getBytes(UTF_8);
+        mTestOutput.appendLine(lineBytes, 0, lineBytes.length);
     }
 
     /**
@@ -609,6 +837,7 @@ public class GTestResultParser extends MultiLineReceiver {
         errorMsg = (errorMsg == null ? "Unknown error" : errorMsg);
         Log.i(LOG_TAG, String.format("Test run failed: %s", errorMsg));
         String testRunStackTrace = "";
+        mRunIncomplete = true;
 
         // Report that the last known test failed
         if ((mCurrentTestResult != null) && (mCurrentTestResult.isComplete())) {
@@ -616,6 +845,10 @@ public class GTestResultParser extends MultiLineReceiver {
             // if it's not null, assume the last test caused this and report as a test failure
             TestIdentifier testId = new TestIdentifier(mCurrentTestResult.mTestClass,
                     mCurrentTestResult.mTestName);
+            mIncompleteTest = testId;
+            String failureMsg = mTestTimedOut ?
+                    String.format("Test timed out after %d ms.", mTestTimeoutMs) :
+                    "No test results.";
 
             // If there was any stack trace during the test run, append it to the "test failed"
             // error message so we have an idea of what caused the crash/failure.
@@ -625,7 +858,7 @@ public class GTestResultParser extends MultiLineReceiver {
             }
             for (ITestRunListener listener : mTestListeners) {
                 listener.testFailed(ITestRunListener.TestFailure.ERROR, testId,
-                        "No test results.\r\n" + testRunStackTrace);
+                        failureMsg + "\r\n" + testRunStackTrace);
                 listener.testEnded(testId, emptyMap);
             }
             clearCurrentTestResult();
@@ -638,11 +871,13 @@ public class GTestResultParser extends MultiLineReceiver {
     }
 
     /**
-     * Called by parent when adb session is complete.
+     * Called when adb session is complete.
      */
-    @Override
     public void done() {
-        super.done();
+        if (mIsDone) {
+            return;
+        }
+        mIsDone = true;
         if (mNumTestsExpected > mNumTestsRun) {
             handleTestRunFailed(String.format("Test run incomplete. Expected %d tests, received %d",
                     mNumTestsExpected, mNumTestsRun));
@@ -15,33 +15,205 @@
  */
 package com.android.tradefed.testtype;
 
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.config.Option;
 import com.android.tradefed.config.Option.Importance;
 import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.result.SnapshotInputStreamSource;
+import com.android.tradefed.result.StubTestInvocationListener;
+import com.android.tradefed.util.ClassPathScanner;
+import com.android.tradefed.util.ClassPathScanner.ExternalClassNameFilter;
+import com.android.tradefed.util.StreamUtil;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
 
+import java.io.InputStream;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
 /**
  * A test runner for JUnit host based tests
+ * <p/>
+ * Runs one or more test classes, given by name or found in packages on the class path. Classes
+ * can be run in parallel on a pool of threads. Each class is reported as its own test run, and the
+ * results of classes run in parallel are buffered, so runs are reported one at a time, in the
+ * order the classes were given. Classes annotated with {@link RunSerially} are run one at a time,
+ * after the parallel classes have finished. If the device becomes unavailable, the results of
+ * classes that already ran are still reported, and classes that had not started are reported as
+ * failed runs.
  */
 @OptionClass(alias = "host")
 public class HostTest implements IDeviceTest, IRemoteTest {
 
-    @Option(name="class", description="The JUnit Test to run.",
+    @Option(name="class", description="The JUnit Test to run. May be repeated.",
             importance = Importance.IF_UNSET)
-    private String mClassName;
+    private Collection<String> mClassNames = new LinkedHashSet<String>();
+
+    @Option(name="package", description="A package to run all JUnit Tests in, including its " +
+            "sub-packages. May be repeated.")
+    private Collection<String> mPackageNames = new LinkedHashSet<String>();
 
-    @Option(name="method", description="The JUnit TestCase method to run.",
+    @Option(name="method", description="The JUnit TestCase method to run. Only valid when a " +
+            "single class is run.",
             importance = Importance.IF_UNSET)
     private String mMethodName;
 
+    @Option(name="max-parallel-classes", description="The maximum number of test classes to run " +
+            "at the same time. Classes annotated with @RunSerially are always run alone.")
+    private int mMaxParallelClasses = 1;
+
     private ITestDevice mDevice = null;
 
+    /**
+     * A {@link ITestInvocationListener} that records the results of a test run, so they can be
+     * forwarded later.
+     */
+    private static class BufferedListener extends StubTestInvocationListener {
+
+        /** a recorded result */
+        private static abstract class Event {
+            abstract void forward(ITestInvocationListener listener);
+        }
+
+        private final List<Event> mEvents = new ArrayList<Event>();
+        private DeviceNotAvailableException mDeviceException = null;
+        /** set when the class starts running, or when it is reported as not run */
+        private final AtomicBoolean mStarted = new AtomicBoolean(false);
+
+        @Override
+        public void testRunStarted(final String runName, final int testCount) {
+            mEvents.add(new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.testRunStarted(runName, testCount);
+                }
+            });
+        }
+
+        @Override
+        public void testStarted(final TestIdentifier test) {
+            mEvents.add(new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.testStarted(test);
+                }
+            });
+        }
+
+        @Override
+        public void testFailed(final TestFailure status, final TestIdentifier test,
+                final String trace) {
+            mEvents.add(new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.testFailed(status, test, trace);
+                }
+            });
+        }
+
+        @Override
+        public void testEnded(final TestIdentifier test, final Map<String, String> testMetrics) {
+            mEvents.add(new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.testEnded(test, testMetrics);
+                }
+            });
+        }
+
+        @Override
+        public void testRunFailed(final String errorMessage) {
+            mEvents.add(new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.testRunFailed(errorMessage);
+                }
+            });
+        }
+
+        @Override
+        public void testRunStopped(final long elapsedTime) {
+            mEvents.add(new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.testRunStopped(elapsedTime);
+                }
+            });
+        }
+
+        @Override
+        public void testRunEnded(final long elapsedTime, final Map<String, String> runMetrics) {
+            mEvents.add(new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    listener.testRunEnded(elapsedTime, runMetrics);
+                }
+            });
+        }
+
+        /**
+         * {@inheritDoc}
+         * <p/>
+         * The log data is copied, since callers may cancel it as soon as this returns.
+         */
+        @Override
+        public void testLog(final String dataName, final LogDataType dataType,
+                InputStreamSource dataStream) {
+            InputStream stream = dataStream == null ? null : dataStream.createInputStream();
+            if (stream == null) {
+                CLog.w("No data to log for %s", dataName);
+                return;
+            }
+            final InputStreamSource snapshot;
+            try {
+                snapshot = new SnapshotInputStreamSource(stream);
+            } finally {
+                StreamUtil.close(stream);
+            }
+            mEvents.add(new Event() {
+                @Override
+                void forward(ITestInvocationListener listener) {
+                    try {
+                        listener.testLog(dataName, dataType, snapshot);
+                    } finally {
+                        snapshot.cancel();
+                    }
+                }
+            });
+        }
+
+        /**
+         * Forward the recorded results to the given listener.
+         */
+        void forward(ITestInvocationListener listener) {
+            for (Event event : mEvents) {
+                event.forward(listener);
+            }
+        }
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -67,22 +239,162 @@ public class HostTest implements IDeviceTest, IRemoteTest {
     }
 
     void setClassName(String className) {
-        mClassName = className;
+        mClassNames.clear();
+        mClassNames.add(className);
+    }
+
+    void addClassName(String className) {
+        mClassNames.add(className);
+    }
+
+    void addPackageName(String packageName) {
+        mPackageNames.add(packageName);
     }
 
     void setMethodName(String methodName) {
         mMethodName = methodName;
     }
 
+    void setMaxParallelClasses(int maxParallelClasses) {
+        mMaxParallelClasses = maxParallelClasses;
+    }
+
     /**
      * {@inheritDoc}
      */
     @Override
     public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
-        if (mClassName == null) {
+        Set<Class<?>> classes = new LinkedHashSet<Class<?>>();
+        for (String className : mClassNames) {
+            classes.add(loadTestClass(className));
+        }
+        for (String packageName : mPackageNames) {
+            classes.addAll(findTestClasses(packageName));
+        }
+        if (classes.isEmpty()) {
             throw new IllegalArgumentException("Missing Test class name");
         }
-        Class<?> classObj = loadTestClass(mClassName);
+        if (mMethodName != null && classes.size() > 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Cannot run method %s in more than one class", mMethodName));
+        }
+        // create all the tests up front, so an invalid class is reported before any are run
+        Map<String, Object> parallelTests = new LinkedHashMap<String, Object>();
+        Map<String, Object> serialTests = new LinkedHashMap<String, Object>();
+        for (Class<?> classObj : classes) {
+            Object test = createTest(classObj);
+            if (mMaxParallelClasses > 1 && !classObj.isAnnotationPresent(RunSerially.class)) {
+                parallelTests.put(classObj.getName(), test);
+            } else {
+                serialTests.put(classObj.getName(), test);
+            }
+        }
+        runParallel(parallelTests, listener);
+        for (Map.Entry<String, Object> test : serialTests.entrySet()) {
+            runTest(test.getKey(), test.getValue(), listener);
+        }
+    }
+
+    /**
+     * Runs the given tests on a thread pool, and forwards their results to the listener one test
+     * run at a time, in order.
+     */
+    private void runParallel(Map<String, Object> tests, ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        if (tests.isEmpty()) {
+            return;
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Math.min(mMaxParallelClasses, tests.size()));
+        try {
+            Map<String, BufferedListener> buffers = new LinkedHashMap<String, BufferedListener>();
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for (final Map.Entry<String, Object> test : tests.entrySet()) {
+                final BufferedListener buffer = new BufferedListener();
+                buffers.put(test.getKey(), buffer);
+                results.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        if (!buffer.mStarted.compareAndSet(false, true)) {
+                            // the device went away before this class could start
+                            return null;
+                        }
+                        try {
+                            runTest(test.getKey(), test.getValue(), buffer);
+                        } catch (DeviceNotAvailableException e) {
+                            buffer.mDeviceException = e;
+                        }
+                        return null;
+                    }
+                }));
+            }
+            DeviceNotAvailableException deviceException = null;
+            int i = 0;
+            for (Map.Entry<String, BufferedListener> entry : buffers.entrySet()) {
+                Future<?> result = results.get(i++);
+                BufferedListener buffer = entry.getValue();
+                if (deviceException != null && buffer.mStarted.compareAndSet(false, true)) {
+                    reportNotRun(entry.getKey(), deviceException, listener);
+                    continue;
+                }
+                // classes already running when the device went away are reported once they end
+                waitForTest(result);
+                buffer.forward(listener);
+                if (deviceException == null) {
+                    deviceException = buffer.mDeviceException;
+                }
+            }
+            if (deviceException != null) {
+                throw deviceException;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Reports a test class that was not run because the device became unavailable, as a failed
+     * test run.
+     */
+    private void reportNotRun(String runName, DeviceNotAvailableException e,
+            ITestInvocationListener listener) {
+        listener.testRunStarted(runName, 0);
+        listener.testRunFailed(String.format("Not run, device became unavailable: %s",
+                e.getMessage()));
+        listener.testRunEnded(0, Collections.<String, String>emptyMap());
+    }
+
+    private void waitForTest(Future<?> result) {
+        try {
+            result.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException)e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error)e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new RuntimeException("Interrupted while running host tests", e);
+        }
+    }
+
+    private void runTest(String runName, Object test, ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        if (test instanceof Test) {
+            JUnitRunUtil.runTest(listener, (Test)test, runName);
+        } else {
+            ((IRemoteTest)test).run(listener);
+        }
+    }
+
+    /**
+     * Creates the test to run for the given class.
+     *
+     * @return a {@link Test} or {@link IRemoteTest}
+     * @throws IllegalArgumentException if the class is not a valid test
+     */
+    private Object createTest(Class<?> classObj) throws IllegalArgumentException {
         Object testObj = loadObject(classObj);
         if (testObj instanceof IDeviceTest) {
             if (mDevice == null) {
@@ -103,12 +415,41 @@ public class HostTest implements IDeviceTest, IRemoteTest {
                     test = testSuite;
                 }
             }
-            JUnitRunUtil.runTest(listener, test);
+            return test;
         } else if (testObj instanceof IRemoteTest) {
-            ((IRemoteTest)testObj).run(listener);
+            return testObj;
         } else {
-            throw new IllegalArgumentException(String.format("%s is not a test", mClassName));
+            throw new IllegalArgumentException(String.format("%s is not a test",
+                    classObj.getName()));
+        }
+    }
+
+    /**
+     * Finds the test classes that can be run in the given package and its sub-packages on the
+     * class path.
+     */
+    private List<Class<?>> findTestClasses(String packageName) throws IllegalArgumentException {
+        List<Class<?>> classes = new ArrayList<Class<?>>();
+        String prefix = packageName + ".";
+        Set<String> classNames = new ClassPathScanner().getClassPathEntries(
+                new ExternalClassNameFilter());
+        for (String className : classNames) {
+            if (!className.startsWith(prefix)) {
+                continue;
+            }
+            Class<?> classObj = loadTestClass(className);
+            int modifiers = classObj.getModifiers();
+            if (Modifier.isPublic(modifiers) && !Modifier.isAbstract(modifiers) &&
+                    (Test.class.isAssignableFrom(classObj) ||
+                    IRemoteTest.class.isAssignableFrom(classObj))) {
+                classes.add(classObj);
+            }
+        }
+        if (classes.isEmpty()) {
+            throw new IllegalArgumentException(String.format(
+                    "No Test classes found in package %s", packageName));
         }
+        return classes;
     }
 
     private Class<?> loadTestClass(String className) throws IllegalArgumentException  {
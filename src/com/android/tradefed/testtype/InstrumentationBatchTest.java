@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.config.OptionCopier;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.CollectingTestListener;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.ResultForwarder;
+import com.android.tradefed.util.FileUtil;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Reruns a set of instrumentation tests in batches whose size adapts to crashes.
+ * <p/>
+ * Each batch is run in a single instrumentation launch, from a test file pushed to the device.
+ * When a batch crashes, the tests that did not complete are retried in a batch half the size, so
+ * a crashing test is isolated in a logarithmic number of launches. Once isolated, it is run on
+ * its own exactly as a serial rerun would run it. Each batch that completes doubles the size of
+ * the next one, up to a maximum. The total number of batches is bounded; tests not run when the
+ * budget is exhausted are left in the provided test collection.
+ * <p/>
+ * Note: Requires a runner that supports test execution from a file. Falls back to running the
+ * remaining tests serially if the test file cannot be pushed.
+ */
+class InstrumentationBatchTest implements IRemoteTest {
+
+    // on device test folder location where the test file should be saved
+    private static final String ON_DEVICE_TEST_DIR_LOCATION = "/data/local/tmp/";
+    // used to separate fully-qualified test case class name, and one of its methods
+    private static final char METHOD_SEPARATOR = '#';
+
+    /** the {@link InstrumentationTest} used to run each batch */
+    private final InstrumentationTest mInstrumentationTest;
+
+    /** the set of tests to run */
+    private final Collection<TestIdentifier> mTests;
+
+    private final int mMaxBatchSize;
+    private final int mMaxLaunches;
+
+    /**
+     * Creates a {@link InstrumentationBatchTest}.
+     *
+     * @param instrumentationTest {@link InstrumentationTest} used to configure this class
+     * @param testsToRun a {@link Collection} of tests to run. Note this {@link Collection} will be
+     *            used as is, and tests are removed from it as they are run.
+     * @param maxBatchSize the max number of tests to run in one launch
+     * @param maxLaunches the max number of batches to run, including single test batches
+     */
+    InstrumentationBatchTest(InstrumentationTest instrumentationTest,
+            Collection<TestIdentifier> testsToRun, int maxBatchSize, int maxLaunches)
+            throws ConfigurationException {
+        // reuse the InstrumentationTest class to perform actual test run
+        mInstrumentationTest = createInstrumentationTest();
+        // copy all options from the original InstrumentationTest
+        OptionCopier.copyOptions(instrumentationTest, mInstrumentationTest);
+        mInstrumentationTest.setDevice(instrumentationTest.getDevice());
+        mInstrumentationTest.setForceAbi(instrumentationTest.getForceAbi());
+        // batches are retried by this class
+        mInstrumentationTest.setRerunMode(false);
+        mTests = testsToRun;
+        mMaxBatchSize = Math.max(1, maxBatchSize);
+        mMaxLaunches = maxLaunches;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void run(final ITestInvocationListener listener) throws DeviceNotAvailableException {
+        if (mInstrumentationTest.getDevice() == null) {
+            throw new IllegalArgumentException("Device has not been set");
+        }
+        int batchSize = Math.min(mMaxBatchSize, mTests.size());
+        int launches = 0;
+        while (!mTests.isEmpty()) {
+            if (launches >= mMaxLaunches) {
+                CLog.w("Rerun budget of %d launches exhausted, %d tests were not rerun",
+                        mMaxLaunches, mTests.size());
+                return;
+            }
+            launches++;
+            List<TestIdentifier> batch = new ArrayList<>(batchSize);
+            for (TestIdentifier test : mTests) {
+                if (batch.size() >= batchSize) {
+                    break;
+                }
+                batch.add(test);
+            }
+            if (batch.size() == 1) {
+                // the test is isolated, so run it exactly as a serial rerun would
+                reRunTestsSerially(batch, listener);
+                batchSize = Math.min(2, mMaxBatchSize);
+                continue;
+            }
+            Collection<TestIdentifier> completedTests = runBatch(batch, listener);
+            if (completedTests == null) {
+                CLog.e("Failed to run tests from file, re-running tests serially");
+                reRunTestsSerially(new ArrayList<>(mTests), listener);
+                return;
+            }
+            mTests.removeAll(completedTests);
+            batch.removeAll(completedTests);
+            if (batch.isEmpty()) {
+                batchSize = Math.min(batchSize * 2, mMaxBatchSize);
+            } else {
+                // the batch crashed. Halve the size, so the next batch starts with the test that
+                // was running at the time of the crash and the crashing test is found quickly
+                batchSize = Math.max(1, batch.size() / 2);
+                CLog.i("%d tests did not complete, retrying in batches of %d", batch.size(),
+                        batchSize);
+            }
+        }
+    }
+
+    /**
+     * Runs the given tests in a single instrumentation launch, from a test file.
+     *
+     * @return the tests that completed, or <code>null</code> if the test file could not be
+     *         created or pushed to the device
+     */
+    private Collection<TestIdentifier> runBatch(Collection<TestIdentifier> batch,
+            ITestInvocationListener listener) throws DeviceNotAvailableException {
+        File testFile = null;
+        try {
+            testFile = FileUtil.createTempFile(
+                    "tf_testFile_" + InstrumentationBatchTest.class.getCanonicalName(), ".txt");
+            try (BufferedWriter bw = new BufferedWriter(new FileWriter(testFile))) {
+                for (TestIdentifier testToRun : batch) {
+                    bw.write(testToRun.getClassName() + METHOD_SEPARATOR + testToRun.getTestName());
+                    bw.newLine();
+                }
+            }
+            String filePathOnDevice = ON_DEVICE_TEST_DIR_LOCATION + testFile.getName();
+            if (!pushFileToTestDevice(testFile, filePathOnDevice)) {
+                return null;
+            }
+            CLog.d("Running batch of %d tests from %s", batch.size(), filePathOnDevice);
+            mInstrumentationTest.setTestFilePathOnDevice(filePathOnDevice);
+            CollectingTestListener testTracker = new CollectingTestListener();
+            try {
+                mInstrumentationTest.run(new ResultForwarder(listener, testTracker));
+            } finally {
+                deleteTestFileFromDevice(filePathOnDevice);
+            }
+            return testTracker.getCurrentRunResults().getCompletedTests();
+        } catch (IOException e) {
+            CLog.e("Failed to create test file: %s", e.getMessage());
+            return null;
+        } finally {
+            FileUtil.deleteFile(testFile);
+        }
+    }
+
+    /**
+     * Re-runs the given tests one-by-one, and removes them from the set of tests to run.
+     */
+    private void reRunTestsSerially(Collection<TestIdentifier> tests,
+            ITestInvocationListener listener) throws DeviceNotAvailableException {
+        // clear file path arguments to ensure it won't get used.
+        mInstrumentationTest.setTestFilePathOnDevice(null);
+        mInstrumentationTest.setReRunUsingTestFile(false);
+        mInstrumentationTest.setRerunAdaptiveBatch(false);
+        mInstrumentationTest.setTestsToRun(new ArrayList<>(tests), false);
+        try {
+            mInstrumentationTest.run(listener);
+        } finally {
+            // tests are reported by the serial rerun even if they fail to complete
+            mTests.removeAll(tests);
+            mInstrumentationTest.setTestsToRun(null, false);
+        }
+    }
+
+    /**
+     * Util method to push file to a device. Exposed for unit testing.
+     * @return if file was pushed to the device successfully
+     * @throws DeviceNotAvailableException
+     */
+    boolean pushFileToTestDevice(File file, String destinationPath)
+            throws DeviceNotAvailableException {
+        return mInstrumentationTest.getDevice().pushFile(file, destinationPath);
+    }
+
+    /**
+     * Delete file from the device if it exists
+     */
+    void deleteTestFileFromDevice(String pathToFile) throws DeviceNotAvailableException {
+        if (mInstrumentationTest.getDevice().doesFileExist(pathToFile)) {
+            mInstrumentationTest.getDevice()
+                    .executeShellCommand(String.format("rm %s", pathToFile));
+            CLog.d("Removed test file from device: %s", pathToFile);
+        }
+    }
+
+    /**
+     * @return the {@link InstrumentationTest} to use. Exposed for unit testing.
+     */
+    InstrumentationTest createInstrumentationTest() {
+        return new InstrumentationTest();
+    }
+}
@@ -29,11 +29,12 @@ import com.android.tradefed.config.OptionClass;
 import com.android.tradefed.config.OptionCopier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.PackageInfo;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.BugreportCollector;
 import com.android.tradefed.result.CollectingTestListener;
+import com.android.tradefed.result.FailureArtifactCollector;
 import com.android.tradefed.result.ITestInvocationListener;
-import com.android.tradefed.result.InputStreamSource;
 import com.android.tradefed.result.LogDataType;
 import com.android.tradefed.result.ResultForwarder;
 import com.android.tradefed.result.TestRunResult;
@@ -44,9 +45,12 @@ import com.android.tradefed.util.StringEscapeUtils;
 import junit.framework.Assert;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -128,6 +132,11 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             "collector, so use the EACH setting with due caution.")
     private BugreportCollector.Freq mBugreportFrequency = null;
 
+    @Option(name = "bugreport-on-failure-async", description = "capture the bugreports set by " +
+            "--bugreport-on-failure in the background, while the next tests run, instead of " +
+            "holding up the test run until each is captured.")
+    private boolean mBugreportAsync = false;
+
     @Option(name = "screenshot-on-failure", description = "Take a screenshot on every test failure")
     private boolean mScreenshotOnFailure = false;
 
@@ -145,11 +154,32 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             "each remaining test")
     private boolean mReRunUsingTestFile = false;
 
+    @Option(name = "rerun-adaptive-batch", description =
+            "Re-run failed tests from test files in batches that grow while they complete and " +
+            "shrink around crashing tests, instead of running each remaining test in its own " +
+            "process. Requires a runner that supports test execution from a file.")
+    private boolean mRerunAdaptiveBatch = false;
+
+    @Option(name = "rerun-max-batch-size", description =
+            "The max number of tests to run in one batch when --rerun-adaptive-batch is on.")
+    private int mRerunMaxBatchSize = 64;
+
+    @Option(name = "rerun-max-batches", description =
+            "The max number of batches to run when --rerun-adaptive-batch is on. Tests that are " +
+            "not run within this budget are not reported.")
+    private int mRerunMaxBatches = 100;
+
     @Option(name = AbiFormatter.FORCE_ABI_STRING,
             description = AbiFormatter.FORCE_ABI_DESCRIPTION,
             importance = Importance.IF_UNSET)
     private String mForceAbi = null;
 
+    @Option(name = "test-list-cache-dir", description =
+            "Optional directory used to cache the list of tests collected in rerun mode. The " +
+            "directory can be shared across invocations, and collection is skipped when the " +
+            "test apk is unchanged.")
+    private File mTestListCacheDir = null;
+
     private ITestDevice mDevice = null;
 
     private IRemoteAndroidTestRunner mRunner;
@@ -455,10 +485,26 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         mMaxLogcatBytes = logcatOnFailureSize;
     }
 
+    public void setTestListCacheDir(File testListCacheDir) {
+        mTestListCacheDir = testListCacheDir;
+    }
+
     public void setReRunUsingTestFile(boolean reRunUsingTestFile) {
         mReRunUsingTestFile = reRunUsingTestFile;
     }
 
+    public void setRerunAdaptiveBatch(boolean rerunAdaptiveBatch) {
+        mRerunAdaptiveBatch = rerunAdaptiveBatch;
+    }
+
+    public void setRerunMaxBatchSize(int rerunMaxBatchSize) {
+        mRerunMaxBatchSize = rerunMaxBatchSize;
+    }
+
+    public void setRerunMaxBatches(int rerunMaxBatches) {
+        mRerunMaxBatches = rerunMaxBatches;
+    }
+
     /**
      * @return the {@link IRemoteAndroidTestRunner} to use.
      * @throws DeviceNotAvailableException
@@ -550,6 +596,7 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
                     BugreportCollector.Noun.FAILED_TESTCASE);
             BugreportCollector collector  = new BugreportCollector(listener, mDevice);
             collector.addPredicate(pred);
+            collector.setAsynchronous(mBugreportAsync);
             listener = collector;
         }
         if (mScreenshotOnFailure) {
@@ -601,7 +648,9 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
     private void rerunTests(final ITestInvocationListener listener)
             throws DeviceNotAvailableException {
         if (mRemainingTests.size() > 0) {
-            if (mReRunUsingTestFile) {
+            if (mRerunAdaptiveBatch) {
+                reRunTestsInBatches(listener);
+            } else if (mReRunUsingTestFile) {
                 reRunTestsFromFile(listener);
             } else {
                 reRunTestsSerially(listener);
@@ -629,6 +678,27 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
         }
     }
 
+    /**
+     * re-runs tests in adaptively sized batches via {@link InstrumentationBatchTest}
+     */
+    private void reRunTestsInBatches(final ITestInvocationListener listener)
+            throws DeviceNotAvailableException {
+        CLog.i("Running remaining tests in adaptive batches");
+        try {
+            InstrumentationBatchTest testReRunner = new InstrumentationBatchTest(this,
+                    new ArrayList<TestIdentifier>(mRemainingTests), mRerunMaxBatchSize,
+                    mRerunMaxBatches);
+            CollectingTestListener testTracker = new CollectingTestListener();
+            try {
+                testReRunner.run(new ResultForwarder(listener, testTracker));
+            } finally {
+                calculateRemainingTests(mRemainingTests, testTracker);
+            }
+        } catch (ConfigurationException e) {
+            CLog.e("Failed to create InstrumentationBatchTest", e);
+        }
+    }
+
     /**
      * re-runs tests one by one via {@link InstrumentationSerialTest}
      */
@@ -678,6 +748,23 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
     private Collection<TestIdentifier> collectTestsToRun(final IRemoteAndroidTestRunner runner)
             throws DeviceNotAvailableException {
         if (isRerunMode()) {
+            TestListCache cache = null;
+            String cacheKey = null;
+            String cacheValidation = null;
+            if (mTestListCacheDir != null) {
+                cacheKey = getTestListCacheKey();
+                cacheValidation = getTestListCacheValidation();
+                if (cacheKey != null && cacheValidation != null) {
+                    cache = createTestListCache(mTestListCacheDir);
+                    Collection<TestIdentifier> cachedTests = cache.get(cacheKey,
+                            cacheValidation);
+                    if (cachedTests != null) {
+                        CLog.i("Using %d cached tests for %s", cachedTests.size(),
+                                mPackageName);
+                        return cachedTests;
+                    }
+                }
+            }
             Log.d(LOG_TAG, String.format("Collecting test info for %s on device %s",
                     mPackageName, mDevice.getSerialNumber()));
             runner.setLogOnly(true);
@@ -694,11 +781,69 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
             runner.setLogOnly(false);
             runner.setMaxTimeToOutputResponse(mTestTimeout, TimeUnit.MILLISECONDS);
             runner.removeInstrumentationArg(DELAY_MSEC_ARG);
+            if (cache != null && tests != null) {
+                cache.put(cacheKey, cacheValidation, tests);
+            }
             return tests;
         }
         return null;
     }
 
+    /**
+     * Gets the key for the collected test list of this run, based on the test apk contents when
+     * it is available on the host, and on all the arguments that affect which tests are run.
+     *
+     * @return the key, or <code>null</code> if the test list of this run should not be cached
+     */
+    private String getTestListCacheKey() {
+        if (mInstrArgMap.containsKey(TEST_FILE_INST_ARGS_KEY)) {
+            // contents of the test file on device are not known
+            return null;
+        }
+        String apkHash = null;
+        if (mInstallFile != null) {
+            try {
+                apkHash = TestListCache.hashFile(mInstallFile);
+            } catch (IOException e) {
+                CLog.w("Failed to hash %s: %s", mInstallFile, e.getMessage());
+                return null;
+            }
+        }
+        return TestListCache.hashStrings(apkHash, mPackageName, mRunnerName, mTestClassName,
+                mTestMethodName, mTestPackageName, mTestSize, mForceAbi,
+                new TreeMap<String, String>(mInstrArgMap).toString());
+    }
+
+    /**
+     * Gets the string used to check a cached test list is still valid. When the test apk is on
+     * the host its contents are already part of the key. Otherwise the installed package's
+     * version and update time are used.
+     *
+     * @return the validation string, or <code>null</code> if the installed package could not be
+     *         identified
+     */
+    private String getTestListCacheValidation() throws DeviceNotAvailableException {
+        if (mInstallFile != null) {
+            return "apk";
+        }
+        PackageInfo pkgInfo = mDevice.getAppPackageInfo(mPackageName);
+        if (pkgInfo == null || pkgInfo.getLastUpdateTime() == null) {
+            CLog.d("Could not determine installed version of %s, not using test list cache",
+                    mPackageName);
+            return null;
+        }
+        return String.format("%s %s", pkgInfo.getVersionCode(), pkgInfo.getLastUpdateTime());
+    }
+
+    /**
+     * Factory method for creating a {@link TestListCache}.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    TestListCache createTestListCache(File cacheDir) {
+        return new TestListCache(cacheDir);
+    }
+
     /**
      * Performs the actual work of collecting tests, making multiple attempts if necessary
      * @param runner
@@ -747,26 +892,52 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
     }
 
     /**
-     * A {@link ResultForwarder} that will forward a screenshot on test failures.
+     * A {@link ResultForwarder} that captures an artifact for each failed test in the background.
+     * <p/>
+     * Only a cheap snapshot is taken when a test fails, so the test run is not held up while the
+     * artifact is captured. The artifact is still forwarded before the failed test's
+     * {@link #testEnded}, by holding back later results until it is ready.
      */
-    private static class FailedTestScreenshotGenerator extends ResultForwarder {
-        private ITestDevice mDevice;
+    private static abstract class FailedTestArtifactGenerator extends FailureArtifactCollector {
+        protected final ITestDevice mDevice;
 
-        public FailedTestScreenshotGenerator(ITestInvocationListener listener,
+        public FailedTestArtifactGenerator(ITestInvocationListener listener,
                 ITestDevice device) {
             super(listener);
             mDevice = device;
         }
 
+        /**
+         * Start capturing the artifact for a failed test, and {@link #add} it.
+         *
+         * @param test the failed test
+         */
+        protected abstract void captureArtifact(TestIdentifier test);
+
         @Override
         public void testFailed(TestFailure status, TestIdentifier test, String trace) {
             super.testFailed(status, test, trace);
+            captureArtifact(test);
+        }
+    }
+
+    /**
+     * A {@link ResultForwarder} that will forward a screenshot on test failures.
+     * <p/>
+     * The screen is grabbed when the test fails, and encoded in the background.
+     */
+    private static class FailedTestScreenshotGenerator extends FailedTestArtifactGenerator {
+
+        public FailedTestScreenshotGenerator(ITestInvocationListener listener,
+                ITestDevice device) {
+            super(listener, device);
+        }
 
+        @Override
+        protected void captureArtifact(TestIdentifier test) {
             try {
-                InputStreamSource screenSource = mDevice.getScreenshot();
-                super.testLog(String.format("screenshot-%s_%s", test.getClassName(),
-                        test.getTestName()), LogDataType.PNG, screenSource);
-                screenSource.cancel();
+                add(String.format("screenshot-%s_%s", test.getClassName(),
+                        test.getTestName()), LogDataType.PNG, mDevice.getScreenshotAsync());
             } catch (DeviceNotAvailableException e) {
                 // TODO: rethrow this somehow
                 CLog.e("Device %s became unavailable while capturing screenshot, %s",
@@ -777,28 +948,26 @@ public class InstrumentationTest implements IDeviceTest, IResumableTest {
 
     /**
      * A {@link ResultForwarder} that will forward a logcat snapshot on each failed test.
+     * <p/>
+     * The position in the logcat is recorded when the test fails, and the data is copied in the
+     * background.
      */
-    private static class FailedTestLogcatGenerator extends ResultForwarder {
-        private ITestDevice mDevice;
+    private static class FailedTestLogcatGenerator extends FailedTestArtifactGenerator {
         private int mNumLogcatBytes;
 
         public FailedTestLogcatGenerator(ITestInvocationListener listener, ITestDevice device,
                 int maxLogcatBytes) {
-            super(listener);
-            mDevice = device;
+            super(listener, device);
             mNumLogcatBytes = maxLogcatBytes;
         }
 
         @Override
-        public void testFailed(TestFailure status, TestIdentifier test, String trace) {
-            super.testFailed(status, test, trace);
+        protected void captureArtifact(TestIdentifier test) {
             // sleep a small amount of time to ensure test failure stack trace makes it into logcat
             // capture
             RunUtil.getDefault().sleep(10);
-            InputStreamSource logSource = mDevice.getLogcat(mNumLogcatBytes);
-            super.testLog(String.format("logcat-%s_%s", test.getClassName(), test.getTestName()),
-                    LogDataType.TEXT, logSource);
-            logSource.cancel();
+            add(String.format("logcat-%s_%s", test.getClassName(), test.getTestName()),
+                    LogDataType.TEXT, mDevice.getLogcatAsync(mNumLogcatBytes));
         }
     }
 }
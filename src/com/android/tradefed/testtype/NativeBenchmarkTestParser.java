@@ -18,6 +18,7 @@ package com.android.tradefed.testtype;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.MultiLineReceiver;
+import com.android.tradefed.util.StreamingStats;
 
 import java.text.DecimalFormat;
 import java.text.ParseException;
@@ -33,6 +34,9 @@ import java.util.regex.Pattern;
 * <code>
 * Time per iteration min: X avg: Y max: Z
 * </code>
+* <p/>
+* If the output contains more than one result, the minimum and maximum are taken over all the
+* results, and the average times are aggregated in a {@link StreamingStats}.
 */
 public class NativeBenchmarkTestParser extends MultiLineReceiver {
 
@@ -46,9 +50,9 @@ public class NativeBenchmarkTestParser extends MultiLineReceiver {
 
     private final String mTestRunName;
     private boolean mIsCanceled = false;
-    private double mMinOpTime = 0;
-    private double mAvgOpTime = 0;
-    private double mMaxOpTime = 0;
+    private final StreamingStats mMinOpTimeStats = new StreamingStats();
+    private final StreamingStats mAvgOpTimeStats = new StreamingStats();
+    private final StreamingStats mMaxOpTimeStats = new StreamingStats();
 
     /**
      * Creates a {@link NativeBenchmarkTestParser}.
@@ -74,9 +78,9 @@ public class NativeBenchmarkTestParser extends MultiLineReceiver {
         Matcher matcher = COMPLETE_PATTERN.matcher(line);
         if (matcher.find()) {
             Log.i(LOG_TAG, String.format("Found result for benchmark %s: %s", getRunName(), line));
-            mMinOpTime = parseDoubleValue(line, matcher.group(1));
-            mAvgOpTime = parseDoubleValue(line, matcher.group(2));
-            mMaxOpTime = parseDoubleValue(line, matcher.group(3));
+            mMinOpTimeStats.add(parseDoubleValue(line, matcher.group(1)));
+            mAvgOpTimeStats.add(parseDoubleValue(line, matcher.group(2)));
+            mMaxOpTimeStats.add(parseDoubleValue(line, matcher.group(3)));
         }
     }
 
@@ -118,20 +122,27 @@ public class NativeBenchmarkTestParser extends MultiLineReceiver {
      * @return the average operation time
      */
     public double getAvgOperationTime() {
-        return mAvgOpTime;
+        return mAvgOpTimeStats.isEmpty() ? 0 : mAvgOpTimeStats.mean();
     }
 
     /**
      * @return the minimum operation time
      */
     public double getMinOperationTime() {
-        return mMinOpTime;
+        return mMinOpTimeStats.isEmpty() ? 0 : mMinOpTimeStats.min();
     }
 
     /**
      * @return the maximum operation time
      */
     public double getMaxOperationTime() {
-        return mMaxOpTime;
+        return mMaxOpTimeStats.isEmpty() ? 0 : mMaxOpTimeStats.max();
+    }
+
+    /**
+     * @return the {@link StreamingStats} of the average operation times of every result found
+     */
+    public StreamingStats getAvgOperationTimeStats() {
+        return mAvgOpTimeStats;
     }
 }
@@ -26,6 +26,7 @@ import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.IFileEntry;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.util.StreamingStats;
 
 import java.util.HashMap;
 import java.util.Map;
@@ -35,7 +36,8 @@ import java.util.concurrent.TimeUnit;
  * A Test that runs a native stress test executable on given device.
  * <p/>
  * It uses {@link NativeStressTestParser} to parse out number of iterations completed and report
- * those results to the {@link ITestInvocationListener}s.
+ * those results to the {@link ITestInvocationListener}s. The p50/p90/p99 iteration times are the
+ * percentiles of each run's average iteration time, since the binaries do not time their passes.
  */
 @OptionClass(alias = "native-stress")
 public class NativeStressTest implements IDeviceTest, IRemoteTest {
@@ -47,6 +49,9 @@ public class NativeStressTest implements IDeviceTest, IRemoteTest {
     // TODO: these key names are temporary
     static final String AVG_ITERATION_TIME_KEY = "avg-iteration-time";
     static final String ITERATION_KEY = "iterations";
+    static final String ITERATION_TIME_P50_KEY = "iteration-time-p50";
+    static final String ITERATION_TIME_P90_KEY = "iteration-time-p90";
+    static final String ITERATION_TIME_P99_KEY = "iteration-time-p99";
 
     private ITestDevice mDevice = null;
 
@@ -164,17 +169,27 @@ public class NativeStressTest implements IDeviceTest, IRemoteTest {
             int startIteration = 0;
             int endIteration = mNumIterations - 1;
             long startTime = System.currentTimeMillis();
+            // the binaries do not time their passes, so each run's average iteration time is
+            // measured instead, and the percentiles are taken across runs
+            StreamingStats iterationTimes = new StreamingStats();
             listener.testRunStarted(resultParser.getRunName(), 0);
             try {
                 for (int i = 0; i < mNumRuns; i++) {
                     Log.i(LOG_TAG, String.format("Running %s for %d iterations",
                             rootEntry.getName(), mNumIterations));
+                    int startPasses = resultParser.getIterationsCompleted();
+                    long runStartTime = System.currentTimeMillis();
                     // -s is start iteration, -e means end iteration
                     // use maxShellOutputResponseTime to enforce the max iteration time
                     // it won't be exact, but should be close
                     testDevice.executeShellCommand(String.format("%s -s %d -e %d", fullPath,
                             startIteration, endIteration), resultParser,
                             mMaxIterationTime, TimeUnit.MILLISECONDS, 0);
+                    int runPasses = resultParser.getIterationsCompleted() - startPasses;
+                    if (runPasses > 0) {
+                        iterationTimes.add((double)(System.currentTimeMillis() - runStartTime)
+                                / runPasses);
+                    }
                     // iteration count is also used as a random seed value, so want use different
                     // values for each run
                     startIteration += mNumIterations;
@@ -182,23 +197,28 @@ public class NativeStressTest implements IDeviceTest, IRemoteTest {
                 }
                 // TODO: is catching exceptions, and reporting testRunFailed necessary?
             } finally {
-                reportTestCompleted(startTime, listener, resultParser);
+                reportTestCompleted(startTime, listener, resultParser, iterationTimes);
             }
 
         }
     }
 
     private void reportTestCompleted(long startTime, ITestRunListener listener,
-            NativeStressTestParser parser) {
+            NativeStressTestParser parser, StreamingStats iterationTimes) {
         final long elapsedTime = System.currentTimeMillis() - startTime;
         int iterationsComplete = parser.getIterationsCompleted();
         float avgIterationTime = iterationsComplete > 0 ? elapsedTime / iterationsComplete : 0;
-        Map<String, String> metricMap = new HashMap<String, String>(2);
+        Map<String, String> metricMap = new HashMap<String, String>();
         Log.i(LOG_TAG, String.format(
                 "Stress test %s is finished. Num iterations %d, avg time %f ms",
                 parser.getRunName(), iterationsComplete, avgIterationTime));
         metricMap.put(ITERATION_KEY, Integer.toString(iterationsComplete));
         metricMap.put(AVG_ITERATION_TIME_KEY, Float.toString(avgIterationTime));
+        if (!iterationTimes.isEmpty()) {
+            metricMap.put(ITERATION_TIME_P50_KEY, iterationTimes.percentile(50).toString());
+            metricMap.put(ITERATION_TIME_P90_KEY, iterationTimes.percentile(90).toString());
+            metricMap.put(ITERATION_TIME_P99_KEY, iterationTimes.percentile(99).toString());
+        }
         listener.testRunEnded(elapsedTime, metricMap);
     }
 
@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.FileUtil;
+import com.android.tradefed.util.StreamUtil;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+
+/**
+ * A host-side, on-disk cache of the tests collected from an instrumentation test package.
+ * <p/>
+ * Each entry is stored in its own file named by a key, which callers derive from everything that
+ * determines the collected test list. An entry also records a validation string, such as the
+ * installed package's version, and is ignored if the current validation string differs. Entries
+ * are written to a temporary file and renamed into place, so the cache directory can be shared by
+ * concurrent invocations and shards.
+ */
+class TestListCache {
+
+    private static final String ENTRY_SUFFIX = ".tests";
+    private static final String HASH_ALGORITHM = "SHA-1";
+
+    private final File mCacheDir;
+
+    /**
+     * Creates a {@link TestListCache}.
+     *
+     * @param cacheDir the directory to store entries in. Will be created if it does not exist.
+     */
+    TestListCache(File cacheDir) {
+        mCacheDir = cacheDir;
+    }
+
+    /**
+     * Get the cached test list for given key.
+     *
+     * @param key the cache key
+     * @param validation the expected validation string
+     * @return the cached tests in collection order, or <code>null</code> if there is no valid
+     *         entry
+     */
+    Collection<TestIdentifier> get(String key, String validation) {
+        File entryFile = getEntryFile(key);
+        if (!entryFile.isFile()) {
+            return null;
+        }
+        try {
+            String[] lines = FileUtil.readStringFromFile(entryFile).split("\n", -1);
+            if (!validation.equals(lines[0])) {
+                CLog.d("Cached test list %s is out of date", entryFile.getName());
+                return null;
+            }
+            Collection<TestIdentifier> tests = new LinkedHashSet<TestIdentifier>();
+            for (int i = 1; i < lines.length; i++) {
+                if (lines[i].isEmpty()) {
+                    continue;
+                }
+                int separatorIndex = lines[i].indexOf('#');
+                if (separatorIndex <= 0) {
+                    CLog.w("Ignoring malformed cached test list %s", entryFile.getName());
+                    return null;
+                }
+                tests.add(new TestIdentifier(lines[i].substring(0, separatorIndex),
+                        lines[i].substring(separatorIndex + 1)));
+            }
+            return tests;
+        } catch (IOException e) {
+            CLog.w("Failed to read cached test list %s: %s", entryFile.getName(), e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Store a test list in the cache, replacing any existing entry for given key.
+     *
+     * @param key the cache key
+     * @param validation the validation string to store with the entry
+     * @param tests the collected tests
+     */
+    void put(String key, String validation, Collection<TestIdentifier> tests) {
+        StringBuilder entry = new StringBuilder(validation);
+        entry.append('\n');
+        for (TestIdentifier test : tests) {
+            entry.append(test.getClassName());
+            entry.append('#');
+            entry.append(test.getTestName());
+            entry.append('\n');
+        }
+        File tmpFile = null;
+        try {
+            if (!mCacheDir.isDirectory() && !mCacheDir.mkdirs() && !mCacheDir.isDirectory()) {
+                CLog.w("Failed to create test list cache dir %s", mCacheDir);
+                return;
+            }
+            tmpFile = FileUtil.createTempFile(key, ".tmp", mCacheDir);
+            FileUtil.writeToFile(entry.toString(), tmpFile);
+            if (tmpFile.renameTo(getEntryFile(key))) {
+                tmpFile = null;
+            } else {
+                CLog.w("Failed to store cached test list %s", getEntryFile(key).getName());
+            }
+        } catch (IOException e) {
+            CLog.w("Failed to store cached test list: %s", e.getMessage());
+        } finally {
+            FileUtil.deleteFile(tmpFile);
+        }
+    }
+
+    private File getEntryFile(String key) {
+        return new File(mCacheDir, key + ENTRY_SUFFIX);
+    }
+
+    /**
+     * Computes a hex hash of the given strings, suitable for use as a cache key. <code>null</code>
+     * strings are allowed.
+     */
+    static String hashStrings(String... values) {
+        MessageDigest digest = createDigest();
+        try {
+            for (String value : values) {
+                if (value == null) {
+                    digest.update((byte)0);
+                } else {
+                    digest.update((byte)1);
+                    byte[] valueBytes = value.getBytes("UTF-8");
+                    // prefix the length, so adjacent values cannot run together
+                    digest.update(Integer.toString(valueBytes.length).getBytes("UTF-8"));
+                    digest.update((byte)':');
+                    digest.update(valueBytes);
+                }
+            }
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+        return toHex(digest.digest());
+    }
+
+    /**
+     * Computes a hex hash of the given file's contents.
+     */
+    static String hashFile(File file) throws IOException {
+        MessageDigest digest = createDigest();
+        InputStream input = null;
+        try {
+            input = new BufferedInputStream(new FileInputStream(file));
+            byte[] buffer = new byte[64 * 1024];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, count);
+            }
+        } finally {
+            StreamUtil.close(input);
+        }
+        return toHex(digest.digest());
+    }
+
+    private static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            // every java platform is required to support SHA-1
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Writes lines of text to a file on a background thread.
+ * <p/>
+ * Used by output receivers that log device output, so the thread reading the output is not
+ * blocked on disk I/O. The number of pending batches of lines is bounded; once the bound is
+ * reached, callers wait for the writer to catch up.
+ */
+public class BackgroundFileWriter {
+
+    private static final int MAX_PENDING_BATCHES = 1024;
+    /** marker for the end of the output */
+    private static final String[] END_OF_OUTPUT = new String[0];
+
+    private final BlockingQueue<String[]> mPendingLines =
+            new LinkedBlockingQueue<String[]>(MAX_PENDING_BATCHES);
+    private final Writer mWriter;
+    private final Thread mWriterThread;
+    private boolean mIsClosed = false;
+
+    /**
+     * Creates a {@link BackgroundFileWriter}, and starts its writer thread.
+     *
+     * @param file the {@link File} to write to. Will be overwritten if it exists.
+     * @throws IOException if the file could not be created
+     */
+    public BackgroundFileWriter(File file) throws IOException {
+        mWriter = new BufferedWriter(new FileWriter(file));
+        mWriterThread = new Thread(String.format("BackgroundFileWriter-%s", file.getName())) {
+            @Override
+            public void run() {
+                writeLines();
+            }
+        };
+        mWriterThread.setDaemon(true);
+        mWriterThread.start();
+    }
+
+    /**
+     * Queue lines to be written to the file. Each line is followed by a new line. Lines written
+     * after {@link #close()} are ignored.
+     */
+    public synchronized void write(String[] lines) {
+        if (mIsClosed) {
+            return;
+        }
+        try {
+            // the writer thread never needs this lock, so it can always make room
+            mPendingLines.put(lines);
+        } catch (InterruptedException e) {
+            CLog.w("Interrupted while writing to file");
+        }
+    }
+
+    /**
+     * Write any queued lines, and close the file.
+     */
+    public void close() {
+        synchronized (this) {
+            if (mIsClosed) {
+                return;
+            }
+            mIsClosed = true;
+        }
+        try {
+            mPendingLines.put(END_OF_OUTPUT);
+            mWriterThread.join();
+        } catch (InterruptedException e) {
+            CLog.w("Interrupted while closing file");
+        }
+    }
+
+    private void writeLines() {
+        boolean failed = false;
+        try {
+            String[] lines;
+            while ((lines = mPendingLines.take()) != END_OF_OUTPUT) {
+                if (failed) {
+                    // keep draining the queue, so writers are never blocked
+                    continue;
+                }
+                try {
+                    for (String line : lines) {
+                        mWriter.write(line);
+                        mWriter.write('\n');
+                    }
+                } catch (IOException e) {
+                    CLog.e("Error writing to file: %s", e.getMessage());
+                    failed = true;
+                }
+            }
+        } catch (InterruptedException e) {
+            CLog.w("Background file writer interrupted");
+        } finally {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                CLog.e("Error closing writer %s", e.getMessage());
+            }
+        }
+    }
+}
@@ -23,6 +23,8 @@ import java.util.List;
 /**
  * A small utility class that calculates a few statistical measures given a numerical dataset.  The
  * values are stored internally as {@link Double}s.
+ * <p/>
+ * Every measurement is kept, so for very large datasets consider {@link StreamingStats} instead.
  */
 public class SimpleStats {
     private List<Double> mData = new LinkedList<Double>();
@@ -18,6 +18,7 @@
 package com.android.tradefed.util;
 
 import com.android.tradefed.log.LogUtil.CLog;
+import com.google.common.io.ByteStreams;
 import com.google.common.io.CountingOutputStream;
 
 import java.io.BufferedOutputStream;
@@ -53,6 +54,8 @@ public class SizeLimitedOutputStream extends OutputStream {
     private int mCurrentFilePos = 0;
     private final String mTempFilePrefix;
     private final String mTempFileSuffix;
+    /** the number of bytes written since creation, including those since dropped */
+    private long mTotalBytesWritten = 0;
 
     /**
      * Creates a {@link SizeLimitedOutputStream}.
@@ -114,6 +117,44 @@ public class SizeLimitedOutputStream extends OutputStream {
 
     }
 
+    /**
+     * Gets the collected output that was written before a given offset, as a
+     * {@link InputStream}.
+     * <p/>
+     * This allows reading the output up to a point in time recorded with
+     * {@link #getTotalBytesWritten()}, even if more data has been written since.
+     *
+     * @param endOffset the offset, in bytes written since creation, to stop reading at
+     * @param maxBytes the maximum number of bytes to read. Less data is returned if some has
+     *            been dropped to stay within the max data size.
+     * @return The collected output as a {@link InputStream}.
+     */
+    public synchronized InputStream getData(long endOffset, long maxBytes) throws IOException {
+        flush();
+        long retainedBytes = 0;
+        for (File file : mFiles) {
+            if (file != null) {
+                retainedBytes += file.length();
+            }
+        }
+        long retainedStart = mTotalBytesWritten - retainedBytes;
+        long start = Math.max(retainedStart, endOffset - maxBytes);
+        long length = Math.max(0, Math.min(endOffset, mTotalBytesWritten) - start);
+        InputStream data = getData();
+        if (length > 0) {
+            ByteStreams.skipFully(data, start - retainedStart);
+        }
+        return ByteStreams.limit(data, length);
+    }
+
+    /**
+     * @return the number of bytes written to this stream since it was created, including any
+     *         that have since been dropped
+     */
+    public synchronized long getTotalBytesWritten() {
+        return mTotalBytesWritten;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -195,6 +236,7 @@ public class SizeLimitedOutputStream extends OutputStream {
             generateNextFile();
         }
         mCurrentOutputStream.write(data);
+        mTotalBytesWritten++;
         if (mCurrentOutputStream.getCount() >= mMaxFileSize) {
             generateNextFile();
         }
@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Calculates statistical measures of a numerical dataset in a single pass, without storing the
+ * dataset.
+ * <p/>
+ * The mean and standard deviation are exact, and are updated incrementally as each measurement is
+ * added. Percentiles are estimated from a histogram whose buckets grow geometrically, so each
+ * estimate is within a fixed relative error of a measurement in the dataset, and the number of
+ * buckets only grows with the logarithm of the range of the data. This makes it suitable for
+ * aggregating measurements over very long runs, where {@link SimpleStats} would keep every
+ * measurement in memory.
+ * <p/>
+ * Outliers are detected with Tukey's fences: measurements more than {@link #OUTLIER_IQR_FACTOR}
+ * interquartile ranges below the first quartile or above the third quartile.
+ */
+public class StreamingStats {
+
+    /** default relative error of percentile estimates */
+    public static final double DEFAULT_PRECISION = 0.01;
+    /** the number of interquartile ranges beyond the quartiles at which a value is an outlier */
+    public static final double OUTLIER_IQR_FACTOR = 1.5;
+
+    private final double mLogBase;
+
+    private long mCount = 0;
+    private double mMean = 0;
+    // sum of squared differences from the current mean
+    private double mSsd = 0;
+    private double mMin = Double.NaN;
+    private double mMax = Double.NaN;
+
+    // bucket counts, keyed by the bucket index of the magnitude of the measurement
+    private final TreeMap<Integer, Long> mPositiveBuckets = new TreeMap<Integer, Long>();
+    private final TreeMap<Integer, Long> mNegativeBuckets = new TreeMap<Integer, Long>();
+    private long mZeroCount = 0;
+
+    /**
+     * Creates a {@link StreamingStats} with the {@link #DEFAULT_PRECISION}.
+     */
+    public StreamingStats() {
+        this(DEFAULT_PRECISION);
+    }
+
+    /**
+     * Creates a {@link StreamingStats}.
+     *
+     * @param precision the relative error of percentile estimates, eg 0.01 for 1%
+     */
+    public StreamingStats(double precision) {
+        if (precision <= 0 || precision >= 1) {
+            throw new IllegalArgumentException("precision must be between 0 and 1");
+        }
+        mLogBase = Math.log(1 + 2 * precision);
+    }
+
+    /**
+     * Add a measurement to the dataset.
+     */
+    public void add(double meas) {
+        if (Double.isNaN(meas) || Double.isInfinite(meas)) {
+            throw new IllegalArgumentException(String.format("invalid measurement %s", meas));
+        }
+        mCount++;
+        // Welford's method, which avoids the loss of precision of summing squares
+        double delta = meas - mMean;
+        mMean += delta / mCount;
+        mSsd += delta * (meas - mMean);
+        if (mCount == 1) {
+            mMin = meas;
+            mMax = meas;
+        } else {
+            mMin = Math.min(mMin, meas);
+            mMax = Math.max(mMax, meas);
+        }
+        if (meas > 0) {
+            increment(mPositiveBuckets, getBucket(meas), 1);
+        } else if (meas < 0) {
+            increment(mNegativeBuckets, getBucket(-meas), 1);
+        } else {
+            mZeroCount++;
+        }
+    }
+
+    /**
+     * Add all the measurements of another {@link StreamingStats} to this dataset.
+     * <p/>
+     * Both instances should have the same precision.
+     */
+    public void addAll(StreamingStats other) {
+        if (other.isEmpty()) {
+            return;
+        }
+        if (isEmpty()) {
+            mMin = other.mMin;
+            mMax = other.mMax;
+        } else {
+            mMin = Math.min(mMin, other.mMin);
+            mMax = Math.max(mMax, other.mMax);
+        }
+        long count = mCount + other.mCount;
+        double delta = other.mMean - mMean;
+        mSsd += other.mSsd + delta * delta * mCount * other.mCount / count;
+        mMean += delta * other.mCount / count;
+        mCount = count;
+        for (Map.Entry<Integer, Long> e : other.mPositiveBuckets.entrySet()) {
+            increment(mPositiveBuckets, e.getKey(), e.getValue());
+        }
+        for (Map.Entry<Integer, Long> e : other.mNegativeBuckets.entrySet()) {
+            increment(mNegativeBuckets, e.getKey(), e.getValue());
+        }
+        mZeroCount += other.mZeroCount;
+    }
+
+    /**
+     * Check if the dataset is empty.
+     */
+    public boolean isEmpty() {
+        return mCount == 0;
+    }
+
+    /**
+     * Check how many elements are in the dataset.
+     */
+    public long size() {
+        return mCount;
+    }
+
+    /**
+     * Return the mean of the dataset, or {@code null} if the dataset is empty.
+     */
+    public Double mean() {
+        if (isEmpty()) {
+            return null;
+        }
+        return mMean;
+    }
+
+    /**
+     * Return the population standard deviation of the dataset, or {@code null} if the dataset is
+     * empty.
+     */
+    public Double stdev() {
+        if (isEmpty()) {
+            return null;
+        }
+        return Math.sqrt(mSsd / mCount);
+    }
+
+    /**
+     * Return the minimum value in the dataset, or {@code null} if the dataset is empty.
+     */
+    public Double min() {
+        if (isEmpty()) {
+            return null;
+        }
+        return mMin;
+    }
+
+    /**
+     * Return the maximum value in the dataset, or {@code null} if the dataset is empty.
+     */
+    public Double max() {
+        if (isEmpty()) {
+            return null;
+        }
+        return mMax;
+    }
+
+    /**
+     * Return an estimate of the median of the dataset, or {@code null} if the dataset is empty.
+     */
+    public Double median() {
+        return percentile(50);
+    }
+
+    /**
+     * Return an estimate of the given percentile of the dataset, or {@code null} if the dataset is
+     * empty.
+     *
+     * @param percentile the percentile, from 0 to 100
+     */
+    public Double percentile(double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        if (isEmpty()) {
+            return null;
+        }
+        // the extremes are known exactly
+        if (percentile == 0) {
+            return mMin;
+        } else if (percentile == 100) {
+            return mMax;
+        }
+        // the rank of the measurement to find, counting from 1
+        long rank = Math.max(1, (long)Math.ceil(percentile / 100 * mCount));
+        long seen = 0;
+        for (Map.Entry<Integer, Long> e : mNegativeBuckets.descendingMap().entrySet()) {
+            seen += e.getValue();
+            if (seen >= rank) {
+                return clamp(-getBucketValue(e.getKey()));
+            }
+        }
+        seen += mZeroCount;
+        if (seen >= rank) {
+            return 0.0;
+        }
+        for (Map.Entry<Integer, Long> e : mPositiveBuckets.entrySet()) {
+            seen += e.getValue();
+            if (seen >= rank) {
+                return clamp(getBucketValue(e.getKey()));
+            }
+        }
+        return mMax;
+    }
+
+    /**
+     * Check if a value is an outlier relative to the dataset. Always returns {@code false} if the
+     * dataset is empty.
+     */
+    public boolean isOutlier(double value) {
+        if (isEmpty()) {
+            return false;
+        }
+        double[] fences = getOutlierFences();
+        return value < fences[0] || value > fences[1];
+    }
+
+    /**
+     * Return an estimate of the number of outliers in the dataset.
+     * <p/>
+     * Measurements are counted by the histogram bucket they fall in, so measurements within the
+     * precision of a fence may be misclassified.
+     */
+    public long countOutliers() {
+        if (isEmpty()) {
+            return 0;
+        }
+        double[] fences = getOutlierFences();
+        long count = 0;
+        for (Map.Entry<Integer, Long> e : mNegativeBuckets.entrySet()) {
+            double value = clamp(-getBucketValue(e.getKey()));
+            if (value < fences[0] || value > fences[1]) {
+                count += e.getValue();
+            }
+        }
+        if (0 < fences[0] || 0 > fences[1]) {
+            count += mZeroCount;
+        }
+        for (Map.Entry<Integer, Long> e : mPositiveBuckets.entrySet()) {
+            double value = clamp(getBucketValue(e.getKey()));
+            if (value < fences[0] || value > fences[1]) {
+                count += e.getValue();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Get the lower and upper bounds of the values that are not outliers.
+     */
+    private double[] getOutlierFences() {
+        double q1 = percentile(25);
+        double q3 = percentile(75);
+        double iqr = q3 - q1;
+        return new double[] {q1 - OUTLIER_IQR_FACTOR * iqr, q3 + OUTLIER_IQR_FACTOR * iqr};
+    }
+
+    private int getBucket(double magnitude) {
+        return (int)Math.floor(Math.log(magnitude) / mLogBase);
+    }
+
+    /**
+     * Get the value that represents a bucket, which is within the precision of every value in it.
+     */
+    private double getBucketValue(int bucket) {
+        double lower = Math.exp(bucket * mLogBase);
+        double upper = Math.exp((bucket + 1) * mLogBase);
+        return (lower + upper) / 2;
+    }
+
+    private double clamp(double value) {
+        return Math.max(mMin, Math.min(mMax, value));
+    }
+
+    private static void increment(Map<Integer, Long> buckets, int bucket, long count) {
+        Long current = buckets.get(bucket);
+        buckets.put(bucket, current == null ? count : current + count);
+    }
+}
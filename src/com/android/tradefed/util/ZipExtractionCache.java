@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.zip.ZipFile;
+
+/**
+ * A shared cache of extracted zip files, so that a zip used by several invocations at once is only
+ * extracted once.
+ * <p/>
+ * Each call to {@link #acquire(File)} must be matched by a call to {@link #release(File)} with the
+ * returned directory. The directory is deleted once it has been released as many times as it was
+ * acquired. A zip file that changes while it is in use is extracted again to a new directory.
+ * <p/>
+ * Callers must not modify the extracted directory, since it may be shared.
+ */
+public class ZipExtractionCache {
+
+    private static final ZipExtractionCache sDefaultCache = new ZipExtractionCache();
+
+    private static class CacheEntry {
+        final File mZipFile;
+        /** the extracted directory, or <code>null</code> if not extracted yet */
+        volatile File mDir = null;
+        /** the failure to extract the zip, shared with callers that waited for it */
+        IOException mFailure = null;
+        int mRefCount = 0;
+
+        CacheEntry(File zipFile) {
+            mZipFile = zipFile;
+        }
+    }
+
+    /** entries keyed by zip path, size and modification time */
+    private final Map<String, CacheEntry> mEntries = new HashMap<String, CacheEntry>();
+
+    /**
+     * Get the {@link ZipExtractionCache} shared by the whole process.
+     */
+    public static ZipExtractionCache getDefault() {
+        return sDefaultCache;
+    }
+
+    /**
+     * Get the directory the given zip file is extracted to, extracting it if necessary.
+     * <p/>
+     * Only one caller extracts a given zip; concurrent callers for the same zip wait for it. If
+     * the extraction fails, the callers waiting for it fail too, and the next call tries again.
+     *
+     * @param zipFile the zip file
+     * @return the directory containing the zip contents
+     * @throws IOException if the zip could not be extracted
+     */
+    public File acquire(File zipFile) throws IOException {
+        String key = String.format("%s:%d:%d", zipFile.getAbsolutePath(), zipFile.length(),
+                zipFile.lastModified());
+        CacheEntry entry;
+        synchronized (mEntries) {
+            entry = mEntries.get(key);
+            if (entry == null) {
+                entry = new CacheEntry(zipFile);
+                mEntries.put(key, entry);
+            }
+            entry.mRefCount++;
+        }
+        synchronized (entry) {
+            if (entry.mFailure != null) {
+                releaseEntry(entry);
+                throw new IOException(String.format("Failed to extract %s", zipFile),
+                        entry.mFailure);
+            }
+            if (entry.mDir == null) {
+                try {
+                    entry.mDir = extract(zipFile);
+                } catch (IOException e) {
+                    entry.mFailure = e;
+                    // later callers should try again rather than share this failure
+                    removeEntry(entry);
+                    releaseEntry(entry);
+                    throw e;
+                }
+            }
+            return entry.mDir;
+        }
+    }
+
+    /**
+     * Release a directory returned by {@link #acquire(File)}, deleting it if it is no longer in
+     * use.
+     *
+     * @param extractedDir the directory
+     * @return <code>true</code> if the directory was in the cache
+     */
+    public boolean release(File extractedDir) {
+        CacheEntry released = null;
+        synchronized (mEntries) {
+            for (CacheEntry entry : mEntries.values()) {
+                if (extractedDir.equals(entry.mDir)) {
+                    released = entry;
+                    break;
+                }
+            }
+        }
+        if (released == null) {
+            return false;
+        }
+        // not under the lock, so other zips can be acquired while the directory is deleted
+        releaseEntry(released);
+        return true;
+    }
+
+    /**
+     * Get the number of zip files currently extracted. Exposed for unit testing.
+     */
+    int size() {
+        synchronized (mEntries) {
+            return mEntries.size();
+        }
+    }
+
+    private void releaseEntry(CacheEntry entry) {
+        File dirToDelete = null;
+        synchronized (mEntries) {
+            if (--entry.mRefCount > 0) {
+                return;
+            }
+            removeEntry(entry);
+            dirToDelete = entry.mDir;
+        }
+        if (dirToDelete != null) {
+            CLog.d("Deleting extracted contents of %s", entry.mZipFile);
+            FileUtil.recursiveDelete(dirToDelete);
+        }
+    }
+
+    private void removeEntry(CacheEntry entry) {
+        synchronized (mEntries) {
+            for (Iterator<CacheEntry> iter = mEntries.values().iterator(); iter.hasNext(); ) {
+                if (iter.next() == entry) {
+                    iter.remove();
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Extract the zip file to a new temp directory.
+     * <p/>
+     * Exposed so unit tests can mock.
+     */
+    File extract(File zipFile) throws IOException {
+        File extractedDir = FileUtil.createTempDir(zipFile.getName());
+        ZipFile zip = null;
+        try {
+            zip = new ZipFile(zipFile);
+            ZipUtil.extractZip(zip, extractedDir);
+        } catch (IOException e) {
+            FileUtil.recursiveDelete(extractedDir);
+            throw e;
+        } finally {
+            ZipUtil.closeZip(zip);
+        }
+        return extractedDir;
+    }
+}
@@ -43,8 +43,10 @@ public class ZipUtil {
      * Utility method to verify that a zip file is not corrupt.
      *
      * @param zipFile the {@link File} to check
-     * @param thorough Whether to attempt to fully extract the archive.  If {@code false}, this
-     *        method will fail to detect CRC errors in a well-formed archive.
+     * @param thorough Whether to read every entry of the archive and check its CRC.  If
+     *        {@code false}, this method will fail to detect CRC errors in a well-formed archive.
+     *        Entries are read in parallel without being extracted to disk, and a file that was
+     *        found to be valid is not read again unless it changes.
      * @throws IOException if the file could not be opened or read
      * @return {@code false} if the file appears to be corrupt; {@code true} otherwise
      */
@@ -55,16 +57,11 @@ public class ZipUtil {
         }
 
         try {
-            final ZipFile z = new ZipFile(zipFile);
-
             if (thorough) {
                 // Reading the entire file is the only way to detect CRC errors within the archive
-                final File extractDir = FileUtil.createTempDir("extract-" + zipFile.getName());
-                try {
-                    extractZip(z, extractDir);
-                } finally {
-                    FileUtil.recursiveDelete(extractDir);
-                }
+                ZipVerifier.getDefault().verify(zipFile);
+            } else {
+                closeZip(new ZipFile(zipFile));
             }
         } catch (ZipException e) {
             // File is likely corrupt
@@ -97,6 +94,33 @@ public class ZipUtil {
         }
     }
 
+    /**
+     * Utility method to extract the entries of a zip file whose names start with the given prefix
+     * into given directory. Other entries are not decompressed.
+     *
+     * @param zipFile the {@link ZipFile} to extract
+     * @param destDir the local dir to extract files to. Entries keep their full path.
+     * @param entryPrefix the prefix of the entry names to extract, eg "DATA/"
+     * @throws IOException if failed to extract file
+     */
+    public static void extractZip(ZipFile zipFile, File destDir, String entryPrefix)
+            throws IOException {
+        Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+            ZipEntry entry = entries.nextElement();
+            if (!entry.getName().startsWith(entryPrefix)) {
+                continue;
+            }
+            File childFile = new File(destDir, entry.getName());
+            if (entry.isDirectory()) {
+                childFile.mkdirs();
+            } else {
+                childFile.getParentFile().mkdirs();
+                FileUtil.writeToFile(zipFile.getInputStream(entry), childFile);
+            }
+        }
+    }
+
     /**
      * Utility method to extract one specific file from zip file into a tmp file
      *
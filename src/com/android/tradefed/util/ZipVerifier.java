@@ -0,0 +1,222 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import com.android.tradefed.log.LogUtil.CLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Checks the CRC of every entry in a zip file, without extracting it to disk.
+ * <p/>
+ * Entries are split between several threads, each reading the archive through its own
+ * {@link ZipFile}. Zip files found to be valid are remembered by path, size and modification time,
+ * so checking an unchanged file again costs nothing. Only the most recently verified version of
+ * each path is remembered, for a bounded number of paths.
+ */
+class ZipVerifier {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    /** the maximum number of valid zip files to remember */
+    static final int MAX_VALID_ZIPS = 256;
+
+    private static final ZipVerifier sDefaultVerifier =
+            new ZipVerifier(Runtime.getRuntime().availableProcessors());
+
+    private final int mMaxThreads;
+    private final int mMaxValidZips;
+    /** the size and modification time of valid zip files, keyed by path, least recent first */
+    private final Map<String, String> mValidZips = new LinkedHashMap<String, String>(16, 0.75f,
+            true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+            return size() > mMaxValidZips;
+        }
+    };
+
+    /**
+     * @param maxThreads the maximum number of threads to check a single zip file with
+     */
+    ZipVerifier(int maxThreads) {
+        this(maxThreads, MAX_VALID_ZIPS);
+    }
+
+    /**
+     * @param maxThreads the maximum number of threads to check a single zip file with
+     * @param maxValidZips the maximum number of valid zip files to remember
+     */
+    ZipVerifier(int maxThreads, int maxValidZips) {
+        mMaxThreads = Math.max(1, maxThreads);
+        mMaxValidZips = maxValidZips;
+    }
+
+    /**
+     * @return the {@link ZipVerifier} shared by the whole process
+     */
+    static ZipVerifier getDefault() {
+        return sDefaultVerifier;
+    }
+
+    /**
+     * Check that every entry of a zip file can be read, and matches its CRC.
+     *
+     * @param zipFile the zip {@link File} to check
+     * @throws ZipException if the zip file is corrupt
+     * @throws IOException if the zip file could not be read
+     */
+    void verify(final File zipFile) throws IOException {
+        String path = zipFile.getAbsolutePath();
+        String version = String.format("%d:%d", zipFile.length(), zipFile.lastModified());
+        synchronized (mValidZips) {
+            if (version.equals(mValidZips.get(path))) {
+                CLog.d("Zip file %s is unchanged since it was verified", zipFile.getName());
+                return;
+            }
+        }
+        long startTime = System.currentTimeMillis();
+        List<List<ZipEntry>> batches = splitEntries(zipFile);
+        ExecutorService executor = Executors.newFixedThreadPool(batches.size());
+        try {
+            List<Future<Void>> futures = new ArrayList<Future<Void>>(batches.size());
+            for (final List<ZipEntry> batch : batches) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        verifyEntries(zipFile, batch);
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException)e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            throw new IOException(String.format("Interrupted while verifying %s",
+                    zipFile.getName()), e);
+        } finally {
+            executor.shutdownNow();
+        }
+        CLog.d("Verified %s with %d threads in %d ms", zipFile.getName(), batches.size(),
+                System.currentTimeMillis() - startTime);
+        synchronized (mValidZips) {
+            // replaces any older version of the same path
+            mValidZips.put(path, version);
+        }
+    }
+
+    /**
+     * Split the entries of a zip file into batches of about the same compressed size, one per
+     * thread.
+     */
+    private List<List<ZipEntry>> splitEntries(File zipFile) throws IOException {
+        List<ZipEntry> entries = new ArrayList<ZipEntry>();
+        ZipFile z = new ZipFile(zipFile);
+        try {
+            for (Enumeration<? extends ZipEntry> e = z.entries(); e.hasMoreElements(); ) {
+                ZipEntry entry = e.nextElement();
+                if (!entry.isDirectory()) {
+                    entries.add(entry);
+                }
+            }
+        } finally {
+            ZipUtil.closeZip(z);
+        }
+        // hand out the largest entries first, each to the least loaded batch
+        Collections.sort(entries, new Comparator<ZipEntry>() {
+            @Override
+            public int compare(ZipEntry a, ZipEntry b) {
+                return Long.compare(b.getCompressedSize(), a.getCompressedSize());
+            }
+        });
+        int numBatches = Math.max(1, Math.min(mMaxThreads, entries.size()));
+        List<List<ZipEntry>> batches = new ArrayList<List<ZipEntry>>(numBatches);
+        long[] batchSizes = new long[numBatches];
+        for (int i = 0; i < numBatches; i++) {
+            batches.add(new ArrayList<ZipEntry>());
+        }
+        for (ZipEntry entry : entries) {
+            int smallest = 0;
+            for (int i = 1; i < numBatches; i++) {
+                if (batchSizes[i] < batchSizes[smallest]) {
+                    smallest = i;
+                }
+            }
+            batches.get(smallest).add(entry);
+            batchSizes[smallest] += Math.max(0, entry.getCompressedSize());
+        }
+        return batches;
+    }
+
+    /**
+     * Read the given entries through their own {@link ZipFile}, checking each against its CRC.
+     */
+    private static void verifyEntries(File zipFile, List<ZipEntry> entries) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        CRC32 crc = new CRC32();
+        ZipFile z = new ZipFile(zipFile);
+        try {
+            for (ZipEntry entry : entries) {
+                crc.reset();
+                long size = 0;
+                InputStream in = z.getInputStream(entry);
+                try {
+                    int n;
+                    while ((n = in.read(buffer)) != -1) {
+                        crc.update(buffer, 0, n);
+                        size += n;
+                    }
+                } finally {
+                    StreamUtil.close(in);
+                }
+                if (entry.getCrc() != -1 && entry.getCrc() != crc.getValue()) {
+                    throw new ZipException(String.format("CRC mismatch in entry %s",
+                            entry.getName()));
+                }
+                if (entry.getSize() != -1 && entry.getSize() != size) {
+                    throw new ZipException(String.format("Size mismatch in entry %s",
+                            entry.getName()));
+                }
+            }
+        } finally {
+            ZipUtil.closeZip(z);
+        }
+    }
+}
@@ -26,9 +26,12 @@ import com.android.tradefed.build.SdkBuildInfoTest;
 import com.android.tradefed.command.CommandFileParserTest;
 import com.android.tradefed.command.CommandSchedulerTest;
 import com.android.tradefed.command.ConsoleTest;
+import com.android.tradefed.command.FairSharePolicyTest;
+import com.android.tradefed.command.SchedulerSimulatorTest;
 import com.android.tradefed.command.remote.RemoteManagerTest;
 import com.android.tradefed.command.remote.RemoteOperationTest;
 import com.android.tradefed.config.ArgsOptionParserTest;
+import com.android.tradefed.config.ConfigIndexTest;
 import com.android.tradefed.config.ConfigurationDefTest;
 import com.android.tradefed.config.ConfigurationFactoryTest;
 import com.android.tradefed.config.ConfigurationTest;
@@ -36,14 +39,20 @@ import com.android.tradefed.config.ConfigurationXmlParserTest;
 import com.android.tradefed.config.OptionCopierTest;
 import com.android.tradefed.config.OptionSetterTest;
 import com.android.tradefed.config.OptionUpdateRuleTest;
+import com.android.tradefed.device.BulkFilePusherTest;
 import com.android.tradefed.device.CpuStatsCollectorTest;
+import com.android.tradefed.device.DeviceHealthTest;
 import com.android.tradefed.device.DeviceManagerTest;
 import com.android.tradefed.device.DeviceSelectionOptionsTest;
 import com.android.tradefed.device.DeviceStateMonitorTest;
 import com.android.tradefed.device.DeviceUtilStatsMonitorTest;
 import com.android.tradefed.device.DumpsysPackageReceiverTest;
+import com.android.tradefed.device.EmulatorPoolTest;
+import com.android.tradefed.device.FastbootUsbWatcherTest;
 import com.android.tradefed.device.ManagedDeviceListTest;
 import com.android.tradefed.device.ReconnectingRecoveryTest;
+import com.android.tradefed.device.ScreenshotEncoderTest;
+import com.android.tradefed.device.ShellCommandBatchTest;
 import com.android.tradefed.device.TestDeviceTest;
 import com.android.tradefed.device.WaitDeviceRecoveryTest;
 import com.android.tradefed.device.WifiHelperTest;
@@ -54,6 +63,7 @@ import com.android.tradefed.log.TerribleFailureEmailHandlerTest;
 import com.android.tradefed.result.BugreportCollectorTest;
 import com.android.tradefed.result.CollectingTestListenerTest;
 import com.android.tradefed.result.EmailResultReporterTest;
+import com.android.tradefed.result.FailureArtifactCollectorTest;
 import com.android.tradefed.result.FailureEmailResultReporterTest;
 import com.android.tradefed.result.FileSystemLogSaverTest;
 import com.android.tradefed.result.InvocationFailureEmailResultReporterTest;
@@ -81,12 +91,14 @@ import com.android.tradefed.testtype.FakeTestTest;
 import com.android.tradefed.testtype.GTestResultParserTest;
 import com.android.tradefed.testtype.GTestTest;
 import com.android.tradefed.testtype.HostTestTest;
+import com.android.tradefed.testtype.InstrumentationBatchTestTest;
 import com.android.tradefed.testtype.InstrumentationFileTestTest;
 import com.android.tradefed.testtype.InstrumentationSerialTestTest;
 import com.android.tradefed.testtype.InstrumentationTestTest;
 import com.android.tradefed.testtype.NativeBenchmarkTestParserTest;
 import com.android.tradefed.testtype.NativeStressTestParserTest;
 import com.android.tradefed.testtype.NativeStressTestTest;
+import com.android.tradefed.testtype.TestListCacheTest;
 import com.android.tradefed.testtype.testdefs.XmlDefsParserTest;
 import com.android.tradefed.testtype.testdefs.XmlDefsTestTest;
 import com.android.tradefed.util.AaptParserTest;
@@ -104,6 +116,9 @@ import com.android.tradefed.util.QuotationAwareTokenizerTest;
 import com.android.tradefed.util.RegexTrieTest;
 import com.android.tradefed.util.RunUtilTest;
 import com.android.tradefed.util.SizeLimitedOutputStreamTest;
+import com.android.tradefed.util.StreamingStatsTest;
+import com.android.tradefed.util.ZipExtractionCacheTest;
+import com.android.tradefed.util.ZipVerifierTest;
 import com.android.tradefed.util.net.HttpMultipartPostTest;
 import com.android.tradefed.util.xml.AndroidManifestWriterTest;
 
@@ -132,6 +147,8 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(CommandFileParserTest.class);
         addTestSuite(CommandSchedulerTest.class);
         addTestSuite(ConsoleTest.class);
+        addTestSuite(FairSharePolicyTest.class);
+        addTestSuite(SchedulerSimulatorTest.class);
 
         // command.remote
         addTestSuite(RemoteManagerTest.class);
@@ -139,6 +156,7 @@ public class UnitTests extends DeviceTestSuite {
 
         // config
         addTestSuite(ArgsOptionParserTest.class);
+        addTestSuite(ConfigIndexTest.class);
         addTestSuite(ConfigurationDefTest.class);
         addTestSuite(ConfigurationFactoryTest.class);
         addTestSuite(ConfigurationTest.class);
@@ -148,14 +166,20 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(OptionUpdateRuleTest.class);
 
         // device
+        addTestSuite(BulkFilePusherTest.class);
         addTestSuite(CpuStatsCollectorTest.class);
+        addTestSuite(DeviceHealthTest.class);
         addTestSuite(DeviceManagerTest.class);
         addTestSuite(ManagedDeviceListTest.class);
         addTestSuite(DeviceSelectionOptionsTest.class);
         addTestSuite(DeviceStateMonitorTest.class);
         addTestSuite(DeviceUtilStatsMonitorTest.class);
         addTestSuite(DumpsysPackageReceiverTest.class);
+        addTestSuite(EmulatorPoolTest.class);
+        addTestSuite(FastbootUsbWatcherTest.class);
         addTestSuite(ReconnectingRecoveryTest.class);
+        addTestSuite(ScreenshotEncoderTest.class);
+        addTestSuite(ShellCommandBatchTest.class);
         addTestSuite(TestDeviceTest.class);
         addTestSuite(WaitDeviceRecoveryTest.class);
         addTestSuite(WifiHelperTest.class);
@@ -172,6 +196,7 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(BugreportCollectorTest.class);
         addTestSuite(CollectingTestListenerTest.class);
         addTestSuite(EmailResultReporterTest.class);
+        addTestSuite(FailureArtifactCollectorTest.class);
         addTestSuite(FailureEmailResultReporterTest.class);
         addTestSuite(FileSystemLogSaverTest.class);
         addTestSuite(InvocationFailureEmailResultReporterTest.class);
@@ -203,11 +228,13 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(GTestTest.class);
         addTestSuite(HostTestTest.class);
         addTestSuite(InstrumentationSerialTestTest.class);
+        addTestSuite(InstrumentationBatchTestTest.class);
         addTestSuite(InstrumentationFileTestTest.class);
         addTestSuite(InstrumentationTestTest.class);
         addTestSuite(NativeBenchmarkTestParserTest.class);
         addTestSuite(NativeStressTestParserTest.class);
         addTestSuite(NativeStressTestTest.class);
+        addTestSuite(TestListCacheTest.class);
 
         // testtype/testdefs
         addTestSuite(XmlDefsParserTest.class);
@@ -230,6 +257,9 @@ public class UnitTests extends DeviceTestSuite {
         addTestSuite(RegexTrieTest.class);
         addTestSuite(RunUtilTest.class);
         addTestSuite(SizeLimitedOutputStreamTest.class);
+        addTestSuite(StreamingStatsTest.class);
+        addTestSuite(ZipExtractionCacheTest.class);
+        addTestSuite(ZipVerifierTest.class);
 
         // util subdirs
         addTestSuite(AndroidManifestWriterTest.class);
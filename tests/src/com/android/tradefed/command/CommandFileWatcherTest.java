@@ -17,6 +17,7 @@
 package com.android.tradefed.command;
 
 import com.android.tradefed.command.CommandFileWatcher.ICommandFileListener;
+import com.android.tradefed.util.FileUtil;
 
 import junit.framework.TestCase;
 
@@ -143,6 +144,52 @@ public class CommandFileWatcherTest extends TestCase {
         EasyMock.verify(mMockListener);
     }
 
+    /**
+     * Make sure that a change is noticed from a file system notification, well before the poll
+     * interval has elapsed.
+     */
+    public void testWatchService() throws Exception {
+        File cmdDir = FileUtil.createTempDir("cmdfilewatcher");
+        final Object lock = new Object();
+        final boolean[] changed = new boolean[1];
+        CommandFileWatcher watcher = new CommandFileWatcher(new ICommandFileListener() {
+            @Override
+            public void notifyFileChanged(File cmdFile, List<String> extraArgs) {
+                synchronized (lock) {
+                    changed[0] = true;
+                    lock.notify();
+                }
+            }
+        });
+        try {
+            File cmdFile = new File(cmdDir, "cmdfile.txt");
+            FileUtil.writeToFile("foo\n", cmdFile);
+            watcher.addCmdFile(cmdFile, EMPTY_ARGS, EMPTY_DEPENDENCIES);
+            if (watcher.createWatchService() == null) {
+                // notifications not supported on this host
+                return;
+            }
+            watcher.start();
+            // wait for the watcher to block waiting for notifications
+            while (watcher.getState() != Thread.State.TIMED_WAITING) {
+                Thread.sleep(10);
+            }
+            synchronized (lock) {
+                FileUtil.writeToFile("bar\n", cmdFile);
+                // ensure the change is visible even on file systems with coarse timestamps
+                cmdFile.setLastModified(cmdFile.lastModified() + 10 * 1000);
+                long deadline = System.currentTimeMillis() + 10 * 1000;
+                while (!changed[0] && System.currentTimeMillis() < deadline) {
+                    lock.wait(deadline - System.currentTimeMillis());
+                }
+            }
+            assertTrue(changed[0]);
+        } finally {
+            watcher.cancel();
+            FileUtil.recursiveDelete(cmdDir);
+        }
+    }
+
     /**
      * A File extension that allows a list of modtimes to be set.
      */
@@ -23,6 +23,7 @@ import com.android.tradefed.config.ConfigurationException;
 import com.android.tradefed.config.IConfiguration;
 import com.android.tradefed.config.IConfigurationFactory;
 import com.android.tradefed.config.IGlobalConfiguration;
+import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.DeviceSelectionOptions;
 import com.android.tradefed.device.FreeDeviceState;
@@ -34,6 +35,9 @@ import com.android.tradefed.invoker.ITestInvocation;
 import com.android.tradefed.log.ITerribleFailureHandler;
 import com.android.tradefed.log.LogUtil.CLog;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.targetprep.ITargetPreparer;
+import com.android.tradefed.targetprep.companion.CompanionAllocator;
+import com.android.tradefed.targetprep.companion.CompanionDeviceTracker;
 
 import junit.framework.TestCase;
 
@@ -43,9 +47,12 @@ import org.junit.Assert;
 
 import java.io.File;
 import java.lang.Thread.UncaughtExceptionHandler;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -60,6 +67,7 @@ public class CommandSchedulerTest extends TestCase {
     private IConfiguration mMockConfiguration;
     private CommandOptions mCommandOptions;
     private DeviceSelectionOptions mDeviceOptions;
+    private List<ITargetPreparer> mTargetPreparers;
     private CommandFileParser mMockCmdFileParser;
 
     /**
@@ -75,6 +83,7 @@ public class CommandSchedulerTest extends TestCase {
         mMockConfiguration = EasyMock.createMock(IConfiguration.class);
         mCommandOptions = new CommandOptions();
         mDeviceOptions = new DeviceSelectionOptions();
+        mTargetPreparers = new ArrayList<>();
 
         mScheduler = new CommandScheduler() {
 
@@ -186,6 +195,119 @@ public class CommandSchedulerTest extends TestCase {
         verifyMocks();
     }
 
+    /**
+     * Test that a command with a companion device is allocated both devices together, and that
+     * the companion device is freed with the primary device.
+     */
+    public void testRun_deviceGroup() throws Throwable {
+        String[] args = new String[] {};
+        mMockManager.setNumDevices(2);
+        mTargetPreparers.add(new StubCompanionAllocator());
+        setCreateConfigExpectations(args, 1);
+        mMockInvocation.invoke((ITestDevice)EasyMock.anyObject(),
+                (IConfiguration)EasyMock.anyObject(), (IRescheduler)EasyMock.anyObject(),
+                (ITestInvocationListener)EasyMock.anyObject());
+        final ITestDevice[] companion = new ITestDevice[1];
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                ITestDevice primary = (ITestDevice)EasyMock.getCurrentArguments()[0];
+                // the companion was allocated with the primary, so no allocation is needed
+                companion[0] = CompanionDeviceTracker.getInstance().allocateCompanionDevice(
+                        primary, new DeviceSelectionOptions());
+                return null;
+            }
+        });
+        mMockConfiguration.validateOptions();
+        replayMocks();
+        mScheduler.addCommand(args);
+        mScheduler.shutdownOnEmpty();
+        mScheduler.join();
+        verifyMocks();
+        assertNotNull(companion[0]);
+    }
+
+    /**
+     * Test that a command with a companion device is not allocated a device until its whole group
+     * is available.
+     */
+    public void testRun_deviceGroupNotAvailable() throws Throwable {
+        String[] args = new String[] {};
+        mMockManager.setNumDevices(1);
+        mTargetPreparers.add(new StubCompanionAllocator());
+        setCreateConfigExpectations(args, 1);
+        mMockConfiguration.validateOptions();
+        replayMocks();
+        mScheduler.addCommand(args);
+        // hack - sleep a bit to ensure allocation is attempted
+        Thread.sleep(50);
+        assertEquals(1, mScheduler.getAllCommandsSize());
+        mScheduler.removeAllCommands();
+        verifyMocks();
+    }
+
+    /**
+     * Test that while a command waits for its group of devices, only devices matching its
+     * companions are held back, and an unrelated single device command can still run.
+     */
+    public void testRun_deviceGroupWaiting() throws Throwable {
+        new OptionSetter(mScheduler).setOptionValue("device-group-reserve-time", "0");
+        mMockManager.setNumDevices(1);
+        // the group needs a companion that is never available
+        String[] groupArgs = new String[] {"group"};
+        IConfiguration groupConfig = EasyMock.createMock(IConfiguration.class);
+        DeviceSelectionOptions companionOptions = new DeviceSelectionOptions();
+        companionOptions.addSerial("missing");
+        List<ITargetPreparer> groupPreparers = new ArrayList<ITargetPreparer>();
+        groupPreparers.add(new StubCompanionAllocator(companionOptions));
+        EasyMock.expect(mMockConfigFactory.createConfigurationFromArgs(
+                EasyMock.aryEq(groupArgs))).andReturn(groupConfig);
+        EasyMock.expect(groupConfig.getCommandOptions()).andStubReturn(new CommandOptions());
+        EasyMock.expect(groupConfig.getDeviceRequirements()).andStubReturn(
+                new DeviceSelectionOptions());
+        EasyMock.expect(groupConfig.getTargetPreparers()).andStubReturn(groupPreparers);
+        groupConfig.validateOptions();
+        String[] args = new String[] {};
+        setCreateConfigExpectations(args, 1);
+        setExpectedInvokeCalls(1);
+        mMockConfiguration.validateOptions();
+        replayMocks(groupConfig);
+        mScheduler.addCommand(groupArgs);
+        // hack - sleep a bit to ensure the group's allocation fails and its companion is reserved
+        Thread.sleep(50);
+        mScheduler.addCommand(args);
+        long deadline = System.currentTimeMillis() + 1000;
+        while (mScheduler.getAllCommandsSize() > 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, mScheduler.getAllCommandsSize());
+        mScheduler.removeAllCommands();
+        mScheduler.shutdown();
+        mScheduler.join();
+        verifyMocks(groupConfig);
+    }
+
+    /**
+     * A {@link CompanionAllocator} that accepts any companion device, or the companion devices
+     * matching given options.
+     */
+    private static class StubCompanionAllocator extends CompanionAllocator {
+        private final DeviceSelectionOptions mOptions;
+
+        StubCompanionAllocator() {
+            this(new DeviceSelectionOptions());
+        }
+
+        StubCompanionAllocator(DeviceSelectionOptions options) {
+            mOptions = options;
+        }
+
+        @Override
+        protected DeviceSelectionOptions getCompanionDeviceSelectionOptions() {
+            return mOptions;
+        }
+    }
+
     /**
      * Test {@link CommandScheduler#removeAllCommands()} for idle case, where command is waiting for
      * device.
@@ -434,6 +556,7 @@ public class CommandSchedulerTest extends TestCase {
         EasyMock.expect(rescheduledConfig.getCommandOptions()).andStubReturn(mCommandOptions);
         EasyMock.expect(rescheduledConfig.getDeviceRequirements()).andStubReturn(
                 mDeviceOptions);
+        EasyMock.expect(rescheduledConfig.getTargetPreparers()).andStubReturn(mTargetPreparers);
 
         // an ITestInvocationn#invoke response for calling reschedule
         IAnswer<Object> rescheduleAndThrowAnswer = new IAnswer<Object>() {
@@ -543,6 +666,110 @@ public class CommandSchedulerTest extends TestCase {
         Assert.assertArrayEquals(cmdFile2Args, cmds.get(1).getArgs());
     }
 
+    /**
+     * Test that reloading a command file only touches the commands that changed, and that
+     * unchanged commands keep their execution history.
+     */
+    public void testAddCommandFile_reloadIncremental() throws ConfigurationException {
+        // set number of devices to 0 so we can verify command presence
+        mMockManager.setNumDevices(0);
+        List<String> extraArgs = Arrays.asList("--bar");
+        String[] keptArgs = new String[] {"kept", "--bar"};
+        // unchanged command should only be created once
+        setCreateConfigExpectations(keptArgs, 1);
+        String[] removedArgs = new String[] {"removed", "--bar"};
+        setCreateConfigExpectations(removedArgs, 1);
+        String[] addedArgs = new String[] {"added", "--bar"};
+        setCreateConfigExpectations(addedArgs, 1);
+
+        mMockConfiguration.validateOptions();
+        EasyMock.expectLastCall().times(3);
+
+        final List<CommandLine> cmdFileContent1 = Arrays.asList(
+                new CommandLine(Arrays.asList("kept")),
+                new CommandLine(Arrays.asList("removed")));
+        final List<CommandLine> cmdFileContent2 = Arrays.asList(
+                new CommandLine(Arrays.asList("kept")),
+                new CommandLine(Arrays.asList("added")));
+        mMockCmdFileParser = new CommandFileParser() {
+            boolean firstCall = true;
+            @Override
+            public List<CommandLine> parseFile(File cmdFile) {
+                if (firstCall) {
+                    firstCall = false;
+                    return cmdFileContent1;
+                }
+                return cmdFileContent2;
+            }
+        };
+        replayMocks();
+        mScheduler.setCommandFileReload(true);
+        mScheduler.addCommandFile("mycmd.txt", extraArgs);
+
+        List<CommandTracker> cmds = mScheduler.getCommandTrackers();
+        assertEquals(2, cmds.size());
+        Collections.sort(cmds, new CommandTrackerIdComparator());
+        CommandTracker keptTracker = cmds.get(0);
+        Assert.assertArrayEquals(keptArgs, keptTracker.getArgs());
+        keptTracker.incrementExecTime(100);
+
+        mScheduler.notifyFileChanged(new File("mycmd.txt"), extraArgs);
+
+        cmds = mScheduler.getCommandTrackers();
+        assertEquals(2, cmds.size());
+        Collections.sort(cmds, new CommandTrackerIdComparator());
+        assertSame(keptTracker, cmds.get(0));
+        assertEquals(100, cmds.get(0).getTotalExecTime());
+        Assert.assertArrayEquals(addedArgs, cmds.get(1).getArgs());
+        verifyMocks();
+    }
+
+    /**
+     * Test that reloading a command file leaves an unchanged command that is executing alone,
+     * rather than adding it again.
+     */
+    public void testAddCommandFile_reloadExecuting() throws Throwable {
+        mMockManager.setNumDevices(1);
+        List<String> extraArgs = Arrays.asList("--bar");
+        String[] args = new String[] {"running", "--bar"};
+        // the executing command should not be created again
+        setCreateConfigExpectations(args, 1);
+        mMockConfiguration.validateOptions();
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch finish = new CountDownLatch(1);
+        mMockInvocation.invoke((ITestDevice)EasyMock.anyObject(),
+                (IConfiguration)EasyMock.anyObject(), (IRescheduler)EasyMock.anyObject(),
+                (ITestInvocationListener)EasyMock.anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                started.countDown();
+                finish.await();
+                return null;
+            }
+        });
+
+        mMockCmdFileParser = new CommandFileParser() {
+            @Override
+            public List<CommandLine> parseFile(File cmdFile) {
+                // the file contents do not change
+                return Arrays.asList(new CommandLine(Arrays.asList("running")));
+            }
+        };
+        replayMocks();
+        mScheduler.setCommandFileReload(true);
+        mScheduler.addCommandFile("mycmd.txt", extraArgs);
+        assertTrue(started.await(1, TimeUnit.SECONDS));
+
+        mScheduler.notifyFileChanged(new File("mycmd.txt"), extraArgs);
+
+        assertEquals(1, mScheduler.getCommandTrackers().size());
+        finish.countDown();
+        mScheduler.shutdownOnEmpty();
+        mScheduler.join();
+        verifyMocks();
+    }
+
     /**
      * Verify attempts to add the same commmand file in reload mode are rejected
      */
@@ -608,5 +835,7 @@ public class CommandSchedulerTest extends TestCase {
         EasyMock.expect(mMockConfiguration.getCommandOptions()).andStubReturn(mCommandOptions);
         EasyMock.expect(mMockConfiguration.getDeviceRequirements()).andStubReturn(
                 mDeviceOptions);
+        EasyMock.expect(mMockConfiguration.getTargetPreparers()).andStubReturn(
+                mTargetPreparers);
     }
 }
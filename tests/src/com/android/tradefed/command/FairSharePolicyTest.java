@@ -0,0 +1,171 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit tests for {@link FairSharePolicy}
+ */
+public class FairSharePolicyTest extends TestCase {
+
+    private Map<String, Integer> mWeights;
+    private Map<String, Integer> mPriorities;
+    private FairSharePolicy mPolicy;
+
+    private static class QueuedCommand implements FairSharePolicy.IQueuedCommand {
+        private final String mQueue;
+        private final String mName;
+
+        QueuedCommand(String queue, String name) {
+            mQueue = queue;
+            mName = name;
+        }
+
+        @Override
+        public String getScheduleQueue() {
+            return mQueue;
+        }
+
+        @Override
+        public long getReadyTime() {
+            return 0;
+        }
+
+        @Override
+        public String toString() {
+            return mName;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mWeights = new HashMap<>();
+        mPriorities = new HashMap<>();
+        mPolicy = new FairSharePolicy(mWeights, mPriorities);
+    }
+
+    /**
+     * Test that commands from a single queue keep their order.
+     */
+    public void testOrder_singleQueue() {
+        List<QueuedCommand> commands = createCommands("stress", 3);
+        assertEquals(commands, mPolicy.order(commands, 0));
+    }
+
+    /**
+     * Test that commands from queues with equal use are interleaved, and that a queue that has
+     * used more device time gets its pick after the others.
+     */
+    public void testOrder_fairShare() {
+        List<QueuedCommand> commands = new ArrayList<>();
+        commands.addAll(createCommands("stress", 3));
+        commands.addAll(createCommands("presubmit", 2));
+        assertEquals("[stress0, presubmit0, stress1, presubmit1, stress2]",
+                mPolicy.order(commands, 0).toString());
+
+        // a long stress invocation puts stress behind presubmit
+        long time = 2 * FairSharePolicy.DEFAULT_INVOCATION_TIME;
+        mPolicy.invocationStarted("stress", 0, 0);
+        mPolicy.invocationFinished("stress", 0, time);
+        assertEquals("[presubmit0, presubmit1, stress0, stress1, stress2]",
+                mPolicy.order(commands, time).toString());
+    }
+
+    /**
+     * Test that a queue with a higher weight gets a larger share of picks.
+     */
+    public void testOrder_weight() {
+        mWeights.put("presubmit", 2);
+        List<QueuedCommand> commands = new ArrayList<>();
+        commands.addAll(createCommands("stress", 2));
+        commands.addAll(createCommands("presubmit", 4));
+        assertEquals("[stress0, presubmit0, presubmit1, stress1, presubmit2, presubmit3]",
+                mPolicy.order(commands, 0).toString());
+    }
+
+    /**
+     * Test that a queue in a higher priority class always gets first pick.
+     */
+    public void testOrder_priority() {
+        mPriorities.put("presubmit", 1);
+        mPolicy.invocationStarted("presubmit", 0, 0);
+        mPolicy.invocationFinished("presubmit", 0, 10 * FairSharePolicy.DEFAULT_INVOCATION_TIME);
+        List<QueuedCommand> commands = new ArrayList<>();
+        commands.addAll(createCommands("stress", 1));
+        commands.addAll(createCommands("presubmit", 2));
+        assertEquals("[presubmit0, presubmit1, stress0]", mPolicy.order(commands, 0).toString());
+    }
+
+    /**
+     * Test that running invocations are charged to their queue, and that a queue that was idle
+     * does not get to catch up on the time it did not use.
+     */
+    public void testOrder_idleQueue() {
+        long time = FairSharePolicy.DEFAULT_INVOCATION_TIME;
+        mPolicy.invocationStarted("stress", 0, 0);
+        mPolicy.invocationStarted("presubmit", 0, 0);
+        List<QueuedCommand> stress = createCommands("stress", 1);
+        mPolicy.order(stress, 0);
+        mPolicy.invocationFinished("presubmit", 0, time);
+        // presubmit is idle while stress keeps running
+        mPolicy.order(stress, 10 * time);
+
+        List<QueuedCommand> commands = createCommands("presubmit", 2);
+        commands.addAll(stress);
+        mPolicy.invocationFinished("stress", 0, 10 * time);
+        // presubmit is charged as much as stress, rather than getting all picks until it has
+        // used as much device time
+        assertEquals("[presubmit0, stress0, presubmit1]",
+                mPolicy.order(commands, 10 * time).toString());
+    }
+
+    /**
+     * Test that the state of each queue is displayed.
+     */
+    public void testDisplayQueuesInfo() {
+        mPolicy.invocationStarted("stress", 0, 1000);
+        mPolicy.order(createCommands("presubmit", 1), 2000);
+        StringWriter output = new StringWriter();
+        mPolicy.displayQueuesInfo(new PrintWriter(output), 3000);
+        String info = output.toString();
+        assertTrue(info, info.contains("presubmit"));
+        assertTrue(info, info.contains("stress"));
+        // stress has a running invocation, presubmit has waited since it was ready
+        assertTrue(info, info.contains("2s"));
+        assertTrue(info, info.contains("3s"));
+        assertTrue(info, info.contains("100%"));
+    }
+
+    private List<QueuedCommand> createCommands(String queue, int numCommands) {
+        List<QueuedCommand> commands = new ArrayList<>(numCommands);
+        for (int i = 0; i < numCommands; i++) {
+            commands.add(new QueuedCommand(queue, queue + i));
+        }
+        return commands;
+    }
+}
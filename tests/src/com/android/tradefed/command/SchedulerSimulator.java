@@ -0,0 +1,409 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import com.android.tradefed.config.ArgsOptionParser;
+import com.android.tradefed.config.Configuration;
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.config.IConfiguration;
+import com.android.tradefed.config.IConfigurationFactory;
+import com.android.tradefed.config.IGlobalConfiguration;
+import com.android.tradefed.config.Option;
+import com.android.tradefed.device.FreeDeviceState;
+import com.android.tradefed.device.IDeviceManager;
+import com.android.tradefed.device.IDeviceSelection;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.SimulatedDeviceManager;
+import com.android.tradefed.invoker.IRescheduler;
+import com.android.tradefed.invoker.ITestInvocation;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.util.RunUtil;
+import com.android.tradefed.util.TableFormatter;
+
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Runs the real {@link CommandScheduler} against synthetic devices and invocations, and reports
+ * how well it scheduled them.
+ * <p/>
+ * Devices are provided by a {@link SimulatedDeviceManager}, and each invocation just holds its
+ * device for a random time, so the simulation measures the overhead and fairness of scheduling
+ * alone. Useful to check the effect of scheduling changes, or how a host would cope with more
+ * devices and commands, without needing the devices.
+ * <p/>
+ * Reports the distribution of scheduling latency, ie the time commands wait for a device once
+ * they are ready to run, the utilization of devices, and the contention on the scheduler's lock.
+ * <p/>
+ * Usage: java -cp &lt;tradefed and tradefed-tests classpath&gt;
+ * com.android.tradefed.command.SchedulerSimulator [options]
+ */
+public class SchedulerSimulator {
+
+    @Option(name = "devices", description = "the number of devices to simulate.")
+    private int mNumDevices = 10;
+
+    @Option(name = "commands", description = "the number of commands to schedule.")
+    private int mNumCommands = 20;
+
+    @Option(name = "allocation-latency", description =
+            "the time in ms it takes to allocate a device.")
+    private long mAllocationLatency = 0;
+
+    @Option(name = "min-duration", description = "the minimum time in ms of an invocation.")
+    private long mMinDuration = 100;
+
+    @Option(name = "max-duration", description = "the maximum time in ms of an invocation.")
+    private long mMaxDuration = 1000;
+
+    @Option(name = "loop", description = "run commands in loop mode, for the simulation time.")
+    private boolean mLoopMode = false;
+
+    @Option(name = "min-loop-time", description =
+            "the minimum time in ms between invocations of a command in loop mode.")
+    private long mMinLoopTime = 0;
+
+    @Option(name = "simulation-time", description =
+            "the time in ms to run commands for in loop mode.")
+    private long mSimulationTime = 60 * 1000;
+
+    @Option(name = "priority-levels", description = "the number of priority levels to spread " +
+            "commands over. Commands of lower priority start with more execution time.")
+    private int mPriorityLevels = 1;
+
+    @Option(name = "seed", description = "the seed of the random invocation durations. Each " +
+            "command draws its durations from its own generator, derived from this seed.")
+    private long mSeed = 0;
+
+    private SimulatedDeviceManager mDeviceManager;
+    private final Map<String, SimulatedCommand> mCommands = new ConcurrentHashMap<>();
+    /** the scheduling latency of each invocation */
+    private final List<Long> mLatencies = new ArrayList<>();
+    private long mWallTime = 0;
+
+    private final ThreadMXBean mThreadBean = ManagementFactory.getThreadMXBean();
+    private long mSchedulerBlockedCount = 0;
+    private long mSchedulerBlockedTime = 0;
+    private long mInvocationBlockedCount = 0;
+    private long mInvocationBlockedTime = 0;
+
+    /**
+     * A simulated command, tracking when its next invocation is ready to run.
+     * <p/>
+     * Each command has its own {@link Random}, so the durations of its invocations only depend on
+     * the seed, not on the order the invocation threads happen to run in.
+     */
+    private class SimulatedCommand {
+        final int mPriority;
+        final List<Long> mCommandLatencies = new ArrayList<>();
+        final List<Long> mDurations = new ArrayList<>();
+        private final Random mRandom;
+        long mReadyTime;
+
+        SimulatedCommand(int priority, long readyTime, long seed) {
+            mPriority = priority;
+            mReadyTime = readyTime;
+            mRandom = new Random(seed);
+        }
+
+        /**
+         * Record the start of an invocation.
+         *
+         * @return the time in ms the invocation should take
+         */
+        synchronized long invocationStarted(long startTime) {
+            // an invocation can start marginally before the previous one records its start
+            long latency = Math.max(0, startTime - mReadyTime);
+            mCommandLatencies.add(latency);
+            synchronized (mLatencies) {
+                mLatencies.add(latency);
+            }
+            // the scheduler queues the next invocation of a loop command when one starts
+            mReadyTime = startTime + mMinLoopTime;
+            long duration = mMinDuration;
+            if (mMaxDuration > mMinDuration) {
+                duration += (long)(mRandom.nextDouble() * (mMaxDuration - mMinDuration));
+            }
+            mDurations.add(duration);
+            return duration;
+        }
+    }
+
+    /**
+     * A {@link ITestInvocation} that holds its device for a random time.
+     */
+    private class SimulatedInvocation implements ITestInvocation {
+        @Override
+        public void invoke(ITestDevice device, IConfiguration config, IRescheduler rescheduler,
+                ITestInvocationListener... extraListeners) {
+            // the configurations are created by SimulatedConfigurationFactory
+            String name = ((Configuration)config).getName();
+            long duration = mCommands.get(name).invocationStarted(System.currentTimeMillis());
+            RunUtil.getDefault().sleep(duration);
+        }
+    }
+
+    /**
+     * A {@link IConfigurationFactory} that creates default {@link Configuration}s, named after the
+     * first arg, and sets the rest of the args as their options.
+     */
+    private static class SimulatedConfigurationFactory implements IConfigurationFactory {
+        @Override
+        public IConfiguration createConfigurationFromArgs(String[] args)
+                throws ConfigurationException {
+            IConfiguration config = new Configuration(args[0], "simulated command");
+            config.setOptionsFromCommandLineArgs(Arrays.asList(args).subList(1, args.length));
+            return config;
+        }
+
+        @Override
+        public IGlobalConfiguration createGlobalConfigurationFromArgs(String[] args,
+                List<String> nonGlobalArgs) throws ConfigurationException {
+            CLog.w("Ignoring global configuration %s in simulation", Arrays.toString(args));
+            return null;
+        }
+
+        @Override
+        public void printHelp(PrintStream out) {
+            // ignore
+        }
+
+        @Override
+        public void printHelpForConfig(String[] args, boolean importantOnly, PrintStream out) {
+            // ignore
+        }
+
+        @Override
+        public void dumpConfig(String configName, PrintStream out) {
+            // ignore
+        }
+    }
+
+    /**
+     * A {@link SimulatedDeviceManager} that samples the lock contention of the threads that
+     * allocate and free devices: the scheduler thread and the invocation threads.
+     */
+    private class SamplingDeviceManager extends SimulatedDeviceManager {
+        SamplingDeviceManager() {
+            super(mNumDevices, mAllocationLatency);
+        }
+
+        @Override
+        public ITestDevice allocateDevice(IDeviceSelection options) {
+            sampleSchedulerContention();
+            return super.allocateDevice(options);
+        }
+
+        @Override
+        public List<ITestDevice> allocateDevices(List<IDeviceSelection> options) {
+            sampleSchedulerContention();
+            return super.allocateDevices(options);
+        }
+
+        private void sampleSchedulerContention() {
+            ThreadInfo info = mThreadBean.getThreadInfo(Thread.currentThread().getId());
+            synchronized (SchedulerSimulator.this) {
+                // only the scheduler thread allocates, and the counts are cumulative
+                mSchedulerBlockedCount = info.getBlockedCount();
+                mSchedulerBlockedTime = info.getBlockedTime();
+            }
+        }
+
+        @Override
+        public void freeDevice(ITestDevice device, FreeDeviceState state) {
+            // each invocation thread frees its device once, when it is done
+            ThreadInfo info = mThreadBean.getThreadInfo(Thread.currentThread().getId());
+            synchronized (SchedulerSimulator.this) {
+                mInvocationBlockedCount += info.getBlockedCount();
+                mInvocationBlockedTime += info.getBlockedTime();
+            }
+            super.freeDevice(device, state);
+        }
+    }
+
+    /**
+     * Run the simulation.
+     */
+    public void run() throws ConfigurationException, InterruptedException {
+        // derive the seed of each command from the simulation's seed
+        Random seeds = new Random(mSeed);
+        if (mThreadBean.isThreadContentionMonitoringSupported()) {
+            mThreadBean.setThreadContentionMonitoringEnabled(true);
+        }
+        mDeviceManager = new SamplingDeviceManager();
+        CommandScheduler scheduler = new CommandScheduler() {
+            @Override
+            ITestInvocation createRunInstance() {
+                return new SimulatedInvocation();
+            }
+
+            @Override
+            IDeviceManager getDeviceManager() {
+                return mDeviceManager;
+            }
+
+            @Override
+            IConfigurationFactory getConfigFactory() {
+                return new SimulatedConfigurationFactory();
+            }
+        };
+        scheduler.start();
+        scheduler.await();
+
+        long startTime = System.currentTimeMillis();
+        for (int i = 0; i < mNumCommands; i++) {
+            String name = String.format("simulated-command-%d", i);
+            List<String> args = new ArrayList<>();
+            args.add(name);
+            if (mLoopMode) {
+                args.add("--loop");
+                args.add("--min-loop-time");
+                args.add(Long.toString(mMinLoopTime));
+            }
+            int priority = i % Math.max(1, mPriorityLevels);
+            mCommands.put(name, new SimulatedCommand(priority, System.currentTimeMillis(),
+                    seeds.nextLong()));
+            scheduler.addCommand(args.toArray(new String[args.size()]), priority * mMaxDuration);
+        }
+        if (mLoopMode) {
+            RunUtil.getDefault().sleep(mSimulationTime);
+            scheduler.shutdown();
+        } else {
+            scheduler.shutdownOnEmpty();
+        }
+        scheduler.join();
+        mWallTime = System.currentTimeMillis() - startTime;
+    }
+
+    /**
+     * @return the scheduling latency in ms of each invocation, sorted
+     */
+    List<Long> getLatencies() {
+        List<Long> latencies;
+        synchronized (mLatencies) {
+            latencies = new ArrayList<>(mLatencies);
+        }
+        Collections.sort(latencies);
+        return latencies;
+    }
+
+    /**
+     * @param command the index of the command
+     * @return the durations in ms of the command's invocations, in the order they started
+     */
+    List<Long> getDurations(int command) {
+        SimulatedCommand cmd = mCommands.get(String.format("simulated-command-%d", command));
+        synchronized (cmd) {
+            return new ArrayList<>(cmd.mDurations);
+        }
+    }
+
+    /**
+     * @return the fraction of the time devices were allocated, from 0 to 1
+     */
+    double getUtilization() {
+        if (mWallTime <= 0 || mNumDevices <= 0) {
+            return 0;
+        }
+        return (double)mDeviceManager.getAllocatedTime() / (mWallTime * mNumDevices);
+    }
+
+    /**
+     * Print a report of the simulation.
+     */
+    public void printReport(PrintWriter writer) {
+        List<Long> latencies = getLatencies();
+        List<List<String>> rows = new ArrayList<>();
+        rows.add(Arrays.asList("Invocations", Integer.toString(latencies.size())));
+        rows.add(Arrays.asList("Wall time", String.format("%d ms", mWallTime)));
+        rows.add(Arrays.asList("Device utilization",
+                String.format("%.1f%%", 100 * getUtilization())));
+        if (!latencies.isEmpty()) {
+            rows.add(Arrays.asList("Latency mean", String.format("%d ms", mean(latencies))));
+            for (int percentile : new int[] {50, 90, 99, 100}) {
+                rows.add(Arrays.asList(String.format("Latency p%d", percentile),
+                        String.format("%d ms", percentile(latencies, percentile))));
+            }
+        }
+        for (int priority = 0; priority < mPriorityLevels && mPriorityLevels > 1; priority++) {
+            List<Long> priorityLatencies = new ArrayList<>();
+            for (SimulatedCommand cmd : mCommands.values()) {
+                if (cmd.mPriority == priority) {
+                    synchronized (cmd) {
+                        priorityLatencies.addAll(cmd.mCommandLatencies);
+                    }
+                }
+            }
+            rows.add(Arrays.asList(String.format("Priority %d invocations", priority),
+                    String.format("%d, latency mean %d ms", priorityLatencies.size(),
+                            mean(priorityLatencies))));
+        }
+        synchronized (this) {
+            rows.add(Arrays.asList("Scheduler thread blocked", formatContention(
+                    mSchedulerBlockedCount, mSchedulerBlockedTime)));
+            rows.add(Arrays.asList("Invocation threads blocked", formatContention(
+                    mInvocationBlockedCount, mInvocationBlockedTime)));
+        }
+        new TableFormatter().displayTable(rows, writer);
+        writer.flush();
+    }
+
+    private String formatContention(long count, long time) {
+        if (time < 0) {
+            // contention monitoring is not supported
+            return String.format("%d times", count);
+        }
+        return String.format("%d times, %d ms", count, time);
+    }
+
+    private static long mean(List<Long> values) {
+        if (values.isEmpty()) {
+            return 0;
+        }
+        long total = 0;
+        for (long value : values) {
+            total += value;
+        }
+        return total / values.size();
+    }
+
+    /**
+     * @param sortedValues the values, sorted in ascending order. Must not be empty.
+     */
+    private static long percentile(List<Long> sortedValues, int percentile) {
+        int index = (int)Math.ceil(percentile / 100.0 * sortedValues.size()) - 1;
+        return sortedValues.get(Math.max(0, index));
+    }
+
+    public static void main(final String[] mainArgs) throws ConfigurationException,
+            InterruptedException {
+        SchedulerSimulator simulator = new SchedulerSimulator();
+        new ArgsOptionParser(simulator).parse(mainArgs);
+        simulator.run();
+        simulator.printReport(new PrintWriter(System.out));
+    }
+}
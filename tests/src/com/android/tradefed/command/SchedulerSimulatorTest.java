@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.command;
+
+import com.android.tradefed.config.ArgsOptionParser;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.List;
+
+/**
+ * Unit tests for {@link SchedulerSimulator}
+ */
+public class SchedulerSimulatorTest extends TestCase {
+
+    private SchedulerSimulator mSimulator;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSimulator = new SchedulerSimulator();
+    }
+
+    /**
+     * Test a simulation where commands have to wait for the devices.
+     */
+    public void testRun() throws Exception {
+        new ArgsOptionParser(mSimulator).parse("--devices", "2", "--commands", "6",
+                "--min-duration", "20", "--max-duration", "40", "--priority-levels", "2");
+        mSimulator.run();
+        List<Long> latencies = mSimulator.getLatencies();
+        assertEquals(6, latencies.size());
+        // only two commands can start straight away
+        assertTrue(latencies.get(latencies.size() - 1) >= 20);
+        assertTrue(mSimulator.getUtilization() > 0);
+
+        StringWriter report = new StringWriter();
+        mSimulator.printReport(new PrintWriter(report));
+        assertTrue(report.toString().contains("Invocations"));
+        assertTrue(report.toString().contains("Priority 1 invocations"));
+    }
+
+    /**
+     * Test that the invocation durations of each command only depend on the seed.
+     */
+    public void testRun_seed() throws Exception {
+        String[] args = new String[] {"--devices", "3", "--commands", "6", "--min-duration",
+                "1", "--max-duration", "20", "--seed", "42"};
+        new ArgsOptionParser(mSimulator).parse(args);
+        mSimulator.run();
+        SchedulerSimulator other = new SchedulerSimulator();
+        new ArgsOptionParser(other).parse(args);
+        other.run();
+        for (int i = 0; i < 6; i++) {
+            assertEquals(1, mSimulator.getDurations(i).size());
+            assertEquals(mSimulator.getDurations(i), other.getDurations(i));
+        }
+    }
+
+    /**
+     * Test a simulation of commands in loop mode.
+     */
+    public void testRun_loop() throws Exception {
+        new ArgsOptionParser(mSimulator).parse("--devices", "2", "--commands", "2",
+                "--min-duration", "10", "--max-duration", "10", "--loop",
+                "--simulation-time", "200");
+        mSimulator.run();
+        assertTrue(mSimulator.getLatencies().size() > 2);
+    }
+}
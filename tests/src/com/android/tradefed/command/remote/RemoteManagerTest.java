@@ -20,6 +20,7 @@ import com.android.tradefed.command.ICommandScheduler;
 import com.android.tradefed.command.ICommandScheduler.IScheduledInvocationListener;
 import com.android.tradefed.device.DeviceAllocationState;
 import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.DeviceUtilStatsMonitor;
 import com.android.tradefed.device.FreeDeviceState;
 import com.android.tradefed.device.IDeviceManager;
 import com.android.tradefed.device.ITestDevice;
@@ -490,4 +491,54 @@ public class RemoteManagerTest extends TestCase {
         mRemoteClient.sendFreeDevice("serial");
         EasyMock.verify(mMockDeviceManager, mockHandler, mMockScheduler);
     }
+
+    /**
+     * An integration test for getting device utilization over each window.
+     */
+    public void testGetUtilization() throws Exception {
+        final DeviceUtilStatsMonitor monitor = new DeviceUtilStatsMonitor();
+        mRemoteMgr = new RemoteManager(mMockDeviceManager, mMockScheduler) {
+            @Override
+            DeviceUtilStatsMonitor getDeviceUtilStatsMonitor() {
+                return monitor;
+            }
+        };
+        mRemoteMgr.setRemoteManagerTimeout(100);
+        mRemoteMgr.connect();
+        mRemoteMgr.start();
+        int port = mRemoteMgr.getPort();
+        assertTrue(port != -1);
+        mRemoteClient = RemoteClient.connect(port);
+        List<UtilizationDescriptor> utilList = mRemoteClient.sendGetUtilization();
+        assertEquals(4, utilList.size());
+        assertEquals("1h", utilList.get(0).getWindow());
+        assertEquals("7d", utilList.get(3).getWindow());
+        assertEquals(0, utilList.get(3).getTotalUtil());
+        assertTrue(utilList.get(3).getDeviceUtil().isEmpty());
+    }
+
+    /**
+     * An integration test for getting device utilization when it is not being tracked.
+     */
+    public void testGetUtilization_notTracked() throws Exception {
+        mRemoteMgr = new RemoteManager(mMockDeviceManager, mMockScheduler) {
+            @Override
+            DeviceUtilStatsMonitor getDeviceUtilStatsMonitor() {
+                return null;
+            }
+        };
+        mRemoteMgr.setRemoteManagerTimeout(100);
+        mRemoteMgr.connect();
+        mRemoteMgr.start();
+        int port = mRemoteMgr.getPort();
+        assertTrue(port != -1);
+        mRemoteClient = RemoteClient.connect(port);
+        try {
+            mRemoteClient.sendGetUtilization();
+        } catch (RemoteException e) {
+            // expected
+            return;
+        }
+        fail("did not receive RemoteException");
+    }
 }
@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.config;
+
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.SortedMap;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * Unit tests for {@link ConfigIndex}
+ */
+public class ConfigIndexTest extends TestCase {
+
+    private static final String CONFIG_XML = "<configuration description=\"%s\">\n" +
+            "<test class=\"com.android.tradefed.testtype.StubTest\" />\n" +
+            "</configuration>";
+
+    private File mTmpDir;
+    private File mIndexFile;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = FileUtil.createTempDir("configindex");
+        mIndexFile = new File(mTmpDir, "index.txt");
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTmpDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that configs and their descriptions are read from jars and directories, and that the
+     * first class path element containing a config wins.
+     */
+    public void testGetConfigs() throws IOException {
+        File jar = createJar("a.jar", "foo", "foo in jar", "bar", "bar in jar");
+        File dir = new File(mTmpDir, "classes");
+        File configDir = new File(dir, "config");
+        configDir.mkdirs();
+        FileUtil.writeToFile(String.format(CONFIG_XML, "foo in dir"),
+                new File(configDir, "foo.xml"));
+        FileUtil.writeToFile(String.format(CONFIG_XML, "baz in dir"),
+                new File(configDir, "baz.xml"));
+        FileUtil.writeToFile("not a config", new File(dir, "other.xml"));
+
+        ConfigIndex index = new ConfigIndex(null, "config/", ".xml");
+        SortedMap<String, String> configs = index.getConfigs(new String[] {
+                jar.getPath(), dir.getPath(), new File(mTmpDir, "missing.jar").getPath()});
+        assertEquals(3, configs.size());
+        assertEquals("bar in jar", configs.get("bar"));
+        assertEquals("baz in dir", configs.get("baz"));
+        assertEquals("foo in jar", configs.get("foo"));
+        assertFalse(mIndexFile.exists());
+    }
+
+    /**
+     * Test that the index is saved, and that a jar that has not changed is read from the index
+     * rather than scanned.
+     */
+    public void testGetConfigs_persisted() throws IOException {
+        File jar = createJar("a.jar", "foo", "original");
+        long lastModified = jar.lastModified();
+        new ConfigIndex(mIndexFile, "config/", ".xml").getConfigs(new String[] {jar.getPath()});
+        assertTrue(mIndexFile.isFile());
+
+        // overwrite the jar with garbage of the same size and time, so it looks unchanged
+        FileUtil.writeToFile(new String(new char[(int)jar.length()]), jar);
+        jar.setLastModified(lastModified);
+        SortedMap<String, String> configs = new ConfigIndex(mIndexFile, "config/", ".xml")
+                .getConfigs(new String[] {jar.getPath()});
+        assertEquals("original", configs.get("foo"));
+    }
+
+    /**
+     * Test that a jar that has changed since it was indexed is scanned again.
+     */
+    public void testGetConfigs_jarChanged() throws IOException {
+        File jar = createJar("a.jar", "foo", "original");
+        ConfigIndex index = new ConfigIndex(mIndexFile, "config/", ".xml");
+        index.getConfigs(new String[] {jar.getPath()});
+
+        createJar("a.jar", "foo", "modified", "bar", "new config");
+        jar.setLastModified(jar.lastModified() + 2000);
+        SortedMap<String, String> configs = index.getConfigs(new String[] {jar.getPath()});
+        assertEquals("modified", configs.get("foo"));
+        assertEquals("new config", configs.get("bar"));
+
+        // the refreshed record should have been saved
+        configs = new ConfigIndex(mIndexFile, "config/", ".xml")
+                .getConfigs(new String[] {jar.getPath()});
+        assertEquals("new config", configs.get("bar"));
+    }
+
+    /**
+     * Test that jar records indexed with a different config prefix are not used.
+     */
+    public void testGetConfigs_otherPrefix() throws IOException {
+        File jar = createJar("a.jar", "foo", "original");
+        new ConfigIndex(mIndexFile, "config/", ".xml").getConfigs(new String[] {jar.getPath()});
+        SortedMap<String, String> configs = new ConfigIndex(mIndexFile, "other/", ".xml")
+                .getConfigs(new String[] {jar.getPath()});
+        assertTrue(configs.isEmpty());
+        configs = new ConfigIndex(mIndexFile, "config/", ".xml")
+                .getConfigs(new String[] {jar.getPath()});
+        assertEquals("original", configs.get("foo"));
+    }
+
+    /**
+     * Test that saving the index for one class path keeps the records of jars on another.
+     */
+    public void testGetConfigs_otherClassPath() throws IOException {
+        File jarA = createJar("a.jar", "foo", "original");
+        long lastModified = jarA.lastModified();
+        File jarB = createJar("b.jar", "bar", "other");
+        new ConfigIndex(mIndexFile, "config/", ".xml").getConfigs(new String[] {jarA.getPath()});
+        new ConfigIndex(mIndexFile, "config/", ".xml").getConfigs(new String[] {jarB.getPath()});
+
+        // overwrite the jar with garbage of the same size and time, so it looks unchanged
+        FileUtil.writeToFile(new String(new char[(int)jarA.length()]), jarA);
+        jarA.setLastModified(lastModified);
+        SortedMap<String, String> configs = new ConfigIndex(mIndexFile, "config/", ".xml")
+                .getConfigs(new String[] {jarA.getPath()});
+        assertEquals("original", configs.get("foo"));
+    }
+
+    /**
+     * Test that the description of a config is read without loading the rest of the config.
+     */
+    public void testReadDescription() throws IOException {
+        File config = new File(mTmpDir, "config.xml");
+        FileUtil.writeToFile("<configuration description=\"desc\"><unknown-tag", config);
+        assertEquals("desc", ConfigIndex.readDescription(new FileInputStream(config),
+                config.getName()));
+        FileUtil.writeToFile("<configuration></configuration>", config);
+        assertEquals("", ConfigIndex.readDescription(new FileInputStream(config),
+                config.getName()));
+    }
+
+    /**
+     * Creates a jar containing configs, given as pairs of name and description.
+     */
+    private File createJar(String name, String... configs) throws IOException {
+        File jar = new File(mTmpDir, name);
+        JarOutputStream jarStream = new JarOutputStream(new FileOutputStream(jar));
+        try {
+            for (int i = 0; i < configs.length; i += 2) {
+                jarStream.putNextEntry(new ZipEntry(String.format("config/%s.xml", configs[i])));
+                jarStream.write(String.format(CONFIG_XML, configs[i + 1]).getBytes());
+                jarStream.closeEntry();
+            }
+        } finally {
+            jarStream.close();
+        }
+        return jar;
+    }
+}
@@ -36,6 +36,7 @@ import java.util.List;
 public class ConfigurationFactoryTest extends TestCase {
 
     private ConfigurationFactory mFactory;
+    private File mIndexFile;
 
     /** the test config name that is built into this jar */
     private static final String TEST_CONFIG = "test-config";
@@ -47,11 +48,39 @@ public class ConfigurationFactoryTest extends TestCase {
     @Override
     protected void setUp() throws Exception {
         super.setUp();
+        mIndexFile = FileUtil.createTempFile("config-index", ".txt");
         mFactory = new ConfigurationFactory() {
             @Override
             String getConfigPrefix() {
                 return "testconfigs/";
             }
+
+            @Override
+            File getConfigIndexFile() {
+                return mIndexFile;
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.deleteFile(mIndexFile);
+        super.tearDown();
+    }
+
+    /**
+     * Create a {@link ConfigurationFactory} for the built-in configs, that uses a temporary
+     * config index.
+     */
+    private ConfigurationFactory createFactory() {
+        return new ConfigurationFactory() {
+            @Override
+            File getConfigIndexFile() {
+                return mIndexFile;
+            }
         };
     }
 
@@ -59,7 +88,7 @@ public class ConfigurationFactoryTest extends TestCase {
      * Sanity test to ensure all config names on classpath are loadable
      */
     public void testLoadAllConfigs() throws ConfigurationException {
-        new ConfigurationFactory().loadAllConfigs(false);
+        createFactory().loadAllConfigs(false);
     }
 
     /**
@@ -67,7 +96,7 @@ public class ConfigurationFactoryTest extends TestCase {
      */
     public void testLoadAndPrintAllConfigs() throws ConfigurationException {
         try {
-            new ConfigurationFactory().loadAndPrintAllConfigs();
+            createFactory().loadAndPrintAllConfigs();
         } catch (ConfigurationException e) {
             // TODO: temporarily suppress this error, until all configs are cleaned up b/14027179
             CLog.e("Suppressing failed test testLoadAndPrintAllConfigs");
@@ -100,6 +129,27 @@ public class ConfigurationFactoryTest extends TestCase {
         }
     }
 
+    /**
+     * Test that a cached config specified by file path is reloaded once the file changes
+     */
+    public void testGetConfiguration_xmlpathModified() throws ConfigurationException,
+            IOException {
+        File tmpFile = FileUtil.createTempFile("modified-config", ".xml");
+        try {
+            FileUtil.writeToFile("<configuration description=\"modified\" />", tmpFile);
+            assertFalse(mFactory.createConfigurationFromArgs(
+                    new String[] {tmpFile.getAbsolutePath()}).getCommandOptions().isLoopMode());
+            FileUtil.writeToFile("<configuration description=\"modified\">" +
+                    "<option name=\"loop\" value=\"true\" /></configuration>", tmpFile);
+            // ensure the change is visible even on file systems with coarse timestamps
+            tmpFile.setLastModified(tmpFile.lastModified() + 10 * 1000);
+            assertTrue(mFactory.createConfigurationFromArgs(
+                    new String[] {tmpFile.getAbsolutePath()}).getCommandOptions().isLoopMode());
+        } finally {
+            tmpFile.delete();
+        }
+    }
+
     /**
      * Test that a config xml defined in this test jar can be read as a built-in
      */
@@ -214,7 +264,7 @@ public class ConfigurationFactoryTest extends TestCase {
     public void testPrintHelp() {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         PrintStream mockPrintStream = new PrintStream(outputStream);
-        new ConfigurationFactory().printHelp(mockPrintStream);
+        createFactory().printHelp(mockPrintStream);
         // verify all the instrument config names are present
         final String usageString = outputStream.toString();
         assertTrue(usageString.contains("instrument"));
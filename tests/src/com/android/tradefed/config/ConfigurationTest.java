@@ -352,4 +352,18 @@ public class ConfigurationTest extends TestCase {
                 usageString.contains("serial"));
 
     }
+
+    /**
+     * Test that {@link Configuration#validateOptions()} rejects an out of range device option.
+     */
+    public void testValidateOptions_deviceOptions() throws ConfigurationException {
+        mConfig.validateOptions();
+        mConfig.injectOptionValue("screenshot-compression-level", "10");
+        try {
+            mConfig.validateOptions();
+            fail("ConfigurationException not thrown");
+        } catch (ConfigurationException e) {
+            // expected
+        }
+    }
 }
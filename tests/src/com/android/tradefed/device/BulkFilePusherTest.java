@@ -0,0 +1,199 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.SyncException;
+import com.android.ddmlib.SyncException.SyncError;
+import com.android.tradefed.device.BulkFilePusher.IPushConnection;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Unit tests for {@link BulkFilePusher}
+ */
+public class BulkFilePusherTest extends TestCase {
+
+    private ITestDevice mMockDevice;
+    private File mTmpDir;
+    /** the remote paths pushed over connections */
+    private Set<String> mPushedPaths;
+    /** the remote paths whose first push over a connection fails */
+    private Set<String> mFailingPaths;
+    private AtomicInteger mConnectionCount;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockDevice = EasyMock.createMock(ITestDevice.class);
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        mTmpDir = FileUtil.createTempDir("bulkfilepusher");
+        mPushedPaths = Collections.synchronizedSet(new HashSet<String>());
+        mFailingPaths = Collections.synchronizedSet(new HashSet<String>());
+        mConnectionCount = new AtomicInteger();
+
+        // create a/1.txt, a/b/2.txt and 3.txt
+        File subDir = new File(mTmpDir, "a/b");
+        assertTrue(subDir.mkdirs());
+        FileUtil.writeToFile("1", new File(mTmpDir, "a/1.txt"));
+        FileUtil.writeToFile("2", new File(subDir, "2.txt"));
+        FileUtil.writeToFile("3", new File(mTmpDir, "3.txt"));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTmpDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that all directories are created with one command, and all files are pushed over a
+     * single connection.
+     */
+    public void testPushDir() throws Exception {
+        EasyMock.expect(mMockDevice.executeShellCommand("mkdir -p \"/data/a\" \"/data/a/b\""))
+                .andReturn("");
+        EasyMock.replay(mMockDevice);
+        assertTrue(createPusher(1).pushDir(mTmpDir, "/data"));
+        EasyMock.verify(mMockDevice);
+        assertEquals(getAllRemotePaths(), mPushedPaths);
+        assertEquals(1, mConnectionCount.get());
+    }
+
+    /**
+     * Test pushing files on several connections at once.
+     */
+    public void testPushDir_parallel() throws Exception {
+        EasyMock.expect(mMockDevice.executeShellCommand("mkdir -p \"/data/a\" \"/data/a/b\""))
+                .andReturn("");
+        EasyMock.replay(mMockDevice);
+        assertTrue(createPusher(3).pushDir(mTmpDir, "/data"));
+        EasyMock.verify(mMockDevice);
+        assertEquals(getAllRemotePaths(), mPushedPaths);
+    }
+
+    /**
+     * Test that only the files that failed are pushed again, and that the connection is reopened
+     * after a failure.
+     */
+    public void testPushDir_retry() throws Exception {
+        mFailingPaths.add("/data/a/1.txt");
+        EasyMock.expect(mMockDevice.executeShellCommand("mkdir -p \"/data/a\" \"/data/a/b\""))
+                .andReturn("");
+        EasyMock.expect(mMockDevice.pushFile(new File(mTmpDir, "a/1.txt"), "/data/a/1.txt"))
+                .andReturn(Boolean.TRUE);
+        EasyMock.replay(mMockDevice);
+        assertTrue(createPusher(1).pushDir(mTmpDir, "/data"));
+        EasyMock.verify(mMockDevice);
+        Set<String> expectedPaths = getAllRemotePaths();
+        expectedPaths.remove("/data/a/1.txt");
+        assertEquals(expectedPaths, mPushedPaths);
+        // the other files may all come before the failing file
+        assertTrue(mConnectionCount.get() >= 1 && mConnectionCount.get() <= 2);
+    }
+
+    /**
+     * Test that the push fails if a retry fails.
+     */
+    public void testPushDir_retryFailed() throws Exception {
+        mFailingPaths.add("/data/3.txt");
+        EasyMock.expect(mMockDevice.executeShellCommand("mkdir -p \"/data/a\" \"/data/a/b\""))
+                .andReturn("");
+        EasyMock.expect(mMockDevice.pushFile(new File(mTmpDir, "3.txt"), "/data/3.txt"))
+                .andReturn(Boolean.FALSE);
+        EasyMock.replay(mMockDevice);
+        assertFalse(createPusher(1).pushDir(mTmpDir, "/data"));
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that directories are split between several mkdir commands when they do not fit in
+     * one.
+     */
+    public void testPushDir_manyDirs() throws Exception {
+        FileUtil.recursiveDelete(mTmpDir);
+        int numDirs = BulkFilePusher.MAX_MKDIR_COMMAND_LENGTH / 10;
+        for (int i = 0; i < numDirs; i++) {
+            assertTrue(new File(mTmpDir, String.format("dir%04d", i)).mkdirs());
+        }
+        EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.startsWith("mkdir -p ")))
+                .andReturn("").times(2);
+        EasyMock.replay(mMockDevice);
+        assertTrue(createPusher(1).pushDir(mTmpDir, "/data"));
+        EasyMock.verify(mMockDevice);
+        assertEquals(0, mConnectionCount.get());
+    }
+
+    /**
+     * Test that nothing is pushed if the directories could not be created.
+     */
+    public void testPushDir_mkdirFailed() throws Exception {
+        EasyMock.expect(mMockDevice.executeShellCommand("mkdir -p \"/data/a\" \"/data/a/b\""))
+                .andReturn("mkdir failed for /data/a, Read-only file system\n");
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial");
+        EasyMock.replay(mMockDevice);
+        assertFalse(createPusher(1).pushDir(mTmpDir, "/data"));
+        EasyMock.verify(mMockDevice);
+        assertEquals(0, mConnectionCount.get());
+    }
+
+    private Set<String> getAllRemotePaths() {
+        Set<String> paths = new HashSet<String>();
+        paths.add("/data/a/1.txt");
+        paths.add("/data/a/b/2.txt");
+        paths.add("/data/3.txt");
+        return paths;
+    }
+
+    private BulkFilePusher createPusher(int numThreads) {
+        return new BulkFilePusher(mMockDevice, numThreads) {
+            @Override
+            IPushConnection openConnection() {
+                mConnectionCount.incrementAndGet();
+                return new IPushConnection() {
+                    @Override
+                    public void pushFile(File localFile, String remotePath) throws IOException,
+                            SyncException {
+                        assertTrue(localFile.isFile());
+                        if (mFailingPaths.remove(remotePath)) {
+                            throw new SyncException(SyncError.TRANSFER_PROTOCOL_ERROR);
+                        }
+                        mPushedPaths.add(remotePath);
+                    }
+
+                    @Override
+                    public void close() {
+                    }
+                };
+            }
+        };
+    }
+}
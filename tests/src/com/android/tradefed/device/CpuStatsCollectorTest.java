@@ -17,6 +17,7 @@
 package com.android.tradefed.device;
 
 import com.android.tradefed.device.CpuStatsCollector.CpuStats;
+import com.android.tradefed.device.CpuStatsCollector.CpuStatsSummary;
 import com.android.tradefed.device.CpuStatsCollector.TimeCategory;
 import com.android.tradefed.testtype.DeviceTestCase;
 
@@ -331,4 +332,62 @@ public class CpuStatsCollectorTest extends DeviceTestCase {
         assertNull(CpuStatsCollector.getEstimatedMhzMean(stats.get("Total")));
         assertNull(CpuStatsCollector.getUsedMhzPercentageMean(stats.get("Total")));
     }
+
+    /**
+     * Tests that the {@link CpuStatsSummary} aggregates every output, while only the most recent
+     * {@link CpuStats} are kept when the number of samples is limited.
+     */
+    public void testCpuStatsParser_summary() {
+        mCollector.getReceiver().processNewLines(MULTI_OUTPUT);
+        Map<String, List<CpuStats>> allStats = mCollector.getCpuStats();
+
+        CpuStatsCollector limitedCollector = new CpuStatsCollector(null, 1);
+        limitedCollector.setMaxSamples(2);
+        limitedCollector.getReceiver().processNewLines(MULTI_OUTPUT);
+        Map<String, List<CpuStats>> stats = limitedCollector.getCpuStats();
+        Map<String, CpuStatsSummary> summaries = limitedCollector.getCpuStatsSummaries();
+        assertEquals(3, summaries.size());
+
+        for (String label : new String[] {"Total", "cpu0", "cpu1"}) {
+            List<CpuStats> all = allStats.get(label);
+            assertEquals(2, stats.get(label).size());
+            assertEquals(all.get(all.size() - 1).mTimeStats.get(TimeCategory.USER),
+                    stats.get(label).get(1).mTimeStats.get(TimeCategory.USER));
+
+            CpuStatsSummary summary = summaries.get(label);
+            assertEquals(all.size(), summary.getTotalPercentage().size());
+            assertEquals(CpuStatsCollector.getTotalPercentageMean(all),
+                    summary.getTotalPercentage().mean(), 0.01);
+            assertEquals(CpuStatsCollector.getUserPercentageMean(all),
+                    summary.getUserPercentage().mean(), 0.01);
+            assertEquals(CpuStatsCollector.getSystemPercentageMean(all),
+                    summary.getSystemPercentage().mean(), 0.01);
+            assertEquals(CpuStatsCollector.getIowPercentageMean(all),
+                    summary.getIowPercentage().mean(), 0.01);
+            assertEquals(CpuStatsCollector.getIrqPercentageMean(all),
+                    summary.getIrqPercentage().mean(), 0.01);
+            assertEquals(CpuStatsCollector.getEstimatedMhzMean(all),
+                    summary.getEstimatedMhz().mean(), 0.01);
+            assertEquals(CpuStatsCollector.getUsedMhzPercentageMean(all),
+                    summary.getUsedMhzPercentage().mean(), 0.01);
+        }
+    }
+
+    /**
+     * Tests that malformed lines of {@code cpustats} output are ignored.
+     */
+    public void testCpuStatsParser_malformed() {
+        mCollector.getReceiver().processNewLines(new String[] {
+                "Total,1,2,3",
+                "Total,1,2,3,4,5,6,x",
+                "Total,1,2,3,4,5,6,7,350000",
+                "  ",
+                "Total,1,2,3,4,5,6,7,350000,8"});
+
+        Map<String, List<CpuStats>> stats = mCollector.getCpuStats();
+        assertEquals(1, stats.size());
+        assertEquals(1, stats.get("Total").size());
+        assertEquals(7, stats.get("Total").get(0).mTimeStats.get(TimeCategory.SIRQ).intValue());
+        assertEquals(8, stats.get("Total").get(0).mFreqStats.get(350000).intValue());
+    }
 }
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link DeviceHealth}
+ */
+public class DeviceHealthTest extends TestCase {
+
+    private DeviceHealth mHealth;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mHealth = new DeviceHealth();
+    }
+
+    /**
+     * Test that a device is given the benefit of the doubt until enough operations are seen.
+     */
+    public void testUnknown() {
+        assertEquals("unknown", mHealth.toString());
+        for (int i = 0; i < DeviceHealth.MIN_SAMPLES - 1; i++) {
+            mHealth.recordFailure();
+        }
+        assertFalse(mHealth.isKnown());
+        assertFalse(mHealth.isUnhealthy(0.5));
+        assertEquals(2, mHealth.getRetryAttempts(2));
+        assertEquals(0, mHealth.getRetryBackoff(0));
+        assertEquals(100, mHealth.getCommandTimeout(100));
+    }
+
+    /**
+     * Test that a device whose operations succeed is retried and timed out as configured.
+     */
+    public void testHealthy() {
+        for (int i = 0; i < DeviceHealth.MIN_SAMPLES; i++) {
+            mHealth.recordSuccess(5);
+        }
+        assertTrue(mHealth.isKnown());
+        assertFalse(mHealth.isUnhealthy(0.5));
+        assertEquals(100, mHealth.getScore());
+        assertEquals(5, mHealth.getAverageLatency());
+        assertEquals("100% 5ms", mHealth.toString());
+        assertEquals(3, mHealth.getRetryAttempts(3));
+        assertEquals(0, mHealth.getRetryBackoff(1));
+        assertEquals(100, mHealth.getCommandTimeout(100));
+    }
+
+    /**
+     * Test that a device whose operations keep failing gets fewer retries, with a backoff.
+     */
+    public void testFailing() {
+        for (int i = 0; i < DeviceHealth.MIN_SAMPLES; i++) {
+            mHealth.recordFailure();
+        }
+        assertTrue(mHealth.isUnhealthy(0.5));
+        assertEquals(0, mHealth.getScore());
+        assertEquals(DeviceHealth.MIN_SAMPLES, mHealth.getNumFailures());
+        // always at least one retry, and none if none were allowed
+        assertEquals(1, mHealth.getRetryAttempts(3));
+        assertEquals(0, mHealth.getRetryAttempts(0));
+        assertEquals(DeviceHealth.BASE_BACKOFF_MS, mHealth.getRetryBackoff(0));
+        assertEquals(DeviceHealth.BASE_BACKOFF_MS * 2, mHealth.getRetryBackoff(1));
+        assertEquals(DeviceHealth.MAX_BACKOFF_MS, mHealth.getRetryBackoff(100));
+
+        // recent successes count more than old failures
+        for (int i = 0; i < 30; i++) {
+            mHealth.recordSuccess(5);
+        }
+        assertFalse(mHealth.isUnhealthy(0.5));
+        assertEquals(0, mHealth.getRetryBackoff(0));
+
+        mHealth.reset();
+        assertEquals(0, mHealth.getNumSamples());
+        assertFalse(mHealth.isKnown());
+    }
+
+    /**
+     * Test that command timeouts are extended for a slow device, up to a limit.
+     */
+    public void testGetCommandTimeout() {
+        for (int i = 0; i < DeviceHealth.MIN_SAMPLES; i++) {
+            mHealth.recordSuccess(20);
+        }
+        assertEquals(200, mHealth.getCommandTimeout(100));
+        assertEquals(1000, mHealth.getCommandTimeout(1000));
+        assertEquals(40, mHealth.getCommandTimeout(10));
+    }
+
+    /**
+     * Test that a long running operation recorded without its latency does not extend the
+     * command timeout for the short operations that follow.
+     */
+    public void testGetCommandTimeout_longOperation() {
+        mHealth.recordSuccess();
+        for (int i = 0; i < DeviceHealth.MIN_SAMPLES - 1; i++) {
+            mHealth.recordSuccess(5);
+        }
+        // the long operation is not a latency sample
+        assertEquals(10, mHealth.getCommandTimeout(10));
+        mHealth.recordSuccess(5);
+        assertEquals(DeviceHealth.MIN_SAMPLES + 1, mHealth.getNumSamples());
+        assertEquals(5, mHealth.getAverageLatency());
+        assertEquals(100, mHealth.getCommandTimeout(100));
+    }
+
+    /**
+     * Test that operations that fail, such as commands that time out, do not extend the command
+     * timeout.
+     */
+    public void testGetCommandTimeout_failures() {
+        for (int i = 0; i < DeviceHealth.MIN_SAMPLES - 1; i++) {
+            mHealth.recordSuccess(5);
+        }
+        for (int i = 0; i < DeviceHealth.MIN_SAMPLES; i++) {
+            mHealth.recordFailure();
+        }
+        // not enough successful operations yet
+        assertEquals(100, mHealth.getCommandTimeout(100));
+        mHealth.recordSuccess(20);
+        assertEquals(7, mHealth.getAverageLatency());
+        assertEquals(100, mHealth.getCommandTimeout(100));
+    }
+}
@@ -36,8 +36,15 @@ import org.easymock.IAnswer;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit tests for {@link DeviceManager}.
@@ -53,6 +60,7 @@ public class DeviceManagerTest extends TestCase {
     private IManagedTestDevice mMockTestDevice;
     private IManagedTestDeviceFactory mMockDeviceFactory;
     private IGlobalConfiguration mMockGlobalConfig;
+    private DeviceHealth mHealth;
 
     /**
      * a reference to the DeviceManager's IDeviceChangeListener. Used for triggering device
@@ -180,6 +188,8 @@ public class DeviceManagerTest extends TestCase {
             }
         });
         EasyMock.expect(mMockTestDevice.getMonitor()).andStubReturn(mMockStateMonitor);
+        mHealth = new DeviceHealth();
+        EasyMock.expect(mMockTestDevice.getHealth()).andStubReturn(mHealth);
         EasyMock.expect(
                 mMockRunUtil.runTimedCmd(EasyMock.anyLong(), (String) EasyMock.anyObject(),
                         (String) EasyMock.anyObject())).andStubReturn(new CommandResult());
@@ -318,6 +328,114 @@ public class DeviceManagerTest extends TestCase {
         assertNotNull(manager.allocateDevice(options));
     }
 
+    /**
+     * Test that a freed emulator is kept running when the emulator pool is enabled, and that
+     * launching it again with the same arguments restores its snapshot instead of cold booting.
+     */
+    public void testLaunchEmulator_pooled() throws Exception {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.setStubEmulatorRequested(true);
+        List<String> args = ArrayUtil.list("emulator", "-avd", "avd", "-port", "5554");
+        Process emulatorProcess = new MockProcess() {
+            @Override
+            public int exitValue() {
+                throw new IllegalThreadStateException();
+            }
+        };
+        EasyMock.expect(mMockTestDevice.handleAllocationEvent(DeviceEvent.FORCE_AVAILABLE))
+                .andReturn(new DeviceEventResponse(DeviceAllocationState.Available, true));
+        EasyMock.expect(mMockTestDevice.handleAllocationEvent(DeviceEvent.ALLOCATE_REQUEST))
+                .andReturn(new DeviceEventResponse(DeviceAllocationState.Allocated, true));
+        // the first launch cold boots, and saves a snapshot
+        EasyMock.expect(mMockTestDevice.getDeviceState()).andReturn(
+                TestDeviceState.NOT_AVAILABLE);
+        EasyMock.expect(mMockRunUtil.runCmdInBackground(args)).andReturn(emulatorProcess);
+        mMockRunUtil.sleep(EasyMock.anyLong());
+        mMockTestDevice.setEmulatorProcess(emulatorProcess);
+        mMockTestDevice.waitForDeviceAvailable(EasyMock.anyLong());
+        EasyMock.expect(mMockTestDevice.executeAdbCommand("emu", "avd", "snapshot", "save",
+                DeviceManager.EMULATOR_POOL_SNAPSHOT)).andReturn("OK");
+        // freeing keeps the emulator running
+        mMockTestDevice.stopLogcat();
+        EasyMock.expect(mMockTestDevice.getEmulatorProcess()).andStubReturn(emulatorProcess);
+        EasyMock.expect(mMockTestDevice.handleAllocationEvent(DeviceEvent.FREE_AVAILABLE))
+                .andReturn(new DeviceEventResponse(DeviceAllocationState.Available, true));
+        EasyMock.expect(mMockTestDevice.handleAllocationEvent(DeviceEvent.ALLOCATE_REQUEST))
+                .andReturn(new DeviceEventResponse(DeviceAllocationState.Allocated, true));
+        // the second launch restores the snapshot
+        EasyMock.expect(mMockTestDevice.executeAdbCommand("emu", "avd", "snapshot", "load",
+                DeviceManager.EMULATOR_POOL_SNAPSHOT)).andReturn("OK");
+        mMockTestDevice.waitForDeviceAvailable(EasyMock.anyLong());
+        replayMocks();
+        DeviceManager manager = createDeviceManagerNoInit();
+        manager.setMaxEmulators(1);
+        manager.setEmulatorPoolSize(1);
+        manager.init(null, null, mMockDeviceFactory);
+        ITestDevice emulator = manager.allocateDevice(options);
+        manager.launchEmulator(emulator, 1000, mMockRunUtil, args);
+        manager.freeDevice(emulator, FreeDeviceState.AVAILABLE);
+        assertEquals(emulator, manager.allocateDevice(options));
+        manager.launchEmulator(emulator, 1000, mMockRunUtil, args);
+        verifyMocks();
+    }
+
+    /**
+     * Test that a warm emulator is only allocated to requests for a new emulator, which reset it
+     * before use.
+     */
+    public void testAllocateDevice_warmEmulator() throws Exception {
+        DeviceSelectionOptions options = new DeviceSelectionOptions();
+        options.setStubEmulatorRequested(true);
+        List<String> args = ArrayUtil.list("emulator", "-avd", "avd", "-port", "5554");
+        Process emulatorProcess = new MockProcess() {
+            @Override
+            public int exitValue() {
+                throw new IllegalThreadStateException();
+            }
+        };
+        EasyMock.expect(mMockTestDevice.handleAllocationEvent(DeviceEvent.FORCE_AVAILABLE))
+                .andReturn(new DeviceEventResponse(DeviceAllocationState.Available, true));
+        EasyMock.expect(mMockTestDevice.handleAllocationEvent(DeviceEvent.ALLOCATE_REQUEST))
+                .andReturn(new DeviceEventResponse(DeviceAllocationState.Allocated, true));
+        EasyMock.expect(mMockTestDevice.getDeviceState()).andReturn(
+                TestDeviceState.NOT_AVAILABLE);
+        EasyMock.expect(mMockRunUtil.runCmdInBackground(args)).andReturn(emulatorProcess);
+        mMockRunUtil.sleep(EasyMock.anyLong());
+        mMockTestDevice.setEmulatorProcess(emulatorProcess);
+        mMockTestDevice.waitForDeviceAvailable(EasyMock.anyLong());
+        EasyMock.expect(mMockTestDevice.executeAdbCommand("emu", "avd", "snapshot", "save",
+                DeviceManager.EMULATOR_POOL_SNAPSHOT)).andReturn("OK");
+        mMockTestDevice.stopLogcat();
+        EasyMock.expect(mMockTestDevice.getEmulatorProcess()).andStubReturn(emulatorProcess);
+        EasyMock.expect(mMockTestDevice.handleAllocationEvent(DeviceEvent.FREE_AVAILABLE))
+                .andReturn(new DeviceEventResponse(DeviceAllocationState.Available, true));
+        // only the request for a new emulator allocates it
+        EasyMock.expect(mMockTestDevice.handleAllocationEvent(DeviceEvent.ALLOCATE_REQUEST))
+                .andReturn(new DeviceEventResponse(DeviceAllocationState.Allocated, true));
+        EasyMock.expect(mMockTestDevice.getAllocationState()).andStubReturn(
+                DeviceAllocationState.Available);
+        IDevice runningEmulator = EasyMock.createMock(IDevice.class);
+        EasyMock.expect(runningEmulator.getSerialNumber()).andStubReturn("emulator-5554");
+        EasyMock.expect(runningEmulator.isEmulator()).andStubReturn(Boolean.TRUE);
+        replayMocks(runningEmulator);
+        DeviceManager manager = createDeviceManagerNoInit();
+        manager.setMaxEmulators(1);
+        manager.setEmulatorPoolSize(1);
+        manager.init(null, null, mMockDeviceFactory);
+        ITestDevice emulator = manager.allocateDevice(options);
+        assertEquals("emulator-5554", emulator.getSerialNumber());
+        manager.launchEmulator(emulator, 1000, mMockRunUtil, args);
+        manager.freeDevice(emulator, FreeDeviceState.AVAILABLE);
+        // the running emulator is no longer a stub device
+        ((IManagedTestDevice)emulator).setIDevice(runningEmulator);
+        assertNull(manager.allocateDevice(new DeviceSelectionOptions()));
+        List<IDeviceSelection> group = new ArrayList<IDeviceSelection>();
+        group.add(new DeviceSelectionOptions());
+        assertNull(manager.allocateDevices(group));
+        assertEquals(emulator, manager.allocateDevice(options));
+        verifyMocks(runningEmulator);
+    }
+
     /**
      * Test {@link DeviceManager#allocateDevice(long, DeviceSelectionOptions))} when a null device
      * is requested.
@@ -420,6 +538,30 @@ public class DeviceManagerTest extends TestCase {
         manager.freeDevice(mMockTestDevice, FreeDeviceState.AVAILABLE);
     }
 
+    /**
+     * Test that {@link DeviceManager#freeDevice(ITestDevice)} marks a device that fails too often
+     * as unavailable.
+     */
+    public void testFreeDevice_quarantine() throws DeviceNotAvailableException {
+        setCheckAvailableDeviceExpectations();
+        EasyMock.expect(mMockTestDevice.handleAllocationEvent(DeviceEvent.ALLOCATE_REQUEST))
+                .andReturn(new DeviceEventResponse(DeviceAllocationState.Allocated, true));
+        EasyMock.expect(mMockTestDevice.getDeviceState()).andReturn(TestDeviceState.ONLINE);
+        EasyMock.expect(mMockTestDevice.handleAllocationEvent(DeviceEvent.FREE_UNAVAILABLE))
+                .andReturn(new DeviceEventResponse(DeviceAllocationState.Unavailable, true));
+        mMockTestDevice.stopLogcat();
+        replayMocks();
+        DeviceManager manager = createDeviceManager(null);
+        manager.setQuarantineFailureRate(0.5);
+        mDeviceListener.deviceConnected(mMockIDevice);
+        assertNotNull(manager.allocateDevice());
+        for (int i = 0; i < DeviceHealth.MIN_SAMPLES; i++) {
+            mHealth.recordFailure();
+        }
+        manager.freeDevice(mMockTestDevice, FreeDeviceState.AVAILABLE);
+        assertEquals(0, mHealth.getNumSamples());
+    }
+
     /**
      * Verified that {@link DeviceManager#freeDevice(ITestDevice)} ignores a call with a device that
      * has not been allocated.
@@ -549,7 +691,141 @@ public class DeviceManagerTest extends TestCase {
         mDeviceListener.deviceChanged(newDevice, IDevice.CHANGE_STATE);
     }
 
-    // TODO: add test for fastboot state changes
+    /**
+     * Test that a fastboot update that leaves a device in the same state neither sets its state
+     * again nor notifies fastboot listeners that have already been updated.
+     */
+    public void testFastbootMonitor_sameState() throws Exception {
+        EasyMock.reset(mMockRunUtil);
+        EasyMock.expect(
+                mMockRunUtil.runTimedCmdSilently(EasyMock.anyLong(), EasyMock.eq("fastboot"),
+                        EasyMock.eq("help"))).andReturn(new CommandResult(CommandStatus.SUCCESS));
+        CommandResult noDevicesResult = new CommandResult(CommandStatus.SUCCESS);
+        noDevicesResult.setStdout("");
+        EasyMock.expect(
+                mMockRunUtil.runTimedCmd(EasyMock.anyLong(), EasyMock.eq("fastboot"),
+                        EasyMock.eq("devices"))).andStubReturn(noDevicesResult);
+        setCheckAvailableDeviceExpectations();
+        final TestDeviceState[] deviceState = new TestDeviceState[] {TestDeviceState.ONLINE};
+        EasyMock.expect(mMockTestDevice.getDeviceState()).andStubAnswer(
+                new IAnswer<TestDeviceState>() {
+                    @Override
+                    public TestDeviceState answer() {
+                        return deviceState[0];
+                    }
+                });
+        // the device enters fastboot once, and is not set to the same state again
+        mMockTestDevice.setDeviceState(TestDeviceState.FASTBOOT);
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                deviceState[0] = TestDeviceState.FASTBOOT;
+                return null;
+            }
+        });
+        final CountDownLatch updated = new CountDownLatch(1);
+        IDeviceManager.IFastbootListener listener =
+                EasyMock.createMock(IDeviceManager.IFastbootListener.class);
+        listener.stateUpdated();
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                updated.countDown();
+                return null;
+            }
+        });
+        final FakeFastbootUsbWatcher watcher = new FakeFastbootUsbWatcher();
+        replayMocks(listener);
+        DeviceManager manager = new DeviceManager() {
+            @Override
+            IAndroidDebugBridge createAdbBridge() {
+                return mMockAdbBridge;
+            }
+
+            @Override
+            FastbootUsbWatcher createFastbootUsbWatcher() {
+                return watcher;
+            }
+
+            @Override
+            IDeviceStateMonitor createStateMonitor(IDevice device) {
+                return mMockStateMonitor;
+            }
+
+            @Override
+            IGlobalConfiguration getGlobalConfig() {
+                return mMockGlobalConfig;
+            }
+
+            @Override
+            IRunUtil getRunUtil() {
+                return mMockRunUtil;
+            }
+        };
+        manager.setSynchronousMode(true);
+        manager.setMaxEmulators(0);
+        manager.setMaxNullDevices(0);
+        manager.init(null, null, mMockDeviceFactory);
+        mDeviceListener.deviceConnected(mMockIDevice);
+        try {
+            manager.addFastbootListener(listener);
+            assertTrue(updated.await(5, TimeUnit.SECONDS));
+            assertEquals(TestDeviceState.FASTBOOT, deviceState[0]);
+            // two more usb changes that leave the device on fastboot. Once the second one is
+            // scanned, the first has been fully handled. An unexpected call to the device or
+            // listener mocks would have failed the monitor thread, and so the second scan
+            assertTrue(watcher.changeAndWaitForScan());
+            assertTrue(watcher.changeAndWaitForScan());
+        } finally {
+            manager.removeFastbootListener(listener);
+            manager.terminate();
+        }
+        EasyMock.verify(listener);
+    }
+
+    /**
+     * A {@link FastbootUsbWatcher} that always reports {@link #DEVICE_SERIAL} on fastboot, and
+     * lets a test trigger usb changes.
+     */
+    private static class FakeFastbootUsbWatcher extends FastbootUsbWatcher {
+        private final Semaphore mScans = new Semaphore(0);
+        private FastbootUsbWatcher.IUsbChangeListener mListener;
+
+        @Override
+        public boolean isScanSupported() {
+            return true;
+        }
+
+        @Override
+        public synchronized boolean start(FastbootUsbWatcher.IUsbChangeListener listener) {
+            mListener = listener;
+            return true;
+        }
+
+        @Override
+        public Set<String> getDevicesOnFastboot() {
+            mScans.release();
+            return new HashSet<String>(Arrays.asList(DEVICE_SERIAL));
+        }
+
+        @Override
+        public synchronized void close() {
+            // ignore
+        }
+
+        /**
+         * Report a usb change, and wait for the devices to be scanned after it.
+         */
+        boolean changeAndWaitForScan() throws InterruptedException {
+            mScans.drainPermits();
+            FastbootUsbWatcher.IUsbChangeListener listener;
+            synchronized (this) {
+                listener = mListener;
+            }
+            listener.usbDevicesChanged();
+            return mScans.tryAcquire(5, TimeUnit.SECONDS);
+        }
+    }
 
     /**
      * Verify the 'fastboot devices' output parsing
@@ -23,8 +23,8 @@ import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Load test for {@link DeviceUtilStatsMonitor} Used to ensure memory used by monitor under heavy
@@ -36,6 +36,7 @@ public class DeviceUtilStatsMonitorLoadTest extends TestCase {
 
     private IDeviceManager mMockDeviceManager;
     private DeviceUtilStatsMonitor mDeviceUtilMonitor;
+    private long mCurrentTime = 0;
 
     @Override
     public void setUp() {
@@ -45,6 +46,11 @@ public class DeviceUtilStatsMonitorLoadTest extends TestCase {
             IDeviceManager getDeviceManager() {
                 return mMockDeviceManager;
             }
+
+            @Override
+            long getCurrentTime() {
+                return mCurrentTime;
+            }
         };
         mDeviceUtilMonitor.setDeviceLister(new DeviceLister() {
             @Override
@@ -52,41 +58,35 @@ public class DeviceUtilStatsMonitorLoadTest extends TestCase {
                 return mMockDeviceManager.listAllDevices();
             }
         });
-        mDeviceUtilMonitor.calculateMaxSamples();
     }
 
     /**
-     * Simulate a heavy load by generating constant allocation events length for
+     * Simulate a heavy load by generating an allocation every 10 minutes for a week for
      * all NUM_DEVICES devices.
      * <p/>
      * Intended to be run under a profiler.
      * @throws InterruptedException
      */
     public void testManyRecords() throws InterruptedException {
-        List<DeviceDescriptor> deviceList = new ArrayList<>(NUM_DEVICES);
-        for (int i =0; i <NUM_DEVICES; i++) {
-            DeviceDescriptor device = createDeviceDesc("serial" + i, DeviceAllocationState.Allocated);
-            deviceList.add(device);
-        }
-        EasyMock.expect(mMockDeviceManager.listAllDevices()).andStubReturn(deviceList);
         EasyMock.replay(mMockDeviceManager);
-
-        for (int i = 0; i < mDeviceUtilMonitor.getMaxSamples(); i++) {
-            mDeviceUtilMonitor.getSamplingTask().run();
+        long end = mCurrentTime + TimeUnit.DAYS.toMillis(7);
+        while (mCurrentTime < end) {
+            for (int i = 0; i < NUM_DEVICES; i++) {
+                mDeviceUtilMonitor.notifyDeviceStateChange("serial" + i,
+                        DeviceAllocationState.Available, DeviceAllocationState.Allocated);
+            }
+            mCurrentTime += TimeUnit.MINUTES.toMillis(5);
+            for (int i = 0; i < NUM_DEVICES; i++) {
+                mDeviceUtilMonitor.notifyDeviceStateChange("serial" + i,
+                        DeviceAllocationState.Allocated, DeviceAllocationState.Available);
+            }
+            mCurrentTime += TimeUnit.MINUTES.toMillis(5);
         }
-        // This takes ~ 1.9 MB in heap if DeviceUtilStatsMonitor uses a LinkedList<Byte> to
-        // store samples
-        // takes ~ 65K if CircularByteArray is used
+        mDeviceUtilMonitor.pruneHistory(mCurrentTime);
+        // This takes ~ 1.6 MB in heap: 2 timestamps per allocation
         Thread.sleep(5 * 60 * 1000);
     }
 
-    /**
-     * Helper method to create a {@link DeviceDescriptor} using only serial and state.
-     */
-    private DeviceDescriptor createDeviceDesc(String serial, DeviceAllocationState state) {
-        return new DeviceDescriptor(serial, false, state, null, null, null, null, null);
-    }
-
     public static void main(String[] args) {
         //new DeviceUtilStatsMonitorLoadTest().testManyRecords();
     }
@@ -18,38 +18,55 @@ package com.android.tradefed.device;
 import com.android.tradefed.command.remote.DeviceDescriptor;
 import com.android.tradefed.device.DeviceUtilStatsMonitor.UtilizationDesc;
 import com.android.tradefed.device.IDeviceMonitor.DeviceLister;
+import com.android.tradefed.util.FileUtil;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simple unit tests for {@link DeviceUtilStatsMonitor}
  */
 public class DeviceUtilStatsMonitorTest extends TestCase {
 
+    private static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
     private IDeviceManager mMockDeviceManager;
     private DeviceUtilStatsMonitor mDeviceUtilMonitor;
+    private long mCurrentTime = 100 * HOUR_MS;
 
     @Override
     public void setUp() {
         mMockDeviceManager = EasyMock.createNiceMock(IDeviceManager.class);
-        mDeviceUtilMonitor = new DeviceUtilStatsMonitor() {
+        mDeviceUtilMonitor = createMonitor();
+    }
+
+    private DeviceUtilStatsMonitor createMonitor() {
+        DeviceUtilStatsMonitor monitor = new DeviceUtilStatsMonitor() {
             @Override
             IDeviceManager getDeviceManager() {
                 return mMockDeviceManager;
             }
+
+            @Override
+            long getCurrentTime() {
+                return mCurrentTime;
+            }
         };
-        mDeviceUtilMonitor.setDeviceLister(new DeviceLister() {
+        monitor.setDeviceLister(new DeviceLister() {
             @Override
             public List<DeviceDescriptor> listDevices() {
                 return mMockDeviceManager.listAllDevices();
             }
         });
-        mDeviceUtilMonitor.calculateMaxSamples();
+        return monitor;
     }
 
     public void testEmpty() {
@@ -61,11 +78,10 @@ public class DeviceUtilStatsMonitorTest extends TestCase {
      * Test case where device has been available but never allocated
      */
     public void testOnlyAvailable() {
-        EasyMock.expect(mMockDeviceManager.listAllDevices()).andReturn(buildDeviceList(
-                DeviceAllocationState.Available));
         EasyMock.replay(mMockDeviceManager);
+        setState("serial0", DeviceAllocationState.Available);
+        mCurrentTime += HOUR_MS;
 
-        mDeviceUtilMonitor.getSamplingTask().run();
         UtilizationDesc desc = mDeviceUtilMonitor.getUtilizationStats();
         assertEquals(0, desc.mTotalUtil);
         assertEquals(1, desc.mDeviceUtil.size());
@@ -76,11 +92,10 @@ public class DeviceUtilStatsMonitorTest extends TestCase {
      * Test case where device has been allocated but never available
      */
     public void testOnlyAllocated() {
-        EasyMock.expect(mMockDeviceManager.listAllDevices()).andReturn(buildDeviceList(
-                DeviceAllocationState.Allocated));
         EasyMock.replay(mMockDeviceManager);
+        setState("serial0", DeviceAllocationState.Allocated);
+        mCurrentTime += HOUR_MS;
 
-        mDeviceUtilMonitor.getSamplingTask().run();
         UtilizationDesc desc = mDeviceUtilMonitor.getUtilizationStats();
         assertEquals(100L, desc.mTotalUtil);
         assertEquals(1, desc.mDeviceUtil.size());
@@ -88,58 +103,146 @@ public class DeviceUtilStatsMonitorTest extends TestCase {
     }
 
     /**
-     * Test case where samples exceed max
+     * Test that utilization is exact over each window, and only includes the part of allocations
+     * inside the window.
      */
-    public void testExceededSamples() {
-        mDeviceUtilMonitor.setMaxSamples(2);
-        // first return allocated, then return samples with device missing
-        EasyMock.expect(mMockDeviceManager.listAllDevices()).andReturn(buildDeviceList(
-                DeviceAllocationState.Allocated));
-        EasyMock.expect(mMockDeviceManager.listAllDevices()).andReturn(buildDeviceList(DeviceAllocationState.Available));
-        EasyMock.expect(mMockDeviceManager.listAllDevices()).andReturn(buildDeviceList(DeviceAllocationState.Available));
+    public void testWindows() {
         EasyMock.replay(mMockDeviceManager);
+        setState("serial0", DeviceAllocationState.Available);
+        setState("serial1", DeviceAllocationState.Available);
+        mCurrentTime += 4 * HOUR_MS;
+        // serial0 allocated for 3 hours, ending 1 hour ago
+        setState("serial0", DeviceAllocationState.Allocated);
+        mCurrentTime += 3 * HOUR_MS;
+        setState("serial0", DeviceAllocationState.Available);
+        mCurrentTime += HOUR_MS;
 
-        mDeviceUtilMonitor.getSamplingTask().run();
-        // only 1 sample - allocated
-        assertEquals(100L, mDeviceUtilMonitor.getUtilizationStats().mTotalUtil);
-        mDeviceUtilMonitor.getSamplingTask().run();
-        // 1 out of 2
-        assertEquals(50L, mDeviceUtilMonitor.getUtilizationStats().mTotalUtil);
-        mDeviceUtilMonitor.getSamplingTask().run();
-        // 0 out of 2
-        assertEquals(0L, mDeviceUtilMonitor.getUtilizationStats().mTotalUtil);
+        // 8 hours: 3 of 8 for serial0, 3 of 16 in total
+        UtilizationDesc desc = mDeviceUtilMonitor.getUtilizationStats();
+        assertEquals(37, desc.getUtilForDevice("serial0").intValue());
+        assertEquals(0, desc.getUtilForDevice("serial1").intValue());
+        assertEquals(18, desc.getTotalUtil());
+
+        // 2 hours: 1 of 2 for serial0
+        desc = mDeviceUtilMonitor.getUtilizationStats(2 * HOUR_MS);
+        assertEquals(50, desc.getUtilForDevice("serial0").intValue());
+
+        Map<String, UtilizationDesc> views = mDeviceUtilMonitor.getUtilizationViews();
+        assertEquals("[1h, 8h, 24h, 7d]", views.keySet().toString());
+        assertEquals(0, views.get("1h").getUtilForDevice("serial0").intValue());
+        // only 8 hours of history
+        assertEquals(37, views.get("7d").getUtilForDevice("serial0").intValue());
+
+        BitSet summary = mDeviceUtilMonitor.getAllocationSummary("serial0", 8 * HOUR_MS, 8);
+        assertEquals("{4, 5, 6}", summary.toString());
+        assertNull(mDeviceUtilMonitor.getAllocationSummary("serial2", 8 * HOUR_MS, 8));
     }
 
     /**
-     * Test case where device disappears. Ensure util numbers are calculated until > max samples
-     * have been collected with it missing
+     * Test case where device disappears. Ensure util numbers are calculated until it has been gone
+     * for longer than the retained history
      */
     public void testMissingDevice() {
-        mDeviceUtilMonitor.setMaxSamples(2);
-        // first return allocated, then return samples with device missing
-        EasyMock.expect(mMockDeviceManager.listAllDevices()).andReturn(buildDeviceList(
-                DeviceAllocationState.Allocated));
-        EasyMock.expect(mMockDeviceManager.listAllDevices()).andReturn(buildDeviceList());
-        EasyMock.expect(mMockDeviceManager.listAllDevices()).andReturn(buildDeviceList());
-        EasyMock.expect(mMockDeviceManager.listAllDevices()).andReturn(buildDeviceList());
         EasyMock.replay(mMockDeviceManager);
+        setState("serial0", DeviceAllocationState.Allocated);
+        mCurrentTime += HOUR_MS;
+        setState("serial0", DeviceAllocationState.Unknown);
+        mCurrentTime += HOUR_MS;
 
-        // only 1 sample - allocated
-        mDeviceUtilMonitor.getSamplingTask().run();
-        assertEquals(100L, mDeviceUtilMonitor.getUtilizationStats().mTotalUtil);
-
-        // 1 out of 2
-        mDeviceUtilMonitor.getSamplingTask().run();
+        // gone time counts as unutilized
         assertEquals(50L, mDeviceUtilMonitor.getUtilizationStats().mTotalUtil);
 
-        // 0 out of 2
-        mDeviceUtilMonitor.getSamplingTask().run();
-        assertEquals(0L, mDeviceUtilMonitor.getUtilizationStats().mTotalUtil);
+        mCurrentTime += TimeUnit.DAYS.toMillis(7) - 2 * HOUR_MS;
+        mDeviceUtilMonitor.pruneHistory(mCurrentTime);
+        assertEquals(1, mDeviceUtilMonitor.getUtilizationStats().mDeviceUtil.size());
 
         // now removed
-        mDeviceUtilMonitor.getSamplingTask().run();
+        mCurrentTime += HOUR_MS;
+        mDeviceUtilMonitor.pruneHistory(mCurrentTime);
         assertEquals(0L, mDeviceUtilMonitor.getUtilizationStats().mDeviceUtil.size());
+    }
+
+    /**
+     * Test that history older than the longest window is discarded, without changing utilization
+     * within the window.
+     */
+    public void testPruneHistory() {
+        EasyMock.replay(mMockDeviceManager);
+        setState("serial0", DeviceAllocationState.Available);
+        mCurrentTime += HOUR_MS;
+        setState("serial0", DeviceAllocationState.Allocated);
+        mCurrentTime += TimeUnit.DAYS.toMillis(7);
+        setState("serial0", DeviceAllocationState.Available);
+        mCurrentTime += TimeUnit.DAYS.toMillis(1);
+
+        int weekUtil = mDeviceUtilMonitor.getUtilizationViews().get("7d").getTotalUtil();
+        assertEquals(85, weekUtil);
+        mDeviceUtilMonitor.pruneHistory(mCurrentTime);
+        assertEquals(weekUtil, mDeviceUtilMonitor.getUtilizationViews().get("7d").getTotalUtil());
+    }
+
+    /**
+     * Test that devices reported by the {@link DeviceLister} but never reported to the monitor are
+     * tracked.
+     */
+    public void testMaintenance_addsListedDevices() {
+        EasyMock.expect(mMockDeviceManager.listAllDevices()).andReturn(buildDeviceList(
+                DeviceAllocationState.Allocated));
+        EasyMock.replay(mMockDeviceManager);
+
+        mDeviceUtilMonitor.getMaintenanceTask().run();
+        mCurrentTime += HOUR_MS;
+        assertEquals(100, mDeviceUtilMonitor.getUtilizationStats().getTotalUtil());
+    }
+
+    /**
+     * Test that the history is restored from a saved file, with the time in between counting as
+     * unutilized.
+     */
+    public void testSaveAndLoadHistory() throws Exception {
+        EasyMock.replay(mMockDeviceManager);
+        File historyFile = FileUtil.createTempFile("util-history", ".txt");
+        try {
+            setState("serial0", DeviceAllocationState.Allocated);
+            mCurrentTime += HOUR_MS;
+            mDeviceUtilMonitor.saveHistory(historyFile);
+
+            mCurrentTime += HOUR_MS;
+            DeviceUtilStatsMonitor restoredMonitor = createMonitor();
+            restoredMonitor.loadHistory(historyFile);
+            UtilizationDesc desc = restoredMonitor.getUtilizationStats();
+            assertEquals(50, desc.getUtilForDevice("serial0").intValue());
+
+            // device reconnects and is allocated again
+            restoredMonitor.notifyDeviceStateChange("serial0", DeviceAllocationState.Unknown,
+                    DeviceAllocationState.Allocated);
+            mCurrentTime += 2 * HOUR_MS;
+            assertEquals(75, restoredMonitor.getUtilizationStats().getTotalUtil());
+        } finally {
+            FileUtil.deleteFile(historyFile);
+        }
+    }
+
+    /**
+     * Test that a null device is only included once a null device has been allocated.
+     */
+    public void testNullDevice_includeIfUsed() {
+        EasyMock.expect(mMockDeviceManager.isNullDevice("null-device-0")).andStubReturn(true);
+        EasyMock.replay(mMockDeviceManager);
+        setState("serial0", DeviceAllocationState.Allocated);
+        setState("null-device-0", DeviceAllocationState.Available);
+        mCurrentTime += HOUR_MS;
+        assertEquals(1, mDeviceUtilMonitor.getUtilizationStats().mDeviceUtil.size());
+        assertEquals(100, mDeviceUtilMonitor.getUtilizationStats().getTotalUtil());
+
+        setState("null-device-0", DeviceAllocationState.Allocated);
+        mCurrentTime += HOUR_MS;
+        assertEquals(2, mDeviceUtilMonitor.getUtilizationStats().mDeviceUtil.size());
+        assertEquals(75, mDeviceUtilMonitor.getUtilizationStats().getTotalUtil());
+    }
 
+    private void setState(String serial, DeviceAllocationState state) {
+        mDeviceUtilMonitor.notifyDeviceStateChange(serial, null, state);
     }
 
     private List<DeviceDescriptor> buildDeviceList(DeviceAllocationState... states) {
@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.util.ArrayUtil;
+
+import junit.framework.TestCase;
+
+import java.util.List;
+
+/**
+ * Unit tests for {@link EmulatorPool}
+ */
+public class EmulatorPoolTest extends TestCase {
+
+    private static final List<String> ARGS_5554 =
+            ArrayUtil.list("emulator", "-avd", "avd", "-port", "5554", "-no-window");
+    private static final List<String> ARGS_5556 =
+            ArrayUtil.list("emulator", "-avd", "avd", "-port", "5556", "-no-window");
+    private static final List<String> ARGS_5558 =
+            ArrayUtil.list("emulator", "-avd", "avd", "-port", "5558", "-no-window");
+
+    private EmulatorPool mPool;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mPool = new EmulatorPool();
+    }
+
+    /**
+     * Test that the console port is not part of an emulator's signature.
+     */
+    public void testGetSignature() {
+        assertEquals("emulator -avd avd -no-window", EmulatorPool.getSignature(ARGS_5554));
+        assertEquals(EmulatorPool.getSignature(ARGS_5554), EmulatorPool.getSignature(ARGS_5556));
+    }
+
+    /**
+     * Test that only emulators that were added are kept running, up to the limit per signature.
+     */
+    public void testOffer() {
+        assertFalse(mPool.offer("emulator-5554", 2));
+
+        mPool.add("emulator-5554", ARGS_5554);
+        mPool.add("emulator-5556", ARGS_5556);
+        mPool.add("emulator-5558", ARGS_5558);
+        assertTrue(mPool.offer("emulator-5554", 2));
+        assertTrue(mPool.offer("emulator-5556", 2));
+        assertFalse(mPool.offer("emulator-5558", 2));
+        assertEquals(2, mPool.getWarmCount());
+        assertTrue(mPool.isWarm("emulator-5554"));
+        assertFalse(mPool.isWarm("emulator-5558"));
+        // an emulator that was turned away has left the pool
+        assertFalse(mPool.offer("emulator-5558", 3));
+    }
+
+    /**
+     * Test taking a claimed emulator to launch with the same arguments.
+     */
+    public void testTake() {
+        mPool.add("emulator-5554", ARGS_5554);
+        assertTrue(mPool.offer("emulator-5554", 1));
+        // only an emulator that was claimed when allocated can be taken
+        assertFalse(mPool.isClaimed("emulator-5554"));
+        assertTrue(mPool.claim("emulator-5554"));
+        assertFalse(mPool.isWarm("emulator-5554"));
+        assertTrue(mPool.isClaimed("emulator-5554"));
+        assertTrue(mPool.take("emulator-5554", ARGS_5554));
+        assertFalse(mPool.isClaimed("emulator-5554"));
+        // cannot be taken twice
+        assertFalse(mPool.take("emulator-5554", ARGS_5554));
+    }
+
+    /**
+     * Test that a warm emulator launched with different arguments leaves the pool.
+     */
+    public void testTake_mismatch() {
+        mPool.add("emulator-5554", ARGS_5554);
+        assertTrue(mPool.offer("emulator-5554", 1));
+        assertTrue(mPool.claim("emulator-5554"));
+        assertFalse(mPool.take("emulator-5554",
+                ArrayUtil.list("emulator", "-avd", "other", "-port", "5554")));
+        assertFalse(mPool.isWarm("emulator-5554"));
+        assertFalse(mPool.offer("emulator-5554", 1));
+    }
+
+    /**
+     * Test that an emulator that was claimed, but freed without being reset, leaves the pool.
+     */
+    public void testOffer_claimed() {
+        mPool.add("emulator-5554", ARGS_5554);
+        assertTrue(mPool.offer("emulator-5554", 1));
+        assertTrue(mPool.claim("emulator-5554"));
+        // cannot be claimed twice
+        assertFalse(mPool.claim("emulator-5554"));
+        assertFalse(mPool.offer("emulator-5554", 1));
+        assertFalse(mPool.isClaimed("emulator-5554"));
+        assertFalse(mPool.isWarm("emulator-5554"));
+        assertFalse(mPool.offer("emulator-5554", 1));
+    }
+
+    /**
+     * Test that a killed emulator leaves the pool.
+     */
+    public void testRemove() {
+        mPool.add("emulator-5554", ARGS_5554);
+        assertTrue(mPool.offer("emulator-5554", 1));
+        mPool.remove("emulator-5554");
+        assertFalse(mPool.isWarm("emulator-5554"));
+        assertEquals(0, mPool.getWarmCount());
+    }
+}
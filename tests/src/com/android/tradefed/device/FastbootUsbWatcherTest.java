@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.tradefed.device.FastbootUsbWatcher.IUsbChangeListener;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Unit tests for {@link FastbootUsbWatcher}.
+ */
+public class FastbootUsbWatcherTest extends TestCase {
+
+    private File mSysfsDir;
+    private File mUsbfsDir;
+    private FastbootUsbWatcher mWatcher;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mSysfsDir = FileUtil.createTempDir("sysfs");
+        mUsbfsDir = FileUtil.createTempDir("usbfs");
+        mWatcher = new FastbootUsbWatcher(mSysfsDir, mUsbfsDir);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mWatcher.close();
+        FileUtil.recursiveDelete(mSysfsDir);
+        FileUtil.recursiveDelete(mUsbfsDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that only devices exposing a fastboot interface are returned.
+     */
+    public void testGetDevicesOnFastboot() throws IOException {
+        addUsbDevice("1-1", "FASTBOOTSERIAL", "ff", "42", "03");
+        // an adb interface has the same class and subclass, but a different protocol
+        addUsbDevice("1-2", "ADBSERIAL", "ff", "42", "01");
+        addUsbDevice("2-1.4", "OTHERSERIAL", "08", "06", "50");
+        Set<String> serials = mWatcher.getDevicesOnFastboot();
+        assertEquals(1, serials.size());
+        assertTrue(serials.contains("FASTBOOTSERIAL"));
+    }
+
+    /**
+     * Test that a fastboot interface without a readable serial is ignored.
+     */
+    public void testGetDevicesOnFastboot_noSerial() throws IOException {
+        addUsbDevice("1-1", null, "ff", "42", "03");
+        assertTrue(mWatcher.getDevicesOnFastboot().isEmpty());
+    }
+
+    /**
+     * Test that scanning is not supported when sysfs is missing.
+     */
+    public void testGetDevicesOnFastboot_noSysfs() {
+        FastbootUsbWatcher watcher = new FastbootUsbWatcher(new File(mSysfsDir, "missing"),
+                mUsbfsDir);
+        assertFalse(watcher.isScanSupported());
+        assertNull(watcher.getDevicesOnFastboot());
+    }
+
+    /**
+     * Test that the listener is notified when a device node is added to a bus directory.
+     */
+    public void testStart_notifiesOnChange() throws Exception {
+        File busDir = new File(mUsbfsDir, "001");
+        assertTrue(busDir.mkdir());
+        final Object lock = new Object();
+        final boolean[] changed = new boolean[1];
+        assertTrue(mWatcher.start(new IUsbChangeListener() {
+            @Override
+            public void usbDevicesChanged() {
+                synchronized (lock) {
+                    changed[0] = true;
+                    lock.notify();
+                }
+            }
+        }));
+        synchronized (lock) {
+            assertTrue(new File(busDir, "002").createNewFile());
+            long deadline = System.currentTimeMillis() + 10 * 1000;
+            while (!changed[0] && System.currentTimeMillis() < deadline) {
+                lock.wait(deadline - System.currentTimeMillis());
+            }
+        }
+        assertTrue(changed[0]);
+    }
+
+    /**
+     * Test that the watch is not started when usbfs is missing.
+     */
+    public void testStart_noUsbfs() {
+        FastbootUsbWatcher watcher = new FastbootUsbWatcher(mSysfsDir,
+                new File(mUsbfsDir, "missing"));
+        assertFalse(watcher.start(null));
+    }
+
+    /**
+     * Create a fake sysfs device with one interface.
+     */
+    private void addUsbDevice(String deviceName, String serial, String interfaceClass,
+            String interfaceSubClass, String interfaceProtocol) throws IOException {
+        File deviceDir = new File(mSysfsDir, deviceName);
+        assertTrue(deviceDir.mkdir());
+        if (serial != null) {
+            FileUtil.writeToFile(serial + "\n", new File(deviceDir, "serial"));
+        }
+        File interfaceDir = new File(mSysfsDir, deviceName + ":1.0");
+        assertTrue(interfaceDir.mkdir());
+        FileUtil.writeToFile(interfaceClass + "\n", new File(interfaceDir, "bInterfaceClass"));
+        FileUtil.writeToFile(interfaceSubClass + "\n",
+                new File(interfaceDir, "bInterfaceSubClass"));
+        FileUtil.writeToFile(interfaceProtocol + "\n",
+                new File(interfaceDir, "bInterfaceProtocol"));
+    }
+}
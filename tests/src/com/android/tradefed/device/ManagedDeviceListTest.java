@@ -22,6 +22,14 @@ import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * Unit tests for {@link ManagedDeviceList}.
  */
@@ -83,6 +91,29 @@ public class ManagedDeviceListTest extends TestCase {
         assertNull(mManagedDeviceList.allocate(DeviceManager.ANY_DEVICE_OPTIONS));
     }
 
+    /**
+     * Test that {@link ManagedDeviceList#allocateGroup(List)} allocates a distinct device for each
+     * selection, or none at all.
+     */
+    public void testAllocateGroup() {
+        IManagedTestDevice foo = mManagedDeviceList.findOrCreate(new StubDevice("foo"));
+        IManagedTestDevice bar = mManagedDeviceList.findOrCreate(new StubDevice("bar"));
+        foo.handleAllocationEvent(DeviceEvent.FORCE_AVAILABLE);
+        DeviceSelectionOptions fooOptions = new DeviceSelectionOptions();
+        fooOptions.addSerial("foo");
+        // verify group fails when a device would be needed twice, and nothing is allocated
+        assertNull(mManagedDeviceList.allocateGroup(Arrays.<IDeviceSelection>asList(
+                DeviceManager.ANY_DEVICE_OPTIONS, fooOptions)));
+        assertEquals(DeviceAllocationState.Available, foo.getAllocationState());
+        bar.handleAllocationEvent(DeviceEvent.FORCE_AVAILABLE);
+        // verify any device selection does not take the only device matching the specific one
+        List<IManagedTestDevice> group = mManagedDeviceList.allocateGroup(
+                Arrays.<IDeviceSelection>asList(DeviceManager.ANY_DEVICE_OPTIONS, fooOptions));
+        assertEquals(Arrays.asList(bar, foo), group);
+        assertEquals(DeviceAllocationState.Allocated, foo.getAllocationState());
+        assertEquals(DeviceAllocationState.Allocated, bar.getAllocationState());
+    }
+
     /**
      * Basic test for {@link ManagedDeviceList#handleDeviceEvent(IManagedTestDevice, DeviceEvent)}
      */
@@ -99,4 +130,59 @@ public class ManagedDeviceListTest extends TestCase {
         mManagedDeviceList.handleDeviceEvent(d, DeviceEvent.DISCONNECTED);
         assertEquals(0, mManagedDeviceList.size());
     }
+
+    /**
+     * Test that devices are allocated and freed consistently by concurrent callers, while the
+     * list is iterated.
+     */
+    public void testAllocate_concurrent() throws InterruptedException {
+        final int numDevices = 200;
+        final int numThreads = 16;
+        final int numAllocations = 500;
+        for (int i = 0; i < numDevices; i++) {
+            IManagedTestDevice d = mManagedDeviceList.findOrCreate(new StubDevice("serial" + i));
+            d.handleAllocationEvent(DeviceEvent.FORCE_AVAILABLE);
+        }
+        final Set<IManagedTestDevice> allocated = Collections.newSetFromMap(
+                new ConcurrentHashMap<IManagedTestDevice, Boolean>());
+        final AtomicInteger errors = new AtomicInteger(0);
+        List<Thread> threads = new ArrayList<Thread>(numThreads);
+        for (int i = 0; i < numThreads; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < numAllocations; j++) {
+                        IManagedTestDevice d = mManagedDeviceList.allocate(
+                                DeviceManager.ANY_DEVICE_OPTIONS);
+                        if (d == null || !allocated.add(d)) {
+                            // devices are never all allocated, and never allocated twice
+                            errors.incrementAndGet();
+                            continue;
+                        }
+                        int count = 0;
+                        for (IManagedTestDevice listed : mManagedDeviceList) {
+                            if (listed != null) {
+                                count++;
+                            }
+                        }
+                        if (count != numDevices) {
+                            errors.incrementAndGet();
+                        }
+                        allocated.remove(d);
+                        mManagedDeviceList.handleDeviceEvent(d, DeviceEvent.FREE_AVAILABLE);
+                    }
+                }
+            };
+            threads.add(t);
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(0, errors.get());
+        assertEquals(numDevices, mManagedDeviceList.size());
+        for (IManagedTestDevice d : mManagedDeviceList) {
+            assertEquals(DeviceAllocationState.Available, d.getAllocationState());
+        }
+    }
 }
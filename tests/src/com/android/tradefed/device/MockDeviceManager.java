@@ -25,6 +25,7 @@ import org.easymock.EasyMock;
 import org.junit.Assert;
 
 import java.io.PrintWriter;
+import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -148,6 +149,26 @@ public class MockDeviceManager implements IDeviceManager {
         return d;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized List<ITestDevice> allocateDevices(List<IDeviceSelection> options) {
+        List<ITestDevice> devices = new ArrayList<ITestDevice>(options.size());
+        for (IDeviceSelection deviceOptions : options) {
+            ITestDevice d = allocateDevice(deviceOptions);
+            if (d == null) {
+                // return the partial group
+                for (ITestDevice allocated : devices) {
+                    freeDevice(allocated, FreeDeviceState.AVAILABLE);
+                }
+                return null;
+            }
+            devices.add(d);
+        }
+        return devices;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.RawImage;
+
+import junit.framework.TestCase;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Unit tests for {@link ScreenshotEncoder}.
+ */
+public class ScreenshotEncoderTest extends TestCase {
+
+    private static final int WIDTH = 37;
+    private static final int HEIGHT = 21;
+
+    /**
+     * Test that an encoded screenshot decodes back to the original pixels.
+     */
+    public void testEncodeAsPng() throws IOException {
+        RawImage rawImage = createRawImage();
+        assertImageEquals(rawImage, ScreenshotEncoder.encodeAsPng(rawImage,
+                ScreenshotEncoder.DEFAULT_COMPRESSION_LEVEL));
+        assertImageEquals(rawImage, ScreenshotEncoder.encodeAsPng(rawImage,
+                Deflater.BEST_COMPRESSION));
+    }
+
+    /**
+     * Test that a screenshot encoded in the background decodes back to the original pixels.
+     */
+    public void testEncodeAsPngAsync() throws Exception {
+        RawImage rawImage = createRawImage();
+        assertImageEquals(rawImage, ScreenshotEncoder.encodeAsPngAsync(rawImage,
+                ScreenshotEncoder.DEFAULT_COMPRESSION_LEVEL).get());
+    }
+
+    /**
+     * Create a 32bpp RGBA {@link RawImage} with a gradient and some flat regions.
+     */
+    private RawImage createRawImage() {
+        RawImage rawImage = new RawImage();
+        rawImage.bpp = 32;
+        rawImage.width = WIDTH;
+        rawImage.height = HEIGHT;
+        rawImage.size = WIDTH * HEIGHT * 4;
+        rawImage.red_offset = 0;
+        rawImage.red_length = 8;
+        rawImage.green_offset = 8;
+        rawImage.green_length = 8;
+        rawImage.blue_offset = 16;
+        rawImage.blue_length = 8;
+        rawImage.alpha_offset = 24;
+        rawImage.alpha_length = 8;
+        rawImage.data = new byte[rawImage.size];
+        int index = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                boolean flat = x < WIDTH / 2;
+                rawImage.data[index++] = (byte)(flat ? 0x20 : x * 7);
+                rawImage.data[index++] = (byte)(flat ? 0x40 : y * 11);
+                rawImage.data[index++] = (byte)(flat ? 0x80 : x * y);
+                rawImage.data[index++] = (byte)0xff;
+            }
+        }
+        return rawImage;
+    }
+
+    private void assertImageEquals(RawImage rawImage, byte[] pngData) throws IOException {
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(pngData));
+        assertNotNull(image);
+        assertEquals(WIDTH, image.getWidth());
+        assertEquals(HEIGHT, image.getHeight());
+        int index = 0;
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                assertEquals(String.format("pixel %d,%d", x, y),
+                        rawImage.getARGB(index) & 0xffffff, image.getRGB(x, y) & 0xffffff);
+                index += rawImage.bpp >> 3;
+            }
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Unit tests for {@link ShellCommandBatch}
+ */
+public class ShellCommandBatchTest extends TestCase {
+
+    private static final String MARKER = "MARKER";
+
+    /**
+     * Test the script built for a batch of commands.
+     */
+    public void testGetNextScript() {
+        ShellCommandBatch batch = new ShellCommandBatch(Arrays.asList("ls", "sleep 1 &"), MARKER);
+        assertEquals("ls\necho \"\nMARKER 0 $?\"\nsleep 1 &\necho \"\nMARKER 1 $?\"\n",
+                batch.getNextScript());
+    }
+
+    /**
+     * Test splitting the output of a script into the results of each command.
+     */
+    public void testParseOutput() {
+        ShellCommandBatch batch = new ShellCommandBatch(Arrays.asList("a", "b", "c"), MARKER);
+        batch.getNextScript();
+        batch.parseOutput("line1\r\nline2\r\n\r\nMARKER 0 0\r\nno new line\r\nMARKER 1 1\r\n"
+                + "\r\nMARKER 2 0\r\n", true);
+        assertTrue(batch.isComplete());
+        List<ShellCommandResult> results = batch.getResults();
+        assertEquals(3, results.size());
+        assertResult(results.get(0), "a", "line1\r\nline2\r\n", 0);
+        assertResult(results.get(1), "b", "no new line", 1);
+        assertResult(results.get(2), "c", "", 0);
+        assertFalse(results.get(1).isSuccess());
+    }
+
+    /**
+     * Test that when the session is lost, only the commands that completed get a result, and the
+     * next script starts from the first command that did not.
+     */
+    public void testParseOutput_sessionLost() {
+        ShellCommandBatch batch = new ShellCommandBatch(Arrays.asList("a", "b", "c"), MARKER);
+        batch.getNextScript();
+        batch.parseOutput("out a\n\nMARKER 0 0\npartial out b", false);
+        assertFalse(batch.isComplete());
+        assertEquals(1, batch.getResults().size());
+        assertEquals("b\necho \"\nMARKER 1 $?\"\nc\necho \"\nMARKER 2 $?\"\n",
+                batch.getNextScript());
+        batch.parseOutput("out b\n\nMARKER 1 0\nout c\n\nMARKER 2 0\n", true);
+        assertTrue(batch.isComplete());
+        assertResult(batch.getResults().get(1), "b", "out b\n", 0);
+        assertResult(batch.getResults().get(2), "c", "out c\n", 0);
+    }
+
+    /**
+     * Test that a command that ends the session gets a result with no exit code, and the
+     * commands after it run in a new session.
+     */
+    public void testParseOutput_sessionEnded() {
+        ShellCommandBatch batch = new ShellCommandBatch(Arrays.asList("a", "exit", "c"), MARKER);
+        batch.getNextScript();
+        batch.parseOutput("\nMARKER 0 0\nbye", true);
+        assertEquals(2, batch.getResults().size());
+        assertResult(batch.getResults().get(1), "exit", "bye", null);
+        assertFalse(batch.getResults().get(1).isSuccess());
+        assertEquals("c\necho \"\nMARKER 2 $?\"\n", batch.getNextScript());
+    }
+
+    /**
+     * Test that long batches are split between several scripts.
+     */
+    public void testGetNextScript_long() {
+        List<String> commands = new ArrayList<String>();
+        String command = String.format("echo %0100d", 0);
+        int numCommands = ShellCommandBatch.MAX_SCRIPT_LENGTH / command.length();
+        for (int i = 0; i < numCommands; i++) {
+            commands.add(command);
+        }
+        ShellCommandBatch batch = new ShellCommandBatch(commands, MARKER);
+        String script = batch.getNextScript();
+        assertTrue(script.length() <= ShellCommandBatch.MAX_SCRIPT_LENGTH);
+        StringBuilder output = new StringBuilder();
+        int numInScript = script.split("\n" + MARKER).length - 1;
+        assertTrue(numInScript > 0 && numInScript < numCommands);
+        for (int i = 0; i < numInScript; i++) {
+            output.append(String.format("\n%s %d 0\n", MARKER, i));
+        }
+        batch.parseOutput(output.toString(), true);
+        assertEquals(numInScript, batch.getResults().size());
+        assertTrue(batch.getNextScript().startsWith(String.format("%s\necho \"\n%s %d $?\"",
+                command, MARKER, numInScript)));
+    }
+
+    private void assertResult(ShellCommandResult result, String command, String output,
+            Integer exitCode) {
+        assertEquals(command, result.getCommand());
+        assertEquals(output, result.getOutput());
+        assertEquals(exitCode, result.getExitCode());
+    }
+}
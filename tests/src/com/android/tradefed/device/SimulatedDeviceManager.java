@@ -0,0 +1,306 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.device;
+
+import com.android.ddmlib.IDevice;
+import com.android.tradefed.command.remote.DeviceDescriptor;
+import com.android.tradefed.device.DeviceManager.IManagedTestDeviceFactory;
+import com.android.tradefed.device.IManagedTestDevice.DeviceEventResponse;
+import com.android.tradefed.log.LogUtil.CLog;
+import com.android.tradefed.util.IRunUtil;
+import com.android.tradefed.util.RunUtil;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link IDeviceManager} for a fixed set of synthetic devices, that need no adb connection.
+ * <p/>
+ * Devices are allocated with the same {@link ManagedDeviceList} and allocation state machine as
+ * {@link DeviceManager}, and can be given an allocation latency, so that the scheduling of
+ * commands can be measured without real devices. Nothing can actually be run on the devices,
+ * and requests to launch or kill emulators are ignored.
+ */
+public class SimulatedDeviceManager implements IDeviceManager {
+
+    private final ManagedDeviceList mManagedDeviceList;
+    private final DeviceMonitorMultiplexer mDvcMon = new DeviceMonitorMultiplexer();
+    private final long mAllocationLatency;
+    /** the time each allocated device was allocated at, by serial */
+    private final Map<String, Long> mAllocationTimes = new ConcurrentHashMap<String, Long>();
+    private final AtomicLong mAllocatedTime = new AtomicLong(0);
+
+    /**
+     * Creates a {@link SimulatedDeviceManager}.
+     *
+     * @param numDevices the number of devices to simulate, all initially available
+     * @param allocationLatency the time in ms each device allocation should take
+     */
+    public SimulatedDeviceManager(int numDevices, long allocationLatency) {
+        mAllocationLatency = allocationLatency;
+        mManagedDeviceList = new ManagedDeviceList(new IManagedTestDeviceFactory() {
+            @Override
+            public IManagedTestDevice createDevice(IDevice idevice) {
+                return new TestDevice(idevice, new DeviceStateMonitor(
+                        SimulatedDeviceManager.this, idevice, false), mDvcMon);
+            }
+        });
+        for (int i = 0; i < numDevices; i++) {
+            IManagedTestDevice d = mManagedDeviceList.findOrCreate(
+                    new StubDevice(String.format("simulated-%d", i), false));
+            d.handleAllocationEvent(DeviceEvent.FORCE_AVAILABLE);
+        }
+    }
+
+    /**
+     * Get the {@link IRunUtil} instance to use.
+     * <p/>
+     * Exposed for unit testing.
+     */
+    IRunUtil getRunUtil() {
+        return RunUtil.getDefault();
+    }
+
+    /**
+     * @return the total time in ms devices have been allocated for, not counting devices that
+     *         are still allocated
+     */
+    public long getAllocatedTime() {
+        return mAllocatedTime.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init() {
+        // ignore
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void init(IDeviceSelection globalDeviceFilter, List<IDeviceMonitor> deviceMonitors) {
+        if (deviceMonitors != null) {
+            mDvcMon.addMonitors(deviceMonitors);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ITestDevice allocateDevice() {
+        return allocateDevice(DeviceManager.ANY_DEVICE_OPTIONS);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ITestDevice allocateDevice(IDeviceSelection options) {
+        if (mAllocationLatency > 0) {
+            getRunUtil().sleep(mAllocationLatency);
+        }
+        ITestDevice d = mManagedDeviceList.allocate(options);
+        if (d != null) {
+            mAllocationTimes.put(d.getSerialNumber(), System.currentTimeMillis());
+        }
+        return d;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<ITestDevice> allocateDevices(List<IDeviceSelection> options) {
+        if (mAllocationLatency > 0) {
+            getRunUtil().sleep(mAllocationLatency);
+        }
+        List<IManagedTestDevice> group = mManagedDeviceList.allocateGroup(options);
+        if (group == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        for (ITestDevice d : group) {
+            mAllocationTimes.put(d.getSerialNumber(), now);
+        }
+        return new ArrayList<ITestDevice>(group);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ITestDevice forceAllocateDevice(String serial) {
+        IManagedTestDevice d = mManagedDeviceList.findOrCreate(new StubDevice(serial, false));
+        if (d != null) {
+            DeviceEventResponse r = d.handleAllocationEvent(DeviceEvent.FORCE_ALLOCATE_REQUEST);
+            if (r.stateChanged && r.allocationState == DeviceAllocationState.Allocated) {
+                mAllocationTimes.put(d.getSerialNumber(), System.currentTimeMillis());
+                return d;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void freeDevice(ITestDevice device, FreeDeviceState state) {
+        Long allocationTime = mAllocationTimes.remove(device.getSerialNumber());
+        if (allocationTime != null) {
+            mAllocatedTime.addAndGet(System.currentTimeMillis() - allocationTime);
+        }
+        IManagedTestDevice managedDevice = (IManagedTestDevice)device;
+        mManagedDeviceList.handleDeviceEvent(managedDevice,
+                DeviceManager.getEventFromFree(managedDevice, state));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void launchEmulator(ITestDevice device, long bootTimeout, IRunUtil runUtil,
+            List<String> emulatorArgs) throws DeviceNotAvailableException {
+        CLog.w("Ignoring launch of emulator %s on simulated devices", device.getSerialNumber());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void killEmulator(ITestDevice device) throws DeviceNotAvailableException {
+        CLog.w("Ignoring kill of emulator %s on simulated devices", device.getSerialNumber());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ITestDevice connectToTcpDevice(String ipAndPort) {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean disconnectFromTcpDevice(ITestDevice tcpDevice) {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public ITestDevice reconnectDeviceToTcp(ITestDevice usbDevice)
+            throws DeviceNotAvailableException {
+        return null;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void terminate() {
+        // ignore
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void terminateHard() {
+        // ignore
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<DeviceDescriptor> listAllDevices() {
+        List<DeviceDescriptor> descriptors = new ArrayList<DeviceDescriptor>();
+        for (IManagedTestDevice d : mManagedDeviceList) {
+            descriptors.add(new DeviceDescriptor(d.getSerialNumber(), true,
+                    d.getAllocationState(), "unknown", "unknown", "unknown", "unknown",
+                    "unknown"));
+        }
+        return descriptors;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void displayDevicesInfo(PrintWriter printWriter) {
+        // ignore
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addFastbootListener(IFastbootListener listener) {
+        // ignore
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeFastbootListener(IFastbootListener listener) {
+        // ignore
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isNullDevice(String serial) {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmulator(String serial) {
+        return false;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void addDeviceMonitor(IDeviceMonitor mon) {
+        mDvcMon.addMonitor(mon);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void removeDeviceMonitor(IDeviceMonitor mon) {
+        mDvcMon.removeMonitor(mon);
+    }
+}
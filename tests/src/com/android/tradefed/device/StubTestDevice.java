@@ -33,6 +33,7 @@ import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -57,6 +58,13 @@ public class StubTestDevice implements IManagedTestDevice {
         return null;
     }
 
+    @Override
+    public List<ShellCommandResult> executeShellCommands(List<String> commands)
+            throws DeviceNotAvailableException {
+        // ignore
+        return null;
+    }
+
     @Override
     public IDevice getIDevice() {
         // ignore
@@ -664,6 +672,14 @@ public class StubTestDevice implements IManagedTestDevice {
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Future<InputStreamSource> getScreenshotAsync() throws DeviceNotAvailableException {
+        return null;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -815,6 +831,14 @@ public class StubTestDevice implements IManagedTestDevice {
         return null;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public Future<InputStreamSource> getLogcatAsync(int maxBytes) {
+        return null;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -849,6 +873,11 @@ public class StubTestDevice implements IManagedTestDevice {
         return null;
     }
 
+    @Override
+    public DeviceHealth getHealth() {
+        return null;
+    }
+
     @Override
     public DeviceEventResponse handleAllocationEvent(DeviceEvent event) {
         return null;
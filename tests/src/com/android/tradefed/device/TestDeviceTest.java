@@ -40,11 +40,14 @@ import org.easymock.IAnswer;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Unit tests for {@link TestDevice}.
@@ -447,6 +450,77 @@ public class TestDeviceTest extends TestCase {
         mTestDevice.executeShellCommand(testCommand, mMockReceiver);
     }
 
+    /**
+     * Test {@link TestDevice#executeShellCommands(List)} runs all commands in one shell session.
+     */
+    public void testExecuteShellCommands() throws Exception {
+        injectShellBatchResponse("ls", 2, false);
+        replayMocks();
+        List<ShellCommandResult> results = mTestDevice.executeShellCommands(
+                Arrays.asList("ls", "id"));
+        EasyMock.verify(mMockIDevice);
+        assertEquals(2, results.size());
+        assertEquals("ls", results.get(0).getCommand());
+        assertEquals("output 0\r\n", results.get(0).getOutput());
+        assertEquals("output 1\r\n", results.get(1).getOutput());
+        assertTrue(results.get(1).isSuccess());
+    }
+
+    /**
+     * Test {@link TestDevice#executeShellCommands(List)} when the shell session is lost part way
+     * through.
+     * <p/>
+     * Verify that only the commands that did not complete are run again.
+     */
+    public void testExecuteShellCommands_partialRetry() throws Exception {
+        injectShellBatchResponse("a", 1, true);
+        injectShellBatchResponse("b", 2, false);
+        replayMocks();
+        List<ShellCommandResult> results = mTestDevice.executeShellCommands(
+                Arrays.asList("a", "b", "c"));
+        EasyMock.verify(mMockIDevice);
+        assertEquals(3, results.size());
+        assertEquals("b", results.get(1).getCommand());
+        assertEquals("output 0\r\n", results.get(1).getOutput());
+        assertEquals("output 1\r\n", results.get(2).getOutput());
+    }
+
+    /**
+     * Helper method to build a response to a batch of shell commands.
+     *
+     * @param firstCommand the first command expected in the batch
+     * @param numComplete the number of commands to complete with an exit code of 0
+     * @param loseSession whether to lose the shell session after completing the commands
+     */
+    private void injectShellBatchResponse(String firstCommand, final int numComplete,
+            final boolean loseSession) throws Exception {
+        mMockIDevice.executeShellCommand(EasyMock.startsWith(firstCommand + "\n"),
+                EasyMock.<IShellOutputReceiver>anyObject(), EasyMock.anyLong(),
+                EasyMock.<TimeUnit>anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                String script = (String)EasyMock.getCurrentArguments()[0];
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver)EasyMock.getCurrentArguments()[1];
+                // echo the marker lines of the script, with the exit code filled in
+                Matcher markerMatcher = Pattern.compile("^(\\S+ \\d+) \\$\\?\"$",
+                        Pattern.MULTILINE).matcher(script);
+                StringBuilder output = new StringBuilder();
+                for (int i = 0; i < numComplete && markerMatcher.find(); i++) {
+                    output.append(String.format("output %d\r\n\r\n%s 0\r\n", i,
+                            markerMatcher.group(1)));
+                }
+                byte[] data = output.toString().getBytes();
+                receiver.addOutput(data, 0, data.length);
+                if (loseSession) {
+                    throw new IOException();
+                }
+                return null;
+            }
+        });
+    }
+
     /** Set expectations for a successful recovery operation
      */
     private void assertRecoverySuccess() throws DeviceNotAvailableException, IOException,
@@ -974,6 +1048,130 @@ public class TestDeviceTest extends TestCase {
         assertEquals(0, actualPkgs.size());
     }
 
+    /**
+     * Test that the packages from a single 'dumpsys package p' are cached, and used to answer
+     * later package queries.
+     */
+    public void testGetUninstallablePackageNames_cached() throws Exception {
+        injectDumpsysPackageResponse("dumpsys package p", getDumpsysPackageOutput());
+        replayMocks();
+        Set<String> pkgs = mTestDevice.getUninstallablePackageNames();
+        assertEquals(1, pkgs.size());
+        assertTrue(pkgs.contains("com.foo"));
+        assertEquals(pkgs, mTestDevice.getUninstallablePackageNames());
+        assertEquals(2, mTestDevice.getInstalledPackageNames().size());
+        assertTrue(mTestDevice.getAppPackageInfo("com.android.system").isSystemApp());
+        assertNull(mTestDevice.getAppPackageInfo("com.missing"));
+        verifyMocks();
+        assertEquals(1, mTestDevice.getPackageInfoCache().getMissCount());
+        assertEquals(4, mTestDevice.getPackageInfoCache().getHitCount());
+    }
+
+    /**
+     * Test that a single package is queried on its own when the cache does not hold it, and that
+     * a successful uninstall is applied to the cache.
+     */
+    public void testGetAppPackageInfo_targeted() throws Exception {
+        injectDumpsysPackageResponse("dumpsys package com.foo", ArrayUtil.join("\r\n",
+                "Packages:", "Package [com.foo] (462f6b38):", "versionName=1.0",
+                "pkgFlags=0x0\r\n"));
+        EasyMock.expect(mMockIDevice.uninstallPackage("com.foo")).andReturn(null);
+        injectDumpsysPackageResponse("dumpsys package com.foo", "");
+        replayMocks();
+        assertEquals("1.0", mTestDevice.getAppPackageInfo("com.foo").getVersionName());
+        assertEquals("1.0", mTestDevice.getAppPackageInfo("com.foo").getVersionName());
+        assertNull(mTestDevice.uninstallPackage("com.foo"));
+        assertNull(mTestDevice.getAppPackageInfo("com.foo"));
+        verifyMocks();
+        assertEquals(2, mTestDevice.getPackageInfoCache().getMissCount());
+        assertEquals(1, mTestDevice.getPackageInfoCache().getHitCount());
+    }
+
+    /**
+     * Test that installing a package, or a shell command that changes packages, clears the cache.
+     */
+    public void testInstallPackage_invalidatesCache() throws Exception {
+        injectDumpsysPackageResponse("dumpsys package p", getDumpsysPackageOutput());
+        EasyMock.expect(mMockIDevice.installPackage(EasyMock.contains("foo.apk"),
+                EasyMock.eq(true))).andReturn(null);
+        injectDumpsysPackageResponse("dumpsys package p", getDumpsysPackageOutput());
+        injectShellResponse("pm disable com.foo", "");
+        injectDumpsysPackageResponse("dumpsys package p", getDumpsysPackageOutput());
+        replayMocks();
+        mTestDevice.getUninstallablePackageNames();
+        assertNull(mTestDevice.installPackage(new File("foo.apk"), true));
+        mTestDevice.getUninstallablePackageNames();
+        mTestDevice.executeShellCommand("pm disable com.foo");
+        mTestDevice.getUninstallablePackageNames();
+        verifyMocks();
+    }
+
+    /**
+     * Test that a long running action, such as an install, does not count towards the latency
+     * that shell command timeouts are based on, while the short shell commands that follow do.
+     */
+    public void testGetShellTimeout_longAction() throws Exception {
+        EasyMock.expect(mMockIDevice.installPackage(EasyMock.contains("foo.apk"),
+                EasyMock.eq(true))).andAnswer(new IAnswer<String>() {
+                    @Override
+                    public String answer() throws Throwable {
+                        Thread.sleep(200);
+                        return null;
+                    }
+                });
+        for (int i = 0; i < DeviceHealth.MIN_SAMPLES; i++) {
+            injectShellResponse("ls", "");
+        }
+        replayMocks();
+        assertNull(mTestDevice.installPackage(new File("foo.apk"), true));
+        for (int i = 0; i < DeviceHealth.MIN_SAMPLES; i++) {
+            mTestDevice.executeShellCommand("ls");
+        }
+        verifyMocks();
+        assertEquals(DeviceHealth.MIN_SAMPLES + 1, mTestDevice.getHealth().getNumSamples());
+        assertTrue(mTestDevice.getHealth().getAverageLatency() < 10);
+        assertEquals(100, mTestDevice.getShellTimeout());
+    }
+
+    /**
+     * Test that packages are not cached when the cache is disabled.
+     */
+    public void testGetUninstallablePackageNames_cacheDisabled() throws Exception {
+        mTestDevice.getOptions().setCachePackageInfo(false);
+        injectDumpsysPackageResponse("dumpsys package p", getDumpsysPackageOutput());
+        injectDumpsysPackageResponse("dumpsys package p", getDumpsysPackageOutput());
+        replayMocks();
+        mTestDevice.getUninstallablePackageNames();
+        mTestDevice.getUninstallablePackageNames();
+        verifyMocks();
+    }
+
+    private String getDumpsysPackageOutput() {
+        return ArrayUtil.join("\r\n", "Packages:",
+                "Package [com.android.system] (462f6b38):", "pkgFlags=0x1",
+                "Package [com.foo] (462f6b39):", "pkgFlags=0x0\r\n");
+    }
+
+    /**
+     * Helper method to build a response to a 'dumpsys package' command, which is run without an
+     * explicit timeout.
+     */
+    private void injectDumpsysPackageResponse(final String expectedCommand, final String response)
+            throws Exception {
+        mMockIDevice.executeShellCommand(EasyMock.eq(expectedCommand),
+                EasyMock.<IShellOutputReceiver>anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                IShellOutputReceiver receiver =
+                    (IShellOutputReceiver)EasyMock.getCurrentArguments()[1];
+                byte[] inputData = response.getBytes();
+                receiver.addOutput(inputData, 0, inputData.length);
+                return null;
+            }
+        });
+    }
+
     /**
      * Unit test to make sure that the simple convenience constructor for
      * {@link ITestDevice#MountPointInfo} works as expected.
@@ -17,6 +17,7 @@
 package com.android.tradefed.device;
 
 import com.android.tradefed.device.TopHelper.TopStats;
+import com.android.tradefed.device.TopHelper.TopStatsSummary;
 
 import junit.framework.TestCase;
 
@@ -116,4 +117,33 @@ public class TopHelperTest extends TestCase {
         assertNull(TopHelper.getIowAverage(stats.subList(3, 3)));
         assertNull(TopHelper.getIrqAverage(stats.subList(3, 3)));
     }
+
+    /**
+     * Test that the summary covers every output when only the most recent outputs are kept.
+     */
+    public void testTopParser_summary() {
+        final String lines = (
+                "User 15%, System 11%, IOW 7%, IRQ 3%\r\n" +
+                " 1388  1388  0  11% R   1160K    576K  fg shell    top             top\r\n" +
+                "User 16%, System 12%, IOW 8%, IRQ 4%\r\n" +
+                "User 17%, System 13%, IOW 9%, IRQ 5%\r\n");
+
+        mTop.setMaxSamples(2);
+        mTop.getReceiver().processNewLines(lines.split("\r\n"));
+
+        List<TopStats> stats = mTop.getTopStats();
+        assertEquals(2, stats.size());
+        assertEquals(16.0, stats.get(0).mUserPercent, 0.0001);
+        assertEquals(17.0, stats.get(1).mUserPercent, 0.0001);
+
+        TopStatsSummary summary = mTop.getTopStatsSummary();
+        assertEquals(3, summary.getTotalPercent().size());
+        assertEquals(40.0, summary.getTotalPercent().mean(), 0.001);
+        assertEquals(16.0, summary.getUserPercent().mean(), 0.001);
+        assertEquals(12.0, summary.getSystemPercent().mean(), 0.001);
+        assertEquals(8.0, summary.getIowPercent().mean(), 0.001);
+        assertEquals(4.0, summary.getIrqPercent().mean(), 0.001);
+        assertEquals(15.0, summary.getUserPercent().min(), 0.001);
+        assertEquals(17.0, summary.getUserPercent().max(), 0.001);
+    }
 }
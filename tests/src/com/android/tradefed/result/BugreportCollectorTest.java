@@ -28,11 +28,13 @@ import com.android.tradefed.result.BugreportCollector.SubPredicate;
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 
 import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class BugreportCollectorTest extends TestCase {
     private BugreportCollector mCollector = null;
@@ -173,6 +175,44 @@ public class BugreportCollectorTest extends TestCase {
         verifyMocks();
     }
 
+    /**
+     * Test that bugreports captured asynchronously are forwarded before the test run ends.
+     */
+    @SuppressWarnings("unchecked")
+    public void testTestFailed_async() throws Exception {
+        Predicate pred = new Predicate(Relation.AFTER, Freq.EACH, Noun.FAILED_TESTCASE);
+        mCollector.addPredicate(pred);
+        mCollector.setAsynchronous(true);
+        mMockDevice.waitForDeviceOnline(EasyMock.anyLong());
+        final AtomicBoolean logged = new AtomicBoolean(false);
+        final TestIdentifier test = new TestIdentifier("FooTest", "testName1");
+        mMockListener.testRunStarted("runName1", 1);
+        mMockListener.testStarted(test);
+        mMockListener.testFailed(TestFailure.FAILURE, test, STACK_TRACE);
+        mMockListener.testEnded(EasyMock.eq(test), (Map<String, String>)EasyMock.anyObject());
+        mMockListener.testLog(EasyMock.contains("bug-FAILED-FooTest__testName1."),
+                EasyMock.eq(LogDataType.BUGREPORT), EasyMock.eq(mBugreportISS));
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                logged.set(true);
+                return null;
+            }
+        });
+        mMockListener.testRunEnded(EasyMock.anyLong(),
+                (Map<String, String>)EasyMock.anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                assertTrue("bugreport not forwarded before run ended", logged.get());
+                return null;
+            }
+        });
+        replayMocks();
+        injectTestRun("runName1", "testName1", "value", true /*failed*/);
+        verifyMocks();
+    }
+
     public void testTestEnded() throws Exception {
         Predicate pred = new Predicate(Relation.AFTER, Freq.EACH, Noun.TESTCASE);
         mCollector.addPredicate(pred);
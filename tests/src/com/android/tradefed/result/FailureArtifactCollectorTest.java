@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.result;
+
+import com.android.ddmlib.testrunner.ITestRunListener.TestFailure;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.StreamUtil;
+
+import com.google.common.util.concurrent.SettableFuture;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * Unit tests for {@link FailureArtifactCollector}
+ */
+public class FailureArtifactCollectorTest extends TestCase {
+
+    private static final TestIdentifier TEST1 = new TestIdentifier("Foo", "test1");
+    private static final TestIdentifier TEST2 = new TestIdentifier("Foo", "test2");
+    private static final Map<String, String> METRICS = Collections.emptyMap();
+
+    private ITestInvocationListener mMockListener;
+    private FailureArtifactCollector mCollector;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mMockListener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        mCollector = new FailureArtifactCollector(mMockListener);
+    }
+
+    /**
+     * Test that artifacts that are ready when the test ends are forwarded before its end, in the
+     * order they were added.
+     */
+    public void testForward_ready() {
+        InputStreamSource first = new ByteArrayInputStreamSource("first".getBytes());
+        InputStreamSource second = new ByteArrayInputStreamSource("second".getBytes());
+        SettableFuture<InputStreamSource> firstFuture = SettableFuture.create();
+        SettableFuture<InputStreamSource> secondFuture = SettableFuture.create();
+        SettableFuture<InputStreamSource> failedFuture = SettableFuture.create();
+        mMockListener.testStarted(TEST1);
+        mMockListener.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        mMockListener.testLog("first", LogDataType.TEXT, first);
+        mMockListener.testLog("second", LogDataType.PNG, second);
+        mMockListener.testEnded(TEST1, METRICS);
+        EasyMock.replay(mMockListener);
+
+        mCollector.testStarted(TEST1);
+        mCollector.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        mCollector.add("first", LogDataType.TEXT, firstFuture);
+        // an artifact that could not be captured is skipped
+        mCollector.add("failed", LogDataType.TEXT, failedFuture);
+        mCollector.add("second", LogDataType.PNG, secondFuture);
+        secondFuture.set(second);
+        failedFuture.setException(new RuntimeException());
+        firstFuture.set(first);
+        mCollector.testEnded(TEST1, METRICS);
+        EasyMock.verify(mMockListener);
+        assertTrue(mCollector.isIdle());
+    }
+
+    /**
+     * Test that an artifact that completes after the next test has started is still forwarded
+     * before the end of the test it was captured for, and that the later results are held back
+     * until then.
+     */
+    public void testForward_lateArtifact() throws IOException {
+        SettableFuture<InputStreamSource> future = SettableFuture.create();
+        InputStreamSource screenshot = new ByteArrayInputStreamSource("png".getBytes());
+        InputStreamSource log = new ByteArrayInputStreamSource("log".getBytes());
+        mMockListener.testStarted(TEST1);
+        mMockListener.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        EasyMock.replay(mMockListener);
+
+        mCollector.testStarted(TEST1);
+        mCollector.testFailed(TestFailure.FAILURE, TEST1, "trace");
+        mCollector.add("screenshot", LogDataType.PNG, future);
+        mCollector.testEnded(TEST1, METRICS);
+        mCollector.testStarted(TEST2);
+        // the caller cancels the log as soon as testLog returns
+        mCollector.testLog("log", LogDataType.TEXT, log);
+        log.cancel();
+        EasyMock.verify(mMockListener);
+        assertFalse(mCollector.isIdle());
+
+        EasyMock.reset(mMockListener);
+        mMockListener.testLog("screenshot", LogDataType.PNG, screenshot);
+        mMockListener.testEnded(TEST1, METRICS);
+        mMockListener.testStarted(TEST2);
+        mMockListener.testLog(EasyMock.eq("log"), EasyMock.eq(LogDataType.TEXT),
+                EasyMock.<InputStreamSource>notNull());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                InputStreamSource source = (InputStreamSource)EasyMock.getCurrentArguments()[2];
+                assertEquals("log", StreamUtil.getStringFromSource(source));
+                return null;
+            }
+        });
+        mMockListener.testEnded(TEST2, METRICS);
+        EasyMock.replay(mMockListener);
+        future.set(screenshot);
+        mCollector.testEnded(TEST2, METRICS);
+        EasyMock.verify(mMockListener);
+        assertTrue(mCollector.isIdle());
+    }
+
+    /**
+     * Test that artifacts captured in the background are all forwarded before the run ends.
+     */
+    public void testForward_runEnded() {
+        final InputStreamSource data = new ByteArrayInputStreamSource("data".getBytes());
+        mMockListener.testStarted(TEST1);
+        mMockListener.testLog("captured", LogDataType.BUGREPORT, data);
+        mMockListener.testRunEnded(0, METRICS);
+        EasyMock.replay(mMockListener);
+        mCollector.testStarted(TEST1);
+        mCollector.submit("captured", LogDataType.BUGREPORT, new Callable<InputStreamSource>() {
+            @Override
+            public InputStreamSource call() throws Exception {
+                Thread.sleep(50);
+                return data;
+            }
+        });
+        // nothing to log
+        mCollector.submit("empty", LogDataType.BUGREPORT, new Callable<InputStreamSource>() {
+            @Override
+            public InputStreamSource call() {
+                return null;
+            }
+        });
+        mCollector.add("ignored", LogDataType.BUGREPORT, null);
+        // the test never ended
+        mCollector.testRunEnded(0, METRICS);
+        EasyMock.verify(mMockListener);
+        assertTrue(mCollector.isIdle());
+    }
+}
@@ -17,23 +17,30 @@
 package com.android.tradefed.targetprep;
 
 import com.android.ddmlib.FileListingService;
+import com.android.ddmlib.IShellOutputReceiver;
 import com.android.tradefed.build.DeviceBuildInfo;
 import com.android.tradefed.build.IDeviceBuildInfo;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.ITestDevice.RecoveryMode;
 import com.android.tradefed.device.MockFileUtil;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.util.Arrays;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 public class DefaultTestsZipInstallerTest extends TestCase {
     private static final String SKIP_THIS = "skipThis";
@@ -123,6 +130,43 @@ public class DefaultTestsZipInstallerTest extends TestCase {
      * Exercise the core logic on a successful scenario.
      */
     public void testPushTestsZipOntoData() throws Exception {
+        // expect initial android stop
+        EasyMock.expect(mMockDevice.getSerialNumber()).andStubReturn("serial_number_stub");
+        EasyMock.expect(mMockDevice.getRecoveryMode()).andReturn(RecoveryMode.AVAILABLE);
+        mMockDevice.setRecoveryMode(RecoveryMode.ONLINE);
+        EasyMock.expect(mMockDevice.executeShellCommand("stop")).andReturn("");
+        EasyMock.expect(mMockDevice.executeShellCommand("stop installd")).andReturn("");
+
+        // turtle!  (to make sure filesystem is writable)
+        EasyMock.expect(mMockDevice.pushString((String) EasyMock.anyObject(),
+                (String) EasyMock.anyObject())).andReturn(true);
+
+        // expect a single wipe, that leaves only $SKIP_THIS
+        expectBulkWipe(".", "..", SKIP_THIS);
+
+        mMockDevice.setRecoveryMode(RecoveryMode.AVAILABLE);
+
+        EasyMock.expect(mMockDevice.syncFiles((File) EasyMock.anyObject(),
+                EasyMock.contains(FileListingService.DIRECTORY_DATA)))
+                .andReturn(Boolean.TRUE);
+
+        EasyMock.expect(
+                mMockDevice.executeShellCommand(EasyMock.startsWith("chown system.system "
+                        + SOME_PATH_1.getPath()))).andReturn("");
+        EasyMock.expect(
+                mMockDevice.executeShellCommand(EasyMock.startsWith("chown system.system "
+                        + SOME_PATH_2.getPath()))).andReturn("");
+
+        EasyMock.replay(mMockDevice);
+        mZipInstaller.pushTestsZipOntoData(mMockDevice, mDeviceBuild);
+        EasyMock.verify(mMockDevice);
+    }
+
+    /**
+     * Test that the remaining entries are deleted one at a time if the bulk wipe fails to delete
+     * them.
+     */
+    public void testPushTestsZipOntoData_fallback() throws Exception {
         // mock a filesystem with these contents:
         // /data/app
         // /data/$SKIP_THIS
@@ -140,6 +184,7 @@ public class DefaultTestsZipInstallerTest extends TestCase {
         EasyMock.expect(mMockDevice.pushString((String) EasyMock.anyObject(),
                 (String) EasyMock.anyObject())).andReturn(true);
 
+        expectBulkWipe(".", "..", "app", SKIP_THIS);
         // expect 'rm app' but not 'rm $SKIP_THIS'
         EasyMock.expect(mMockDevice.doesFileExist("data/app")).andReturn(false);
         EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.contains("rm -r data/app")))
@@ -184,6 +229,7 @@ public class DefaultTestsZipInstallerTest extends TestCase {
         EasyMock.expect(mMockDevice.pushString((String) EasyMock.anyObject(),
                 (String) EasyMock.anyObject())).andReturn(true);
 
+        expectBulkWipe("app", SKIP_THIS);
         // expect 'rm app' but not 'rm $SKIP_THIS'
         EasyMock.expect(mMockDevice.doesFileExist("data/app")).andStubReturn(true);
         EasyMock.expect(mMockDevice.executeShellCommand(EasyMock.contains("rm -r data/app")))
@@ -199,4 +245,75 @@ public class DefaultTestsZipInstallerTest extends TestCase {
         }
         EasyMock.verify(mMockDevice);
     }
+
+    /**
+     * Test parsing the free space of /data from both formats of df output.
+     */
+    public void testParseFreeSpace() {
+        assertEquals(Long.valueOf(15607584), DefaultTestsZipInstaller.parseFreeSpace(
+                "/data: 15659168K total, 51584K used, 15607584K available (block size 32768)"));
+        assertEquals(Long.valueOf(2 * 1024 * 1024), DefaultTestsZipInstaller.parseFreeSpace(
+                "Filesystem             Size   Used   Free   Blksize\r\n" +
+                "/data                    3G   790M     2G   4096\r\n"));
+        assertNull(DefaultTestsZipInstaller.parseFreeSpace("df: /data: not found"));
+    }
+
+    /**
+     * Test that only the DATA entries of a tests zip are extracted.
+     */
+    public void testExtractTestsZipData() throws Exception {
+        File zip = FileUtil.createTempFile("tests", ".zip");
+        File stagingDir = null;
+        try {
+            ZipOutputStream zipStream = new ZipOutputStream(new FileOutputStream(zip));
+            try {
+                for (String name : new String[] {"DATA/app/", "DATA/app/Test.apk",
+                        "HOST/test.jar"}) {
+                    zipStream.putNextEntry(new ZipEntry(name));
+                    zipStream.write(name.getBytes());
+                    zipStream.closeEntry();
+                }
+            } finally {
+                zipStream.close();
+            }
+
+            stagingDir = mZipInstaller.extractTestsZipData(zip);
+            assertEquals("DATA/app/Test.apk",
+                    FileUtil.readStringFromFile(new File(stagingDir, "DATA/app/Test.apk")));
+            assertFalse(new File(stagingDir, "HOST").exists());
+        } finally {
+            FileUtil.deleteFile(zip);
+            if (stagingDir != null) {
+                FileUtil.recursiveDelete(stagingDir);
+            }
+        }
+    }
+
+    /**
+     * Expect the bulk wipe command, leaving the given entries in /data.
+     */
+    private void expectBulkWipe(String... remaining) throws Exception {
+        final StringBuilder output = new StringBuilder();
+        output.append("/data: 1000K total, 800K used, 200K available (block size 4096)\r\n");
+        output.append("==WIPE START==\r\n==WIPE END==\r\n");
+        output.append("/data: 1000K total, 100K used, 900K available (block size 4096)\r\n");
+        output.append("==REMAINING==\r\n");
+        for (String name : remaining) {
+            output.append(name).append("\r\n");
+        }
+        mMockDevice.executeShellCommand(EasyMock.contains("rm -r"),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.anyLong(),
+                EasyMock.eq(TimeUnit.MINUTES), EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver)EasyMock.getCurrentArguments()[1];
+                byte[] bytes = output.toString().getBytes();
+                receiver.addOutput(bytes, 0, bytes.length);
+                receiver.flush();
+                return null;
+            }
+        });
+    }
 }
@@ -20,8 +20,10 @@ import com.android.ddmlib.IDevice;
 import com.android.tradefed.build.DeviceBuildInfo;
 import com.android.tradefed.build.IBuildInfo;
 import com.android.tradefed.build.IDeviceBuildInfo;
+import com.android.tradefed.config.OptionSetter;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.device.ShellCommandResult;
 import com.android.tradefed.util.FileUtil;
 
 import junit.framework.TestCase;
@@ -30,6 +32,9 @@ import org.easymock.EasyMock;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 /**
  * Unit tests for {@link DeviceSetup}.
@@ -75,6 +80,30 @@ public class DeviceSetupTest extends TestCase {
         mDeviceSetup.setUp(mMockDevice, mMockBuildInfo);
     }
 
+    /**
+     * Test that {@link DeviceSetup#setUp(ITestDevice, IBuildInfo)} sets persistent properties
+     * with a single batch of shell commands.
+     */
+    public void testSetup_persistProps() throws Exception {
+        OptionSetter setter = new OptionSetter(mDeviceSetup);
+        setter.setOptionValue("setprop", "persist.a=1");
+        setter.setOptionValue("setprop", "persist.b=2");
+        setter.setOptionValue("disable-dialing", "false");
+        setter.setOptionValue("set-test-harness", "false");
+        setter.setOptionValue("audio-silent", "false");
+        List<String> expectedCommands = Arrays.asList("setprop persist.a 1",
+                "setprop persist.b 2");
+        EasyMock.expect(mMockDevice.enableAdbRoot()).andReturn(Boolean.TRUE);
+        EasyMock.expect(mMockDevice.executeShellCommands(expectedCommands)).andReturn(
+                Arrays.asList(new ShellCommandResult("setprop persist.a 1", "", 0),
+                new ShellCommandResult("setprop persist.b 2", "", 0)));
+        EasyMock.expect(mMockDevice.executeShellCommand("svc power stayon true")).andReturn("");
+        EasyMock.expect(mMockDevice.clearErrorDialogs()).andReturn(Boolean.TRUE);
+        EasyMock.replay(mMockDevice);
+        mDeviceSetup.setUp(mMockDevice, mMockBuildInfo);
+        EasyMock.verify(mMockDevice);
+    }
+
     /**
      * Set EasyMock expectations for a normal setup call
      */
@@ -86,6 +115,9 @@ public class DeviceSetupTest extends TestCase {
         // expect push of local.prop file to change system properties
         EasyMock.expect(mMockDevice.pushString((String)EasyMock.anyObject(),
                 EasyMock.contains("local.prop"))).andReturn(Boolean.TRUE);
+        // expect the permissions of local.prop to be set in a batch of shell commands
+        EasyMock.expect(mMockDevice.executeShellCommands(EasyMock.<List<String>>anyObject()))
+                .andReturn(new ArrayList<ShellCommandResult>());
         mMockDevice.reboot();
         // expect a bunch of shell commands - no need to verify which ones
         EasyMock.expect(mMockDevice.executeShellCommand((String)EasyMock.anyObject())).
@@ -24,6 +24,7 @@ import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.TestDeviceState;
 import com.android.tradefed.util.CommandResult;
 import com.android.tradefed.util.CommandStatus;
+import com.android.tradefed.util.FileUtil;
 import com.android.tradefed.util.IRunUtil;
 
 import junit.framework.TestCase;
@@ -189,6 +190,29 @@ public class SdkAvdPreparerTest extends TestCase {
         verifyMocks();
     }
 
+    /**
+     * Test that only the sdk home last used by a device is kept.
+     */
+    public void testDeleteStaleSdkHomes() throws Exception {
+        File parent = FileUtil.createTempDir("SDK_homes");
+        try {
+            File stale = new File(parent, "avd-00000001-emulator-5554");
+            File current = new File(parent, "avd-00000002-emulator-5554");
+            File otherDevice = new File(parent, "avd-00000001-emulator-5556");
+            File tmpHome = FileUtil.createTempDir("SDK_home", parent);
+            assertTrue(stale.mkdir());
+            assertTrue(current.mkdir());
+            assertTrue(otherDevice.mkdir());
+            SdkAvdPreparer.deleteStaleSdkHomes(parent, current, "emulator-5554");
+            assertFalse(stale.exists());
+            assertTrue(current.exists());
+            assertTrue(otherDevice.exists());
+            assertTrue(tmpHome.exists());
+        } finally {
+            FileUtil.recursiveDelete(parent);
+        }
+    }
+
     /**
      * Configure the mock objects to deliver given response for the 'android list targets --compact'
      * call
@@ -18,6 +18,9 @@ package com.android.tradefed.testtype;
 import com.android.ddmlib.Log;
 import com.android.ddmlib.testrunner.ITestRunListener;
 import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.result.CollectingTestListener;
+import com.android.tradefed.result.TestResult;
+import com.android.tradefed.result.TestRunResult;
 
 import junit.framework.TestCase;
 
@@ -28,6 +31,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Collections;
 import java.util.Map;
 import java.util.Vector;
 
@@ -254,4 +258,88 @@ public class GTestResultParserTest extends TestCase {
         resultParser.processNewLines(contents);
         EasyMock.verify(mockRunListener);
     }
+
+    /**
+     * Tests that the parser produces the same results when parsing the raw output stream in
+     * arbitrary chunks.
+     */
+    public void testParseByteStream() throws Exception {
+        StringBuilder output = new StringBuilder();
+        for (String line : readInFile(GTEST_OUTPUT_FILE_5)) {
+            output.append(line).append("\r\n");
+        }
+        byte[] data = output.toString().getBytes("UTF-8");
+        CollectingTestListener listener = new CollectingTestListener();
+        GTestResultParser resultParser = new GTestResultParser(TEST_MODULE_NAME, listener);
+        // use an odd chunk size to split lines
+        for (int i = 0; i < data.length; i += 7) {
+            resultParser.addOutput(data, i, Math.min(7, data.length - i));
+        }
+        resultParser.flush();
+        TestRunResult runResult = listener.getCurrentRunResults();
+        assertTrue(runResult.isRunComplete());
+        assertFalse(resultParser.isRunIncomplete());
+        assertEquals(13, runResult.getNumTests());
+        assertEquals(3, runResult.getNumFailedTests());
+        assertEquals(13, resultParser.getCompletedTests().size());
+    }
+
+    /**
+     * Tests that only the beginning and end of a large test output is kept.
+     */
+    public void testParseLargeTestOutput() throws Exception {
+        CollectingTestListener listener = new CollectingTestListener();
+        GTestResultParser resultParser = new GTestResultParser(TEST_MODULE_NAME,
+                Collections.<ITestRunListener>singletonList(listener), 200);
+        StringBuilder output = new StringBuilder();
+        output.append("[==========] Running 1 test from 1 test case.\n");
+        output.append("[ RUN      ] Foo.Bar\n");
+        output.append("first line\n");
+        for (int i = 0; i < 10000; i++) {
+            output.append("middle line ").append(i).append("\n");
+        }
+        output.append("last line\n");
+        output.append("[  FAILED  ] Foo.Bar (1 ms)\n");
+        output.append("[==========] 1 test from 1 test case ran. (1 ms total)\n");
+        byte[] data = output.toString().getBytes("UTF-8");
+        resultParser.addOutput(data, 0, data.length);
+        resultParser.flush();
+
+        TestResult result = listener.getCurrentRunResults().getTestResults().get(
+                new TestIdentifier("Foo", "Bar"));
+        assertEquals(TestResult.TestStatus.FAILURE, result.getStatus());
+        String trace = result.getStackTrace();
+        assertTrue(trace.startsWith("first line"));
+        assertTrue(trace.endsWith("last line"));
+        assertTrue(trace.contains("bytes of output truncated"));
+        assertTrue(trace.length() < 300);
+    }
+
+    /**
+     * Tests that a test which runs too long cancels the run and is reported as failed.
+     */
+    public void testTestTimeout() throws Exception {
+        CollectingTestListener listener = new CollectingTestListener();
+        GTestResultParser resultParser = new GTestResultParser(TEST_MODULE_NAME, listener);
+        resultParser.setTestTimeout(10);
+        resultParser.processNewLines(new String[] {
+                "[==========] Running 2 tests from 1 test case.",
+                "[ RUN      ] Foo.Pass",
+                "[       OK ] Foo.Pass (1 ms)",
+                "[ RUN      ] Foo.Hang"});
+        assertFalse(resultParser.isCancelled());
+        Thread.sleep(50);
+        assertTrue(resultParser.isCancelled());
+        assertTrue(resultParser.isTestTimedOut());
+        resultParser.flush();
+
+        assertTrue(resultParser.isRunIncomplete());
+        assertEquals(new TestIdentifier("Foo", "Hang"), resultParser.getIncompleteTest());
+        assertEquals(1, resultParser.getCompletedTests().size());
+        TestRunResult runResult = listener.getCurrentRunResults();
+        assertTrue(runResult.isRunFailure());
+        TestResult result = runResult.getTestResults().get(new TestIdentifier("Foo", "Hang"));
+        assertEquals(TestResult.TestStatus.ERROR, result.getStatus());
+        assertTrue(result.getStackTrace().startsWith("Test timed out after 10 ms."));
+    }
 }
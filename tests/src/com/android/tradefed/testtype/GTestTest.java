@@ -18,15 +18,21 @@ package com.android.tradefed.testtype;
 import com.android.ddmlib.FileListingService;
 import com.android.ddmlib.IShellOutputReceiver;
 import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.device.MockFileUtil;
+import com.android.tradefed.result.CollectingTestListener;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.TestResult.TestStatus;
+import com.android.tradefed.result.TestRunResult;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 
@@ -197,4 +203,138 @@ public class GTestTest extends TestCase {
         String filter = String.format("%s-*.%s", posFilter, negFilter);
         doTestFilter(filter);
     }
+
+    /**
+     * Test parsing the output of --gtest_list_tests.
+     */
+    public void testParseTestList() {
+        String output = "FooTest.\n" +
+                "  Bar\n" +
+                "  DISABLED_Baz\n" +
+                "MyParamSequence/MyParamTest.\n" +
+                "  ShouldPass/0  # GetParam() = 0\n" +
+                "DISABLED_Other.\n" +
+                "  Test\n";
+        List<TestIdentifier> tests = GTest.parseTestList(output, false);
+        assertEquals(2, tests.size());
+        assertEquals(new TestIdentifier("FooTest", "Bar"), tests.get(0));
+        assertEquals(new TestIdentifier("MyParamSequence/MyParamTest", "ShouldPass/0"),
+                tests.get(1));
+        assertEquals(4, GTest.parseTestList(output, true).size());
+    }
+
+    /**
+     * Test that test cases which are entirely remaining are rerun with a wildcard filter.
+     */
+    public void testGetRerunGTestFlags() {
+        List<TestIdentifier> allTests = GTest.parseTestList("A.\n  a\n  b\n  c\nB.\n  d\n",
+                false);
+        String flags = GTest.getRerunGTestFlags(allTests, allTests.subList(2, 4), false);
+        assertEquals("--gtest_print_time --gtest_filter=A.c:B.*", flags);
+    }
+
+    /**
+     * Test that the remaining tests are rerun after the gtest binary crashes.
+     */
+    public void testRun_rerunAfterCrash() throws DeviceNotAvailableException {
+        mGTest = new GTest();
+        mGTest.setDevice(mMockITestDevice);
+        MockFileUtil.setMockDirContents(mMockITestDevice, GTest.DEFAULT_NATIVETEST_PATH,
+                "test1");
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.contains("chmod")))
+                .andReturn("");
+        // first run crashes in A.b
+        mockShellOutput("test1 --gtest_print_time",
+                "[==========] Running 4 tests from 2 test cases.\n" +
+                "[ RUN      ] A.a\n" +
+                "[       OK ] A.a (1 ms)\n" +
+                "[ RUN      ] A.b\n" +
+                "Segmentation fault\n");
+        mockShellOutput("--gtest_list_tests", "A.\n  a\n  b\n  c\nB.\n  d\n");
+        mockShellOutput("--gtest_filter=A.c:B.*",
+                "[==========] Running 2 tests from 2 test cases.\n" +
+                "[ RUN      ] A.c\n" +
+                "[       OK ] A.c (1 ms)\n" +
+                "[ RUN      ] B.d\n" +
+                "[       OK ] B.d (1 ms)\n" +
+                "[==========] 2 tests from 2 test cases ran. (2 ms total)\n");
+        EasyMock.replay(mMockITestDevice);
+
+        CollectingTestListener listener = new CollectingTestListener();
+        mGTest.run(listener);
+        EasyMock.verify(mMockITestDevice);
+        TestRunResult runResult = listener.getCurrentRunResults();
+        assertEquals(4, runResult.getNumTests());
+        assertEquals(3, runResult.getNumPassedTests());
+        assertEquals(TestStatus.ERROR,
+                runResult.getTestResults().get(new TestIdentifier("A", "b")).getStatus());
+        assertTrue(runResult.isRunComplete());
+    }
+
+    /**
+     * Test that a gtest binary that times out is killed before the remaining tests are rerun.
+     */
+    public void testRun_rerunAfterTimeout() throws DeviceNotAvailableException {
+        mGTest = new GTest();
+        mGTest.setDevice(mMockITestDevice);
+        mGTest.setMaxTestCaseTimeMs(1);
+        MockFileUtil.setMockDirContents(mMockITestDevice, GTest.DEFAULT_NATIVETEST_PATH,
+                "test1");
+        EasyMock.expect(mMockITestDevice.executeShellCommand(EasyMock.contains("chmod")))
+                .andReturn("");
+        // first run hangs in A.a
+        mMockITestDevice.executeShellCommand(EasyMock.contains("test1 --gtest_print_time"),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.anyLong(),
+                (TimeUnit)EasyMock.anyObject(), EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver)EasyMock.getCurrentArguments()[1];
+                byte[] data = ("[==========] Running 2 tests from 1 test cases.\n" +
+                        "[ RUN      ] A.a\n").getBytes();
+                receiver.addOutput(data, 0, data.length);
+                Thread.sleep(10);
+                assertTrue(receiver.isCancelled());
+                return null;
+            }
+        });
+        EasyMock.expect(mMockITestDevice.executeShellCommand("kill -9 $(pidof test1)"))
+                .andReturn("");
+        mockShellOutput("--gtest_list_tests", "A.\n  a\n  b\n");
+        mockShellOutput("--gtest_filter=A.b",
+                "[==========] Running 1 tests from 1 test cases.\n" +
+                "[ RUN      ] A.b\n" +
+                "[       OK ] A.b (1 ms)\n" +
+                "[==========] 1 tests from 1 test cases ran. (1 ms total)\n");
+        EasyMock.replay(mMockITestDevice);
+
+        CollectingTestListener listener = new CollectingTestListener();
+        mGTest.run(listener);
+        EasyMock.verify(mMockITestDevice);
+        TestRunResult runResult = listener.getCurrentRunResults();
+        assertEquals(2, runResult.getNumTests());
+        assertEquals(1, runResult.getNumPassedTests());
+    }
+
+    /**
+     * Helper to mock a shell command that outputs the given text.
+     */
+    private void mockShellOutput(String cmdSubstring, final String output)
+            throws DeviceNotAvailableException {
+        mMockITestDevice.executeShellCommand(EasyMock.contains(cmdSubstring),
+                (IShellOutputReceiver)EasyMock.anyObject(), EasyMock.anyLong(),
+                (TimeUnit)EasyMock.anyObject(), EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver)EasyMock.getCurrentArguments()[1];
+                byte[] data = output.getBytes();
+                receiver.addOutput(data, 0, data.length);
+                receiver.flush();
+                return null;
+            }
+        });
+    }
 }
@@ -16,8 +16,13 @@
 package com.android.tradefed.testtype;
 
 import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.result.ByteArrayInputStreamSource;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.result.InputStreamSource;
+import com.android.tradefed.result.LogDataType;
+import com.android.tradefed.util.StreamUtil;
 
 import junit.framework.Test;
 import junit.framework.TestCase;
@@ -25,8 +30,12 @@ import junit.framework.TestResult;
 import junit.framework.TestSuite;
 
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 
+import java.util.Collections;
 import java.util.Map;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Unit tests for {@link HostTest}.
@@ -68,6 +77,49 @@ public class HostTestTest extends TestCase {
         }
     }
 
+    /** barrier that two tests must reach at the same time, to prove they run in parallel */
+    private static CyclicBarrier sBarrier;
+
+    public static class ParallelTestA extends TestCase {
+        public void testAwait() throws Exception {
+            sBarrier.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    public static class ParallelTestB extends TestCase {
+        public void testAwait() throws Exception {
+            sBarrier.await(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /** logs data, then cancels it as callers of testLog do */
+    public static class LoggingTest implements IRemoteTest {
+        @Override
+        public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
+            awaitBarrier();
+            listener.testRunStarted(LoggingTest.class.getName(), 0);
+            InputStreamSource log = new ByteArrayInputStreamSource("log".getBytes());
+            listener.testLog("log", LogDataType.TEXT, log);
+            log.cancel();
+            listener.testRunEnded(0, Collections.<String, String>emptyMap());
+        }
+    }
+
+    /** fails with the device becoming unavailable */
+    public static class DeviceNotAvailableTest implements IRemoteTest {
+        @Override
+        public void run(ITestInvocationListener listener) throws DeviceNotAvailableException {
+            awaitBarrier();
+            throw new DeviceNotAvailableException("device went away");
+        }
+    }
+
+    @RunSerially
+    public static class SerialTestCase extends TestCase {
+        public void testPass() {
+        }
+    }
+
     /** Non-public class; should fail to load. */
     private static class PrivateTest extends TestCase {
     }
@@ -87,6 +139,7 @@ public class HostTestTest extends TestCase {
         super.setUp();
         mHostTest = new HostTest();
         mListener = EasyMock.createMock(ITestInvocationListener.class);
+        sBarrier = new CyclicBarrier(2);
     }
 
     /**
@@ -236,4 +289,120 @@ public class HostTestTest extends TestCase {
             // expected
         }
     }
+
+    /**
+     * Test for {@link HostTest#run(TestResult)}, where multiple classes are run in parallel. The
+     * runs should be reported one at a time, in order.
+     */
+    public void testRun_parallel() throws Exception {
+        mListener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        mHostTest.setClassName(ParallelTestA.class.getName());
+        mHostTest.addClassName(ParallelTestB.class.getName());
+        mHostTest.addClassName(SerialTestCase.class.getName());
+        mHostTest.setMaxParallelClasses(2);
+        expectRun(ParallelTestA.class.getName(), "testAwait");
+        expectRun(ParallelTestB.class.getName(), "testAwait");
+        expectRun(SerialTestCase.class.getName(), "testPass");
+        EasyMock.replay(mListener);
+        mHostTest.run(mListener);
+        EasyMock.verify(mListener);
+    }
+
+    /**
+     * Test for {@link HostTest#run(TestResult)}, where a class annotated with {@link RunSerially}
+     * is run after the classes that can be run in parallel.
+     */
+    public void testRun_serialClassLast() throws Exception {
+        mListener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        mHostTest.setClassName(SerialTestCase.class.getName());
+        mHostTest.addClassName(ParallelTestA.class.getName());
+        mHostTest.addClassName(ParallelTestB.class.getName());
+        mHostTest.setMaxParallelClasses(3);
+        expectRun(ParallelTestA.class.getName(), "testAwait");
+        expectRun(ParallelTestB.class.getName(), "testAwait");
+        expectRun(SerialTestCase.class.getName(), "testPass");
+        EasyMock.replay(mListener);
+        mHostTest.run(mListener);
+        EasyMock.verify(mListener);
+    }
+
+    /**
+     * Test for {@link HostTest#run(TestResult)}, where a class run in parallel fails with
+     * {@link DeviceNotAvailableException}. The results of a later class, including logs that were
+     * cancelled by the caller, should still be reported before the exception is rethrown.
+     */
+    public void testRun_parallelDeviceNotAvailable() throws Exception {
+        mListener = EasyMock.createStrictMock(ITestInvocationListener.class);
+        mHostTest.setClassName(DeviceNotAvailableTest.class.getName());
+        mHostTest.addClassName(LoggingTest.class.getName());
+        mHostTest.addClassName(SerialTestCase.class.getName());
+        mHostTest.setMaxParallelClasses(2);
+        mListener.testRunStarted(LoggingTest.class.getName(), 0);
+        mListener.testLog(EasyMock.eq("log"), EasyMock.eq(LogDataType.TEXT),
+                (InputStreamSource)EasyMock.anyObject());
+        EasyMock.expectLastCall().andAnswer(new IAnswer<Object>() {
+            @Override
+            public Object answer() throws Throwable {
+                InputStreamSource source = (InputStreamSource)EasyMock.getCurrentArguments()[2];
+                assertEquals("log", StreamUtil.getStringFromSource(source));
+                return null;
+            }
+        });
+        mListener.testRunEnded(EasyMock.anyLong(), (Map<String, String>)EasyMock.anyObject());
+        EasyMock.replay(mListener);
+        try {
+            mHostTest.run(mListener);
+            fail("DeviceNotAvailableException not thrown");
+        } catch (DeviceNotAvailableException e) {
+            // expected
+        }
+        EasyMock.verify(mListener);
+    }
+
+    /**
+     * Test for {@link HostTest#run(TestResult)}, where a method is set for more than one class.
+     */
+    public void testRun_methodMultipleClasses() throws Exception {
+        mHostTest.setClassName(SuccessTestCase.class.getName());
+        mHostTest.addClassName(SerialTestCase.class.getName());
+        mHostTest.setMethodName("testPass");
+        try {
+            mHostTest.run(mListener);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test for {@link HostTest#run(TestResult)}, for a package that contains no tests.
+     */
+    public void testRun_emptyPackage() throws Exception {
+        mHostTest.addPackageName("com.android.tradefed.doesnotexist");
+        try {
+            mHostTest.run(mListener);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Wait until the other test running in parallel reaches the barrier.
+     */
+    private static void awaitBarrier() {
+        try {
+            sBarrier.await(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void expectRun(String className, String methodName) {
+        TestIdentifier test = new TestIdentifier(className, methodName);
+        mListener.testRunStarted(EasyMock.eq(className), EasyMock.eq(1));
+        mListener.testStarted(EasyMock.eq(test));
+        mListener.testEnded(EasyMock.eq(test), (Map<String, String>)EasyMock.anyObject());
+        mListener.testRunEnded(EasyMock.anyLong(), (Map<String, String>)EasyMock.anyObject());
+    }
 }
@@ -0,0 +1,282 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.testrunner.IRemoteAndroidTestRunner;
+import com.android.ddmlib.testrunner.ITestRunListener;
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.config.ConfigurationException;
+import com.android.tradefed.device.DeviceNotAvailableException;
+import com.android.tradefed.device.ITestDevice;
+import com.android.tradefed.result.ITestInvocationListener;
+
+import junit.framework.TestCase;
+
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Unit tests for {@link InstrumentationBatchTest}.
+ */
+public class InstrumentationBatchTestTest extends TestCase {
+
+    private static final String TEST_PACKAGE_VALUE = "com.foo";
+
+    private ITestDevice mMockTestDevice;
+    private ITestInvocationListener mMockListener;
+
+    /** the tests written to each pushed test file */
+    private List<Collection<TestIdentifier>> mBatches;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mBatches = new ArrayList<>();
+
+        IDevice mockIDevice = EasyMock.createMock(IDevice.class);
+        mMockTestDevice = EasyMock.createMock(ITestDevice.class);
+        mMockListener = EasyMock.createNiceMock(ITestInvocationListener.class);
+
+        EasyMock.expect(mMockTestDevice.getIDevice()).andStubReturn(mockIDevice);
+        EasyMock.expect(mMockTestDevice.getSerialNumber()).andStubReturn("serial");
+    }
+
+    /**
+     * Test that a crashing test is isolated and run on its own, and that the remaining tests are
+     * run in a batch again afterwards.
+     */
+    @SuppressWarnings("unchecked")
+    public void testRun_isolatesCrashingTest() throws DeviceNotAvailableException,
+            ConfigurationException {
+        final TestIdentifier test1 = new TestIdentifier("ClassFoo1", "methodBar1");
+        final TestIdentifier test2 = new TestIdentifier("ClassFoo2", "methodBar2");
+        final TestIdentifier test3 = new TestIdentifier("ClassFoo3", "methodBar3");
+        final TestIdentifier test4 = new TestIdentifier("ClassFoo4", "methodBar4");
+        final List<TestIdentifier> testsList = new ArrayList<>();
+        testsList.add(test1);
+        testsList.add(test2);
+        testsList.add(test3);
+        testsList.add(test4);
+
+        // first batch: test1 completes, and the process crashes while running test2
+        setRunTestExpectations(new RunTestAnswer() {
+            @Override
+            public Boolean answer(IRemoteAndroidTestRunner runner, ITestRunListener listener) {
+                listener.testRunStarted(TEST_PACKAGE_VALUE, 4);
+                listener.testStarted(test1);
+                listener.testEnded(test1, Collections.EMPTY_MAP);
+                listener.testStarted(test2);
+                listener.testRunFailed("crash");
+                return true;
+            }
+        });
+        // test2 is isolated, and run on its own
+        setSerialRunExpectations(test2);
+        // remaining tests are run in a batch again
+        setRunTestExpectations(new RunTestAnswer() {
+            @Override
+            public Boolean answer(IRemoteAndroidTestRunner runner, ITestRunListener listener) {
+                listener.testRunStarted(TEST_PACKAGE_VALUE, 2);
+                listener.testStarted(test3);
+                listener.testEnded(test3, Collections.EMPTY_MAP);
+                listener.testStarted(test4);
+                listener.testEnded(test4, Collections.EMPTY_MAP);
+                listener.testRunEnded(1, Collections.EMPTY_MAP);
+                return true;
+            }
+        });
+
+        EasyMock.replay(mMockListener, mMockTestDevice);
+        createBatchTest(testsList, 4, 10).run(mMockListener);
+        EasyMock.verify(mMockTestDevice);
+        assertTrue(testsList.isEmpty());
+        assertEquals(2, mBatches.size());
+        assertEquals(Arrays.asList(test1, test2, test3, test4), mBatches.get(0));
+        assertEquals(Arrays.asList(test3, test4), mBatches.get(1));
+    }
+
+    /**
+     * Test that batches stop being run once the budget is exhausted.
+     */
+    @SuppressWarnings("unchecked")
+    public void testRun_budgetExhausted() throws DeviceNotAvailableException,
+            ConfigurationException {
+        final TestIdentifier test1 = new TestIdentifier("ClassFoo1", "methodBar1");
+        final TestIdentifier test2 = new TestIdentifier("ClassFoo2", "methodBar2");
+        final TestIdentifier test3 = new TestIdentifier("ClassFoo3", "methodBar3");
+        final List<TestIdentifier> testsList = new ArrayList<>();
+        testsList.add(test1);
+        testsList.add(test2);
+        testsList.add(test3);
+
+        // each batch of at most 2 tests completes
+        setRunTestExpectations(new RunTestAnswer() {
+            @Override
+            public Boolean answer(IRemoteAndroidTestRunner runner, ITestRunListener listener) {
+                listener.testRunStarted(TEST_PACKAGE_VALUE, 2);
+                listener.testStarted(test1);
+                listener.testEnded(test1, Collections.EMPTY_MAP);
+                listener.testStarted(test2);
+                listener.testEnded(test2, Collections.EMPTY_MAP);
+                listener.testRunEnded(1, Collections.EMPTY_MAP);
+                return true;
+            }
+        });
+
+        EasyMock.replay(mMockListener, mMockTestDevice);
+        createBatchTest(testsList, 2, 1).run(mMockListener);
+        EasyMock.verify(mMockTestDevice);
+        assertEquals(1, mBatches.size());
+        assertEquals(Arrays.asList(test3), testsList);
+    }
+
+    /**
+     * Test that the remaining tests are run serially if the test file cannot be pushed.
+     */
+    public void testRun_pushFailed() throws DeviceNotAvailableException, ConfigurationException {
+        final TestIdentifier test1 = new TestIdentifier("ClassFoo1", "methodBar1");
+        final TestIdentifier test2 = new TestIdentifier("ClassFoo2", "methodBar2");
+        final List<TestIdentifier> testsList = new ArrayList<>();
+        testsList.add(test1);
+        testsList.add(test2);
+
+        setSerialRunExpectations(test1);
+        setSerialRunExpectations(test2);
+
+        final InstrumentationTest instrumentationTest = createInstrumentationTest();
+        InstrumentationBatchTest batchTest = new InstrumentationBatchTest(instrumentationTest,
+                testsList, 4, 10) {
+            @Override
+            InstrumentationTest createInstrumentationTest() {
+                return instrumentationTest;
+            }
+            @Override
+            boolean pushFileToTestDevice(File file, String destinationPath) {
+                return false;
+            }
+        };
+
+        EasyMock.replay(mMockListener, mMockTestDevice);
+        batchTest.run(mMockListener);
+        EasyMock.verify(mMockTestDevice);
+        assertTrue(testsList.isEmpty());
+        assertNull(instrumentationTest.getTestFilePathOnDevice());
+    }
+
+    /**
+     * Expect a run of a single test, that completes.
+     */
+    @SuppressWarnings("unchecked")
+    private void setSerialRunExpectations(final TestIdentifier test)
+            throws DeviceNotAvailableException {
+        setRunTestExpectations(new RunTestAnswer() {
+            @Override
+            public Boolean answer(IRemoteAndroidTestRunner runner, ITestRunListener listener) {
+                listener.testRunStarted(TEST_PACKAGE_VALUE, 1);
+                listener.testStarted(test);
+                listener.testEnded(test, Collections.EMPTY_MAP);
+                listener.testRunEnded(1, Collections.EMPTY_MAP);
+                return true;
+            }
+        });
+    }
+
+    private InstrumentationTest createInstrumentationTest() {
+        InstrumentationTest instrumentationTest = new InstrumentationTest();
+        instrumentationTest.setDevice(mMockTestDevice);
+        instrumentationTest.setPackageName(TEST_PACKAGE_VALUE);
+        return instrumentationTest;
+    }
+
+    /**
+     * Create a {@link InstrumentationBatchTest} that records the content of each test file
+     * instead of pushing it.
+     */
+    private InstrumentationBatchTest createBatchTest(List<TestIdentifier> testsList,
+            int maxBatchSize, int maxBatches) throws ConfigurationException {
+        final InstrumentationTest instrumentationTest = createInstrumentationTest();
+        return new InstrumentationBatchTest(instrumentationTest, testsList, maxBatchSize,
+                maxBatches) {
+            @Override
+            InstrumentationTest createInstrumentationTest() {
+                return instrumentationTest;
+            }
+            @Override
+            boolean pushFileToTestDevice(File file, String destinationPath) {
+                mBatches.add(readTestFile(file));
+                return true;
+            }
+            @Override
+            void deleteTestFileFromDevice(String pathToFile) {
+                // ignore
+            }
+        };
+    }
+
+    /**
+     * Read the tests from a test file.
+     */
+    private Collection<TestIdentifier> readTestFile(File testFile) {
+        List<TestIdentifier> tests = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(testFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] str = line.split("#");
+                tests.add(new TestIdentifier(str[0], str[1]));
+            }
+        } catch (IOException e) {
+            // fail if the file is corrupt in any way
+            fail("failed reading test file");
+        }
+        return tests;
+    }
+
+    /**
+     * Helper class for providing an EasyMock {@link IAnswer} to a
+     * {@link ITestDevice#runInstrumentationTests(IRemoteAndroidTestRunner, Collection)} call.
+     */
+    private static abstract class RunTestAnswer implements IAnswer<Boolean> {
+        @Override
+        public Boolean answer() throws Throwable {
+            Object[] args = EasyMock.getCurrentArguments();
+            return answer((IRemoteAndroidTestRunner) args[0], (ITestRunListener) args[1]);
+        }
+
+        public abstract Boolean answer(IRemoteAndroidTestRunner runner,
+                ITestRunListener listener) throws DeviceNotAvailableException;
+    }
+
+    private void setRunTestExpectations(RunTestAnswer runTestResponse)
+            throws DeviceNotAvailableException {
+
+        EasyMock.expect(mMockTestDevice
+                .runInstrumentationTests((IRemoteAndroidTestRunner) EasyMock.anyObject(),
+                        (ITestRunListener) EasyMock.anyObject())).andAnswer(runTestResponse);
+    }
+}
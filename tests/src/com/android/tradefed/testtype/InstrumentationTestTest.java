@@ -22,12 +22,14 @@ import com.android.ddmlib.testrunner.TestIdentifier;
 import com.android.tradefed.device.DeviceNotAvailableException;
 import com.android.tradefed.device.ITestDevice;
 import com.android.tradefed.result.ITestInvocationListener;
+import com.android.tradefed.util.FileUtil;
 
 import junit.framework.TestCase;
 
 import org.easymock.EasyMock;
 import org.easymock.IAnswer;
 
+import java.io.File;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
@@ -376,6 +378,84 @@ public class InstrumentationTestTest extends TestCase {
         mMockListener.testRunEnded(1, EMPTY_STRING_MAP);
     }
 
+    /**
+     * Test that the collected test list is cached, and that a later run of the same test apk
+     * skips collection.
+     */
+    public void testRun_rerunCachedTests() throws Exception {
+        File cacheDir = FileUtil.createTempDir("test-list-cache");
+        File apkFile = FileUtil.createTempFile("test", ".apk");
+        try {
+            FileUtil.writeToFile("apk contents", apkFile);
+            EasyMock.expect(mMockTestDevice.installPackage(apkFile, true)).andStubReturn(null);
+            EasyMock.expect(mMockTestDevice.uninstallPackage(TEST_PACKAGE_VALUE))
+                    .andStubReturn(null);
+            // expect a single log only mode run to collect tests
+            mMockRemoteRunner.setLogOnly(true);
+            mMockRemoteRunner.addInstrumentationArg(InstrumentationTest.DELAY_MSEC_ARG,
+                    Long.toString(mInstrumentationTest.getTestDelay()));
+            mMockRemoteRunner.setMaxTimeToOutputResponse(
+                    COLLECT_TESTS_SHELL_TIMEOUT, TimeUnit.MILLISECONDS);
+            setCollectTestsExpectations(new CollectTestAnswer() {
+                @Override
+                public Boolean answer(IRemoteAndroidTestRunner runner,
+                        ITestRunListener listener) {
+                    listener.testRunStarted(TEST_PACKAGE_VALUE, 1);
+                    listener.testStarted(TEST1);
+                    listener.testEnded(TEST1, EMPTY_STRING_MAP);
+                    listener.testRunEnded(1, EMPTY_STRING_MAP);
+                    return true;
+                }
+            });
+            mMockRemoteRunner.setLogOnly(false);
+            mMockRemoteRunner.removeInstrumentationArg(InstrumentationTest.DELAY_MSEC_ARG);
+            mMockRemoteRunner.setMaxTimeToOutputResponse(TEST_TIMEOUT, TimeUnit.MILLISECONDS);
+            EasyMock.expectLastCall().times(2);
+            RunTestAnswer runAnswer = new RunTestAnswer() {
+                @Override
+                public Boolean answer(IRemoteAndroidTestRunner runner,
+                        ITestRunListener listener) {
+                    listener.testRunStarted(TEST_PACKAGE_VALUE, 1);
+                    listener.testStarted(TEST1);
+                    listener.testEnded(TEST1, EMPTY_STRING_MAP);
+                    listener.testRunEnded(1, EMPTY_STRING_MAP);
+                    return true;
+                }
+            };
+            setRunTestExpectations(runAnswer);
+            setRunTestExpectations(runAnswer);
+            ITestInvocationListener listener = EasyMock.createNiceMock(
+                    ITestInvocationListener.class);
+            EasyMock.replay(mMockRemoteRunner, mMockTestDevice, listener);
+
+            mInstrumentationTest.setRerunMode(true);
+            mInstrumentationTest.setInstallFile(apkFile);
+            mInstrumentationTest.setTestListCacheDir(cacheDir);
+            mInstrumentationTest.run(listener);
+
+            InstrumentationTest secondTest = new InstrumentationTest() {
+                @Override
+                IRemoteAndroidTestRunner createRemoteAndroidTestRunner(String packageName,
+                        String runnerName, IDevice device) {
+                    return mMockRemoteRunner;
+                }
+            };
+            secondTest.setPackageName(TEST_PACKAGE_VALUE);
+            secondTest.setRunnerName(TEST_RUNNER_VALUE);
+            secondTest.setDevice(mMockTestDevice);
+            secondTest.setTestTimeout(TEST_TIMEOUT);
+            secondTest.setCollectsTestsShellTimeout(COLLECT_TESTS_SHELL_TIMEOUT);
+            secondTest.setRerunMode(true);
+            secondTest.setInstallFile(apkFile);
+            secondTest.setTestListCacheDir(cacheDir);
+            secondTest.run(listener);
+            EasyMock.verify(mMockRemoteRunner, mMockTestDevice);
+        } finally {
+            FileUtil.recursiveDelete(cacheDir);
+            FileUtil.deleteFile(apkFile);
+        }
+    }
+
     /**
      * Test that IllegalArgumentException is thrown if an invalid test size is provided.
      */
@@ -69,6 +69,19 @@ public class NativeBenchmarkTestParserTest extends TestCase {
         System.out.printf("%s\n", new Double(0.00000059).toString());
     }
 
+    /**
+     * Test a run with more than one result.
+     */
+    public void testParse_multipleResults() {
+        mParser.processNewLines(new String[] {"Time per iteration min: 1 avg: 2 max: 3",
+                "Time per iteration min: 2 avg: 4 max: 9"});
+        mParser.done();
+        verifyAvgTime(3);
+        assertEquals(1.0, mParser.getMinOperationTime());
+        assertEquals(9.0, mParser.getMaxOperationTime());
+        assertEquals(2, mParser.getAvgOperationTimeStats().size());
+    }
+
     /**
      * Verify the iteration count collected by the parser
      */
@@ -25,6 +25,7 @@ import junit.framework.TestCase;
 
 import org.easymock.Capture;
 import org.easymock.EasyMock;
+import org.easymock.IAnswer;
 
 import java.util.Map;
 import java.util.concurrent.TimeUnit;
@@ -109,6 +110,62 @@ public class NativeStressTestTest extends TestCase {
         verifyMocks();
     }
 
+    /**
+     * Test that iteration time percentiles are reported for runs that completed passes.
+     */
+    public void testRun_iterationTimes() throws DeviceNotAvailableException {
+        mNativeTest.setNumIterations(2);
+        mNativeTest.setNumRuns(3);
+        IAnswer<Object> passesAnswer = new IAnswer<Object>() {
+            @Override
+            public Object answer() {
+                IShellOutputReceiver receiver =
+                        (IShellOutputReceiver)EasyMock.getCurrentArguments()[1];
+                byte[] output = "==== Completed pass: 0\r\n==== Completed pass: 1\r\n".getBytes();
+                receiver.addOutput(output, 0, output.length);
+                receiver.flush();
+                return null;
+            }
+        };
+        mMockDevice.executeShellCommand(EasyMock.contains("-s 0 -e 1"), (IShellOutputReceiver)
+                EasyMock.anyObject(), EasyMock.anyLong(), (TimeUnit)EasyMock.anyObject(),
+                EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(passesAnswer);
+        // a run that completes no passes is not timed
+        mMockDevice.executeShellCommand(EasyMock.contains("-s 2 -e 3"), (IShellOutputReceiver)
+                EasyMock.anyObject(), EasyMock.anyLong(), (TimeUnit)EasyMock.anyObject(),
+                EasyMock.anyInt());
+        mMockDevice.executeShellCommand(EasyMock.contains("-s 4 -e 5"), (IShellOutputReceiver)
+                EasyMock.anyObject(), EasyMock.anyLong(), (TimeUnit)EasyMock.anyObject(),
+                EasyMock.anyInt());
+        EasyMock.expectLastCall().andAnswer(passesAnswer);
+
+        replayMocks();
+        mNativeTest.run(mMockListener);
+        verifyMocks();
+        Map<String, String> metrics = mCapturedMetricMap.getValue();
+        assertEquals("4", metrics.get(NativeStressTest.ITERATION_KEY));
+        assertNotNull(metrics.get(NativeStressTest.ITERATION_TIME_P50_KEY));
+        assertNotNull(metrics.get(NativeStressTest.ITERATION_TIME_P90_KEY));
+        assertNotNull(metrics.get(NativeStressTest.ITERATION_TIME_P99_KEY));
+    }
+
+    /**
+     * Test that no iteration time percentiles are reported if no passes completed.
+     */
+    public void testRun_noIterationTimes() throws DeviceNotAvailableException {
+        mNativeTest.setNumIterations(100);
+        mMockDevice.executeShellCommand(EasyMock.contains("-s 0 -e 99"), (IShellOutputReceiver)
+                EasyMock.anyObject(), EasyMock.anyLong(), (TimeUnit)EasyMock.anyObject(),
+                EasyMock.anyInt());
+        replayMocks();
+        mNativeTest.run(mMockListener);
+        verifyMocks();
+        Map<String, String> metrics = mCapturedMetricMap.getValue();
+        assertEquals("0", metrics.get(NativeStressTest.ITERATION_KEY));
+        assertFalse(metrics.containsKey(NativeStressTest.ITERATION_TIME_P50_KEY));
+    }
+
     /**
      * Test that stress test results are still reported even if device becomes not available
      */
@@ -0,0 +1,97 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.testtype;
+
+import com.android.ddmlib.testrunner.TestIdentifier;
+import com.android.tradefed.util.FileUtil;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Unit tests for {@link TestListCache}.
+ */
+public class TestListCacheTest extends TestCase {
+
+    private static final String KEY = TestListCache.hashStrings("com.foo", "runner");
+    private static final List<TestIdentifier> TESTS = Arrays.asList(
+            new TestIdentifier("com.foo.ZTest", "testB"),
+            new TestIdentifier("com.foo.ATest", "testA"));
+
+    private File mCacheDir;
+    private TestListCache mCache;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mCacheDir = FileUtil.createTempDir("test-list-cache");
+        // use a sub directory to verify it is created on demand
+        mCache = new TestListCache(new File(mCacheDir, "cache"));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mCacheDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that a stored test list is returned in its original order.
+     */
+    public void testPutGet() {
+        assertNull(mCache.get(KEY, "1"));
+        mCache.put(KEY, "1", TESTS);
+        Collection<TestIdentifier> cachedTests = mCache.get(KEY, "1");
+        assertEquals(TESTS, new ArrayList<TestIdentifier>(cachedTests));
+        // entry is shared with other cache instances
+        assertNotNull(new TestListCache(new File(mCacheDir, "cache")).get(KEY, "1"));
+    }
+
+    /**
+     * Test that an entry is ignored when the validation string differs.
+     */
+    public void testGet_invalidated() {
+        mCache.put(KEY, "1", TESTS);
+        assertNull(mCache.get(KEY, "2"));
+        mCache.put(KEY, "2", TESTS.subList(0, 1));
+        assertEquals(1, mCache.get(KEY, "2").size());
+    }
+
+    /**
+     * Test that an empty test list can be cached.
+     */
+    public void testPutGet_empty() {
+        mCache.put(KEY, "1", new ArrayList<TestIdentifier>());
+        assertTrue(mCache.get(KEY, "1").isEmpty());
+    }
+
+    /**
+     * Test that keys differ when any input differs, including which input is <code>null</code>.
+     */
+    public void testHashStrings() {
+        assertEquals(KEY, TestListCache.hashStrings("com.foo", "runner"));
+        assertFalse(KEY.equals(TestListCache.hashStrings("com.foo", "runner2")));
+        assertFalse(TestListCache.hashStrings("ab", "c").equals(
+                TestListCache.hashStrings("a", "bc")));
+        assertFalse(TestListCache.hashStrings(null, "a").equals(
+                TestListCache.hashStrings("a", null)));
+    }
+}
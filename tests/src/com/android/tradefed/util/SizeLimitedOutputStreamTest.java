@@ -21,6 +21,7 @@ import junit.framework.TestCase;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.Arrays;
 
 /**
  * Unit tests for {@link SizeLimitedOutputStreamTest}
@@ -59,4 +60,43 @@ public class SizeLimitedOutputStreamTest extends TestCase {
             outStream.delete();
         }
     }
+    /**
+     * Test reading the data written before an offset, after more data has been written.
+     */
+    public void testGetData_offset() throws IOException {
+        SizeLimitedOutputStream outStream = new SizeLimitedOutputStream(20, 4, "foo", "bar");
+        try {
+            for (int i = 0; i < 12; i++) {
+                outStream.write(i);
+            }
+            long offset = outStream.getTotalBytesWritten();
+            assertEquals(12, offset);
+            for (int i = 12; i < 20; i++) {
+                outStream.write(i);
+            }
+            assertEquals(20, outStream.getTotalBytesWritten());
+            assertArrayEquals(new byte[] {8, 9, 10, 11}, readAll(outStream.getData(offset, 4)));
+
+            // data that has been dropped is not returned
+            for (int i = 20; i < 29; i++) {
+                outStream.write(i);
+            }
+            assertArrayEquals(new byte[] {10, 11}, readAll(outStream.getData(offset, 10)));
+            assertArrayEquals(new byte[0], readAll(outStream.getData(5, 5)));
+        } finally {
+            outStream.delete();
+        }
+    }
+
+    private byte[] readAll(InputStream stream) throws IOException {
+        try {
+            return StreamUtil.getByteArrayListFromStream(stream).getContents();
+        } finally {
+            stream.close();
+        }
+    }
+
+    private void assertArrayEquals(byte[] expected, byte[] actual) {
+        assertEquals(Arrays.toString(expected), Arrays.toString(actual));
+    }
 }
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit tests for {@link StreamingStats}
+ */
+public class StreamingStatsTest extends TestCase {
+    private StreamingStats mStats = null;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void setUp() throws Exception {
+        mStats = new StreamingStats();
+    }
+
+    /**
+     * Make sure that the class behaves as expected when the dataset is empty
+     */
+    public void testStats_empty() {
+        assertTrue(mStats.isEmpty());
+        assertEquals(0, mStats.size());
+        assertNull(mStats.mean());
+        assertNull(mStats.median());
+        assertNull(mStats.min());
+        assertNull(mStats.max());
+        assertNull(mStats.stdev());
+        assertNull(mStats.percentile(90));
+    }
+
+    /**
+     * Make sure that the exact measures match {@link SimpleStats}, and the percentiles are within
+     * the precision of the exact value.
+     */
+    public void testStats_matchesSimpleStats() {
+        SimpleStats simpleStats = new SimpleStats();
+        for (int i = 1; i <= 1000; ++i) {
+            mStats.add(i);
+            simpleStats.add(i);
+        }
+        assertEquals(1000, mStats.size());
+        assertEquals(simpleStats.mean(), mStats.mean(), 0.0001);
+        assertEquals(simpleStats.stdev(), mStats.stdev(), 0.0001);
+        assertEquals(1.0, mStats.min(), 0.0001);
+        assertEquals(1000.0, mStats.max(), 0.0001);
+        assertEquals(500.0, mStats.median(), 500.0 * 0.011);
+        assertEquals(900.0, mStats.percentile(90), 900.0 * 0.011);
+        assertEquals(1.0, mStats.percentile(0), 0.0001);
+        assertEquals(1000.0, mStats.percentile(100), 0.0001);
+    }
+
+    /**
+     * Make sure that negative and zero measurements are ordered correctly.
+     */
+    public void testStats_negative() {
+        for (int i = -5; i <= 4; ++i) {
+            mStats.add(i);
+        }
+        assertEquals(-0.5, mStats.mean(), 0.0001);
+        assertEquals(-5.0, mStats.percentile(0), 0.0001);
+        assertEquals(-1.0, mStats.percentile(50), 1.0 * 0.011);
+        assertEquals(0.0, mStats.percentile(60), 0.0001);
+        assertEquals(4.0, mStats.percentile(100), 0.0001);
+    }
+
+    /**
+     * Make sure that merging two datasets gives the same result as adding every measurement to
+     * one.
+     */
+    public void testStats_addAll() {
+        StreamingStats other = new StreamingStats();
+        StreamingStats combined = new StreamingStats();
+        for (int i = 0; i < 100; ++i) {
+            double meas = (i * 37) % 101;
+            if (i % 3 == 0) {
+                other.add(meas);
+            } else {
+                mStats.add(meas);
+            }
+            combined.add(meas);
+        }
+        mStats.addAll(other);
+        assertEquals(combined.size(), mStats.size());
+        assertEquals(combined.mean(), mStats.mean(), 0.0001);
+        assertEquals(combined.stdev(), mStats.stdev(), 0.0001);
+        assertEquals(combined.min(), mStats.min(), 0.0001);
+        assertEquals(combined.max(), mStats.max(), 0.0001);
+        assertEquals(combined.median(), mStats.median(), 0.0001);
+        assertEquals(combined.percentile(99), mStats.percentile(99), 0.0001);
+    }
+
+    /**
+     * Make sure that invalid measurements are rejected.
+     */
+    public void testStats_invalid() {
+        try {
+            mStats.add(Double.NaN);
+            fail("IllegalArgumentException not thrown");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertTrue(mStats.isEmpty());
+    }
+
+    /**
+     * Make sure that outliers are detected with Tukey's fences.
+     */
+    public void testStats_outliers() {
+        assertFalse(mStats.isOutlier(1000));
+        assertEquals(0, mStats.countOutliers());
+        for (int i = 0; i < 100; ++i) {
+            mStats.add(10 + i % 5);
+        }
+        mStats.add(1000);
+        mStats.add(-1000);
+        assertFalse(mStats.isOutlier(12));
+        assertTrue(mStats.isOutlier(50));
+        assertTrue(mStats.isOutlier(-5));
+        assertEquals(2, mStats.countOutliers());
+    }
+}
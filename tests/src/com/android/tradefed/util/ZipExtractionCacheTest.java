@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Unit tests for {@link ZipExtractionCache}
+ */
+public class ZipExtractionCacheTest extends TestCase {
+
+    private File mTmpDir;
+    private File mZipFile;
+    private int mExtractCount = 0;
+    private ZipExtractionCache mCache;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = FileUtil.createTempDir("zipcache");
+        File contentDir = new File(mTmpDir, "content");
+        contentDir.mkdir();
+        FileUtil.writeToFile("foo", new File(contentDir, "foo.txt"));
+        mZipFile = new File(mTmpDir, "content.zip");
+        ZipUtil.createZip(contentDir, mZipFile);
+        mCache = new ZipExtractionCache() {
+            @Override
+            File extract(File zipFile) throws IOException {
+                mExtractCount++;
+                return super.extract(zipFile);
+            }
+        };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTmpDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that a zip acquired more than once is extracted once, and deleted after its last
+     * release.
+     */
+    public void testAcquire_shared() throws IOException {
+        File dir = mCache.acquire(mZipFile);
+        assertTrue(new File(dir, "content/foo.txt").isFile());
+        assertEquals(dir, mCache.acquire(mZipFile));
+        assertEquals(1, mExtractCount);
+
+        assertTrue(mCache.release(dir));
+        assertTrue(dir.isDirectory());
+        assertTrue(mCache.release(dir));
+        assertFalse(dir.exists());
+        assertEquals(0, mCache.size());
+        assertFalse(mCache.release(dir));
+    }
+
+    /**
+     * Test that a zip that changes while in use is extracted again.
+     */
+    public void testAcquire_changed() throws IOException {
+        File dir = mCache.acquire(mZipFile);
+        mZipFile.setLastModified(mZipFile.lastModified() - 10000);
+        File newDir = mCache.acquire(mZipFile);
+        assertFalse(dir.equals(newDir));
+        assertEquals(2, mExtractCount);
+        assertEquals(2, mCache.size());
+
+        mCache.release(dir);
+        assertFalse(dir.exists());
+        assertTrue(newDir.isDirectory());
+        mCache.release(newDir);
+        assertEquals(0, mCache.size());
+    }
+
+    /**
+     * Test that a zip that fails to extract is not cached.
+     */
+    public void testAcquire_invalid() throws IOException {
+        File badZip = new File(mTmpDir, "bad.zip");
+        FileUtil.writeToFile("not a zip", badZip);
+        try {
+            mCache.acquire(badZip);
+            fail("IOException not thrown");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(0, mCache.size());
+    }
+
+    /**
+     * Test that callers waiting for an extraction that fails also fail, rather than extracting
+     * into an entry that is no longer cached, and that the next caller tries again.
+     */
+    public void testAcquire_failedWhileWaiting() throws Exception {
+        final CountDownLatch extracting = new CountDownLatch(1);
+        final CountDownLatch waiterStarted = new CountDownLatch(1);
+        final ZipExtractionCache cache = new ZipExtractionCache() {
+            @Override
+            File extract(File zipFile) throws IOException {
+                if (mExtractCount++ == 0) {
+                    extracting.countDown();
+                    try {
+                        waiterStarted.await();
+                        // give the waiter time to block on the entry
+                        Thread.sleep(50);
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    throw new IOException("first extraction fails");
+                }
+                return super.extract(zipFile);
+            }
+        };
+        final IOException[] waiterFailure = new IOException[1];
+        Thread first = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.acquire(mZipFile);
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+        };
+        first.start();
+        extracting.await();
+        Thread waiter = new Thread() {
+            @Override
+            public void run() {
+                waiterStarted.countDown();
+                try {
+                    cache.acquire(mZipFile);
+                } catch (IOException e) {
+                    waiterFailure[0] = e;
+                }
+            }
+        };
+        waiter.start();
+        first.join();
+        waiter.join();
+        assertNotNull(waiterFailure[0]);
+        assertEquals(1, mExtractCount);
+        assertEquals(0, cache.size());
+
+        File dir = cache.acquire(mZipFile);
+        assertTrue(new File(dir, "content/foo.txt").isFile());
+        assertTrue(cache.release(dir));
+        assertFalse(dir.exists());
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.tradefed.util;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Unit tests for {@link ZipVerifier}
+ */
+public class ZipVerifierTest extends TestCase {
+
+    private static final String CORRUPTIBLE_CONTENTS = "corruptible contents";
+
+    private File mTmpDir;
+    private File mZipFile;
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mTmpDir = FileUtil.createTempDir("zipverifier");
+        mZipFile = new File(mTmpDir, "test.zip");
+        createZip(mZipFile);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtil.recursiveDelete(mTmpDir);
+        super.tearDown();
+    }
+
+    /**
+     * Test that a valid zip file passes, when its entries are split between threads.
+     */
+    public void testVerify() throws IOException {
+        new ZipVerifier(3).verify(mZipFile);
+        new ZipVerifier(1).verify(mZipFile);
+    }
+
+    /**
+     * Test that an entry whose data does not match its CRC is detected.
+     */
+    public void testVerify_crcMismatch() throws IOException {
+        corruptZip();
+        try {
+            new ZipVerifier(3).verify(mZipFile);
+            fail("ZipException not thrown");
+        } catch (ZipException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that a zip file found to be valid is not read again while it is unchanged.
+     */
+    public void testVerify_cached() throws IOException {
+        ZipVerifier verifier = new ZipVerifier(2);
+        verifier.verify(mZipFile);
+        long lastModified = mZipFile.lastModified();
+        corruptZip();
+        mZipFile.setLastModified(lastModified);
+        verifier.verify(mZipFile);
+
+        // the file is read again once it looks different
+        mZipFile.setLastModified(lastModified + 2000);
+        try {
+            verifier.verify(mZipFile);
+            fail("ZipException not thrown");
+        } catch (ZipException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Test that only a bounded number of valid zip files is remembered, least recently verified
+     * first out.
+     */
+    public void testVerify_cacheBounded() throws IOException {
+        File otherZip = new File(mTmpDir, "other.zip");
+        createZip(otherZip);
+        ZipVerifier verifier = new ZipVerifier(2, 1);
+        verifier.verify(mZipFile);
+        verifier.verify(otherZip);
+        long lastModified = mZipFile.lastModified();
+        corruptZip();
+        mZipFile.setLastModified(lastModified);
+        // the first zip was forgotten, so it is read again
+        try {
+            verifier.verify(mZipFile);
+            fail("ZipException not thrown");
+        } catch (ZipException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Creates a zip file with several compressed entries, and one stored entry that can be
+     * corrupted in place.
+     */
+    private void createZip(File zipFile) throws IOException {
+        ZipOutputStream out = new ZipOutputStream(new FileOutputStream(zipFile));
+        try {
+            for (int i = 0; i < 5; i++) {
+                out.putNextEntry(new ZipEntry(String.format("dir/file%d.txt", i)));
+                for (int j = 0; j <= i * 100; j++) {
+                    out.write(String.format("line %d of file %d\n", j, i).getBytes());
+                }
+                out.closeEntry();
+            }
+            byte[] data = CORRUPTIBLE_CONTENTS.getBytes();
+            ZipEntry stored = new ZipEntry("stored.txt");
+            stored.setMethod(ZipEntry.STORED);
+            stored.setSize(data.length);
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            stored.setCrc(crc.getValue());
+            out.putNextEntry(stored);
+            out.write(data);
+            out.closeEntry();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Changes one byte of the stored entry's data, without changing the size of the file.
+     */
+    private void corruptZip() throws IOException {
+        // decode one char per byte, so offsets in the string are offsets in the file
+        String contents = new String(Files.readAllBytes(mZipFile.toPath()), "ISO-8859-1");
+        int offset = contents.indexOf(CORRUPTIBLE_CONTENTS);
+        assertTrue(offset >= 0);
+        RandomAccessFile file = new RandomAccessFile(mZipFile, "rw");
+        try {
+            file.seek(offset);
+            file.write('C');
+        } finally {
+            file.close();
+        }
+    }
+}